@@ -28,7 +28,8 @@ public class AlbumList extends AbstractMainListActivity
 	protected AlbumAdapter createListAdapter()
 	{
 		return new AlbumAdapter(this, new QueryProvider("a." + Five.Music.Albums.NAME,
-				Five.Music.Albums.CONTENT_URI_COMPLETE));
+				Five.Music.Albums.CONTENT_URI_COMPLETE,
+				Five.Music.Albums.CONTENT_COMPLETE_SECTIONS_URI));
 	}
 
 	@Override
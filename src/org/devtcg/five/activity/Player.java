@@ -20,6 +20,7 @@ import org.devtcg.five.provider.Five;
 import org.devtcg.five.service.IPlaylistBufferListener;
 import org.devtcg.five.service.IPlaylistDownloadListener;
 import org.devtcg.five.service.IPlaylistMoveListener;
+import org.devtcg.five.service.IPlaylistProgressListener;
 import org.devtcg.five.util.PlaylistServiceActivity;
 import org.devtcg.five.util.Song;
 import org.devtcg.five.widget.PlayerControls;
@@ -47,6 +48,12 @@ public class Player extends PlaylistServiceActivity
 
 	private ProgressHandler mHandler = new ProgressHandler();
 
+	/* How often the service should report playback position. */
+	private static final int PROGRESS_INTERVAL = 1000;
+
+	/* Duration of the current song as last reported by the service, or -1. */
+	private long mSongDuration = -1;
+
 	private TextView mArtist;
 	private TextView mAlbum;
 	private TextView mSong;
@@ -122,6 +129,8 @@ public class Player extends PlaylistServiceActivity
 			mService.registerOnBufferingListener(mServiceBufferListener);
 			mService.registerOnMoveListener(mServiceMoveListener);
 			mService.registerOnDownloadListener(mServiceDownloadListener);
+			mService.registerOnProgressListener(mServiceProgressListener,
+			  PROGRESS_INTERVAL);
 
 			if (mService.isPlaying() == false)
 				setNotPlaying();
@@ -152,6 +161,7 @@ public class Player extends PlaylistServiceActivity
 			mService.unregisterOnBufferingListener(mServiceBufferListener);
 			mService.unregisterOnMoveListener(mServiceMoveListener);
 			mService.unregisterOnDownloadListener(mServiceDownloadListener);
+			mService.unregisterOnProgressListener(mServiceProgressListener);
 		} catch (RemoteException e) {}
 	}
 
@@ -248,38 +258,27 @@ public class Player extends PlaylistServiceActivity
 					mControlsView.getSeekBar().setSecondaryProgress(msg.arg1);
 				break;
 			case MSG_PLAYBACK_PROGRESS:
-				try {
-					if (mService != null && mService.isOutputting() == true)
-					{
-						long pos = mService.tell();
-						long dur = mService.getSongDuration();
-						int progress = (int)(((float)pos / (float)dur) * 100f);
+				if (mSongPlaying != null && mSongPlaying.id == (Long)msg.obj)
+				{
+					long pos = msg.arg1;
+					long dur = msg.arg2;
+					int progress = (int)(((float)pos / (float)dur) * 100f);
 
-						mControlsView.setTrackPosition((int)(pos / 1000), (int)(dur / 1000));
-						mControlsView.getSeekBar().setProgress(progress);
-					}
-				} catch (RemoteException e) {}
-				sendMessageDelayed(obtainMessage(MSG_PLAYBACK_PROGRESS), 1000);
+					mSongDuration = dur;
+					mControlsView.setTrackPosition((int)(pos / 1000), (int)(dur / 1000));
+					mControlsView.getSeekBar().setProgress(progress);
+				}
 				break;
 			default:
 				super.handleMessage(msg);
 			}
 		}
 
-		public void startPlaybackMonitoring(boolean updateNow)
-		{
-			removeMessages(MSG_PLAYBACK_PROGRESS);
-			Message msg = obtainMessage(MSG_PLAYBACK_PROGRESS);
-
-			if (updateNow == true)
-				handleMessage(msg);
-			else
-				sendMessage(msg);
-		}
-
-		public void stopPlaybackMonitoring()
+		public void sendPlaybackProgress(long songId, long position, long duration)
 		{
 			removeMessages(MSG_PLAYBACK_PROGRESS);
+			sendMessage(obtainMessage(MSG_PLAYBACK_PROGRESS,
+			  (int)position, (int)duration, (Long)songId));
 		}
 
 		public void sendDownloadProgress(long songId, int progress)
@@ -299,7 +298,8 @@ public class Player extends PlaylistServiceActivity
 				return;
 
 			try {
-				long dur = mService.getSongDuration();
+				long dur = (mSongDuration > 0) ?
+				  mSongDuration : mService.getSongDuration();
 				long target = (long)((progress / 100f) * dur);
 				mService.seek(target);
 			} catch (RemoteException e) {}
@@ -393,8 +393,6 @@ public class Player extends PlaylistServiceActivity
 
 		/* Not really, we just want the mechanics to restart playback. */
 		setPausedState(true);
-
-		mHandler.stopPlaybackMonitoring();
 	}
 
 	private void setNowPlaying(Song song, int pos, int len)
@@ -426,7 +424,7 @@ public class Player extends PlaylistServiceActivity
 		mControlsView.setPlaylistPosition(pos + 1, len);
 		mControlsView.setTrackPosition(0, (int)song.length);
 
-		mHandler.startPlaybackMonitoring(true);
+		mSongDuration = -1;
 	}
 
 	private void setNowPlaying(long songId, int pos)
@@ -583,6 +581,18 @@ public class Player extends PlaylistServiceActivity
 		}
 	};
 
+	private final IPlaylistProgressListener.Stub mServiceProgressListener =
+	  new IPlaylistProgressListener.Stub()
+	{
+		public void onPlaybackProgress(long songId, long position,
+		  long duration, int bufferPercent)
+		  throws RemoteException
+		{
+			if (duration > 0)
+				mHandler.sendPlaybackProgress(songId, position, duration);
+		}
+	};
+
 	private final IPlaylistDownloadListener.Stub mServiceDownloadListener =
 	  new IPlaylistDownloadListener.Stub()
 	{
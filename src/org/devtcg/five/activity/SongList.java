@@ -16,7 +16,6 @@ package org.devtcg.five.activity;
 
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Random;
 
 import org.devtcg.five.Constants;
@@ -47,6 +46,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.Window;
 import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView;
 import android.widget.HeaderViewListAdapter;
 import android.widget.ImageView;
@@ -81,6 +81,7 @@ public class SongList extends PlaylistServiceActivity
 	private EfficientCursorAdapter mAdapter;
 
 	private Cursor mCursor;
+	private Uri mSongsUri;
 
 	private long mSongPlaying = -1;
 
@@ -237,10 +238,10 @@ public class SongList extends PlaylistServiceActivity
 		}
 		else
 		{
-			Uri songsUri = i.getData().buildUpon()
+			mSongsUri = i.getData().buildUpon()
 			  .appendPath("songs").build();
 
-			mCursor = managedQuery(songsUri, sProjection, null, null, null);
+			mCursor = managedQuery(mSongsUri, sProjection, null, null, null);
 		}
 
 		if (mExtras.hasMultipleArtists() == true)
@@ -264,6 +265,7 @@ public class SongList extends PlaylistServiceActivity
 		mAdapter.setViewBinder(this);
 
 		mList.setOnItemClickListener(mOnItemClickListener);
+		mList.setOnScrollListener(mOnScrollListener);
 		registerForContextMenu(mList);
 		mList.setAdapter(mAdapter);
 
@@ -393,6 +395,9 @@ public class SongList extends PlaylistServiceActivity
 
 			setPlaying(songId);
 		} catch (RemoteException e) {}
+
+		/* Wait for the list to be laid out. */
+		mHandler.post(mReportVisibleSongs);
 	}
 
 	@Override
@@ -405,6 +410,60 @@ public class SongList extends PlaylistServiceActivity
 		} catch (RemoteException e) {}
 	}
 
+	private final OnScrollListener mOnScrollListener = new OnScrollListener()
+	{
+		public void onScroll(AbsListView view, int firstVisibleItem,
+		  int visibleItemCount, int totalItemCount) {}
+
+		public void onScrollStateChanged(AbsListView view, int scrollState)
+		{
+			if (scrollState == OnScrollListener.SCROLL_STATE_IDLE)
+				reportVisibleSongs();
+		}
+	};
+
+	private final Runnable mReportVisibleSongs = new Runnable()
+	{
+		public void run()
+		{
+			reportVisibleSongs();
+		}
+	};
+
+	/**
+	 * Tell the playlist service which songs are on screen so that it can
+	 * keep the beginning of each in cache for instant playback.
+	 */
+	private void reportVisibleSongs()
+	{
+		if (mService == null || mList == null)
+			return;
+
+		int first = mList.getFirstVisiblePosition();
+		int last = mList.getLastVisiblePosition();
+
+		long[] songIds = new long[Math.max(0, last - first + 1)];
+		int n = 0;
+
+		for (int i = first; i <= last; i++)
+		{
+			long songId = mList.getItemIdAtPosition(i);
+			if (songId >= 0)
+				songIds[n++] = songId;
+		}
+
+		if (n < songIds.length)
+		{
+			long[] trimmed = new long[n];
+			System.arraycopy(songIds, 0, trimmed, 0, n);
+			songIds = trimmed;
+		}
+
+		try {
+			mService.setVisibleSongs(songIds);
+		} catch (RemoteException e) {}
+	}
+
 	private static class AlbumInfoView extends LinearLayout
 	{
 		public AlbumInfoView(Context ctx)
@@ -664,13 +723,26 @@ public class SongList extends PlaylistServiceActivity
 		for (int i = 0; i < n; i++)
 			playlist[i] = mAdapter.getItemId(i);
 
-		while (n > 0)
+		while (n > 1)
 		{
 			int k = r.nextInt(n);
 			n--;
-			mService.append(playlist[k]);
+			long tmp = playlist[k];
 			playlist[k] = playlist[n];
+			playlist[n] = tmp;
 		}
+
+		mService.appendAll(playlist);
+	}
+
+	private long[] getSongIds(int from, int to)
+	{
+		long[] songIds = new long[Math.max(to - from, 0)];
+
+		for (int i = from; i < to; i++)
+			songIds[i - from] = mAdapter.getItemId(i);
+
+		return songIds;
 	}
 
 	private void playSongsStartingAt(int pos, long id)
@@ -684,16 +756,8 @@ public class SongList extends PlaylistServiceActivity
 			return;
 		}
 
-		mService.clear();
-		mService.append(id);
-
-		for (int i = pos - 1; i >= 0; i--)
-			mService.prepend(mAdapter.getItemId(i));
-
-		int n = mAdapter.getCount();
-
-		for (int i = pos + 1; i < n; i++)
-			mService.append(mAdapter.getItemId(i));
+		if (mService.replaceWithQuery(mSongsUri.toString()) > pos)
+			mService.jump(pos);
 	}
 
 	private void playExistingSongAt(int pos, long id, int currPos)
@@ -708,22 +772,12 @@ public class SongList extends PlaylistServiceActivity
 			/* Delete the current playlist (except the playing song). */
 			int currN = mService.getPlaylistLength();
 
-			while (currN-- > 0)
-			{
-				if (currN == currPos)
-					continue;
-
-				mService.remove(currN);
-			}
+			mService.removeRange(currPos + 1, currN);
+			mService.removeRange(0, currPos);
 
 			/* Then build the playlist up again around selected song. */
-			for (int i = pos - 1; i >= 0; i--)
-				mService.prepend(mAdapter.getItemId(i));
-
-			int newN = mAdapter.getCount();
-
-			for (int i = pos + 1; i < newN; i++)
-				mService.append(mAdapter.getItemId(i));
+			mService.insertAll(getSongIds(0, pos), 0);
+			mService.appendAll(getSongIds(pos + 1, mAdapter.getCount()));
 		}
 	}
 
@@ -795,21 +849,41 @@ public class SongList extends PlaylistServiceActivity
 		}
 	};
 
+	/**
+	 * Cursor over the play queue joined with song meta data. Only the
+	 * queue's length is read up front; rows are fetched a window at a time
+	 * as the list scrolls, so that opening a very large queue is as cheap
+	 * as opening a small one.
+	 */
 	private class PlayQueueCursor extends AbstractCursor
 	{
-		/* The database cursor that represents this selection of songs, in
-		 * _id order. */
+		/* Queue positions fetched at once, centered on the row requested.
+		 * Kept well below SQLite's expression limits for the IN clause. */
+		private static final int WINDOW_SIZE = 128;
+
+		/* The database cursor that represents the songs in the current
+		 * window, in _id order. */
 		protected Cursor mWrapped;
 
 		protected String[] mFields;
 
+		/* Column holding the song _id, answered from the queue itself for
+		 * songs that have since been removed from the database. */
+		protected int mIdColumn;
+
 		/* The wrapped cursor is not ordered the same as our play queue,
-		 * so we must maintain an index.  This maps queue position to
-		 * cursor position. */
+		 * so we must maintain an index.  This maps queue position (less
+		 * mWindowStart) to cursor position, or -1 if the song is gone. */
 		protected int[] mPositions;
 
+		protected long[] mWindow;
+		protected int mWindowStart;
+
 		protected int mCount;
 
+		/* True if the current row's song wasn't found in the database. */
+		protected boolean mMissing;
+
 		public PlayQueueCursor(IPlaylistService service, String[] fields)
 		{
 			super();
@@ -817,46 +891,62 @@ public class SongList extends PlaylistServiceActivity
 			mFields = fields;
 			mService = service;
 
+			mIdColumn = Arrays.asList(fields).indexOf(Five.Music.Songs._ID);
+
 			init();
 		}
 
 		private void init()
 		{
-			List queue;
 			try {
-				queue = mService.getPlaylist();
+				mCount = mService.getPlaylistLength();
 			} catch (RemoteException e) {
-				return;
+				mCount = 0;
+			}
+		}
+
+		private void loadWindow(int pos)
+		{
+			closeWindow();
+
+			int start = Math.max(0, Math.min(pos - WINDOW_SIZE / 2,
+			  mCount - WINDOW_SIZE));
+
+			long[] window;
+			try {
+				window = mService.getPlaylistRange(start, start + WINDOW_SIZE);
+			} catch (RemoteException e) {
+				window = new long[0];
 			}
 
-			if (queue.isEmpty() == true)
+			mWindow = window;
+			mWindowStart = start;
+			mPositions = new int[window.length];
+
+			if (window.length == 0)
 				return;
 
 			StringBuilder where = new StringBuilder();
 			where.append(Five.Music.Songs._ID + " IN (");
-			for (int n = queue.size() - 1; n >= 0; n--)
+			for (int n = 0; n < window.length; n++)
 			{
-				where.append(queue.get(n));
 				if (n > 0)
 					where.append(',');
+				where.append(window[n]);
 			}
 			where.append(')');
 
 			/* We can't get a cursor in the order that we want so
-			 * we'll just order by _ID and do binary searches.
-			 * XXX: It would be more efficient to perform these searches
-			 * directly on the cursor in onMove rather than precomputing
-			 * the indices here. */
+			 * we'll just order by _ID and do binary searches. */
 			mWrapped = SongList.this.getContentResolver()
 			  .query(Five.Music.Songs.CONTENT_URI, mFields,
 			    where.toString(), null, Five.Music.Songs._ID);
 
-			mCount = mWrapped.getCount();
-			mPositions = new int[mCount];
+			int found = mWrapped.getCount();
 
 			/* Make one pass to build a searchable array by _ID. */
-			long[] songIdx = new long[mCount];
-			for (int i = 0; i < mCount; i++)
+			long[] songIdx = new long[found];
+			for (int i = 0; i < found; i++)
 			{
 				mWrapped.moveToNext();
 
@@ -865,54 +955,72 @@ public class SongList extends PlaylistServiceActivity
 			}
 
 			/* ...then build our queue to cursor position mapping. */
-			for (int i = 0; i < mCount; i++)
+			for (int i = 0; i < window.length; i++)
 			{
-				mPositions[i] =
-				  Arrays.binarySearch(songIdx, (Long)queue.get(i));
+				int idx = Arrays.binarySearch(songIdx, window[i]);
+				mPositions[i] = (idx >= 0) ? idx : -1;
 			}
 		}
 
+		private void closeWindow()
+		{
+			if (mWrapped != null)
+			{
+				mWrapped.close();
+				mWrapped = null;
+			}
+
+			mWindow = null;
+			mPositions = null;
+		}
+
 		@Override
 		public boolean onMove(int oldPosition, int newPosition)
 		{
-			if (oldPosition == newPosition)
-				return true;
+			if (mWindow == null || newPosition < mWindowStart ||
+			    newPosition >= mWindowStart + WINDOW_SIZE)
+				loadWindow(newPosition);
 
-			if (mWrapped == null)
-				return false;
+			int offset = newPosition - mWindowStart;
 
-			mWrapped.moveToPosition(mPositions[newPosition]);
+			/* Either the queue shrank since we last read its length or the
+			 * song has been deleted. */
+			if (offset >= mPositions.length || mPositions[offset] < 0)
+			{
+				mMissing = true;
+				return true;
+			}
+
+			mMissing = false;
+			mWrapped.moveToPosition(mPositions[offset]);
 			return true;
 		}
 
+		private long getQueueSongId()
+		{
+			int offset = mPos - mWindowStart;
+			return (offset < mWindow.length) ? mWindow[offset] : -1;
+		}
+
 		@Override
 		public void deactivate()
 		{
-			if (mWrapped != null)
-			{
-				mWrapped.deactivate();
-				mWrapped = null;
-				mPositions = null;
-			}
+			closeWindow();
 		}
 
 		@Override
 		public boolean requery()
 		{
-			close();
+			closeWindow();
 			init();
-			return true;
+			return super.requery();
 		}
 
 		@Override
 		public void close()
 		{
-			if (mWrapped != null)
-			{
-				mWrapped.close();
-				mWrapped = null;
-				mPositions = null;
-			}
+			closeWindow();
+			super.close();
 		}
 
 		@Override
@@ -930,42 +1038,63 @@ public class SongList extends PlaylistServiceActivity
 		@Override
 		public double getDouble(int column)
 		{
+			if (mMissing == true)
+				return (double)getLong(column);
+
 			return mWrapped.getDouble(column);
 		}
 
 		@Override
 		public float getFloat(int column)
 		{
+			if (mMissing == true)
+				return (float)getLong(column);
+
 			return mWrapped.getFloat(column);
 		}
 
 		@Override
 		public int getInt(int column)
 		{
+			if (mMissing == true)
+				return (int)getLong(column);
+
 			return mWrapped.getInt(column);
 		}
 
 		@Override
 		public long getLong(int column)
 		{
+			if (mMissing == true)
+				return (column == mIdColumn) ? getQueueSongId() : 0;
+
 			return mWrapped.getLong(column);
 		}
 
 		@Override
 		public short getShort(int column)
 		{
+			if (mMissing == true)
+				return (short)getLong(column);
+
 			return mWrapped.getShort(column);
 		}
 
 		@Override
 		public String getString(int column)
 		{
+			if (mMissing == true)
+				return (column == mIdColumn) ? String.valueOf(getQueueSongId()) : null;
+
 			return mWrapped.getString(column);
 		}
 
 		@Override
 		public boolean isNull(int column)
 		{
+			if (mMissing == true)
+				return column != mIdColumn;
+
 			return mWrapped.isNull(column);
 		}
 	}
@@ -29,6 +29,10 @@ public abstract class AbstractSyncProvider extends ContentProvider
 	private boolean mIsTemporary;
 	private File mTemporaryPath;
 
+	/* Set when a transaction nested in the current thread's outermost one
+	 * fails, which rolls back the outermost as well. */
+	private final ThreadLocal<Boolean> mNestedFailure = new ThreadLocal<Boolean>();
+
 	protected final boolean isTemporary()
 	{
 		return mIsTemporary;
@@ -57,6 +61,7 @@ public abstract class AbstractSyncProvider extends ContentProvider
 	public void merge(SyncContext syncContext, AbstractSyncProvider diffs)
 	{
 		SQLiteDatabase db = getDatabase();
+		boolean successful = false;
 		db.beginTransaction();
 		try {
 			Iterable<? extends AbstractTableMerger> mergers = getMergers();
@@ -68,11 +73,48 @@ public abstract class AbstractSyncProvider extends ContentProvider
 					break;
 			}
 			db.setTransactionSuccessful();
+			successful = true;
 		} finally {
+			endTransaction(db, successful);
+		}
+	}
+
+	private void endTransaction(SQLiteDatabase db, boolean successful)
+	{
+		boolean committed = false;
+		try {
 			db.endTransaction();
+			committed = successful;
+		} finally {
+			if (db.inTransaction() == true)
+			{
+				if (committed == false)
+					mNestedFailure.set(Boolean.TRUE);
+			}
+			else
+			{
+				if (mNestedFailure.get() != null)
+				{
+					mNestedFailure.set(null);
+					committed = false;
+				}
+
+				onTransactionEnd(committed);
+			}
 		}
 	}
 
+	/**
+	 * Called on the writing thread after each outermost transaction opened
+	 * by this class (for a merge or any insert, update or delete) has ended.
+	 * Writes nested in a merge, such as those made by the mergers through
+	 * the content resolver, are reported with the merge.
+	 *
+	 * @param committed
+	 *            False if the transaction was rolled back.
+	 */
+	protected void onTransactionEnd(boolean committed) {}
+
 	protected abstract Cursor queryInternal(Uri uri, String[] project, String selection,
 		String[] selectionArgs, String sortOrder);
 	protected abstract Uri insertInternal(Uri uri, ContentValues values);
@@ -91,13 +133,15 @@ public abstract class AbstractSyncProvider extends ContentProvider
 	public Uri insert(Uri uri, ContentValues values)
 	{
 		SQLiteDatabase db = getDatabase();
+		boolean successful = false;
 		db.beginTransaction();
 		try {
 			Uri ret = insertInternal(uri, values);
 			db.setTransactionSuccessful();
+			successful = true;
 			return ret;
 		} finally {
-			db.endTransaction();
+			endTransaction(db, successful);
 		}
 	}
 
@@ -105,13 +149,15 @@ public abstract class AbstractSyncProvider extends ContentProvider
 	public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs)
 	{
 		SQLiteDatabase db = getDatabase();
+		boolean successful = false;
 		db.beginTransaction();
 		try {
 			int ret = updateInternal(uri, values, selection, selectionArgs);
 			db.setTransactionSuccessful();
+			successful = true;
 			return ret;
 		} finally {
-			db.endTransaction();
+			endTransaction(db, successful);
 		}
 	}
 
@@ -119,13 +165,15 @@ public abstract class AbstractSyncProvider extends ContentProvider
 	public int delete(Uri uri, String selection, String[] selectionArgs)
 	{
 		SQLiteDatabase db = getDatabase();
+		boolean successful = false;
 		db.beginTransaction();
 		try {
 			int ret = deleteInternal(uri, selection, selectionArgs);
 			db.setTransactionSuccessful();
+			successful = true;
 			return ret;
 		} finally {
-			db.endTransaction();
+			endTransaction(db, successful);
 		}
 	}
 
@@ -130,81 +130,36 @@ public abstract class AbstractTableMerger
 		/* Set containing all deleted entries (to be merged into main provider). */
 		Cursor deletedCursor = serverDiffs.query(mDeletedTableUri, null, null, null, null);
 
+		long[] syncIds;
+
 		try {
-			int deleteCount = 0;
 			int deletedSyncIdColumn = deletedCursor.getColumnIndexOrThrow(SyncableColumns._SYNC_ID);
 
-			while (deletedCursor.moveToNext())
-			{
-				mDb.yieldIfContendedSafely();
-
-				long syncId = deletedCursor.getLong(deletedSyncIdColumn);
-
-				/*
-				 * Locate the local record and request its deletion. This design
-				 * is copied from Android's AbstractTableMerger (as is most of
-				 * this class) but I find myself surprised by the relatively
-				 * poor efficiency employed here.
-				 *
-				 * Seems like a manual join could achieve much better
-				 * performance here. We could use the local data set queried in
-				 * mergeServerDiffs and then order our deleted records and walk
-				 * along the two cursors. This introduces overhead for the
-				 * common case of few deletes but it could be tuned for use when
-				 * the number of deletions reaches some threshold like 20% of
-				 * total records.
-				 */
-				Cursor localCursor = mDb.query(mTable, null,
-						SyncableColumns._SYNC_ID + " = ?", new String[] { String.valueOf(syncId) },
-						null, null, null);
+			syncIds = new long[deletedCursor.getCount()];
+			for (int i = 0; deletedCursor.moveToNext() == true; i++)
+				syncIds[i] = deletedCursor.getLong(deletedSyncIdColumn);
+		} finally {
+			deletedCursor.close();
+		}
 
-				try {
-					int matches = localCursor.getCount();
+		if (syncIds.length == 0)
+			return 0;
 
-					if (matches == 0)
-					{
-						/*
-						 * This might happen if the local side has already
-						 * deleted the record prior to syncing. Not a big deal,
-						 * but warn just in case.
-						 */
-						Log.d(TAG, "received deletion request from server for _sync_id " +
-								syncId + ", but there is no matching local record.");
-					}
-					else if (matches > 1)
-					{
-						/*
-						 * This is a much weirder situation. We should have
-						 * never permitted a database entry to be inserted with
-						 * a _SYNC_ID matching a previous record. This makes no
-						 * sense at all and should absolutely never happen.
-						 * Server bug? Client bug? Malicious server? Hmm...
-						 */
-						Log.d(TAG, "multiple records matched delete request for _sync_id " + syncId);
-					}
-
-					while (localCursor.moveToNext())
-					{
-						if (DEBUG_ENTRIES)
-						{
-							long localId = localCursor.getLong(
-									localCursor.getColumnIndexOrThrow(SyncableColumns._ID));
-							Log.d(TAG, "deleting local record " + localId + " with _sync_id " + syncId);
-						}
-
-						deleteRow(context, serverDiffs, localCursor);
-						syncContext.numberOfDeletes++;
-						deleteCount++;
-					}
-				} finally {
-					localCursor.close();
-				}
-			}
+		/*
+		 * Requests with no matching local record might happen if the local
+		 * side has already deleted the record prior to syncing. Not a big
+		 * deal; they simply aren't counted.
+		 */
+		int deleteCount = deleteRows(context, serverDiffs, syncIds);
+		syncContext.numberOfDeletes += deleteCount;
 
-			return deleteCount;
-		} finally {
-			deletedCursor.close();
+		if (DEBUG_ENTRIES)
+		{
+			Log.d(TAG, mTable + ": deleted " + deleteCount + " local records for " +
+					syncIds.length + " deletion requests");
 		}
+
+		return deleteCount;
 	}
 
 	/**
@@ -378,19 +333,18 @@ public abstract class AbstractTableMerger
 	public abstract void insertRow(Context context, ContentProvider diffs, Cursor diffsCursor);
 
 	/**
-	 * Process a server initiated delete by deleting the record from the main
-	 * provider.
+	 * Process a batch of server initiated deletes by deleting the matching
+	 * records, and anything depending on them, from the main provider.
 	 *
 	 * @param context
 	 * @param diffs
 	 *            Temporary content provider holding all sync entries received
 	 *            from the server.
-	 * @param localCursor
-	 *            Cursor positioned at the local record to delete. Unlike
-	 *            {@link #insertRow} and {@link #updateRow}, this cursor was
-	 *            queried from the main provider not <code>diffs</code>.
+	 * @param syncIds
+	 *            Sync ids of every record the server deleted from this table.
+	 * @return Number of local records deleted.
 	 */
-	public abstract void deleteRow(Context context, ContentProvider diffs, Cursor localCursor);
+	public abstract int deleteRows(Context context, ContentProvider diffs, long[] syncIds);
 
 	/**
 	 * Process a server initiated modification by applying all columns from the
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.provider;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.text.TextUtils;
+
+/**
+ * Collects the URIs changed by the provider and notifies observers of each
+ * once the transaction changing them has committed, and then only after a
+ * short delay. Every notification makes the visible lists requery, so a
+ * burst of writes (such as the status updates made during sync) should
+ * cost one requery, not one per write.
+ * <p>
+ * Changes are notified at the root of their URI (for instance,
+ * <code>media/music/songs/5</code> at <code>media/music/songs</code>),
+ * which reaches the observers of every item beneath it.
+ */
+class ChangeNotifier
+{
+	private static final long NOTIFY_DELAY = 500;
+
+	private final ContentResolver mResolver;
+	private final Handler mHandler;
+
+	/* Changed by the current thread's transaction, not yet committed. */
+	private final ThreadLocal<LinkedHashSet<Uri>> mPending =
+		new ThreadLocal<LinkedHashSet<Uri>>()
+	{
+		@Override
+		protected LinkedHashSet<Uri> initialValue()
+		{
+			return new LinkedHashSet<Uri>();
+		}
+	};
+
+	/* Committed and waiting for mNotify to run. */
+	private final LinkedHashSet<Uri> mScheduled = new LinkedHashSet<Uri>();
+
+	private final Runnable mNotify = new Runnable()
+	{
+		public void run()
+		{
+			Uri[] uris;
+
+			synchronized(mScheduled) {
+				uris = mScheduled.toArray(new Uri[mScheduled.size()]);
+				mScheduled.clear();
+			}
+
+			for (Uri uri: uris)
+				mResolver.notifyChange(uri, null);
+		}
+	};
+
+	public ChangeNotifier(Context context)
+	{
+		mResolver = context.getContentResolver();
+		mHandler = new Handler(context.getMainLooper());
+	}
+
+	/**
+	 * @param inTransaction
+	 *            True if the change is part of the calling thread's open
+	 *            transaction, in which case it is held until
+	 *            {@link #onTransactionEnd}.
+	 */
+	public void notifyChange(Uri uri, boolean inTransaction)
+	{
+		Uri root = getRootUri(uri);
+
+		if (inTransaction == true)
+			mPending.get().add(root);
+		else
+		{
+			synchronized(mScheduled) {
+				schedule(root);
+			}
+		}
+	}
+
+	/**
+	 * Called after the calling thread's outermost transaction has ended.
+	 *
+	 * @param committed
+	 *            False if the transaction was rolled back, discarding its
+	 *            changes.
+	 */
+	public void onTransactionEnd(boolean committed)
+	{
+		LinkedHashSet<Uri> pending = mPending.get();
+		if (pending.isEmpty() == true)
+			return;
+
+		if (committed == true)
+		{
+			synchronized(mScheduled) {
+				for (Uri uri: pending)
+					schedule(uri);
+			}
+		}
+
+		pending.clear();
+	}
+
+	private void schedule(Uri uri)
+	{
+		if (mScheduled.isEmpty() == true)
+			mHandler.postDelayed(mNotify, NOTIFY_DELAY);
+
+		mScheduled.add(uri);
+	}
+
+	/**
+	 * @return <code>uri</code> without its query, its first numeric path
+	 *         segment and any that follow it.
+	 */
+	static Uri getRootUri(Uri uri)
+	{
+		List<String> segments = uri.getPathSegments();
+
+		int n = segments.size();
+		for (int i = 0; i < segments.size(); i++)
+		{
+			if (TextUtils.isDigitsOnly(segments.get(i)) == true)
+			{
+				n = i;
+				break;
+			}
+		}
+
+		return uri.buildUpon()
+		  .path("/" + TextUtils.join("/", segments.subList(0, n)))
+		  .clearQuery().build();
+	}
+}
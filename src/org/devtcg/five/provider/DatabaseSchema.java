@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.provider;
+
+import org.devtcg.five.provider.util.SortKeys;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Creates the provider's database and upgrades it in place from earlier
+ * versions, so that a schema change doesn't cost the user their library,
+ * their cached songs and a full re-sync.
+ * <p>
+ * To change the schema, update the CREATE statements in {@link Five}, bump
+ * {@link #VERSION} and append a {@link Migration} to {@link #MIGRATIONS}
+ * that brings the previous version up to the same result.
+ */
+public final class DatabaseSchema
+{
+	private static final String TAG = "DatabaseSchema";
+
+	public static final int VERSION = 39;
+
+	/**
+	 * Oldest version that {@link #MIGRATIONS} start from. Databases older
+	 * than this must be recreated.
+	 */
+	public static final int MIN_UPGRADE_VERSION = 36;
+
+	private DatabaseSchema() {}
+
+	private static abstract class Migration
+	{
+		/** Version reached by this migration, from the one before it. */
+		public final int version;
+
+		public Migration(int version)
+		{
+			this.version = version;
+		}
+
+		public abstract void apply(SQLiteDatabase db);
+	}
+
+	private static final Migration[] MIGRATIONS = {
+		new Migration(37) {
+			public void apply(SQLiteDatabase db)
+			{
+				db.execSQL(Five.Music.Search.SQL.CREATE);
+				execStatements(db, Five.Music.Search.SQL.POPULATE);
+			}
+		},
+		new Migration(38) {
+			public void apply(SQLiteDatabase db)
+			{
+				addSortKeys(db, Five.Music.Artists.SQL.TABLE, Five.Music.Artists.NAME);
+				addSortKeys(db, Five.Music.Albums.SQL.TABLE, Five.Music.Albums.NAME);
+				addSortKeys(db, Five.Music.Songs.SQL.TABLE, Five.Music.Songs.TITLE);
+			}
+		},
+		new Migration(39) {
+			public void apply(SQLiteDatabase db)
+			{
+				db.execSQL(Five.Music.ArtistAlbums.SQL.CREATE);
+				db.execSQL(Five.Music.ArtistAlbums.SQL.POPULATE);
+			}
+		},
+	};
+
+	/**
+	 * @param temporary
+	 *            True for the throwaway databases used during sync, which
+	 *            have no need for indexes or derived tables.
+	 */
+	public static void create(SQLiteDatabase db, boolean temporary)
+	{
+		db.execSQL(Five.Sources.SQL.CREATE);
+
+		execStatements(db, Five.Music.Artists.SQL.CREATE);
+		execStatements(db, Five.Music.Albums.SQL.CREATE);
+		execStatements(db, Five.Music.Songs.SQL.CREATE);
+		execStatements(db, Five.Music.Playlists.SQL.CREATE);
+		execStatements(db, Five.Music.PlaylistSongs.SQL.CREATE);
+
+		if (temporary == false)
+		{
+			execStatements(db, Five.Music.Artists.SQL.INDEX);
+			execStatements(db, Five.Music.Albums.SQL.INDEX);
+			execStatements(db, Five.Music.Songs.SQL.INDEX);
+			execStatements(db, Five.Music.PlaylistSongs.SQL.INDEX);
+
+			db.execSQL(Five.Music.Search.SQL.CREATE);
+			db.execSQL(Five.Music.ArtistAlbums.SQL.CREATE);
+		}
+	}
+
+	public static void drop(SQLiteDatabase db)
+	{
+		db.execSQL(Five.Sources.SQL.DROP);
+
+		execStatements(db, Five.Music.Artists.SQL.DROP);
+		execStatements(db, Five.Music.Albums.SQL.DROP);
+		execStatements(db, Five.Music.Songs.SQL.DROP);
+		execStatements(db, Five.Music.Playlists.SQL.DROP);
+		execStatements(db, Five.Music.PlaylistSongs.SQL.DROP);
+
+		db.execSQL(Five.Music.Search.SQL.DROP);
+		db.execSQL(Five.Music.ArtistAlbums.SQL.DROP);
+	}
+
+	/**
+	 * Apply each migration after <code>oldVersion</code> up to
+	 * <code>newVersion</code>, in order. Expected to be called within a
+	 * transaction, as from {@link android.database.sqlite.SQLiteOpenHelper}.
+	 *
+	 * @return False if <code>oldVersion</code> is too old to be upgraded,
+	 *         in which case the database is unchanged.
+	 */
+	public static boolean upgrade(SQLiteDatabase db, int oldVersion, int newVersion)
+	{
+		if (oldVersion < MIN_UPGRADE_VERSION || newVersion > VERSION)
+			return false;
+
+		for (Migration migration: MIGRATIONS)
+		{
+			if (migration.version > oldVersion && migration.version <= newVersion)
+			{
+				Log.i(TAG, "Upgrading database to version " + migration.version);
+				migration.apply(db);
+			}
+		}
+
+		return true;
+	}
+
+	private static void execStatements(SQLiteDatabase db, String[] statements)
+	{
+		for (int i = 0; i < statements.length; i++)
+			db.execSQL(statements[i]);
+	}
+
+	/**
+	 * Add and populate the sort key and section columns of an existing
+	 * table, introduced in version 38.
+	 */
+	private static void addSortKeys(SQLiteDatabase db, String table, String nameColumn)
+	{
+		db.execSQL("ALTER TABLE " + table + " ADD COLUMN " +
+				Five.Music.Artists.SORT_KEY + " TEXT");
+		db.execSQL("ALTER TABLE " + table + " ADD COLUMN " +
+				Five.Music.Artists.SECTION + " TEXT");
+
+		SQLiteStatement update = db.compileStatement("UPDATE " + table +
+				" SET " + Five.Music.Artists.SORT_KEY + " = ?, " +
+				Five.Music.Artists.SECTION + " = ? WHERE _id = ?");
+
+		Cursor c = db.rawQuery("SELECT _id, " + nameColumn + " FROM " + table, null);
+
+		try {
+			while (c.moveToNext() == true)
+			{
+				String sortKey = SortKeys.getSortKey(c.getString(1));
+
+				update.bindString(1, sortKey);
+				update.bindString(2, SortKeys.getSection(sortKey));
+				update.bindLong(3, c.getLong(0));
+				update.execute();
+			}
+		} finally {
+			c.close();
+			update.close();
+		}
+
+		db.execSQL("CREATE INDEX " + table + "_" + Five.Music.Artists.SECTION +
+				" ON " + table + " (" + Five.Music.Artists.SECTION + ", " +
+				Five.Music.Artists.SORT_KEY + ")");
+	}
+}
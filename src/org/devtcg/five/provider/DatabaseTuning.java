@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.provider;
+
+import java.lang.reflect.Method;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * SQLite settings for each of the ways the provider's databases are used:
+ * <ul>
+ * <li>The library, read by the UI while syncs merge into it.</li>
+ * <li>The temporary databases that sync downloads into, which are thrown
+ * away (and downloaded again) if anything goes wrong, so durability buys
+ * nothing.</li>
+ * <li>The library during a merge, which touches most of its pages.</li>
+ * </ul>
+ */
+public final class DatabaseTuning
+{
+	private static final String TAG = "DatabaseTuning";
+
+	/**
+	 * Page cache used during a merge, in pages. The default of 2000 is
+	 * enough for the UI's queries, but a merge walks every table and index
+	 * at once.
+	 */
+	public static final int MERGE_CACHE_SIZE = 8000;
+
+	/**
+	 * Minimum number of records merged for the table statistics to be worth
+	 * refreshing afterwards.
+	 */
+	public static final int ANALYZE_THRESHOLD = 1000;
+
+	private DatabaseTuning() {}
+
+	/**
+	 * Enable write-ahead logging where supported (Android 3.0 and later),
+	 * so that the UI can read the library while a merge is writing to it,
+	 * instead of waiting for the merge to commit.
+	 *
+	 * @return True if write-ahead logging is enabled.
+	 */
+	public static boolean applyLibraryProfile(SQLiteDatabase db)
+	{
+		try {
+			Method enable = SQLiteDatabase.class.getMethod("enableWriteAheadLogging",
+				new Class[0]);
+			return (Boolean)enable.invoke(db, new Object[0]);
+		} catch (NoSuchMethodException e) {
+			return false;
+		} catch (Exception e) {
+			Log.w(TAG, "Unable to enable write-ahead logging", e);
+			return false;
+		}
+	}
+
+	public static void applySyncProfile(SQLiteDatabase db)
+	{
+		db.execSQL("PRAGMA synchronous = OFF");
+		db.execSQL("PRAGMA temp_store = MEMORY");
+	}
+
+	/**
+	 * Enlarge the page cache for a merge.
+	 *
+	 * @return Previous cache size, to be restored by {@link #endMerge}.
+	 */
+	public static long beginMerge(SQLiteDatabase db)
+	{
+		long cacheSize = getPragma(db, "cache_size");
+		db.execSQL("PRAGMA cache_size = " + Math.max(cacheSize, MERGE_CACHE_SIZE));
+		return cacheSize;
+	}
+
+	/**
+	 * Restore the page cache after a merge, and refresh the statistics used
+	 * by the query planner if the merge changed enough of the library to
+	 * make them stale.
+	 */
+	public static void endMerge(SQLiteDatabase db, long cacheSize, int recordsMerged)
+	{
+		db.execSQL("PRAGMA cache_size = " + cacheSize);
+
+		if (recordsMerged >= ANALYZE_THRESHOLD)
+		{
+			Log.i(TAG, "Analyzing after merging " + recordsMerged + " records");
+			db.execSQL("ANALYZE");
+		}
+	}
+
+	/* Read through a query, as newer platforms refuse to execSQL a
+	 * statement which returns rows. */
+	static long getPragma(SQLiteDatabase db, String name)
+	{
+		Cursor c = db.rawQuery("PRAGMA " + name, null);
+		try {
+			if (c.moveToFirst() == false)
+				return 0;
+
+			return c.getLong(0);
+		} finally {
+			c.close();
+		}
+	}
+
+	static String getJournalMode(SQLiteDatabase db)
+	{
+		return DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null);
+	}
+}
@@ -61,6 +61,13 @@ public final class Five
 		return artistUri.buildUpon().appendEncodedPath("albums").build();
 	}
 
+	private static String makeCreateSectionIndexSQL(String table, String section,
+			String sortKey)
+	{
+		return "CREATE INDEX " + table + "_" + section +
+				" ON " + table + " (" + section + ", " + sortKey + ")";
+	}
+
 	private static String makeCreateDeletedTablesSQL(String deletedTable)
 	{
 		return "CREATE TABLE " + deletedTable + " (" +
@@ -221,6 +228,42 @@ public final class Five
 //		}
 //	}
 
+	/**
+	 * Columns returned by the "sections" URIs of artists, albums and songs:
+	 * one row per section, in list order, with the number of items in it.
+	 * Accepts the same selection as the list being indexed.
+	 */
+	public interface Sections extends BaseColumns
+	{
+		/** Section label, as in {@link Music.Artists#SECTION}. */
+		public static final String SECTION = "section";
+	}
+
+	/**
+	 * Query parameters accepted by the artist, album and song list URIs to
+	 * read them one page at a time. Paged results are ordered by section,
+	 * sort key and then _id, and continue from a given row instead of
+	 * counting past every row before it, so that each page costs the same
+	 * wherever it falls in the list.
+	 */
+	public interface Paging
+	{
+		/** Maximum number of rows to return. Paging is used only if set. */
+		public static final String LIMIT = "limit";
+
+		/** Number of rows to skip, counted from the start position. */
+		public static final String OFFSET = "offset";
+
+		/**
+		 * Section, sort key and _id of the row to start after. Only the
+		 * section is required; the sort key defaults to "" and the _id to 0,
+		 * which together start at the beginning of that section.
+		 */
+		public static final String AFTER_SECTION = "after_section";
+		public static final String AFTER_SORT_KEY = "after_sort_key";
+		public static final String AFTER_ID = "after_id";
+	}
+
 	public interface Images extends BaseColumns
 	{
 		public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.five.image";
@@ -316,6 +359,19 @@ public final class Five
 			/** Date that this song was first introduced into the collection. */
 			public static final String DISCOVERY_DATE = "discovery_date";
 
+			/** Normalized title, for ordering lists (see {@link Artists#SORT_KEY}). */
+			public static final String SORT_KEY = "sort_key";
+
+			/** Fast scroll section (see {@link Artists#SECTION}). */
+			public static final String SECTION = "section";
+
+			/** Section counts, as described by {@link Sections}. */
+			public static final Uri CONTENT_SECTIONS_URI =
+				Uri.parse("content://" + AUTHORITY + "/media/music/songs/sections");
+
+			/** Ordering matching the section counts. */
+			public static final String SORT_ORDER = SECTION + ", " + SORT_KEY;
+
 			public static final class SQL
 			{
 				public static final String TABLE = "music_songs";
@@ -341,7 +397,9 @@ public final class Five
 				  GENRE + " TEXT, " +
 				  SET + " INTEGER, " +
 				  DISCOVERY_DATE + " DATETIME, " +
-				  LAST_PLAYED + " DATETIME " +
+				  LAST_PLAYED + " DATETIME, " +
+				  SORT_KEY + " TEXT, " +
+				  SECTION + " TEXT " +
 				  ");",
 				  makeCreateDeletedTablesSQL(DELETED_TABLE),
 				};
@@ -363,6 +421,7 @@ public final class Five
 				  	  " ON " + TABLE + " (" +
 				  	  _SYNC_ID +
 				  	");",
+				  	makeCreateSectionIndexSQL(TABLE, SECTION, SORT_KEY),
 				};
 
 				public static final String[] DROP = {
@@ -412,6 +471,25 @@ public final class Five
 			/** Number of songs belonging to this artist. */
 			public static final String NUM_SONGS = "num_songs";
 
+			/**
+			 * Normalized {@link #NAME}, for ordering lists with a plain binary
+			 * comparison. Maintained by the provider.
+			 */
+			public static final String SORT_KEY = "sort_key";
+
+			/**
+			 * Fast scroll section: the first letter of {@link #SORT_KEY}, or
+			 * "#". Lists ordered by {@link #SORT_ORDER} are grouped by section.
+			 */
+			public static final String SECTION = "section";
+
+			/** Section counts, as described by {@link Sections}. */
+			public static final Uri CONTENT_SECTIONS_URI =
+				Uri.parse("content://" + AUTHORITY + "/media/music/artists/sections");
+
+			/** Ordering matching the section counts. */
+			public static final String SORT_ORDER = SECTION + ", " + SORT_KEY;
+
 			public static final class SQL
 			{
 				public static final String TABLE = "music_artists";
@@ -429,7 +507,9 @@ public final class Five
 				  GENRE + " TEXT, " +
 				  DISCOVERY_DATE + " DATETIME, " +
 				  NUM_ALBUMS + " INTEGER, " +
-				  NUM_SONGS + " INTEGER " +
+				  NUM_SONGS + " INTEGER, " +
+				  SORT_KEY + " TEXT, " +
+				  SECTION + " TEXT " +
 				  ")",
 				  makeCreateDeletedTablesSQL(DELETED_TABLE),
 				};
@@ -440,6 +520,7 @@ public final class Five
 			  	    " ON " + TABLE + " (" +
 			  	    _SYNC_ID +
 			  	  ");",
+			  	  makeCreateSectionIndexSQL(TABLE, SECTION, SORT_KEY),
 				};
 
 				public static final String[] DROP = {
@@ -497,6 +578,27 @@ public final class Five
 			/** Number of songs belonging to this album. */
 			public static final String NUM_SONGS = "num_songs";
 
+			/** Normalized {@link #NAME} (see {@link Artists#SORT_KEY}). */
+			public static final String SORT_KEY = "sort_key";
+
+			/** Fast scroll section (see {@link Artists#SECTION}). */
+			public static final String SECTION = "section";
+
+			/** Section counts, as described by {@link Sections}. */
+			public static final Uri CONTENT_SECTIONS_URI =
+				Uri.parse("content://" + AUTHORITY + "/media/music/albums/sections");
+
+			/** Section counts for {@link #CONTENT_URI_COMPLETE}. */
+			public static final Uri CONTENT_COMPLETE_SECTIONS_URI =
+				Uri.parse("content://" + AUTHORITY + "/media/music/albums/complete/sections");
+
+			/**
+			 * Ordering matching the section counts. Album queries join
+			 * artists, so the columns are qualified with the albums table's
+			 * alias.
+			 */
+			public static final String SORT_ORDER = "a." + SECTION + ", a." + SORT_KEY;
+
 			public static final class SQL
 			{
 				public static final String TABLE = "music_albums";
@@ -515,7 +617,9 @@ public final class Five
 				  ARTWORK_BIG + " TEXT, " +
 				  RELEASE_DATE + " DATETIME, " +
 				  DISCOVERY_DATE + " DATETIME, " +
-				  NUM_SONGS + " INTEGER " +
+				  NUM_SONGS + " INTEGER, " +
+				  SORT_KEY + " TEXT, " +
+				  SECTION + " TEXT " +
 				  ")",
 				  makeCreateDeletedTablesSQL(DELETED_TABLE),
 				};
@@ -529,6 +633,7 @@ public final class Five
 				  	  " ON " + TABLE + " (" +
 				  	  _SYNC_ID +
 				  	");",
+				  	makeCreateSectionIndexSQL(TABLE, SECTION, SORT_KEY),
 				};
 
 				public static final String[] DROP = {
@@ -635,6 +740,117 @@ public final class Five
 			}
 		}
 
+		/**
+		 * Number of songs by each artist on each album, maintained by the
+		 * provider as songs are inserted, updated and deleted so that an
+		 * artist's albums can be listed without grouping their songs. Songs
+		 * without an album are not counted. Not directly accessible to
+		 * clients; see {@link Five#makeArtistAlbumsUri(Uri)}.
+		 */
+		public interface ArtistAlbums
+		{
+			public static final String ARTIST_ID = "artist_id";
+			public static final String ALBUM_ID = "album_id";
+			public static final String NUM_SONGS = "num_songs";
+
+			public static final class SQL
+			{
+				public static final String TABLE = "music_artist_albums";
+
+				public static final String CREATE =
+				  "CREATE TABLE " + TABLE + " (" +
+				  ARTIST_ID + " INTEGER NOT NULL, " +
+				  ALBUM_ID + " INTEGER NOT NULL, " +
+				  NUM_SONGS + " INTEGER NOT NULL, " +
+				  "PRIMARY KEY (" + ARTIST_ID + ", " + ALBUM_ID + ")" +
+				  ")";
+
+				public static final String POPULATE =
+				  "INSERT INTO " + TABLE + " (" +
+				  ARTIST_ID + ", " + ALBUM_ID + ", " + NUM_SONGS + ") " +
+				  "SELECT " + Songs.ARTIST_ID + ", " + Songs.ALBUM_ID + ", COUNT(*)" +
+				  " FROM " + Songs.SQL.TABLE +
+				  " WHERE " + Songs.ALBUM_ID + " IS NOT NULL" +
+				  " GROUP BY " + Songs.ARTIST_ID + ", " + Songs.ALBUM_ID;
+
+				public static final String DROP =
+				  "DROP TABLE IF EXISTS " + TABLE;
+			}
+		}
+
+		/**
+		 * Full-text index over artist names, album names and song titles.
+		 * Query by appending the user's text as the last path segment of
+		 * {@link #CONTENT_URI}; every word is matched as a prefix. Results
+		 * are ranked with names starting with the first word first, then
+		 * artists before albums before songs, then shorter names first.
+		 * <p>
+		 * The index is maintained by the provider as items are inserted,
+		 * updated and deleted, and is read-only to clients.
+		 */
+		public interface Search extends BaseColumns
+		{
+			public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.five.music.search";
+
+			/** Access URI. */
+			public static final Uri CONTENT_URI =
+			  Uri.parse("content://" + AUTHORITY + "/media/music/search");
+
+			/** One of {@link #KIND_ARTIST}, {@link #KIND_ALBUM} or {@link #KIND_SONG}. */
+			public static final String KIND = "kind";
+
+			/** _ID of the artist, album or song matched. */
+			public static final String ITEM_ID = "item_id";
+
+			/** Name or title matched. */
+			public static final String NAME = "name";
+
+			public static final int KIND_ARTIST = 0;
+			public static final int KIND_ALBUM = 1;
+			public static final int KIND_SONG = 2;
+
+			/** Maximum rows returned, unless a "limit" query parameter is given. */
+			public static final int DEFAULT_LIMIT = 50;
+
+			/** Upper bound on the "limit" query parameter. */
+			public static final int MAX_LIMIT = 500;
+
+			public static final class SQL
+			{
+				public static final String TABLE = "music_search";
+
+				/* The rowid encodes both the kind and the item's _id (see
+				 * ROWID) so the index only stores the searchable text. */
+				public static final String CREATE =
+				  "CREATE VIRTUAL TABLE " + TABLE + " USING fts3 (" +
+				  NAME +
+				  ")";
+
+				/** Expression mapping an item's _id to its rowid in the index. */
+				public static String makeRowIdExpr(int kind)
+				{
+					return "((" + _ID + " << 2) | " + kind + ")";
+				}
+
+				public static final String[] POPULATE = {
+				  "INSERT INTO " + TABLE + " (rowid, " + NAME + ") " +
+				    "SELECT " + makeRowIdExpr(KIND_ARTIST) + ", " +
+				    "IFNULL(" + Artists.NAME_PREFIX + ", '') || " + Artists.NAME +
+				    " FROM " + Artists.SQL.TABLE,
+				  "INSERT INTO " + TABLE + " (rowid, " + NAME + ") " +
+				    "SELECT " + makeRowIdExpr(KIND_ALBUM) + ", " +
+				    "IFNULL(" + Albums.NAME_PREFIX + ", '') || " + Albums.NAME +
+				    " FROM " + Albums.SQL.TABLE,
+				  "INSERT INTO " + TABLE + " (rowid, " + NAME + ") " +
+				    "SELECT " + makeRowIdExpr(KIND_SONG) + ", " + Songs.TITLE +
+				    " FROM " + Songs.SQL.TABLE,
+				};
+
+				public static final String DROP =
+				  "DROP TABLE IF EXISTS " + TABLE;
+			}
+		}
+
 		public interface AdjustCounts
 		{
 			/**
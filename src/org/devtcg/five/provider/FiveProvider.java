@@ -19,6 +19,8 @@ import java.io.FileNotFoundException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.devtcg.five.Constants;
 import org.devtcg.five.provider.AbstractTableMerger.SyncableColumns;
@@ -26,18 +28,23 @@ import org.devtcg.five.provider.util.AlbumMerger;
 import org.devtcg.five.provider.util.ArtistMerger;
 import org.devtcg.five.provider.util.PlaylistMerger;
 import org.devtcg.five.provider.util.PlaylistSongMerger;
-import org.devtcg.five.provider.util.SongItem;
 import org.devtcg.five.provider.util.SongMerger;
+import org.devtcg.five.provider.util.SortKeys;
 import org.devtcg.five.provider.util.SourceItem;
+import org.devtcg.five.service.SyncContext;
 import org.devtcg.five.util.FileUtils;
 
+import android.app.SearchManager;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.DatabaseUtils;
 import android.database.DatabaseUtils.InsertHelper;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.database.sqlite.SQLiteStatement;
@@ -45,6 +52,7 @@ import android.net.Uri;
 import android.os.Binder;
 import android.os.ParcelFileDescriptor;
 import android.os.Process;
+import android.provider.BaseColumns;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -60,12 +68,12 @@ public class FiveProvider extends AbstractSyncProvider
 
 	DatabaseHelper mHelper;
 	private static final String DATABASE_NAME = "five.db";
-	private static final int DATABASE_VERSION = 36;
 
 	private static final UriMatcher sUriMatcher;
 	private static final HashMap<String, String> sArtistsMap;
 	private static final HashMap<String, String> sAlbumsMap;
 	private static final HashMap<String, String> sSongsMap;
+	private static final HashMap<String, String> sArtistAlbumsMap;
 
 	private InsertHelper mArtistInserter;
 	private InsertHelper mAlbumInserter;
@@ -76,18 +84,56 @@ public class FiveProvider extends AbstractSyncProvider
 	private InsertHelper mDeletedPlaylistInserter;
 	private InsertHelper mDeletedPlaylistSongInserter;
 
+	/* Search index maintenance; null for temporary providers, which
+	 * don't keep an index. */
+	private SQLiteStatement mSearchInserter;
+
+	/* Artist/album song count maintenance; likewise null for temporary
+	 * providers. */
+	private SQLiteStatement mArtistAlbumInserter;
+	private SQLiteStatement mArtistAlbumAdjuster;
+	private SQLiteStatement mArtistAlbumPruner;
+
+	private final QueryCache mQueryCache = new QueryCache();
+
+	/* Null for temporary providers, which have no observers. */
+	private ChangeNotifier mNotifier;
+
+	/* Compiled single row lookups and updates, see getIdBySyncId and
+	 * updateById. */
+	private StatementCache mStatements;
+
+	private static final String ID_SELECTION = BaseColumns._ID + " = ?";
+
+	/* Maximum number of sync ids in each statement of deleteBySyncIds. */
+	private static final int DELETE_BATCH_SIZE = 500;
+
+	/* Files of rows deleted in the current thread's transaction, unlinked
+	 * only once it commits. */
+	private final ThreadLocal<ArrayList<File>> mPendingUnlinks =
+		new ThreadLocal<ArrayList<File>>()
+	{
+		@Override
+		protected ArrayList<File> initialValue()
+		{
+			return new ArrayList<File>();
+		}
+	};
+
 	private static enum URIPatternIds
 	{
 		SOURCES, SOURCE,
-		ARTISTS, ARTIST, ARTIST_PHOTO, DELETED_ARTIST,
+		ARTISTS, ARTIST, ARTIST_PHOTO, DELETED_ARTIST, ARTIST_SECTIONS,
 		ALBUMS, ALBUMS_BY_ARTIST, ALBUMS_WITH_ARTIST, ALBUMS_COMPLETE, ALBUM,
-		  ALBUM_ARTWORK, ALBUM_ARTWORK_BIG, DELETED_ALBUM,
+		  ALBUM_ARTWORK, ALBUM_ARTWORK_BIG, DELETED_ALBUM, ALBUM_SECTIONS,
+		  ALBUMS_COMPLETE_SECTIONS,
 		SONGS, SONGS_BY_ALBUM, SONGS_BY_ARTIST, SONGS_BY_ARTIST_ON_ALBUM, SONG,
-		  DELETED_SONG,
+		  DELETED_SONG, SONG_SECTIONS,
 		PLAYLISTS, PLAYLIST, SONGS_IN_PLAYLIST, SONG_IN_PLAYLIST,
 		  PLAYLIST_SONG, PLAYLIST_SONGS, DELETED_PLAYLIST, DELETED_PLAYLIST_SONG,
 		CACHE, CACHE_ITEMS_BY_SOURCE,
 		ADJUST_COUNTS,
+		SEARCH, SEARCH_SUGGEST,
 		;
 
 		public static URIPatternIds get(int ordinal)
@@ -100,75 +146,49 @@ public class FiveProvider extends AbstractSyncProvider
 	{
 		public DatabaseHelper(Context ctx, String databaseName)
 		{
-			super(ctx, databaseName, null, DATABASE_VERSION);
+			super(ctx, databaseName, null, DatabaseSchema.VERSION);
 		}
 
 		@Override
 		public void onCreate(SQLiteDatabase db)
 		{
-			db.execSQL(Five.Sources.SQL.CREATE);
-
-			execStatements(db, Five.Music.Artists.SQL.CREATE);
-			execStatements(db, Five.Music.Albums.SQL.CREATE);
-			execStatements(db, Five.Music.Songs.SQL.CREATE);
-			execStatements(db, Five.Music.Playlists.SQL.CREATE);
-			execStatements(db, Five.Music.PlaylistSongs.SQL.CREATE);
-
-			if (isTemporary() == false)
-			{
-				execStatements(db, Five.Music.Albums.SQL.INDEX);
-				execStatements(db, Five.Music.Songs.SQL.INDEX);
-				execStatements(db, Five.Music.PlaylistSongs.SQL.INDEX);
-			}
-		}
-
-		private void createDeletedTable(SQLiteDatabase db, String deletedTable)
-		{
-			db.execSQL("CREATE TABLE " + deletedTable + " (" +
-					SyncableColumns._ID + " INTEGER PRIMARY KEY, " +
-					SyncableColumns._SYNC_ID + " INTEGER, " +
-					SyncableColumns._SYNC_TIME + " BIGINT " +
-					")");
-		}
-
-		private void execStatements(SQLiteDatabase db, String[] statements)
-		{
-			for (int i = 0; i < statements.length; i++)
-				db.execSQL(statements[i]);
-		}
-
-		private void onDrop(SQLiteDatabase db)
-		{
-			db.execSQL(Five.Sources.SQL.DROP);
-
-			execStatements(db, Five.Music.Artists.SQL.DROP);
-			execStatements(db, Five.Music.Albums.SQL.DROP);
-			execStatements(db, Five.Music.Songs.SQL.DROP);
-			execStatements(db, Five.Music.Playlists.SQL.DROP);
-			execStatements(db, Five.Music.PlaylistSongs.SQL.DROP);
+			DatabaseSchema.create(db, isTemporary());
 		}
 
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
 		{
-			if (oldVersion == 17 && newVersion == 18)
+			boolean upgraded = false;
+
+			/* Temporary databases hold nothing worth keeping. A failed
+			 * migration throws, rolling back to the old version rather than
+			 * wiping the library; it is retried on the next open. */
+			if (isTemporary() == false)
 			{
-				Log.w(TAG, "Attempting to upgrade to " + newVersion);
-				execStatements(db, Five.Music.Artists.SQL.INDEX);
-				execStatements(db, Five.Music.Albums.SQL.INDEX);
-				execStatements(db, Five.Music.Songs.SQL.INDEX);
+				Log.w(TAG, "Attempting to upgrade from " + oldVersion + " to " + newVersion);
+				upgraded = DatabaseSchema.upgrade(db, oldVersion, newVersion);
 			}
-			else
+
+			if (upgraded == false)
 			{
-				Log.w(TAG, "Version too old, wiping out database contents...");
-				onDrop(db);
-				onCreate(db);
+				Log.w(TAG, "Unable to upgrade, wiping out database contents...");
+				DatabaseSchema.drop(db);
+				DatabaseSchema.create(db, isTemporary());
 			}
 		}
 
 		@Override
 		public void onOpen(SQLiteDatabase db)
 		{
+			/* Before compiling anything, as enabling write-ahead logging
+			 * reconfigures the connection. */
+			if (isTemporary() == true)
+				DatabaseTuning.applySyncProfile(db);
+			else
+				DatabaseTuning.applyLibraryProfile(db);
+
+			mStatements = new StatementCache(db);
+
 			mArtistInserter = new InsertHelper(db, Five.Music.Artists.SQL.TABLE);
 			mAlbumInserter = new InsertHelper(db, Five.Music.Albums.SQL.TABLE);
 			mSongInserter = new InsertHelper(db, Five.Music.Songs.SQL.TABLE);
@@ -178,6 +198,30 @@ public class FiveProvider extends AbstractSyncProvider
 			mDeletedSongInserter = new InsertHelper(db, Five.Music.Songs.SQL.DELETED_TABLE);
 			mDeletedPlaylistInserter = new InsertHelper(db, Five.Music.Playlists.SQL.DELETED_TABLE);
 			mDeletedPlaylistSongInserter = new InsertHelper(db, Five.Music.PlaylistSongs.SQL.DELETED_TABLE);
+
+			if (isTemporary() == false)
+			{
+				mSearchInserter = db.compileStatement("INSERT INTO " +
+						Five.Music.Search.SQL.TABLE + " (rowid, " +
+						Five.Music.Search.NAME + ") VALUES (?, ?)");
+
+				mArtistAlbumInserter = db.compileStatement("INSERT OR IGNORE INTO " +
+						Five.Music.ArtistAlbums.SQL.TABLE + " (" +
+						Five.Music.ArtistAlbums.ARTIST_ID + ", " +
+						Five.Music.ArtistAlbums.ALBUM_ID + ", " +
+						Five.Music.ArtistAlbums.NUM_SONGS + ") VALUES (?, ?, 0)");
+				mArtistAlbumAdjuster = db.compileStatement("UPDATE " +
+						Five.Music.ArtistAlbums.SQL.TABLE + " SET " +
+						Five.Music.ArtistAlbums.NUM_SONGS + " = " +
+						Five.Music.ArtistAlbums.NUM_SONGS + " + ? WHERE " +
+						Five.Music.ArtistAlbums.ARTIST_ID + " = ? AND " +
+						Five.Music.ArtistAlbums.ALBUM_ID + " = ?");
+				mArtistAlbumPruner = db.compileStatement("DELETE FROM " +
+						Five.Music.ArtistAlbums.SQL.TABLE + " WHERE " +
+						Five.Music.ArtistAlbums.ARTIST_ID + " = ? AND " +
+						Five.Music.ArtistAlbums.ALBUM_ID + " = ? AND " +
+						Five.Music.ArtistAlbums.NUM_SONGS + " <= 0");
+			}
 		}
 	}
 
@@ -215,12 +259,16 @@ public class FiveProvider extends AbstractSyncProvider
 			throw new IllegalStateException("onCreate should not be called on temp providers");
 
 		mHelper = new DatabaseHelper(getContext(), DATABASE_NAME);
+		mNotifier = new ChangeNotifier(getContext());
 		return true;
 	}
 
 	@Override
 	public void close()
 	{
+		if (mStatements != null)
+			mStatements.close();
+
 		mHelper.close();
 	}
 
@@ -230,6 +278,23 @@ public class FiveProvider extends AbstractSyncProvider
 		return mHelper.getWritableDatabase();
 	}
 
+	@Override
+	public void merge(SyncContext syncContext, AbstractSyncProvider diffs)
+	{
+		SQLiteDatabase db = getDatabase();
+		long cacheSize = DatabaseTuning.beginMerge(db);
+		int recordsMerged = 0;
+
+		try {
+			super.merge(syncContext, diffs);
+
+			if (syncContext.hasSuccess() == true)
+				recordsMerged = syncContext.getTotalRecordsProcessed();
+		} finally {
+			DatabaseTuning.endMerge(db, cacheSize, recordsMerged);
+		}
+	}
+
 	@Override
 	protected Iterable<? extends AbstractTableMerger> getMergers()
 	{
@@ -388,6 +453,47 @@ public class FiveProvider extends AbstractSyncProvider
 
 		URIPatternIds type = URIPatternIds.get(sUriMatcher.match(uri));
 
+		/* Pages are cheap index range reads; not worth caching. */
+		String limit = uri.getQueryParameter(Five.Paging.LIMIT);
+		int cachedTables = (isTemporary() == true || limit != null) ?
+		  0 : getTablesRead(type);
+		String cacheKey = null;
+		int cacheGeneration = 0;
+		QueryCache.Requery requery = null;
+
+		/* Inside a transaction the cache may be behind its writes. */
+		if (cachedTables != 0 && getDatabase().inTransaction() == true)
+			cachedTables = 0;
+
+		if (cachedTables != 0)
+		{
+			cacheKey = QueryCache.makeKey(uri, projection, selection,
+			  selectionArgs, sortOrder);
+			requery = newRequery(uri, projection, selection, selectionArgs,
+			  sortOrder);
+
+			Cursor cached = mQueryCache.get(cacheKey, requery);
+			if (cached != null)
+			{
+				cached.setNotificationUri(getContext().getContentResolver(), uri);
+				return cached;
+			}
+
+			cacheGeneration = mQueryCache.getGeneration();
+		}
+
+		/* Set for the section count URIs, which share their list's tables
+		 * and restrictions so that the counts line up with its rows. */
+		String sectionColumn = null;
+
+		/* Column prefix of the list URIs which support paging. */
+		String pagingPrefix = null;
+
+		/* Restriction given by the URI, bound rather than inlined so that
+		 * each id doesn't produce a new statement for SQLite to compile. */
+		String where = null;
+		String[] whereArgs = null;
+
 		switch (type)
 		{
 		case SOURCES:
@@ -396,7 +502,8 @@ public class FiveProvider extends AbstractSyncProvider
 
 		case SOURCE:
 			qb.setTables(Five.Sources.SQL.TABLE);
-			qb.appendWhere("_id=" + uri.getLastPathSegment());
+			where = "_id = ?";
+			whereArgs = new String[] { uri.getLastPathSegment() };
 			break;
 
 		case PLAYLIST_SONGS:
@@ -409,14 +516,16 @@ public class FiveProvider extends AbstractSyncProvider
 
 		case PLAYLIST:
 			qb.setTables(Five.Music.Playlists.SQL.TABLE);
-			qb.appendWhere("_id=" + uri.getLastPathSegment());
+			where = "_id = ?";
+			whereArgs = new String[] { uri.getLastPathSegment() };
 			break;
 
 		case SONGS_IN_PLAYLIST:
 			qb.setTables(Five.Music.PlaylistSongs.SQL.TABLE + " ps " +
 			  "LEFT JOIN " + Five.Music.Songs.SQL.TABLE + " s " +
 			  "ON s." + Five.Music.Songs._ID + " = ps." + Five.Music.PlaylistSongs.SONG_ID);
-			qb.appendWhere("ps.playlist_id=" + getSecondToLastPathSegment(uri));
+			where = "ps.playlist_id = ?";
+			whereArgs = new String[] { getSecondToLastPathSegment(uri) };
 			qb.setProjectionMap(sSongsMap);
 
 			if (sortOrder == null)
@@ -425,21 +534,31 @@ public class FiveProvider extends AbstractSyncProvider
 			break;
 
 		case SONGS:
+		case SONG_SECTIONS:
 			qb.setTables(Five.Music.Songs.SQL.TABLE);
+
+			if (type == URIPatternIds.SONG_SECTIONS)
+				sectionColumn = Five.Music.Songs.SECTION;
+			else
+				pagingPrefix = "";
+
 			break;
 
 		case SONG:
 			qb.setTables(Five.Music.Songs.SQL.TABLE);
-			qb.appendWhere("_id=" + uri.getLastPathSegment());
+			where = "_id = ?";
+			whereArgs = new String[] { uri.getLastPathSegment() };
 			break;
 
 		case SONGS_BY_ARTIST:
 			qb.setTables(Five.Music.Songs.SQL.TABLE);
-			qb.appendWhere("artist_id=" + getSecondToLastPathSegment(uri));
+			where = "artist_id = ?";
+			whereArgs = new String[] { getSecondToLastPathSegment(uri) };
 
 			if (sortOrder == null)
-				sortOrder = "title ASC";
+				sortOrder = Five.Music.Songs.SORT_ORDER;
 
+			pagingPrefix = "";
 			break;
 
 		case SONGS_BY_ALBUM:
@@ -447,12 +566,16 @@ public class FiveProvider extends AbstractSyncProvider
 			qb.setTables(Five.Music.Songs.SQL.TABLE);
 
 			if (type == URIPatternIds.SONGS_BY_ALBUM)
-				qb.appendWhere("album_id=" + getSecondToLastPathSegment(uri));
+			{
+				where = "album_id = ?";
+				whereArgs = new String[] { getSecondToLastPathSegment(uri) };
+			}
 			else /* if (type == URIPatternIds.SONGS_BY_ARTIST_ON_ALBUM) */
 			{
 				List<Long> segs = getNumericPathSegments(uri);
-				qb.appendWhere("artist_id=" + segs.get(0) +
-				  " AND album_id=" + segs.get(1));
+				where = "artist_id = ? AND album_id = ?";
+				whereArgs = new String[] { String.valueOf(segs.get(0)),
+				  String.valueOf(segs.get(1)) };
 			}
 
 			if (sortOrder == null)
@@ -462,9 +585,17 @@ public class FiveProvider extends AbstractSyncProvider
 
 		case ARTISTS:
 		case ARTIST:
+		case ARTIST_SECTIONS:
 			qb.setTables(Five.Music.Artists.SQL.TABLE);
 			if (type == URIPatternIds.ARTIST)
-				qb.appendWhere("_id=" + uri.getLastPathSegment());
+			{
+				where = "_id = ?";
+				whereArgs = new String[] { uri.getLastPathSegment() };
+			}
+			else if (type == URIPatternIds.ARTIST_SECTIONS)
+				sectionColumn = Five.Music.Artists.SECTION;
+			else
+				pagingPrefix = "";
 			qb.setProjectionMap(sArtistsMap);
 			break;
 
@@ -472,37 +603,48 @@ public class FiveProvider extends AbstractSyncProvider
 		case ALBUMS:
 		case ALBUMS_BY_ARTIST:
 		case ALBUMS_COMPLETE:
+		case ALBUM_SECTIONS:
+		case ALBUMS_COMPLETE_SECTIONS:
 			qb.setTables(Five.Music.Albums.SQL.TABLE + " a " +
 			  "LEFT JOIN " + Five.Music.Artists.SQL.TABLE + " artists " +
 			  "ON artists." + Five.Music.Artists._ID + " = a." + Five.Music.Albums.ARTIST_ID);
 
 			if (type == URIPatternIds.ALBUM)
-				qb.appendWhere("a._id=" + uri.getLastPathSegment());
+			{
+				where = "a._id = ?";
+				whereArgs = new String[] { uri.getLastPathSegment() };
+			}
 			else
 			{
 				if (type == URIPatternIds.ALBUMS_BY_ARTIST)
-					qb.appendWhere("a.artist_id=" + getSecondToLastPathSegment(uri));
-				else if (type == URIPatternIds.ALBUMS_COMPLETE)
+				{
+					where = "a.artist_id = ?";
+					whereArgs = new String[] { getSecondToLastPathSegment(uri) };
+				}
+				else if (type == URIPatternIds.ALBUMS_COMPLETE ||
+				    type == URIPatternIds.ALBUMS_COMPLETE_SECTIONS)
 					qb.appendWhere("a.num_songs > 3");
+
+				if (type == URIPatternIds.ALBUM_SECTIONS ||
+				    type == URIPatternIds.ALBUMS_COMPLETE_SECTIONS)
+					sectionColumn = "a." + Five.Music.Albums.SECTION;
+				else
+					pagingPrefix = "a.";
 			}
 
 			qb.setProjectionMap(sAlbumsMap);
 			break;
 
 		case ALBUMS_WITH_ARTIST:
-			qb.setTables(Five.Music.Songs.SQL.TABLE + " s " +
-			  "LEFT JOIN " + Five.Music.Albums.SQL.TABLE + " a " +
-			  "ON a." + Five.Music.Albums._ID + " = s." + Five.Music.Songs.ALBUM_ID + " " +
+			qb.setTables(Five.Music.ArtistAlbums.SQL.TABLE + " aa " +
+			  "JOIN " + Five.Music.Albums.SQL.TABLE + " a " +
+			  "ON a." + Five.Music.Albums._ID + " = aa." + Five.Music.ArtistAlbums.ALBUM_ID + " " +
 			  "LEFT JOIN " + Five.Music.Artists.SQL.TABLE + " artists " +
 			  "ON artists." + Five.Music.Artists._ID + " = a." + Five.Music.Albums.ARTIST_ID);
 
-			qb.appendWhere("s.artist_id=" + getSecondToLastPathSegment(uri));
-
-			HashMap<String, String> proj = new HashMap<String, String>(sAlbumsMap);
-			proj.put(Five.Music.Albums.NUM_SONGS, "COUNT(*) AS " + Five.Music.Albums.NUM_SONGS);
-			qb.setProjectionMap(proj);
-
-			groupBy = "a." + Five.Music.Albums._ID;
+			where = "aa.artist_id = ?";
+			whereArgs = new String[] { getSecondToLastPathSegment(uri) };
+			qb.setProjectionMap(sArtistAlbumsMap);
 			break;
 
 		case DELETED_ARTIST:
@@ -525,40 +667,517 @@ public class FiveProvider extends AbstractSyncProvider
 			qb.setTables(Five.Music.PlaylistSongs.SQL.DELETED_TABLE);
 			break;
 
+		case SEARCH:
+		case SEARCH_SUGGEST:
+			return querySearch(uri, type);
+
 		default:
 			throw new IllegalArgumentException("Unknown URI: " + uri);
 		}
 
+		if (where != null)
+		{
+			selection = extendWhere(selection, where);
+			selectionArgs = extendWhereArgs(selectionArgs, whereArgs);
+		}
+
+		if (limit != null && pagingPrefix != null)
+		{
+			String[] pageArgs = getPageSelectionArgs(uri);
+			if (pageArgs != null)
+			{
+				selection = extendWhere(selection, getPageSelection(pagingPrefix));
+				selectionArgs = extendWhereArgs(selectionArgs, pageArgs);
+			}
+
+			sortOrder = pagingPrefix + Five.Music.Artists.SECTION + ", " +
+			  pagingPrefix + Five.Music.Artists.SORT_KEY + ", " +
+			  pagingPrefix + Five.Music.Artists._ID;
+
+			limit = getPageLimit(uri);
+		}
+		else
+			limit = null;
+
+		if (sectionColumn != null)
+		{
+			qb.setProjectionMap(null);
+			projection = new String[] {
+				sectionColumn + " AS " + Five.Sections.SECTION,
+				"COUNT(*) AS " + Five.Sections._COUNT,
+			};
+			groupBy = sectionColumn;
+			sortOrder = sectionColumn;
+		}
+
 		SQLiteDatabase db = mHelper.getReadableDatabase();
-		Cursor c = qb.query(db, projection, selection, selectionArgs, groupBy, null, sortOrder);
+		Cursor c = qb.query(db, projection, selection, selectionArgs, groupBy, null,
+		  sortOrder, limit);
+
+		if (cachedTables != 0)
+			c = mQueryCache.put(cacheKey, cachedTables, cacheGeneration, c, requery);
+
 		if (isTemporary() == false)
 			c.setNotificationUri(getContext().getContentResolver(), uri);
 
 		return c;
 	}
 
+	/**
+	 * @return Callback for a cached result to run its query again when
+	 *         requeried.
+	 */
+	private QueryCache.Requery newRequery(final Uri uri, final String[] projection,
+			final String selection, final String[] selectionArgs, final String sortOrder)
+	{
+		return new QueryCache.Requery() {
+			public Cursor query() {
+				return queryInternal(uri, projection, selection, selectionArgs,
+				  sortOrder);
+			}
+		};
+	}
+
+	/**
+	 * @return Restriction to rows after the one given by the
+	 *         {@link Five.Paging} parameters, bound with
+	 *         {@link #getPageSelectionArgs}.
+	 */
+	private static String getPageSelection(String prefix)
+	{
+		String sectionColumn = prefix + Five.Music.Artists.SECTION;
+		String sortKeyColumn = prefix + Five.Music.Artists.SORT_KEY;
+		String idColumn = prefix + Five.Music.Artists._ID;
+
+		return sectionColumn + " > ? OR (" + sectionColumn + " = ? AND (" +
+		  sortKeyColumn + " > ? OR (" + sortKeyColumn + " = ? AND " +
+		  idColumn + " > ?)))";
+	}
+
+	/**
+	 * @return Arguments for {@link #getPageSelection}, or null if the
+	 *         page starts from the beginning of the list.
+	 */
+	private static String[] getPageSelectionArgs(Uri uri)
+	{
+		String section = uri.getQueryParameter(Five.Paging.AFTER_SECTION);
+		if (section == null)
+			return null;
+
+		String sortKey = uri.getQueryParameter(Five.Paging.AFTER_SORT_KEY);
+		if (sortKey == null)
+			sortKey = "";
+
+		long id = getPageParameter(uri, Five.Paging.AFTER_ID, 0);
+
+		return new String[] { section, section, sortKey, sortKey,
+		  String.valueOf(id) };
+	}
+
+	/**
+	 * @return LIMIT clause for the {@link Five.Paging} parameters.
+	 */
+	private static String getPageLimit(Uri uri)
+	{
+		long limit = getPageParameter(uri, Five.Paging.LIMIT, -1);
+		long offset = getPageParameter(uri, Five.Paging.OFFSET, -1);
+
+		if (offset >= 0)
+			return offset + ", " + limit;
+		else
+			return String.valueOf(limit);
+	}
+
+	/**
+	 * @return Value of a numeric {@link Five.Paging} parameter, or
+	 *         <code>defaultValue</code> if it is absent.
+	 * @throws IllegalArgumentException
+	 *             If the parameter is malformed or negative.
+	 */
+	private static long getPageParameter(Uri uri, String name, long defaultValue)
+	{
+		String value = uri.getQueryParameter(name);
+		if (value == null)
+			return defaultValue;
+
+		long number;
+		try {
+			number = Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad " + name + " in " + uri);
+		}
+
+		if (number < 0)
+			throw new IllegalArgumentException("Bad " + name + " in " + uri);
+
+		return number;
+	}
+
+	/**
+	 * @return Tables read by list queries whose results are kept in
+	 *         {@link #mQueryCache}, or 0 if the URI's results aren't cached.
+	 */
+	private static int getTablesRead(URIPatternIds type)
+	{
+		switch (type)
+		{
+		case ARTISTS:
+		case ARTIST_SECTIONS:
+			return QueryCache.TABLE_ARTISTS;
+
+		case ALBUMS:
+		case ALBUMS_BY_ARTIST:
+		case ALBUMS_COMPLETE:
+		case ALBUM_SECTIONS:
+		case ALBUMS_COMPLETE_SECTIONS:
+			return QueryCache.TABLE_ALBUMS | QueryCache.TABLE_ARTISTS;
+
+		case ALBUMS_WITH_ARTIST:
+			return QueryCache.TABLE_SONGS | QueryCache.TABLE_ALBUMS |
+			  QueryCache.TABLE_ARTISTS;
+
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * @return Tables changed by an insert, update or delete on the URI.
+	 */
+	private static int getTablesWritten(URIPatternIds type)
+	{
+		switch (type)
+		{
+		case ARTISTS:
+		case ARTIST:
+			return QueryCache.TABLE_ARTISTS;
+
+		case ALBUMS:
+		case ALBUM:
+			return QueryCache.TABLE_ALBUMS;
+
+		case SONGS:
+		case SONG:
+			return QueryCache.TABLE_SONGS;
+
+		case PLAYLISTS:
+		case PLAYLIST:
+			return QueryCache.TABLE_PLAYLISTS;
+
+		case SONGS_IN_PLAYLIST:
+		case PLAYLIST_SONGS:
+		case PLAYLIST_SONG:
+			return QueryCache.TABLE_PLAYLIST_SONGS;
+
+		case ADJUST_COUNTS:
+			/* Also sweeps orphaned rows, see updateCounts. */
+			return QueryCache.TABLE_ARTISTS | QueryCache.TABLE_ALBUMS |
+			  QueryCache.TABLE_SONGS | QueryCache.TABLE_PLAYLISTS |
+			  QueryCache.TABLE_PLAYLIST_SONGS;
+
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Convert user input into an FTS query matching every word as a prefix.
+	 * Operators and punctuation are dropped so that arbitrary input can't
+	 * produce a malformed query.
+	 *
+	 * @return Query terms, or an empty array if there are none.
+	 */
+	private static String[] getSearchTerms(String query)
+	{
+		if (query == null)
+			return new String[0];
+
+		ArrayList<String> terms = new ArrayList<String>();
+		int length = query.length();
+		int start = -1;
+
+		for (int i = 0; i <= length; i++)
+		{
+			boolean word = (i < length) &&
+			  Character.isLetterOrDigit(query.charAt(i));
+
+			if (word == true && start < 0)
+				start = i;
+			else if (word == false && start >= 0)
+			{
+				terms.add(query.substring(start, i).toLowerCase());
+				start = -1;
+			}
+		}
+
+		return terms.toArray(new String[terms.size()]);
+	}
+
+	private Cursor querySearch(Uri uri, URIPatternIds type)
+	{
+		String query = (uri.getPathSegments().size() > (type == URIPatternIds.SEARCH ? 3 : 1)) ?
+		  uri.getLastPathSegment() : null;
+		String[] terms = getSearchTerms(query);
+
+		int limit = Five.Music.Search.DEFAULT_LIMIT;
+		String limitParam = uri.getQueryParameter("limit");
+		if (limitParam != null)
+		{
+			try {
+				limit = Integer.parseInt(limitParam);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Bad limit in " + uri);
+			}
+
+			if (limit <= 0)
+				throw new IllegalArgumentException("Bad limit in " + uri);
+
+			limit = Math.min(limit, Five.Music.Search.MAX_LIMIT);
+		}
+
+		String[] columns;
+		if (type == URIPatternIds.SEARCH)
+		{
+			columns = new String[] { Five.Music.Search._ID, Five.Music.Search.KIND,
+			  Five.Music.Search.ITEM_ID, Five.Music.Search.NAME };
+		}
+		else
+		{
+			columns = new String[] { Five.Music.Search._ID,
+			  SearchManager.SUGGEST_COLUMN_TEXT_1, SearchManager.SUGGEST_COLUMN_TEXT_2,
+			  SearchManager.SUGGEST_COLUMN_INTENT_DATA };
+		}
+
+		if (terms.length == 0 || isTemporary() == true)
+			return new MatrixCursor(columns, 0);
+
+		StringBuilder match = new StringBuilder();
+		for (String term: terms)
+		{
+			if (match.length() > 0)
+				match.append(' ');
+			match.append(term).append('*');
+		}
+
+		/* Rank and limit in a subquery so that the more expensive
+		 * suggestion columns are only computed for the rows returned. */
+		String ranked =
+		  "SELECT rowid AS " + Five.Music.Search._ID + ", " +
+		    "(rowid & 3) AS " + Five.Music.Search.KIND + ", " +
+		    "(rowid >> 2) AS " + Five.Music.Search.ITEM_ID + ", " +
+		    Five.Music.Search.NAME +
+		  " FROM " + Five.Music.Search.SQL.TABLE +
+		  " WHERE " + Five.Music.Search.NAME + " MATCH ?" +
+		  " ORDER BY " + Five.Music.Search.NAME + " LIKE ? DESC, " +
+		    "(rowid & 3), LENGTH(" + Five.Music.Search.NAME + ")" +
+		  " LIMIT " + limit;
+
+		String sql;
+		if (type == URIPatternIds.SEARCH)
+			sql = ranked;
+		else
+		{
+			String artistName = "IFNULL(ar." + Five.Music.Artists.NAME_PREFIX +
+			  ", '') || ar." + Five.Music.Artists.NAME;
+
+			sql = "SELECT r." + Five.Music.Search._ID + ", " +
+			    "r." + Five.Music.Search.NAME + " AS " + SearchManager.SUGGEST_COLUMN_TEXT_1 + ", " +
+			    "CASE r." + Five.Music.Search.KIND +
+			      " WHEN " + Five.Music.Search.KIND_ALBUM + " THEN" +
+			        " (SELECT " + artistName + " FROM " + Five.Music.Albums.SQL.TABLE + " al" +
+			        " JOIN " + Five.Music.Artists.SQL.TABLE + " ar ON ar._id = al." + Five.Music.Albums.ARTIST_ID +
+			        " WHERE al._id = r." + Five.Music.Search.ITEM_ID + ")" +
+			      " WHEN " + Five.Music.Search.KIND_SONG + " THEN" +
+			        " (SELECT " + artistName + " FROM " + Five.Music.Songs.SQL.TABLE + " s" +
+			        " JOIN " + Five.Music.Artists.SQL.TABLE + " ar ON ar._id = s." + Five.Music.Songs.ARTIST_ID +
+			        " WHERE s._id = r." + Five.Music.Search.ITEM_ID + ")" +
+			      " END AS " + SearchManager.SUGGEST_COLUMN_TEXT_2 + ", " +
+			    "CASE r." + Five.Music.Search.KIND +
+			      " WHEN " + Five.Music.Search.KIND_ARTIST + " THEN '" + Five.Music.Artists.CONTENT_URI + "/'" +
+			      " WHEN " + Five.Music.Search.KIND_ALBUM + " THEN '" + Five.Music.Albums.CONTENT_URI + "/'" +
+			      " ELSE '" + Five.Music.Songs.CONTENT_URI + "/'" +
+			      " END || r." + Five.Music.Search.ITEM_ID +
+			      " AS " + SearchManager.SUGGEST_COLUMN_INTENT_DATA +
+			  " FROM (" + ranked + ") r";
+		}
+
+		SQLiteDatabase db = mHelper.getReadableDatabase();
+		return db.rawQuery(sql, new String[] { match.toString(), terms[0] + "%" });
+	}
+
+	/**
+	 * Add an artist, album or song to the search index.
+	 */
+	private void indexSearchName(int kind, long id, String name)
+	{
+		if (mSearchInserter == null)
+			return;
+
+		mSearchInserter.bindLong(1, (id << 2) | kind);
+		mSearchInserter.bindString(2, name);
+		mSearchInserter.execute();
+	}
+
+	/**
+	 * Refresh the search index entries of every row in <code>table</code>
+	 * matching <code>where</code>, after their names have been updated.
+	 */
+	private void reindexSearchNames(SQLiteDatabase db, int kind, String table,
+	  String nameExpr, String where, String[] whereArgs)
+	{
+		if (mSearchInserter == null)
+			return;
+
+		String rowid = Five.Music.Search.SQL.makeRowIdExpr(kind);
+		String selection = TextUtils.isEmpty(where) ? "" : " WHERE " + where;
+		Object[] args = (whereArgs != null) ? whereArgs : new Object[0];
+
+		db.execSQL("DELETE FROM " + Five.Music.Search.SQL.TABLE +
+		  " WHERE rowid IN (SELECT " + rowid + " FROM " + table + selection + ")", args);
+		db.execSQL("INSERT INTO " + Five.Music.Search.SQL.TABLE +
+		  " (rowid, " + Five.Music.Search.NAME + ") SELECT " + rowid + ", " + nameExpr +
+		  " FROM " + table + selection, args);
+	}
+
+	/**
+	 * Add <code>delta</code> to the number of songs by an artist on an
+	 * album.
+	 */
+	private void adjustArtistAlbum(long artistId, long albumId, long delta)
+	{
+		if (mArtistAlbumInserter == null)
+			return;
+
+		if (delta > 0)
+		{
+			mArtistAlbumInserter.bindLong(1, artistId);
+			mArtistAlbumInserter.bindLong(2, albumId);
+			mArtistAlbumInserter.execute();
+		}
+
+		mArtistAlbumAdjuster.bindLong(1, delta);
+		mArtistAlbumAdjuster.bindLong(2, artistId);
+		mArtistAlbumAdjuster.bindLong(3, albumId);
+		mArtistAlbumAdjuster.execute();
+
+		if (delta < 0)
+		{
+			mArtistAlbumPruner.bindLong(1, artistId);
+			mArtistAlbumPruner.bindLong(2, albumId);
+			mArtistAlbumPruner.execute();
+		}
+	}
+
+	/**
+	 * Count (or, with a negative <code>sign</code>, uncount) the songs
+	 * matching <code>where</code> in the artist/album song counts.
+	 */
+	private void countArtistAlbums(SQLiteDatabase db, String where, String[] whereArgs,
+	  int sign)
+	{
+		if (mArtistAlbumInserter == null)
+			return;
+
+		Cursor c = db.rawQuery("SELECT " + Five.Music.Songs.ARTIST_ID + ", " +
+		  Five.Music.Songs.ALBUM_ID + ", COUNT(*) FROM " + Five.Music.Songs.SQL.TABLE +
+		  " WHERE (" + where + ") AND " + Five.Music.Songs.ALBUM_ID + " IS NOT NULL" +
+		  " GROUP BY " + Five.Music.Songs.ARTIST_ID + ", " + Five.Music.Songs.ALBUM_ID,
+		  whereArgs);
+
+		try {
+			while (c.moveToNext() == true)
+				adjustArtistAlbum(c.getLong(0), c.getLong(1), sign * c.getLong(2));
+		} finally {
+			c.close();
+		}
+	}
+
+	private void rebuildArtistAlbums(SQLiteDatabase db)
+	{
+		if (mArtistAlbumInserter == null)
+			return;
+
+		db.execSQL("DELETE FROM " + Five.Music.ArtistAlbums.SQL.TABLE);
+		db.execSQL(Five.Music.ArtistAlbums.SQL.POPULATE);
+	}
+
+	/**
+	 * Derive the sort key and section columns from a name or title being
+	 * inserted or updated.
+	 */
+	private static void putSortKey(ContentValues v, String nameColumn)
+	{
+		String sortKey = SortKeys.getSortKey(v.getAsString(nameColumn));
+
+		/* Same column names in all tables. */
+		v.put(Five.Music.Artists.SORT_KEY, sortKey);
+		v.put(Five.Music.Artists.SECTION, SortKeys.getSection(sortKey));
+	}
+
+	private static String getFullName(ContentValues v)
+	{
+		String prefix = v.getAsString(Five.Music.Artists.NAME_PREFIX);
+		String name = v.getAsString(Five.Music.Artists.NAME);
+
+		return (prefix != null) ? prefix + name : name;
+	}
+
 	/*-***********************************************************************/
 
 	private int updateSong(SQLiteDatabase db, Uri uri, URIPatternIds type, ContentValues v,
 	  String sel, String[] selArgs)
 	{
+		String id = null;
 		String custom;
+		String[] customArgs;
 
 		switch (type)
 		{
 			case SONG:
-				custom = extendWhere(sel, Five.Music.Songs._ID + '=' + uri.getLastPathSegment());
+				id = uri.getLastPathSegment();
+				custom = extendWhere(sel, ID_SELECTION);
+				customArgs = extendWhereArgs(selArgs, id);
 				break;
 
-			case SONGS:
-				custom = sel;
-				break;
+			case SONGS:
+				custom = sel;
+				customArgs = selArgs;
+				break;
+
+			default:
+				throw new IllegalArgumentException();
+		}
+
+		if (v.containsKey(Five.Music.Songs.TITLE))
+			putSortKey(v, Five.Music.Songs.TITLE);
+
+		boolean regrouping = v.containsKey(Five.Music.Songs.ARTIST_ID) ||
+		  v.containsKey(Five.Music.Songs.ALBUM_ID);
+
+		/* A single song can be moved between counts; any more and we
+		 * simply recount. */
+		if (regrouping == true && id != null)
+			countArtistAlbums(db, custom, customArgs, -1);
+
+		int ret;
+		if (id != null && sel == null)
+			ret = updateById(Five.Music.Songs.SQL.TABLE, v, id);
+		else
+			ret = db.update(Five.Music.Songs.SQL.TABLE, v, custom, customArgs);
 
-			default:
-				throw new IllegalArgumentException();
+		if (regrouping == true)
+		{
+			if (id != null)
+				countArtistAlbums(db, custom, customArgs, 1);
+			else if (ret > 0)
+				rebuildArtistAlbums(db);
 		}
 
-		int ret = db.update(Five.Music.Songs.SQL.TABLE, v, custom, selArgs);
+		if (ret > 0 && v.containsKey(Five.Music.Songs.TITLE))
+		{
+			reindexSearchNames(db, Five.Music.Search.KIND_SONG, Five.Music.Songs.SQL.TABLE,
+			  Five.Music.Songs.TITLE, custom, customArgs);
+		}
 
 		return ret;
 	}
@@ -566,11 +1185,29 @@ public class FiveProvider extends AbstractSyncProvider
 	private int updateAlbum(SQLiteDatabase db, Uri uri, URIPatternIds type, ContentValues v,
 	  String sel, String[] selArgs)
 	{
-		String custom;
+		String id = uri.getLastPathSegment();
+		String custom = extendWhere(sel, ID_SELECTION);
+		String[] customArgs = extendWhereArgs(selArgs, id);
+
+		if (v.containsKey(Five.Music.Albums.NAME))
+		{
+			adjustNameWithPrefix(v);
+			putSortKey(v, Five.Music.Albums.NAME);
+		}
 
-		custom = extendWhere(sel, Five.Music.Albums._ID + '=' + uri.getLastPathSegment());
+		int ret;
+		if (sel == null)
+			ret = updateById(Five.Music.Albums.SQL.TABLE, v, id);
+		else
+			ret = db.update(Five.Music.Albums.SQL.TABLE, v, custom, customArgs);
 
-		int ret = db.update(Five.Music.Albums.SQL.TABLE, v, custom, selArgs);
+		if (ret > 0 && (v.containsKey(Five.Music.Albums.NAME) ||
+		    v.containsKey(Five.Music.Albums.NAME_PREFIX)))
+		{
+			reindexSearchNames(db, Five.Music.Search.KIND_ALBUM, Five.Music.Albums.SQL.TABLE,
+			  "IFNULL(" + Five.Music.Albums.NAME_PREFIX + ", '') || " + Five.Music.Albums.NAME,
+			  custom, customArgs);
+		}
 
 		return ret;
 	}
@@ -578,11 +1215,29 @@ public class FiveProvider extends AbstractSyncProvider
 	private int updateArtist(SQLiteDatabase db, Uri uri, URIPatternIds type, ContentValues v,
 	  String sel, String[] selArgs)
 	{
-		String custom;
+		String id = uri.getLastPathSegment();
+		String custom = extendWhere(sel, ID_SELECTION);
+		String[] customArgs = extendWhereArgs(selArgs, id);
+
+		if (v.containsKey(Five.Music.Artists.NAME))
+		{
+			adjustNameWithPrefix(v);
+			putSortKey(v, Five.Music.Artists.NAME);
+		}
 
-		custom = extendWhere(sel, Five.Music.Artists._ID + '=' + uri.getLastPathSegment());
+		int ret;
+		if (sel == null)
+			ret = updateById(Five.Music.Artists.SQL.TABLE, v, id);
+		else
+			ret = db.update(Five.Music.Artists.SQL.TABLE, v, custom, customArgs);
 
-		int ret = db.update(Five.Music.Artists.SQL.TABLE, v, custom, selArgs);
+		if (ret > 0 && (v.containsKey(Five.Music.Artists.NAME) ||
+		    v.containsKey(Five.Music.Artists.NAME_PREFIX)))
+		{
+			reindexSearchNames(db, Five.Music.Search.KIND_ARTIST, Five.Music.Artists.SQL.TABLE,
+			  "IFNULL(" + Five.Music.Artists.NAME_PREFIX + ", '') || " + Five.Music.Artists.NAME,
+			  custom, customArgs);
+		}
 
 		return ret;
 	}
@@ -590,30 +1245,106 @@ public class FiveProvider extends AbstractSyncProvider
 	private int updatePlaylist(SQLiteDatabase db, Uri uri, URIPatternIds type, ContentValues v,
 	  String sel, String[] selArgs)
 	{
-		String custom;
+		String id = uri.getLastPathSegment();
 
-		custom = extendWhere(sel, Five.Music.Playlists._ID + '=' + uri.getLastPathSegment());
+		if (sel == null)
+			return updateById(Five.Music.Playlists.SQL.TABLE, v, id);
 
-		int ret = db.update(Five.Music.Playlists.SQL.TABLE, v, custom, selArgs);
+		return db.update(Five.Music.Playlists.SQL.TABLE, v,
+		  extendWhere(sel, ID_SELECTION), extendWhereArgs(selArgs, id));
+	}
 
-		return ret;
+	private int updatePlaylistSong(SQLiteDatabase db, Uri uri, URIPatternIds type,
+	  ContentValues v, String sel, String[] selArgs)
+	{
+		String id = uri.getLastPathSegment();
+
+		if (sel == null)
+			return updateById(Five.Music.PlaylistSongs.SQL.TABLE, v, id);
+
+		return db.update(Five.Music.PlaylistSongs.SQL.TABLE, v,
+		  extendWhere(sel, ID_SELECTION), extendWhereArgs(selArgs, id));
 	}
 
 	private int updateSource(SQLiteDatabase db, Uri uri, URIPatternIds type, ContentValues v,
 	  String sel, String[] selArgs)
 	{
-		String custom;
+		String id = uri.getLastPathSegment();
 
-		custom = extendWhere(sel, Five.Sources._ID + '=' + uri.getLastPathSegment());
-
-		int ret = db.update(Five.Sources.SQL.TABLE, v, custom, selArgs);
+		int ret;
+		if (sel == null)
+			ret = updateById(Five.Sources.SQL.TABLE, v, id);
+		else
+		{
+			ret = db.update(Five.Sources.SQL.TABLE, v,
+			  extendWhere(sel, ID_SELECTION), extendWhereArgs(selArgs, id));
+		}
 
-		if (isTemporary() == false)
-			getContext().getContentResolver().notifyChange(Five.Sources.CONTENT_URI, null);
+		notifyChange(Five.Sources.CONTENT_URI);
 
 		return ret;
 	}
 
+	/**
+	 * Update a single row using a cached statement, for the hot paths
+	 * where it's identified by <code>id</code> alone.
+	 *
+	 * @return Number of rows updated.
+	 */
+	private int updateById(String table, ContentValues v, String id)
+	{
+		if (v.size() == 0)
+			throw new IllegalArgumentException("Empty values");
+
+		/* Sorted so that the same columns always map to the same statement. */
+		TreeMap<String, Object> values = new TreeMap<String, Object>();
+		for (Map.Entry<String, Object> entry: v.valueSet())
+			values.put(entry.getKey(), entry.getValue());
+
+		StringBuilder sql = new StringBuilder();
+		sql.append("UPDATE ").append(table).append(" SET ");
+
+		boolean first = true;
+		for (String column: values.keySet())
+		{
+			if (first == false)
+				sql.append(", ");
+			sql.append(column).append(" = ?");
+			first = false;
+		}
+
+		sql.append(" WHERE ").append(ID_SELECTION);
+
+		SQLiteStatement update = mStatements.get(sql.toString());
+
+		int index = 1;
+		for (Object value: values.values())
+			DatabaseUtils.bindObjectToProgram(update, index++, value);
+		update.bindLong(index, Long.parseLong(id));
+
+		update.execute();
+
+		return (int)mStatements.get("SELECT changes()").simpleQueryForLong();
+	}
+
+	/**
+	 * Look up a row by the server's id for it, as merges do for every
+	 * reference to another row.
+	 *
+	 * @return Local id.
+	 * @throws SQLiteDoneException
+	 *             If there is no such row.
+	 */
+	public long getIdBySyncId(String table, long syncId)
+	{
+		SQLiteStatement query = mStatements.get("SELECT " + BaseColumns._ID +
+		  " FROM " + table + " WHERE " + SyncableColumns._SYNC_ID + " = ?");
+
+		query.bindLong(1, syncId);
+
+		return query.simpleQueryForLong();
+	}
+
 	private void updateCount(SQLiteDatabase db, String updateSQL,
 	  String countsSQL)
 	{
@@ -655,6 +1386,10 @@ public class FiveProvider extends AbstractSyncProvider
 		db.beginTransaction();
 
 		try {
+			/* Finish the deletions merged from the server, now that any
+			 * rows moved to new parents have been updated. */
+			deleteOrphans(db);
+
 			updateCount(db, "UPDATE music_artists SET num_songs = ? WHERE _id = ?",
 			  "SELECT artist_id, COUNT(*) FROM music_songs GROUP BY artist_id");
 			updateCount(db, "UPDATE music_artists SET num_albums = ? WHERE _id = ?",
@@ -664,6 +1399,10 @@ public class FiveProvider extends AbstractSyncProvider
 			updateCount(db, "UPDATE music_playlists SET num_songs = ? WHERE _id = ?",
 			  "SELECT playlist_id, COUNT(*) FROM music_playlist_songs GROUP BY playlist_id");
 
+			/* Reconcile the incrementally maintained artist/album counts
+			 * after a merge, in case it was interrupted. */
+			rebuildArtistAlbums(db);
+
 			db.setTransactionSuccessful();
 		} finally {
 			db.endTransaction();
@@ -682,23 +1421,30 @@ public class FiveProvider extends AbstractSyncProvider
 
 		URIPatternIds type = URIPatternIds.get(sUriMatcher.match(uri));
 
-		switch (type)
-		{
-		case SONG:
-		case SONGS:
-			return updateSong(db, uri, type, values, selection, selectionArgs);
-		case ALBUM:
-			return updateAlbum(db, uri, type, values, selection, selectionArgs);
-		case ARTIST:
-			return updateArtist(db, uri, type, values, selection, selectionArgs);
-		case PLAYLIST:
-			return updatePlaylist(db, uri, type, values, selection, selectionArgs);
-		case SOURCE:
-			return updateSource(db, uri, type, values, selection, selectionArgs);
-		case ADJUST_COUNTS:
-			return updateCounts(db, uri, type, values, selection, selectionArgs);
-		default:
-			throw new IllegalArgumentException("Cannot update URI: " + uri);
+		/* Invalidates once the write commits, see QueryCache. */
+		try {
+			switch (type)
+			{
+			case SONG:
+			case SONGS:
+				return updateSong(db, uri, type, values, selection, selectionArgs);
+			case ALBUM:
+				return updateAlbum(db, uri, type, values, selection, selectionArgs);
+			case ARTIST:
+				return updateArtist(db, uri, type, values, selection, selectionArgs);
+			case PLAYLIST:
+				return updatePlaylist(db, uri, type, values, selection, selectionArgs);
+			case PLAYLIST_SONG:
+				return updatePlaylistSong(db, uri, type, values, selection, selectionArgs);
+			case SOURCE:
+				return updateSource(db, uri, type, values, selection, selectionArgs);
+			case ADJUST_COUNTS:
+				return updateCounts(db, uri, type, values, selection, selectionArgs);
+			default:
+				throw new IllegalArgumentException("Cannot update URI: " + uri);
+			}
+		} finally {
+			mQueryCache.invalidate(getTablesWritten(type), db.inTransaction());
 		}
 	}
 
@@ -722,8 +1468,7 @@ public class FiveProvider extends AbstractSyncProvider
 
 		Uri ret = ContentUris.withAppendedId(Five.Sources.CONTENT_URI, id);
 
-		if (isTemporary() == false)
-			getContext().getContentResolver().notifyChange(Five.Sources.CONTENT_URI, null);
+		notifyChange(Five.Sources.CONTENT_URI);
 
 		return ret;
 	}
@@ -755,12 +1500,15 @@ public class FiveProvider extends AbstractSyncProvider
 			v.put(Five.Music.Artists.NUM_SONGS, 0);
 
 		adjustNameWithPrefix(v);
+		putSortKey(v, Five.Music.Artists.NAME);
 
 		long id = mArtistInserter.insert(v);
 
 		if (id == -1)
 			return null;
 
+		indexSearchName(Five.Music.Search.KIND_ARTIST, id, getFullName(v));
+
 		Uri ret = ContentUris.withAppendedId(Five.Music.Artists.CONTENT_URI, id);
 		return ret;
 	}
@@ -777,12 +1525,15 @@ public class FiveProvider extends AbstractSyncProvider
 			v.put(Five.Music.Albums.NUM_SONGS, 0);
 
 		adjustNameWithPrefix(v);
+		putSortKey(v, Five.Music.Albums.NAME);
 
 		long id = mAlbumInserter.insert(v);
 
 		if (id == -1)
 			return null;
 
+		indexSearchName(Five.Music.Search.KIND_ALBUM, id, getFullName(v));
+
 		Uri ret = ContentUris.withAppendedId(Five.Music.Albums.CONTENT_URI, id);
 
 		return ret;
@@ -793,11 +1544,21 @@ public class FiveProvider extends AbstractSyncProvider
 		if (v.containsKey(Five.Music.Albums.ARTIST_ID) == false)
 			throw new IllegalArgumentException("ARTIST_ID cannot be NULL");
 
+		putSortKey(v, Five.Music.Songs.TITLE);
+
 		long id = mSongInserter.insert(v);
 
 		if (id == -1)
 			return null;
 
+		String title = v.getAsString(Five.Music.Songs.TITLE);
+		if (title != null)
+			indexSearchName(Five.Music.Search.KIND_SONG, id, title);
+
+		Long albumId = v.getAsLong(Five.Music.Songs.ALBUM_ID);
+		if (albumId != null)
+			adjustArtistAlbum(v.getAsLong(Five.Music.Songs.ARTIST_ID), albumId, 1);
+
 		Uri ret = ContentUris.withAppendedId(Five.Music.Songs.CONTENT_URI, id);
 
 		return ret;
@@ -884,30 +1645,35 @@ public class FiveProvider extends AbstractSyncProvider
 
 		URIPatternIds type = URIPatternIds.get(sUriMatcher.match(uri));
 
-		switch (type)
-		{
-		case SOURCES:
-			return insertSource(db, uri, type, values);
-		case ARTISTS:
-			return insertArtist(db, uri, type, values);
-		case ALBUMS:
-			return insertAlbum(db, uri, type, values);
-		case SONGS:
-			return insertSong(db, uri, type, values);
-		case PLAYLISTS:
-			return insertPlaylist(db, uri, type, values);
-		case SONGS_IN_PLAYLIST:
-		case PLAYLIST_SONGS:
-			return insertPlaylistSongs(db, uri, type, values);
-		case DELETED_ARTIST:
-		case DELETED_ALBUM:
-		case DELETED_SONG:
-		case DELETED_PLAYLIST:
-		case DELETED_PLAYLIST_SONG:
-			return insertDeletedItem(db, uri, type, values);
-		}
+		/* Invalidates once the write commits, see QueryCache. */
+		try {
+			switch (type)
+			{
+			case SOURCES:
+				return insertSource(db, uri, type, values);
+			case ARTISTS:
+				return insertArtist(db, uri, type, values);
+			case ALBUMS:
+				return insertAlbum(db, uri, type, values);
+			case SONGS:
+				return insertSong(db, uri, type, values);
+			case PLAYLISTS:
+				return insertPlaylist(db, uri, type, values);
+			case SONGS_IN_PLAYLIST:
+			case PLAYLIST_SONGS:
+				return insertPlaylistSongs(db, uri, type, values);
+			case DELETED_ARTIST:
+			case DELETED_ALBUM:
+			case DELETED_SONG:
+			case DELETED_PLAYLIST:
+			case DELETED_PLAYLIST_SONG:
+				return insertDeletedItem(db, uri, type, values);
+			}
 
-		throw new IllegalArgumentException("Cannot insert URI: " + uri);
+			throw new IllegalArgumentException("Cannot insert URI: " + uri);
+		} finally {
+			mQueryCache.invalidate(getTablesWritten(type), db.inTransaction());
+		}
 	}
 
 	/*-***********************************************************************/
@@ -941,6 +1707,22 @@ public class FiveProvider extends AbstractSyncProvider
 		return extendWhere(old, new String[] { add });
 	}
 
+	/**
+	 * @return Arguments for a selection built by {@link #extendWhere}, whose
+	 *         added clauses come before the old.
+	 */
+	private static String[] extendWhereArgs(String[] old, String... add)
+	{
+		if (old == null || old.length == 0)
+			return add;
+
+		String[] ret = new String[add.length + old.length];
+		System.arraycopy(add, 0, ret, 0, add.length);
+		System.arraycopy(old, 0, ret, add.length, old.length);
+
+		return ret;
+	}
+
 	private int deleteSources(SQLiteDatabase db, Uri uri, URIPatternIds type,
 	  String selection, String[] selectionArgs)
 	{
@@ -954,13 +1736,8 @@ public class FiveProvider extends AbstractSyncProvider
 			break;
 
 		case SOURCE:
-			StringBuilder where = new StringBuilder();
-			where.append(Five.Sources._ID).append('=').append(uri.getLastPathSegment());
-
-			if (TextUtils.isEmpty(selection) == false)
-				where.append(" AND (").append(selection).append(')');
-
-			custom = where.toString();
+			custom = extendWhere(selection, ID_SELECTION);
+			selectionArgs = extendWhereArgs(selectionArgs, uri.getLastPathSegment());
 			break;
 
 		default:
@@ -969,8 +1746,7 @@ public class FiveProvider extends AbstractSyncProvider
 
 		count = db.delete(Five.Sources.SQL.TABLE, custom, selectionArgs);
 
-		if (isTemporary() == false)
-			getContext().getContentResolver().notifyChange(Five.Sources.CONTENT_URI, null);
+		notifyChange(Five.Sources.CONTENT_URI);
 
 		return count;
 	}
@@ -986,88 +1762,299 @@ public class FiveProvider extends AbstractSyncProvider
 	{
 		assertNoSelection(selection, selectionArgs);
 
-		long artistId = ContentUris.parseId(uri);
+		int count = deleteArtistsWhere(db, ID_SELECTION,
+				new String[] { String.valueOf(ContentUris.parseId(uri)) });
+		deleteOrphans(db);
 
-		int count = db.delete(Five.Music.Artists.SQL.TABLE,
-				Five.Music.Artists._ID + " = " + artistId, null);
+		return count;
+	}
 
-		try {
-			if (count > 0)
-				getArtistPhoto(artistId, false).delete();
-		} catch (FileNotFoundException e) {
-			if (Constants.DEBUG)
-				Log.d(TAG, "Unexpected sdcard error: " + e.toString());
-		}
+	private int deleteAlbum(SQLiteDatabase db, Uri uri, URIPatternIds type,
+			String selection, String[] selectionArgs)
+	{
+		assertNoSelection(selection, selectionArgs);
+
+		int count = deleteAlbumsWhere(db, ID_SELECTION,
+				new String[] { String.valueOf(ContentUris.parseId(uri)) });
+		deleteOrphans(db);
 
 		return count;
 	}
 
-	private int deleteAlbum(SQLiteDatabase db, Uri uri, URIPatternIds type,
+	private int deleteSong(SQLiteDatabase db, Uri uri, URIPatternIds type,
 			String selection, String[] selectionArgs)
 	{
 		assertNoSelection(selection, selectionArgs);
 
-		long albumId = ContentUris.parseId(uri);
+		int count = deleteSongsWhere(db, ID_SELECTION,
+				new String[] { String.valueOf(ContentUris.parseId(uri)) });
+		deleteOrphans(db);
 
-		int count = db.delete(Five.Music.Albums.SQL.TABLE,
-				Five.Music.Albums._ID + " = " + albumId, null);
+		return count;
+	}
+
+	private int deletePlaylist(SQLiteDatabase db, Uri uri, URIPatternIds type,
+			String selection, String[] selectionArgs)
+	{
+		assertNoSelection(selection, selectionArgs);
+
+		int count = db.delete(Five.Music.Playlists.SQL.TABLE, ID_SELECTION,
+				new String[] { String.valueOf(ContentUris.parseId(uri)) });
+		deleteOrphans(db);
+
+		return count;
+	}
+
+	private int deletePlaylistSong(SQLiteDatabase db, Uri uri, URIPatternIds type,
+			String selection, String[] selectionArgs)
+	{
+		assertNoSelection(selection, selectionArgs);
+		return db.delete(Five.Music.PlaylistSongs.SQL.TABLE, ID_SELECTION,
+				new String[] { String.valueOf(ContentUris.parseId(uri)) });
+	}
+
+	/**
+	 * Delete the artists matching <code>where</code> and their search
+	 * entries, and queue their photos for removal.
+	 */
+	private int deleteArtistsWhere(SQLiteDatabase db, String where, String[] whereArgs)
+	{
+		long[] ids = getIds(db, Five.Music.Artists.SQL.TABLE, where, whereArgs);
+		if (ids.length == 0)
+			return 0;
+
+		try {
+			for (long id: ids)
+				unlinkAfterCommit(getArtistPhoto(id, false));
+		} catch (FileNotFoundException e) {
+			if (Constants.DEBUG)
+				Log.d(TAG, "Unexpected sdcard error: " + e.toString());
+		}
+
+		unindexSearchNames(db, Five.Music.Search.KIND_ARTIST,
+				Five.Music.Artists.SQL.TABLE, where, whereArgs);
+
+		return db.delete(Five.Music.Artists.SQL.TABLE, where, whereArgs);
+	}
+
+	/**
+	 * Delete the albums matching <code>where</code> and their search
+	 * entries, and queue their artwork for removal.
+	 */
+	private int deleteAlbumsWhere(SQLiteDatabase db, String where, String[] whereArgs)
+	{
+		long[] ids = getIds(db, Five.Music.Albums.SQL.TABLE, where, whereArgs);
+		if (ids.length == 0)
+			return 0;
 
 		try {
-			if (count > 0)
+			for (long id: ids)
 			{
-				getAlbumArtwork(albumId, false).delete();
-				getLargeAlbumArtwork(albumId, false).delete();
+				unlinkAfterCommit(getAlbumArtwork(id, false));
+				unlinkAfterCommit(getLargeAlbumArtwork(id, false));
 			}
 		} catch (FileNotFoundException e) {
 			if (Constants.DEBUG)
 				Log.d(TAG, "Unexpected sdcard error: " + e.toString());
 		}
 
-		return count;
+		unindexSearchNames(db, Five.Music.Search.KIND_ALBUM,
+				Five.Music.Albums.SQL.TABLE, where, whereArgs);
+
+		return db.delete(Five.Music.Albums.SQL.TABLE, where, whereArgs);
 	}
 
-	private int deleteSong(SQLiteDatabase db, Uri uri, URIPatternIds type,
-			String selection, String[] selectionArgs)
+	/**
+	 * Delete the songs matching <code>where</code>, their search entries and
+	 * artist/album counts, and queue their cached files for removal.
+	 */
+	private int deleteSongsWhere(SQLiteDatabase db, String where, String[] whereArgs)
 	{
-		assertNoSelection(selection, selectionArgs);
+		Cursor c = db.query(Five.Music.Songs.SQL.TABLE,
+				new String[] { Five.Music.Songs.CACHED_PATH },
+				"(" + where + ") AND " + Five.Music.Songs.CACHED_PATH + " IS NOT NULL",
+				whereArgs, null, null, null);
 
-		long songId = ContentUris.parseId(uri);
-		String queryForSongId = Five.Music.Songs._ID + " = " + songId;
+		try {
+			while (c.moveToNext() == true)
+				unlinkAfterCommit(new File(c.getString(0)));
+		} finally {
+			c.close();
+		}
 
-		SongItem item = SongItem.getInstance(db.query(Five.Music.Songs.SQL.TABLE, null,
-				queryForSongId, null, null, null, null));
-		String cachePath = null;
-		if (item != null)
-		{
-			try {
-				cachePath = item.getCachePath();
-			} finally {
-				item.close();
-			}
+		unindexSearchNames(db, Five.Music.Search.KIND_SONG,
+				Five.Music.Songs.SQL.TABLE, where, whereArgs);
+		countArtistAlbums(db, where, whereArgs, -1);
+
+		return db.delete(Five.Music.Songs.SQL.TABLE, where, whereArgs);
+	}
+
+	/**
+	 * Delete albums, songs and playlist songs left referring to an artist,
+	 * album, song or playlist that no longer exists. Run after each
+	 * individual delete and at the end of a merge, but not after each batch
+	 * of merged deletions, as the server may delete a parent before moving
+	 * its children elsewhere.
+	 */
+	private void deleteOrphans(SQLiteDatabase db)
+	{
+		deleteAlbumsWhere(db, Five.Music.Albums.ARTIST_ID + " IS NOT NULL AND " +
+				Five.Music.Albums.ARTIST_ID + " NOT IN (SELECT " +
+				Five.Music.Artists._ID + " FROM " + Five.Music.Artists.SQL.TABLE + ")",
+				null);
+
+		deleteSongsWhere(db, Five.Music.Songs.ARTIST_ID + " NOT IN (SELECT " +
+				Five.Music.Artists._ID + " FROM " + Five.Music.Artists.SQL.TABLE + ") OR (" +
+				Five.Music.Songs.ALBUM_ID + " IS NOT NULL AND " +
+				Five.Music.Songs.ALBUM_ID + " NOT IN (SELECT " +
+				Five.Music.Albums._ID + " FROM " + Five.Music.Albums.SQL.TABLE + "))",
+				null);
+
+		db.delete(Five.Music.PlaylistSongs.SQL.TABLE,
+				Five.Music.PlaylistSongs.SONG_ID + " NOT IN (SELECT " +
+				Five.Music.Songs._ID + " FROM " + Five.Music.Songs.SQL.TABLE + ") OR " +
+				Five.Music.PlaylistSongs.PLAYLIST_ID + " NOT IN (SELECT " +
+				Five.Music.Playlists._ID + " FROM " + Five.Music.Playlists.SQL.TABLE + ")",
+				null);
+	}
+
+	private static long[] getIds(SQLiteDatabase db, String table, String where,
+			String[] whereArgs)
+	{
+		Cursor c = db.query(table, new String[] { BaseColumns._ID }, where,
+				whereArgs, null, null, null);
+
+		try {
+			long[] ids = new long[c.getCount()];
+			for (int i = 0; c.moveToNext() == true; i++)
+				ids[i] = c.getLong(0);
+			return ids;
+		} finally {
+			c.close();
 		}
+	}
+
+	/**
+	 * Remove the search entries of every row in <code>table</code> matching
+	 * <code>where</code>.
+	 */
+	private void unindexSearchNames(SQLiteDatabase db, int kind, String table,
+			String where, String[] whereArgs)
+	{
+		if (mSearchInserter == null)
+			return;
 
-		int count = db.delete(Five.Music.Songs.SQL.TABLE, queryForSongId, null);
+		db.execSQL("DELETE FROM " + Five.Music.Search.SQL.TABLE +
+				" WHERE rowid IN (SELECT " + Five.Music.Search.SQL.makeRowIdExpr(kind) +
+				" FROM " + table + " WHERE " + where + ")",
+				(whereArgs != null) ? whereArgs : new Object[0]);
+	}
 
-		if (count > 0)
-			new File(cachePath).delete();
+	private void unlinkAfterCommit(File file)
+	{
+		mPendingUnlinks.get().add(file);
+	}
 
-		return count;
+	/**
+	 * Notify observers of a change to <code>uri</code> once the transaction
+	 * making it commits. Changes are batched, see {@link ChangeNotifier}.
+	 */
+	public void notifyChange(Uri uri)
+	{
+		if (mNotifier != null)
+			mNotifier.notifyChange(uri, getDatabase().inTransaction());
 	}
 
-	private int deletePlaylist(SQLiteDatabase db, Uri uri, URIPatternIds type,
-			String selection, String[] selectionArgs)
+	@Override
+	protected void onTransactionEnd(boolean committed)
 	{
-		assertNoSelection(selection, selectionArgs);
-		return db.delete(Five.Music.Playlists.SQL.TABLE,
-				Five.Music.Playlists._ID + " = " + ContentUris.parseId(uri), null);
+		if (mNotifier != null)
+			mNotifier.onTransactionEnd(committed);
+
+		mQueryCache.onTransactionEnd(committed);
+
+		ArrayList<File> pending = mPendingUnlinks.get();
+		if (pending.isEmpty() == true)
+			return;
+
+		final File[] files = pending.toArray(new File[pending.size()]);
+		pending.clear();
+
+		if (committed == false)
+			return;
+
+		new Thread("FiveProvider unlink") {
+			public void run()
+			{
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+				for (File file: files)
+					file.delete();
+			}
+		}.start();
 	}
 
-	private int deletePlaylistSong(SQLiteDatabase db, Uri uri, URIPatternIds type,
-			String selection, String[] selectionArgs)
+	/**
+	 * Delete every record in the table at <code>uri</code> with one of the
+	 * given sync ids, in batches, for merging server deletions. Dependent
+	 * rows are left for the orphan sweep at the end of the merge (see
+	 * {@link #deleteOrphans}).
+	 *
+	 * @return Number of records deleted.
+	 */
+	public int deleteBySyncIds(Uri uri, long[] syncIds)
 	{
-		assertNoSelection(selection, selectionArgs);
-		return db.delete(Five.Music.PlaylistSongs.SQL.TABLE,
-				Five.Music.PlaylistSongs._ID + " = " + ContentUris.parseId(uri), null);
+		checkWritePermission();
+
+		SQLiteDatabase db = mHelper.getWritableDatabase();
+
+		URIPatternIds type = URIPatternIds.get(sUriMatcher.match(uri));
+
+		int count = 0;
+
+		/* Invalidates once the write commits, see QueryCache. */
+		try {
+			for (int start = 0; start < syncIds.length; start += DELETE_BATCH_SIZE)
+			{
+				StringBuilder where = new StringBuilder();
+				where.append(SyncableColumns._SYNC_ID).append(" IN (");
+
+				int end = Math.min(start + DELETE_BATCH_SIZE, syncIds.length);
+				for (int i = start; i < end; i++)
+				{
+					if (i > start)
+						where.append(',');
+					where.append(syncIds[i]);
+				}
+
+				where.append(')');
+
+				switch (type)
+				{
+				case ARTISTS:
+					count += deleteArtistsWhere(db, where.toString(), null);
+					break;
+				case ALBUMS:
+					count += deleteAlbumsWhere(db, where.toString(), null);
+					break;
+				case SONGS:
+					count += deleteSongsWhere(db, where.toString(), null);
+					break;
+				case PLAYLISTS:
+					count += db.delete(Five.Music.Playlists.SQL.TABLE, where.toString(), null);
+					break;
+				case PLAYLIST_SONGS:
+					count += db.delete(Five.Music.PlaylistSongs.SQL.TABLE, where.toString(), null);
+					break;
+				default:
+					throw new IllegalArgumentException("Cannot delete URI: " + uri);
+				}
+			}
+		} finally {
+			mQueryCache.invalidate(getTablesWritten(type), db.inTransaction());
+		}
+
+		return count;
 	}
 
 	@Override
@@ -1079,23 +2066,33 @@ public class FiveProvider extends AbstractSyncProvider
 
 		URIPatternIds type = URIPatternIds.get(sUriMatcher.match(uri));
 
-		switch (type)
-		{
-		case SOURCES:
-		case SOURCE:
-			return deleteSources(db, uri, type, selection, selectionArgs);
-		case ARTIST:
-			return deleteArtist(db, uri, type, selection, selectionArgs);
-		case ALBUM:
-			return deleteAlbum(db, uri, type, selection, selectionArgs);
-		case SONG:
-			return deleteSong(db, uri, type, selection, selectionArgs);
-		case PLAYLIST:
-			return deletePlaylist(db, uri, type, selection, selectionArgs);
-		case PLAYLIST_SONG:
-			return deletePlaylistSong(db, uri, type, selection, selectionArgs);
-		default:
-			throw new IllegalArgumentException("Cannot delete URI: " + uri);
+		/* Invalidates once the write commits, see QueryCache. */
+		try {
+			switch (type)
+			{
+			case SOURCES:
+			case SOURCE:
+				return deleteSources(db, uri, type, selection, selectionArgs);
+			case ARTIST:
+				return deleteArtist(db, uri, type, selection, selectionArgs);
+			case ALBUM:
+				return deleteAlbum(db, uri, type, selection, selectionArgs);
+			case SONG:
+				return deleteSong(db, uri, type, selection, selectionArgs);
+			case PLAYLIST:
+				return deletePlaylist(db, uri, type, selection, selectionArgs);
+			case PLAYLIST_SONG:
+				return deletePlaylistSong(db, uri, type, selection, selectionArgs);
+			default:
+				throw new IllegalArgumentException("Cannot delete URI: " + uri);
+			}
+		} finally {
+			/* Most deletes cascade through deleteOrphans. */
+			int tables = getTablesWritten(type);
+			if (tables != 0)
+				tables |= QueryCache.TABLE_ALBUMS | QueryCache.TABLE_SONGS |
+				  QueryCache.TABLE_PLAYLIST_SONGS;
+			mQueryCache.invalidate(tables, db.inTransaction());
 		}
 	}
 
@@ -1125,6 +2122,10 @@ public class FiveProvider extends AbstractSyncProvider
 			return Five.Music.Songs.CONTENT_TYPE;
 		case SONG:
 			return Five.Music.Songs.CONTENT_ITEM_TYPE;
+		case SEARCH:
+			return Five.Music.Search.CONTENT_TYPE;
+		case SEARCH_SUGGEST:
+			return SearchManager.SUGGEST_MIME_TYPE;
 		default:
 			throw new IllegalArgumentException("Unknown URI: " + uri);
 		}
@@ -1146,6 +2147,7 @@ public class FiveProvider extends AbstractSyncProvider
 		sUriMatcher.addURI(Five.AUTHORITY, "media/music/artists/#/songs", URIPatternIds.SONGS_BY_ARTIST.ordinal());
 		sUriMatcher.addURI(Five.AUTHORITY, "media/music/artists/#/photo", URIPatternIds.ARTIST_PHOTO.ordinal());
 		sUriMatcher.addURI(Five.AUTHORITY, "media/music/artists/deleted", URIPatternIds.DELETED_ARTIST.ordinal());
+		sUriMatcher.addURI(Five.AUTHORITY, "media/music/artists/sections", URIPatternIds.ARTIST_SECTIONS.ordinal());
 
 		sUriMatcher.addURI(Five.AUTHORITY, "media/music/albums", URIPatternIds.ALBUMS.ordinal());
 		sUriMatcher.addURI(Five.AUTHORITY, "media/music/albums/complete", URIPatternIds.ALBUMS_COMPLETE.ordinal());
@@ -1154,10 +2156,13 @@ public class FiveProvider extends AbstractSyncProvider
 		sUriMatcher.addURI(Five.AUTHORITY, "media/music/albums/#/artwork", URIPatternIds.ALBUM_ARTWORK.ordinal());
 		sUriMatcher.addURI(Five.AUTHORITY, "media/music/albums/#/artwork/big", URIPatternIds.ALBUM_ARTWORK_BIG.ordinal());
 		sUriMatcher.addURI(Five.AUTHORITY, "media/music/albums/deleted", URIPatternIds.DELETED_ALBUM.ordinal());
+		sUriMatcher.addURI(Five.AUTHORITY, "media/music/albums/sections", URIPatternIds.ALBUM_SECTIONS.ordinal());
+		sUriMatcher.addURI(Five.AUTHORITY, "media/music/albums/complete/sections", URIPatternIds.ALBUMS_COMPLETE_SECTIONS.ordinal());
 
 		sUriMatcher.addURI(Five.AUTHORITY, "media/music/songs", URIPatternIds.SONGS.ordinal());
 		sUriMatcher.addURI(Five.AUTHORITY, "media/music/songs/#", URIPatternIds.SONG.ordinal());
 		sUriMatcher.addURI(Five.AUTHORITY, "media/music/songs/deleted", URIPatternIds.DELETED_SONG.ordinal());
+		sUriMatcher.addURI(Five.AUTHORITY, "media/music/songs/sections", URIPatternIds.SONG_SECTIONS.ordinal());
 
 		sUriMatcher.addURI(Five.AUTHORITY, "media/music/playlists", URIPatternIds.PLAYLISTS.ordinal());
 		sUriMatcher.addURI(Five.AUTHORITY, "media/music/playlists/#", URIPatternIds.PLAYLIST.ordinal());
@@ -1170,6 +2175,11 @@ public class FiveProvider extends AbstractSyncProvider
 
 		sUriMatcher.addURI(Five.AUTHORITY, "media/music/adjust_counts", URIPatternIds.ADJUST_COUNTS.ordinal());
 
+		sUriMatcher.addURI(Five.AUTHORITY, "media/music/search", URIPatternIds.SEARCH.ordinal());
+		sUriMatcher.addURI(Five.AUTHORITY, "media/music/search/*", URIPatternIds.SEARCH.ordinal());
+		sUriMatcher.addURI(Five.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY, URIPatternIds.SEARCH_SUGGEST.ordinal());
+		sUriMatcher.addURI(Five.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY + "/*", URIPatternIds.SEARCH_SUGGEST.ordinal());
+
 		sArtistsMap = new HashMap<String, String>();
 		sArtistsMap.put(Five.Music.Artists.MBID, Five.Music.Artists.MBID);
 		sArtistsMap.put(Five.Music.Artists._ID, Five.Music.Artists._ID);
@@ -1183,6 +2193,8 @@ public class FiveProvider extends AbstractSyncProvider
 		sArtistsMap.put(Five.Music.Artists.PHOTO, Five.Music.Artists.PHOTO);
 		sArtistsMap.put(Five.Music.Artists.NUM_ALBUMS, Five.Music.Artists.NUM_ALBUMS);
 		sArtistsMap.put(Five.Music.Artists.NUM_SONGS, Five.Music.Artists.NUM_SONGS);
+		sArtistsMap.put(Five.Music.Artists.SORT_KEY, Five.Music.Artists.SORT_KEY);
+		sArtistsMap.put(Five.Music.Artists.SECTION, Five.Music.Artists.SECTION);
 
 		sAlbumsMap = new HashMap<String, String>();
 		sAlbumsMap.put(Five.Music.Albums._ID, "a." + Five.Music.Albums._ID + " AS " + Five.Music.Albums._ID);
@@ -1199,6 +2211,12 @@ public class FiveProvider extends AbstractSyncProvider
 		sAlbumsMap.put(Five.Music.Albums.FULL_NAME, "IFNULL(a." + Five.Music.Albums.NAME_PREFIX + ", \"\") || a." + Five.Music.Albums.NAME + " AS " + Five.Music.Albums.FULL_NAME);
 		sAlbumsMap.put(Five.Music.Albums.RELEASE_DATE, "a." + Five.Music.Albums.RELEASE_DATE + " AS " + Five.Music.Albums.RELEASE_DATE);
 		sAlbumsMap.put(Five.Music.Albums.NUM_SONGS, "a." + Five.Music.Albums.NUM_SONGS + " AS " + Five.Music.Albums.NUM_SONGS);
+		sAlbumsMap.put(Five.Music.Albums.SORT_KEY, "a." + Five.Music.Albums.SORT_KEY + " AS " + Five.Music.Albums.SORT_KEY);
+		sAlbumsMap.put(Five.Music.Albums.SECTION, "a." + Five.Music.Albums.SECTION + " AS " + Five.Music.Albums.SECTION);
+
+		/* Albums an artist appears on, counting only that artist's songs. */
+		sArtistAlbumsMap = new HashMap<String, String>(sAlbumsMap);
+		sArtistAlbumsMap.put(Five.Music.Albums.NUM_SONGS, "aa." + Five.Music.ArtistAlbums.NUM_SONGS + " AS " + Five.Music.Albums.NUM_SONGS);
 
 		sSongsMap = new HashMap<String, String>();
 		sSongsMap.put(Five.Music.Songs._ID, "s." + Five.Music.Songs._ID + " AS " + Five.Music.Songs._ID);
@@ -1215,5 +2233,7 @@ public class FiveProvider extends AbstractSyncProvider
 		sSongsMap.put(Five.Music.Songs.SET, "s." + Five.Music.Songs.SET + " AS " + Five.Music.Songs.SET);
 		sSongsMap.put(Five.Music.Songs.GENRE, "s." + Five.Music.Songs.GENRE + " AS " + Five.Music.Songs.GENRE);
 		sSongsMap.put(Five.Music.Songs.DISCOVERY_DATE, "s." + Five.Music.Songs.DISCOVERY_DATE + " AS " + Five.Music.Songs.DISCOVERY_DATE);
+		sSongsMap.put(Five.Music.Songs.SORT_KEY, "s." + Five.Music.Songs.SORT_KEY + " AS " + Five.Music.Songs.SORT_KEY);
+		sSongsMap.put(Five.Music.Songs.SECTION, "s." + Five.Music.Songs.SECTION + " AS " + Five.Music.Songs.SECTION);
 	}
 }
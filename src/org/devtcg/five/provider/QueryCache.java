@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.provider;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+/**
+ * Bounded cache of materialized query results, so that list screens
+ * returning to the foreground don't re-run the same joins when nothing has
+ * changed. Each entry records the tables it was read from, and is dropped
+ * by any write to one of them.
+ * <p>
+ * Writes invalidate once the transaction making them has committed, and
+ * each entry is only stored if no invalidation happened while its query
+ * ran. A result read before a write can therefore never be served after
+ * it. Queries made inside a transaction bypass the cache, as they may see
+ * its uncommitted writes.
+ * <p>
+ * Cached results are handed out as {@link CachedCursor}s, whose
+ * <code>requery()</code> runs the query again as a database cursor's
+ * would.
+ */
+class QueryCache
+{
+	public static final int TABLE_ARTISTS = 1 << 0;
+	public static final int TABLE_ALBUMS = 1 << 1;
+	public static final int TABLE_SONGS = 1 << 2;
+	public static final int TABLE_PLAYLISTS = 1 << 3;
+	public static final int TABLE_PLAYLIST_SONGS = 1 << 4;
+
+	private static final int MAX_ENTRIES = 24;
+
+	/* Larger results aren't worth holding on the heap. */
+	private static final int MAX_ROWS = 4000;
+
+	private final LinkedHashMap<String, Entry> mEntries =
+		new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true)
+	{
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+		{
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	private int mGeneration;
+
+	/* Tables written by the current thread's transaction, not yet
+	 * committed. */
+	private final ThreadLocal<int[]> mPending = new ThreadLocal<int[]>()
+	{
+		@Override
+		protected int[] initialValue()
+		{
+			return new int[1];
+		}
+	};
+
+	/**
+	 * Runs a cached query again, for {@link CachedCursor#requery}.
+	 */
+	public interface Requery
+	{
+		public Cursor query();
+	}
+
+	private static class Entry
+	{
+		public final int tables;
+		public final String[] columns;
+		public final Object[][] rows;
+
+		public Entry(int tables, String[] columns, Object[][] rows)
+		{
+			this.tables = tables;
+			this.columns = columns;
+			this.rows = rows;
+		}
+
+		public Cursor newCursor(Requery requery)
+		{
+			MatrixCursor cursor = new MatrixCursor(columns, rows.length);
+
+			for (Object[] row: rows)
+				cursor.addRow(row);
+
+			return new CachedCursor(cursor, requery);
+		}
+	}
+
+	public static String makeKey(Uri uri, String[] projection, String selection,
+			String[] selectionArgs, String sortOrder)
+	{
+		StringBuilder key = new StringBuilder();
+
+		key.append(uri).append('\0');
+		key.append(Arrays.toString(projection)).append('\0');
+		key.append(selection).append('\0');
+		key.append(Arrays.toString(selectionArgs)).append('\0');
+		key.append(sortOrder);
+
+		return key.toString();
+	}
+
+	/**
+	 * @return A new cursor over the cached result, or null.
+	 */
+	public synchronized Cursor get(String key, Requery requery)
+	{
+		Entry entry = mEntries.get(key);
+		return (entry != null) ? entry.newCursor(requery) : null;
+	}
+
+	/**
+	 * Sample before running a query that is to be stored with
+	 * {@link #put}.
+	 */
+	public synchronized int getGeneration()
+	{
+		return mGeneration;
+	}
+
+	/**
+	 * Read <code>cursor</code> in full and cache its rows, unless the result
+	 * is too large.
+	 *
+	 * @param generation
+	 *            Value of {@link #getGeneration()} before the query ran.
+	 * @return A new cursor over the materialized rows, in which case
+	 *         <code>cursor</code> has been closed; otherwise,
+	 *         <code>cursor</code>.
+	 */
+	public Cursor put(String key, int tables, int generation, Cursor cursor,
+			Requery requery)
+	{
+		int count = cursor.getCount();
+		if (count > MAX_ROWS)
+			return cursor;
+
+		String[] columns = cursor.getColumnNames();
+		Object[][] rows = new Object[count][];
+
+		for (int i = 0; cursor.moveToNext() == true; i++)
+		{
+			Object[] row = new Object[columns.length];
+
+			/* Types aren't available on this API level; MatrixCursor
+			 * converts strings back as needed. */
+			for (int j = 0; j < columns.length; j++)
+				row[j] = cursor.getString(j);
+
+			rows[i] = row;
+		}
+
+		cursor.close();
+
+		Entry entry = new Entry(tables, columns, rows);
+
+		synchronized(this) {
+			if (generation == mGeneration)
+				mEntries.put(key, entry);
+		}
+
+		return entry.newCursor(requery);
+	}
+
+	/**
+	 * Drop every entry read from any of <code>tables</code>.
+	 *
+	 * @param inTransaction
+	 *            True if the write is part of the calling thread's open
+	 *            transaction, in which case the entries are dropped by
+	 *            {@link #onTransactionEnd}.
+	 */
+	public void invalidate(int tables, boolean inTransaction)
+	{
+		if (inTransaction == true)
+			mPending.get()[0] |= tables;
+		else
+			invalidate(tables);
+	}
+
+	/**
+	 * Called after the calling thread's outermost transaction has ended.
+	 *
+	 * @param committed
+	 *            False if the transaction was rolled back, discarding its
+	 *            writes.
+	 */
+	public void onTransactionEnd(boolean committed)
+	{
+		int[] pending = mPending.get();
+
+		if (committed == true)
+			invalidate(pending[0]);
+
+		pending[0] = 0;
+	}
+
+	private synchronized void invalidate(int tables)
+	{
+		if (tables == 0)
+			return;
+
+		mGeneration++;
+
+		Iterator<Entry> i = mEntries.values().iterator();
+		while (i.hasNext() == true)
+		{
+			if ((i.next().tables & tables) != 0)
+				i.remove();
+		}
+	}
+
+	/**
+	 * Cursor over a cached result. Unlike a {@link MatrixCursor}, its
+	 * <code>requery()</code> goes back to the provider, so managed cursors
+	 * see writes made since the result was cached.
+	 */
+	static class CachedCursor extends AbstractCursor
+	{
+		private Cursor mCursor;
+		private final Requery mRequery;
+
+		public CachedCursor(Cursor cursor, Requery requery)
+		{
+			mCursor = cursor;
+			mRequery = requery;
+		}
+
+		@Override
+		public boolean requery()
+		{
+			Cursor cursor = mRequery.query();
+			if (cursor == null)
+				return false;
+
+			mCursor.close();
+			mCursor = cursor;
+			mPos = -1;
+
+			return super.requery();
+		}
+
+		@Override
+		public void close()
+		{
+			super.close();
+			mCursor.close();
+		}
+
+		@Override
+		public boolean onMove(int oldPosition, int newPosition)
+		{
+			return mCursor.moveToPosition(newPosition);
+		}
+
+		@Override
+		public int getCount()
+		{
+			return mCursor.getCount();
+		}
+
+		@Override
+		public String[] getColumnNames()
+		{
+			return mCursor.getColumnNames();
+		}
+
+		@Override
+		public String getString(int column)
+		{
+			return mCursor.getString(column);
+		}
+
+		@Override
+		public short getShort(int column)
+		{
+			return mCursor.getShort(column);
+		}
+
+		@Override
+		public int getInt(int column)
+		{
+			return mCursor.getInt(column);
+		}
+
+		@Override
+		public long getLong(int column)
+		{
+			return mCursor.getLong(column);
+		}
+
+		@Override
+		public float getFloat(int column)
+		{
+			return mCursor.getFloat(column);
+		}
+
+		@Override
+		public double getDouble(int column)
+		{
+			return mCursor.getDouble(column);
+		}
+
+		@Override
+		public byte[] getBlob(int column)
+		{
+			return mCursor.getBlob(column);
+		}
+
+		@Override
+		public boolean isNull(int column)
+		{
+			return mCursor.isNull(column);
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.provider;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Least recently used set of compiled statements for one database, so that
+ * the point lookups and updates run thousands of times during merges and
+ * playback are parsed and planned by SQLite only once.
+ * <p>
+ * A compiled statement can't be used by two threads at once, and locking
+ * around a shared one would deadlock against a writer that holds the
+ * database lock while waiting for it. Each thread therefore keeps its own.
+ */
+class StatementCache
+{
+	private static final int MAX_STATEMENTS = 16;
+
+	private final SQLiteDatabase mDb;
+
+	/* Every thread's statements, so that they can all be closed. */
+	private final ArrayList<Map<String, SQLiteStatement>> mAllStatements =
+		new ArrayList<Map<String, SQLiteStatement>>();
+
+	private final ThreadLocal<Map<String, SQLiteStatement>> mStatements =
+		new ThreadLocal<Map<String, SQLiteStatement>>()
+	{
+		@Override
+		protected Map<String, SQLiteStatement> initialValue()
+		{
+			Map<String, SQLiteStatement> statements =
+				new LinkedHashMap<String, SQLiteStatement>(MAX_STATEMENTS, 0.75f, true)
+			{
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest)
+				{
+					if (size() > MAX_STATEMENTS)
+					{
+						eldest.getValue().close();
+						return true;
+					}
+
+					return false;
+				}
+			};
+
+			synchronized(mAllStatements) {
+				mAllStatements.add(statements);
+			}
+
+			return statements;
+		}
+	};
+
+	public StatementCache(SQLiteDatabase db)
+	{
+		mDb = db;
+	}
+
+	/**
+	 * @return Compiled statement for <code>sql</code>, with no bindings,
+	 *         for use only by the calling thread.
+	 */
+	public SQLiteStatement get(String sql)
+	{
+		Map<String, SQLiteStatement> statements = mStatements.get();
+
+		SQLiteStatement statement = statements.get(sql);
+		if (statement == null)
+		{
+			statement = mDb.compileStatement(sql);
+			statements.put(sql, statement);
+		}
+		else
+			statement.clearBindings();
+
+		return statement;
+	}
+
+	public void close()
+	{
+		synchronized(mAllStatements) {
+			for (Map<String, SQLiteStatement> statements: mAllStatements)
+			{
+				for (SQLiteStatement statement: statements.values())
+					statement.close();
+
+				statements.clear();
+			}
+
+			mAllStatements.clear();
+		}
+	}
+}
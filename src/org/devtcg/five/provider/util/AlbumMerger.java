@@ -54,11 +54,9 @@ public final class AlbumMerger extends AbstractTableMerger
 	}
 
 	@Override
-	public void deleteRow(Context context, ContentProvider diffs, Cursor localCursor)
+	public int deleteRows(Context context, ContentProvider diffs, long[] syncIds)
 	{
-		mProvider.deleteInternal(ContentUris.withAppendedId(mTableUri,
-				localCursor.getLong(localCursor.getColumnIndexOrThrow(Five.Music.Artists._ID))),
-				null, null);
+		return mProvider.deleteBySyncIds(mTableUri, syncIds);
 	}
 
 	private long getArtistId(ContentProvider diffs, long artistSyncId)
@@ -68,9 +66,8 @@ public final class AlbumMerger extends AbstractTableMerger
 			return cache;
 		else
 		{
-			long artistId = DatabaseUtils.longForQuery(getDatabase(),
-				"SELECT _id FROM " + Five.Music.Artists.SQL.TABLE +
-				" WHERE _sync_id=" + artistSyncId, null);
+			long artistId = mProvider.getIdBySyncId(Five.Music.Artists.SQL.TABLE,
+				artistSyncId);
 			mArtistSyncIds.put(artistSyncId, artistId);
 			return artistId;
 		}
@@ -140,8 +137,8 @@ public final class AlbumMerger extends AbstractTableMerger
 	public void updateRow(Context context, ContentProvider diffs, long id, Cursor diffsCursor)
 	{
 		rowToContentValues(diffs, diffsCursor, mTmpValues);
-		mProvider.updateInternal(mTableUri, mTmpValues, Five.Music.Albums._ID + " = ?",
-			new String[] { String.valueOf(id) });
+		mProvider.updateInternal(ContentUris.withAppendedId(mTableUri, id),
+			mTmpValues, null, null);
 		mergeImageColumns(context, diffsCursor, id);
 	}
 }
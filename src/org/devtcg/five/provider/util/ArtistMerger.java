@@ -51,11 +51,9 @@ public final class ArtistMerger extends AbstractTableMerger
 	}
 
 	@Override
-	public void deleteRow(Context context, ContentProvider diffs, Cursor localCursor)
+	public int deleteRows(Context context, ContentProvider diffs, long[] syncIds)
 	{
-		mProvider.deleteInternal(ContentUris.withAppendedId(mTableUri,
-				localCursor.getLong(localCursor.getColumnIndexOrThrow(Five.Music.Artists._ID))),
-				null, null);
+		return mProvider.deleteBySyncIds(mTableUri, syncIds);
 	}
 
 	private static void rowToContentValues(Cursor cursor, ContentValues values)
@@ -103,8 +101,8 @@ public final class ArtistMerger extends AbstractTableMerger
 	public void updateRow(Context context, ContentProvider diffs, long id, Cursor diffsCursor)
 	{
 		rowToContentValues(diffsCursor, mTmpValues);
-		mProvider.updateInternal(mTableUri, mTmpValues, Five.Music.Artists._ID + " = ?",
-			new String[] { String.valueOf(id) });
+		mProvider.updateInternal(ContentUris.withAppendedId(mTableUri, id),
+			mTmpValues, null, null);
 		mergePhotoColumn(context, diffsCursor, id);
 	}
 }
@@ -47,11 +47,9 @@ public final class PlaylistMerger extends AbstractTableMerger
 	}
 
 	@Override
-	public void deleteRow(Context context, ContentProvider diffs, Cursor localCursor)
+	public int deleteRows(Context context, ContentProvider diffs, long[] syncIds)
 	{
-		mProvider.deleteInternal(ContentUris.withAppendedId(mTableUri,
-				localCursor.getLong(localCursor.getColumnIndexOrThrow(Five.Music.Artists._ID))),
-				null, null);
+		return mProvider.deleteBySyncIds(mTableUri, syncIds);
 	}
 
 	private static void rowToContentValues(Cursor cursor, ContentValues values)
@@ -74,7 +72,7 @@ public final class PlaylistMerger extends AbstractTableMerger
 	public void updateRow(Context context, ContentProvider diffs, long id, Cursor diffsCursor)
 	{
 		rowToContentValues(diffsCursor, mTmpValues);
-		mProvider.updateInternal(mTableUri, mTmpValues, Five.Music.Playlists._ID + " = ?",
-			new String[] { String.valueOf(id) });
+		mProvider.updateInternal(ContentUris.withAppendedId(mTableUri, id),
+			mTmpValues, null, null);
 	}
 }
@@ -21,8 +21,8 @@ import org.devtcg.five.provider.Five;
 import org.devtcg.five.provider.FiveProvider;
 
 import android.content.ContentProvider;
-import android.content.ContentResolver;
 import android.content.ContentUris;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
@@ -61,19 +61,18 @@ public final class PlaylistSongMerger extends AbstractTableMerger
 
 		Log.i(TAG, "Done!");
 
-		cr.notifyChange(Five.Music.Artists.CONTENT_URI, null);
-		cr.notifyChange(Five.Music.Albums.CONTENT_URI, null);
-		cr.notifyChange(Five.Music.Songs.CONTENT_URI, null);
-		cr.notifyChange(Five.Music.Playlists.CONTENT_URI, null);
-		cr.notifyChange(Five.Music.PlaylistSongs.CONTENT_URI, null);
+		/* Sent once the merge commits. */
+		mProvider.notifyChange(Five.Music.Artists.CONTENT_URI);
+		mProvider.notifyChange(Five.Music.Albums.CONTENT_URI);
+		mProvider.notifyChange(Five.Music.Songs.CONTENT_URI);
+		mProvider.notifyChange(Five.Music.Playlists.CONTENT_URI);
+		mProvider.notifyChange(Five.Music.PlaylistSongs.CONTENT_URI);
 	}
 
 	@Override
-	public void deleteRow(Context context, ContentProvider diffs, Cursor localCursor)
+	public int deleteRows(Context context, ContentProvider diffs, long[] syncIds)
 	{
-		mProvider.deleteInternal(ContentUris.withAppendedId(mTableUri,
-				localCursor.getLong(localCursor.getColumnIndexOrThrow(Five.Music.Artists._ID))),
-				null, null);
+		return mProvider.deleteBySyncIds(mTableUri, syncIds);
 	}
 
 	private long getPlaylistId(ContentProvider diffs, long playlistSyncId)
@@ -83,9 +82,8 @@ public final class PlaylistSongMerger extends AbstractTableMerger
 			return cache;
 		else
 		{
-			long playlistId = DatabaseUtils.longForQuery(getDatabase(),
-				"SELECT _id FROM " + Five.Music.Playlists.SQL.TABLE +
-				" WHERE _sync_id=" + playlistSyncId, null);
+			long playlistId = mProvider.getIdBySyncId(Five.Music.Playlists.SQL.TABLE,
+				playlistSyncId);
 			mPlaylistSyncIds.put(playlistSyncId, playlistId);
 			return playlistId;
 		}
@@ -98,9 +96,8 @@ public final class PlaylistSongMerger extends AbstractTableMerger
 			return cache;
 		else
 		{
-			long songId = DatabaseUtils.longForQuery(getDatabase(),
-				"SELECT _id FROM " + Five.Music.Songs.SQL.TABLE +
-				" WHERE _sync_id=" + songSyncId, null);
+			long songId = mProvider.getIdBySyncId(Five.Music.Songs.SQL.TABLE,
+				songSyncId);
 			mSongSyncIds.put(songSyncId, songId);
 			return songId;
 		}
@@ -131,7 +128,7 @@ public final class PlaylistSongMerger extends AbstractTableMerger
 	public void updateRow(Context context, ContentProvider diffs, long id, Cursor diffsCursor)
 	{
 		rowToContentValues(diffs, diffsCursor, mTmpValues);
-		mProvider.updateInternal(mTableUri, mTmpValues, Five.Music.PlaylistSongs._ID + " = ?",
-			new String[] { String.valueOf(id) });
+		mProvider.updateInternal(ContentUris.withAppendedId(mTableUri, id),
+			mTmpValues, null, null);
 	}
 }
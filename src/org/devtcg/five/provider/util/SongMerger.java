@@ -52,11 +52,9 @@ public final class SongMerger extends AbstractTableMerger
 	}
 
 	@Override
-	public void deleteRow(Context context, ContentProvider diffs, Cursor localCursor)
+	public int deleteRows(Context context, ContentProvider diffs, long[] syncIds)
 	{
-		mProvider.deleteInternal(ContentUris.withAppendedId(mTableUri,
-				localCursor.getLong(localCursor.getColumnIndexOrThrow(Five.Music.Artists._ID))),
-				null, null);
+		return mProvider.deleteBySyncIds(mTableUri, syncIds);
 	}
 
 	private long getArtistId(ContentProvider diffs, long artistSyncId)
@@ -66,9 +64,8 @@ public final class SongMerger extends AbstractTableMerger
 			return cache;
 		else
 		{
-			long artistId = DatabaseUtils.longForQuery(getDatabase(),
-				"SELECT _id FROM " + Five.Music.Artists.SQL.TABLE +
-				" WHERE _sync_id=" + artistSyncId, null);
+			long artistId = mProvider.getIdBySyncId(Five.Music.Artists.SQL.TABLE,
+				artistSyncId);
 			mArtistSyncIds.put(artistSyncId, artistId);
 			return artistId;
 		}
@@ -81,9 +78,8 @@ public final class SongMerger extends AbstractTableMerger
 			return cache;
 		else
 		{
-			long albumId = DatabaseUtils.longForQuery(getDatabase(),
-				"SELECT _id FROM " + Five.Music.Albums.SQL.TABLE +
-				" WHERE _sync_id=" + albumSyncId, null);
+			long albumId = mProvider.getIdBySyncId(Five.Music.Albums.SQL.TABLE,
+				albumSyncId);
 			mAlbumSyncIds.put(albumSyncId, albumId);
 			return albumId;
 		}
@@ -122,7 +118,7 @@ public final class SongMerger extends AbstractTableMerger
 	public void updateRow(Context context, ContentProvider diffs, long id, Cursor diffsCursor)
 	{
 		rowToContentValues(diffs, diffsCursor, mTmpValues);
-		mProvider.updateInternal(mTableUri, mTmpValues, Five.Music.Songs._ID + " = ?",
-			new String[] { String.valueOf(id) });
+		mProvider.updateInternal(ContentUris.withAppendedId(mTableUri, id),
+			mTmpValues, null, null);
 	}
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.provider.util;
+
+/**
+ * Computes the stored sort key and section of artist, album and song names,
+ * so that lists can be ordered and fast-scrolled with plain binary
+ * comparisons rather than collating at query time.
+ * <p>
+ * The sort key is the name upper-cased, with leading punctuation dropped and
+ * Latin-1 accents folded. The section is the key's first letter, or
+ * {@link #OTHER_SECTION} for anything not in A-Z. Names should have had
+ * their "The " prefix removed already (see FiveProvider).
+ */
+public final class SortKeys
+{
+	/** Section for names not starting with a letter A-Z. Sorts before "A". */
+	public static final String OTHER_SECTION = "#";
+
+	/* Unaccented equivalents of U+00C0 through U+00FF, after upper-casing. */
+	private static final String LATIN1_FOLD =
+		"AAAAAAACEEEEIIII" +
+		"DNOOOOO\u00D7OUUUUYTS" +
+		"AAAAAAACEEEEIIII" +
+		"DNOOOOO\u00F7OUUUUYTY";
+
+	private SortKeys() {}
+
+	public static String getSortKey(String name)
+	{
+		if (name == null)
+			return "";
+
+		int length = name.length();
+		StringBuilder key = new StringBuilder(length);
+
+		for (int i = 0; i < length; i++)
+		{
+			char c = Character.toUpperCase(name.charAt(i));
+
+			if (c >= '\u00C0' && c <= '\u00FF')
+				c = LATIN1_FOLD.charAt(c - '\u00C0');
+
+			/* Skip leading quotes, brackets and the like. */
+			if (key.length() == 0 && Character.isLetterOrDigit(c) == false)
+				continue;
+
+			key.append(c);
+		}
+
+		return key.toString();
+	}
+
+	public static String getSection(String sortKey)
+	{
+		if (sortKey.length() > 0)
+		{
+			char c = sortKey.charAt(0);
+			if (c >= 'A' && c <= 'Z')
+				return String.valueOf(c);
+		}
+
+		return OTHER_SECTION;
+	}
+}
@@ -0,0 +1,691 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.devtcg.five.util.streaming.DownloadSink;
+import org.devtcg.util.IOUtilities;
+
+import android.util.Log;
+
+/**
+ * Alternative cache layout which stores song content in fixed size blocks
+ * spread across a few large, preallocated store files. This avoids the per
+ * file overhead of FAT formatted storage cards and lets us evict the cold
+ * tail of long tracks independently of their heads, which are kept resident
+ * as long as possible for instant playback start.
+ * <p>
+ * A compact index maps each slot in the store files to a (song, block)
+ * pair. The index is held in memory and persisted whenever a download
+ * finishes writing, and before a slot freed since the last save is
+ * overwritten, so that the saved index never gives a slot to a song whose
+ * content is no longer in it.
+ */
+public class BlockCache
+{
+	private static final String TAG = "BlockCache";
+
+	public static final int BLOCK_SIZE = 256 * 1024;
+
+	/** 64MB per store file. */
+	private static final int SLOTS_PER_FILE = 256;
+
+	/**
+	 * Number of leading blocks of each song which are evicted only after all
+	 * tail blocks have been.  Heads protected by the {@link HeadCache} are
+	 * never evicted.
+	 */
+	private static final int HEAD_BLOCKS = 1;
+
+	private static final String STORE_FILE_PREFIX = "store.";
+	private static final String INDEX_FILE = "blocks.idx";
+	private static final String INDEX_FILE_TMP = INDEX_FILE + ".tmp";
+	private static final int INDEX_FILE_FORMAT = 1;
+
+	private final File mDir;
+	private final FileChannel[] mChannels;
+	private final int mSlotCount;
+
+	/* Per slot state; mSlotSong is -1 for free slots. */
+	private final long[] mSlotSong;
+	private final int[] mSlotBlock;
+	private final int[] mSlotFill;
+	private final long[] mSlotAccess;
+	private long mClock;
+
+	/* Slots freed since the index was last saved, which the saved index
+	 * still gives to their previous owner. */
+	private final boolean[] mSlotReleased;
+
+	private final HashMap<Long, Entry> mEntries = new HashMap<Long, Entry>();
+
+	/* Songs currently being written or read, whose blocks must not be
+	 * evicted.  Maps to the number of outstanding pins. */
+	private final HashMap<Long, Integer> mPinned = new HashMap<Long, Integer>();
+
+	private HeadCache mHeadCache;
+	private CacheStats mStats;
+
+	/**
+	 * Open (creating if necessary) a block store in the given directory.
+	 *
+	 * @param maxFiles
+	 *            Maximum number of store files to use.
+	 * @param availableBytes
+	 *            Bytes we are allowed to consume on the storage card for any
+	 *            store files which do not already exist.
+	 */
+	public static BlockCache open(File dir, int maxFiles, long availableBytes)
+		throws IOException
+	{
+		if (dir.exists() == false && dir.mkdirs() == false)
+			throw new IOException("Could not create block cache directory: " + dir);
+
+		long fileSize = (long)SLOTS_PER_FILE * BLOCK_SIZE;
+
+		int numFiles = 0;
+		while (numFiles < maxFiles)
+		{
+			File store = new File(dir, STORE_FILE_PREFIX + numFiles);
+
+			if (store.exists() == false)
+			{
+				if (availableBytes < fileSize)
+					break;
+
+				availableBytes -= fileSize;
+			}
+
+			numFiles++;
+		}
+
+		if (numFiles == 0)
+			throw new IOException("Insufficient space for block cache");
+
+		return new BlockCache(dir, numFiles);
+	}
+
+	private BlockCache(File dir, int numFiles)
+		throws IOException
+	{
+		mDir = dir;
+		mChannels = new FileChannel[numFiles];
+		mSlotCount = numFiles * SLOTS_PER_FILE;
+
+		mSlotSong = new long[mSlotCount];
+		mSlotBlock = new int[mSlotCount];
+		mSlotFill = new int[mSlotCount];
+		mSlotAccess = new long[mSlotCount];
+		mSlotReleased = new boolean[mSlotCount];
+
+		try {
+			for (int i = 0; i < numFiles; i++)
+			{
+				RandomAccessFile file = new RandomAccessFile(new File(dir,
+						STORE_FILE_PREFIX + i), "rw");
+
+				/* Preallocate so that the store doesn't fragment as it fills. */
+				long fileSize = (long)SLOTS_PER_FILE * BLOCK_SIZE;
+				if (file.length() != fileSize)
+					file.setLength(fileSize);
+
+				mChannels[i] = file.getChannel();
+			}
+		} catch (IOException e) {
+			closeChannels();
+			throw e;
+		}
+
+		clearSlots();
+
+		try {
+			loadIndex();
+		} catch (IOException e) {
+			Log.w(TAG, "Block cache index corrupt, starting empty", e);
+			clearSlots();
+		}
+	}
+
+	private void clearSlots()
+	{
+		mEntries.clear();
+		mClock = 0;
+
+		for (int i = 0; i < mSlotCount; i++)
+		{
+			mSlotSong[i] = -1;
+			mSlotFill[i] = 0;
+		}
+	}
+
+	private void closeChannels()
+	{
+		for (FileChannel channel: mChannels)
+		{
+			if (channel != null)
+				IOUtilities.close(channel);
+		}
+	}
+
+	public synchronized void close()
+	{
+		saveIndexQuietly();
+		closeChannels();
+	}
+
+	public synchronized void setHeadCache(HeadCache headCache)
+	{
+		mHeadCache = headCache;
+	}
+
+	public synchronized void setStats(CacheStats stats)
+	{
+		mStats = stats;
+	}
+
+	private Entry getEntry(long songId, boolean create)
+	{
+		Entry entry = mEntries.get(songId);
+		if (entry == null && create == true)
+		{
+			entry = new Entry();
+			mEntries.put(songId, entry);
+		}
+		return entry;
+	}
+
+	public synchronized void setContentLength(long songId, long length)
+	{
+		getEntry(songId, true).length = length;
+	}
+
+	/**
+	 * @return Total content length of the song, or -1 if not known.
+	 */
+	public synchronized long getContentLength(long songId)
+	{
+		Entry entry = mEntries.get(songId);
+		return (entry != null) ? entry.length : -1;
+	}
+
+	/**
+	 * @return Number of bytes available contiguously from the start of the
+	 *         song.
+	 */
+	public synchronized long getContiguousLength(long songId)
+	{
+		Entry entry = mEntries.get(songId);
+		if (entry == null)
+			return 0;
+
+		long length = 0;
+
+		for (int i = 0; i < entry.slots.length; i++)
+		{
+			int slot = entry.slots[i];
+			if (slot < 0)
+				break;
+
+			length += mSlotFill[slot];
+
+			if (mSlotFill[slot] < BLOCK_SIZE)
+				break;
+		}
+
+		return length;
+	}
+
+	public synchronized boolean isComplete(long songId)
+	{
+		long length = getContentLength(songId);
+		return length >= 0 && getContiguousLength(songId) >= length;
+	}
+
+	private static long getSlotOffset(int slot)
+	{
+		return (long)(slot % SLOTS_PER_FILE) * BLOCK_SIZE;
+	}
+
+	private FileChannel getSlotChannel(int slot)
+	{
+		return mChannels[slot / SLOTS_PER_FILE];
+	}
+
+	/**
+	 * Write song content. Writes are expected to be sequential; content
+	 * written beyond the filled portion of a block is assumed to follow it
+	 * directly.
+	 */
+	public synchronized void write(long songId, long offset, byte[] b, int off, int len)
+		throws IOException
+	{
+		Entry entry = getEntry(songId, true);
+
+		while (len > 0)
+		{
+			int blockNo = (int)(offset / BLOCK_SIZE);
+			int inBlock = (int)(offset % BLOCK_SIZE);
+
+			int slot = entry.getSlot(blockNo);
+			if (slot < 0)
+			{
+				slot = allocateSlot(songId);
+				mSlotSong[slot] = songId;
+				mSlotBlock[slot] = blockNo;
+				mSlotFill[slot] = 0;
+				entry.setSlot(blockNo, slot);
+
+				/* Record the new owner before overwriting the previous one's
+				 * content, in case we are killed before the next save. */
+				if (mSlotReleased[slot] == true)
+					saveIndex();
+			}
+
+			int n = Math.min(len, BLOCK_SIZE - inBlock);
+
+			ByteBuffer buf = ByteBuffer.wrap(b, off, n);
+			long pos = getSlotOffset(slot) + inBlock;
+			FileChannel channel = getSlotChannel(slot);
+			while (buf.hasRemaining() == true)
+				pos += channel.write(buf, pos);
+
+			mSlotFill[slot] = Math.max(mSlotFill[slot], inBlock + n);
+			mSlotAccess[slot] = ++mClock;
+
+			offset += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Read song content.
+	 *
+	 * @return Number of bytes read, 0 if the content at this offset is not
+	 *         yet available, or -1 if the offset is beyond the end of the
+	 *         song.
+	 */
+	public synchronized int read(long songId, long offset, byte[] b, int off, int len)
+		throws IOException
+	{
+		Entry entry = mEntries.get(songId);
+		if (entry == null)
+			return 0;
+
+		if (entry.length >= 0 && offset >= entry.length)
+			return -1;
+
+		int blockNo = (int)(offset / BLOCK_SIZE);
+		int inBlock = (int)(offset % BLOCK_SIZE);
+
+		int slot = entry.getSlot(blockNo);
+		if (slot < 0 || inBlock >= mSlotFill[slot])
+			return 0;
+
+		int n = Math.min(len, mSlotFill[slot] - inBlock);
+
+		int read = getSlotChannel(slot).read(ByteBuffer.wrap(b, off, n),
+				getSlotOffset(slot) + inBlock);
+
+		mSlotAccess[slot] = ++mClock;
+
+		return Math.max(read, 0);
+	}
+
+	/**
+	 * Find a slot for a new block, evicting if necessary. Tail blocks are
+	 * evicted in least recently used order before any head blocks are
+	 * considered.
+	 */
+	private int allocateSlot(long songId)
+		throws IOException
+	{
+		int victim = -1;
+		boolean victimIsHead = true;
+
+		for (int i = 0; i < mSlotCount; i++)
+		{
+			long owner = mSlotSong[i];
+
+			if (owner == -1)
+				return i;
+
+			if (owner == songId || mPinned.containsKey(owner) == true)
+				continue;
+
+			long blockStart = (long)mSlotBlock[i] * BLOCK_SIZE;
+			if (mHeadCache != null &&
+			    blockStart < mHeadCache.getProtectedHeadSize(owner))
+				continue;
+
+			boolean isHead = mSlotBlock[i] < HEAD_BLOCKS;
+
+			if (victim == -1 ||
+			    (victimIsHead == true && isHead == false) ||
+			    (victimIsHead == isHead && mSlotAccess[i] < mSlotAccess[victim]))
+			{
+				victim = i;
+				victimIsHead = isHead;
+			}
+		}
+
+		if (victim == -1)
+			throw new IOException("Block cache exhausted");
+
+		if (mStats != null)
+			mStats.recordEviction(mSlotFill[victim]);
+
+		evictSlot(victim);
+		return victim;
+	}
+
+	private void evictSlot(int slot)
+	{
+		long owner = mSlotSong[slot];
+
+		Entry entry = mEntries.get(owner);
+		if (entry != null)
+		{
+			entry.setSlot(mSlotBlock[slot], -1);
+
+			if (entry.isEmpty() == true)
+				mEntries.remove(owner);
+		}
+
+		mSlotSong[slot] = -1;
+		mSlotFill[slot] = 0;
+		mSlotReleased[slot] = true;
+	}
+
+	/**
+	 * Discard all content for a song.
+	 */
+	public synchronized void evict(long songId)
+	{
+		Entry entry = mEntries.remove(songId);
+		if (entry == null)
+			return;
+
+		for (int slot: entry.slots)
+		{
+			if (slot >= 0)
+			{
+				mSlotSong[slot] = -1;
+				mSlotFill[slot] = 0;
+				mSlotReleased[slot] = true;
+			}
+		}
+	}
+
+	public synchronized void wipe()
+	{
+		for (int i = 0; i < mSlotCount; i++)
+		{
+			if (mSlotSong[i] != -1)
+				mSlotReleased[i] = true;
+		}
+
+		clearSlots();
+		saveIndexQuietly();
+	}
+
+	/**
+	 * Protect a song's blocks from eviction until a matching call to
+	 * {@link #unpin}.
+	 */
+	public synchronized void pin(long songId)
+	{
+		Integer count = mPinned.get(songId);
+		mPinned.put(songId, (count == null) ? 1 : count + 1);
+	}
+
+	public synchronized void unpin(long songId)
+	{
+		Integer count = mPinned.get(songId);
+		if (count == null)
+			return;
+
+		if (count <= 1)
+			mPinned.remove(songId);
+		else
+			mPinned.put(songId, count - 1);
+	}
+
+	/**
+	 * @return A sink which writes downloaded content for the given song into
+	 *         this cache.
+	 */
+	public DownloadSink newSink(long songId)
+	{
+		return new BlockSink(songId);
+	}
+
+	private void loadIndex()
+		throws IOException
+	{
+		FileInputStream inf;
+
+		try {
+			inf = new FileInputStream(new File(mDir, INDEX_FILE));
+		} catch (FileNotFoundException e) {
+			return;
+		}
+
+		DataInputStream in = null;
+
+		try {
+			in = new DataInputStream(new BufferedInputStream(inf, 4096));
+
+			if (in.readInt() != INDEX_FILE_FORMAT)
+				return;
+
+			/* Store files were added or removed; the slot mapping no longer
+			 * applies. */
+			if (in.readInt() != mSlotCount)
+				return;
+
+			mClock = in.readLong();
+
+			int numEntries = in.readInt();
+			for (int i = 0; i < numEntries; i++)
+			{
+				long songId = in.readLong();
+				getEntry(songId, true).length = in.readLong();
+			}
+
+			for (int i = 0; i < mSlotCount; i++)
+			{
+				long songId = in.readLong();
+				if (songId == -1)
+					continue;
+
+				mSlotSong[i] = songId;
+				mSlotBlock[i] = in.readInt();
+				mSlotFill[i] = in.readInt();
+				mSlotAccess[i] = in.readLong();
+
+				getEntry(songId, true).setSlot(mSlotBlock[i], i);
+			}
+		} finally {
+			if (in != null)
+				in.close();
+			else
+				inf.close();
+		}
+	}
+
+	public synchronized void saveIndex()
+		throws IOException
+	{
+		File tmp = new File(mDir, INDEX_FILE_TMP);
+
+		FileOutputStream outf = new FileOutputStream(tmp);
+		DataOutputStream out = null;
+
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(outf, 4096));
+
+			out.writeInt(INDEX_FILE_FORMAT);
+			out.writeInt(mSlotCount);
+			out.writeLong(mClock);
+
+			out.writeInt(mEntries.size());
+			for (Map.Entry<Long, Entry> entry: mEntries.entrySet())
+			{
+				out.writeLong(entry.getKey());
+				out.writeLong(entry.getValue().length);
+			}
+
+			for (int i = 0; i < mSlotCount; i++)
+			{
+				out.writeLong(mSlotSong[i]);
+				if (mSlotSong[i] == -1)
+					continue;
+
+				out.writeInt(mSlotBlock[i]);
+				out.writeInt(mSlotFill[i]);
+				out.writeLong(mSlotAccess[i]);
+			}
+		} finally {
+			if (out != null)
+				out.close();
+			else
+				outf.close();
+		}
+
+		if (tmp.renameTo(new File(mDir, INDEX_FILE)) == false)
+			throw new IOException("Unable to replace " + INDEX_FILE);
+
+		for (int i = 0; i < mSlotCount; i++)
+			mSlotReleased[i] = false;
+	}
+
+	public void saveIndexQuietly()
+	{
+		try {
+			saveIndex();
+		} catch (IOException e) {
+			Log.e(TAG, "Couldn't save block cache index!", e);
+		}
+	}
+
+	/**
+	 * Block slots owned by a single song, indexed by block number.
+	 */
+	private static class Entry
+	{
+		long length = -1;
+		int[] slots = new int[0];
+
+		public int getSlot(int blockNo)
+		{
+			if (blockNo >= slots.length)
+				return -1;
+
+			return slots[blockNo];
+		}
+
+		public void setSlot(int blockNo, int slot)
+		{
+			if (blockNo >= slots.length)
+			{
+				if (slot < 0)
+					return;
+
+				int[] grown = new int[Math.max(blockNo + 1, slots.length * 2)];
+				System.arraycopy(slots, 0, grown, 0, slots.length);
+				for (int i = slots.length; i < grown.length; i++)
+					grown[i] = -1;
+				slots = grown;
+			}
+
+			slots[blockNo] = slot;
+		}
+
+		public boolean isEmpty()
+		{
+			for (int slot: slots)
+			{
+				if (slot >= 0)
+					return false;
+			}
+
+			return true;
+		}
+	}
+
+	private class BlockSink implements DownloadSink
+	{
+		private final long mSongId;
+		private long mOffset;
+
+		public BlockSink(long songId)
+		{
+			mSongId = songId;
+		}
+
+		public void open(long resumeFrom, long expectedLength) throws IOException
+		{
+			pin(mSongId);
+			mOffset = resumeFrom;
+
+			if (expectedLength > 0)
+				setContentLength(mSongId, expectedLength);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			BlockCache.this.write(mSongId, mOffset, b, off, len);
+			mOffset += len;
+		}
+
+		public void flush() throws IOException {}
+
+		public void close() throws IOException
+		{
+			unpin(mSongId);
+			saveIndex();
+		}
+
+		public void delete()
+		{
+			evict(mSongId);
+		}
+
+		public File getFile()
+		{
+			return null;
+		}
+
+		public long getAvailableLength()
+		{
+			return getContiguousLength(mSongId);
+		}
+	}
+}
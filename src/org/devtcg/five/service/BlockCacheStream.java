@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import org.devtcg.five.util.streaming.StreamMediaPlayer.RandomAccessStream;
+
+/**
+ * Access stream reading a song from the {@link BlockCache}. Like
+ * {@link org.devtcg.five.util.streaming.TailStream}, reads block while an
+ * active download catches up.
+ */
+public class BlockCacheStream extends RandomAccessStream
+{
+	private final BlockCache mCache;
+	private final long mSongId;
+	private final String mMimeType;
+	private final long mLength;
+
+	private long mPosition;
+	private volatile boolean mOpened;
+
+	public BlockCacheStream(BlockCache cache, long songId, String mimeType, long length)
+	{
+		if (length <= 0)
+			throw new IllegalArgumentException("Length must be positive");
+
+		mCache = cache;
+		mSongId = songId;
+		mMimeType = mimeType;
+		mLength = length;
+	}
+
+	public RandomAccessStream newInstance()
+	{
+		return new BlockCacheStream(mCache, mSongId, mMimeType, mLength);
+	}
+
+	@Override
+	public void open() throws IOException
+	{
+		mCache.pin(mSongId);
+		mOpened = true;
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (mOpened == true)
+		{
+			mCache.unpin(mSongId);
+			mOpened = false;
+		}
+	}
+
+	@Override
+	public void abort()
+	{
+		try {
+			close();
+		} catch (IOException e) {}
+	}
+
+	@Override
+	public String getContentType()
+	{
+		return mMimeType;
+	}
+
+	@Override
+	public void seek(long pos) throws IOException
+	{
+		mPosition = pos;
+	}
+
+	@Override
+	public long size()
+	{
+		return mLength;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		throw new RuntimeException("Don't invoke this method.");
+	}
+
+	@Override
+	public int read(byte[] b, int offs, int len)
+	  throws IOException
+	{
+		long remaining = mLength - mPosition;
+
+		if (remaining <= 0)
+			return -1;
+
+		if (len > remaining)
+			len = (int)remaining;
+
+		int n = mCache.read(mSongId, mPosition, b, offs, len);
+
+		if (n > 0)
+		{
+			mPosition += n;
+			return n;
+		}
+		else if (n < 0)
+			return -1;
+		else
+		{
+			/* Not yet downloaded, wait and let the caller try again. */
+			try {
+				Thread.sleep(1000);
+			} catch (InterruptedException e) {
+				throw new EOFException("Aborted stream");
+			}
+
+			if (mOpened == false)
+				throw new EOFException("Aborted stream");
+
+			return 0;
+		}
+	}
+}
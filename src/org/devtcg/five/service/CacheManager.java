@@ -16,7 +16,9 @@ package org.devtcg.five.service;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 
+import org.devtcg.five.Constants;
 import org.devtcg.five.provider.Five;
 import org.devtcg.five.util.FileUtils;
 
@@ -28,6 +30,8 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Environment;
 import android.os.StatFs;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 /**
@@ -48,6 +52,24 @@ public class CacheManager
 	 * and flexible in the future. */
 	private static final int POLICY_LEAVE_FREE = 100 * 1024 * 1024;
 
+	/**
+	 * Preference key enabling the block store layout (see {@link BlockCache})
+	 * instead of one file per song.
+	 */
+	public static final String KEY_BLOCK_STORE = "cache_block_store";
+
+	private static final int BLOCK_STORE_MAX_FILES = 4;
+
+	private BlockCache mBlockCache;
+
+	/* Set once the store files have been deleted after the block store was
+	 * turned off, so that it isn't checked for on every song. */
+	private boolean mBlockStoreDeleted;
+
+	private final HeadCache mHeadCache = new HeadCache();
+
+	private final CacheStats mStats = new CacheStats();
+
 	private CacheManager() {}
 
 	public synchronized static CacheManager getInstance()
@@ -58,10 +80,12 @@ public class CacheManager
 		return INSTANCE;
 	}
 
-	private String getContentWhereClause(long sourceId, long contentId)
+	private static final String CONTENT_WHERE_CLAUSE =
+		Five.Music.Songs.SOURCE_ID + " = ? AND " + Five.Music.Songs._SYNC_ID + " = ?";
+
+	private static String[] getContentWhereArgs(long sourceId, long contentId)
 	{
-		return Five.Music.Songs.SOURCE_ID + " = " + sourceId + " AND " +
-			Five.Music.Songs._SYNC_ID + " = " + contentId;
+		return new String[] { String.valueOf(sourceId), String.valueOf(contentId) };
 	}
 
 	private Cursor getContentCursor(Context context, long sourceId, long contentId)
@@ -71,20 +95,21 @@ public class CacheManager
 		    Five.Music.Songs.CACHED_PATH, Five.Music.Songs.MIME_TYPE };
 		return context.getContentResolver()
 		  .query(Five.Music.Songs.CONTENT_URI, fields,
-			  getContentWhereClause(sourceId, contentId), null, null);
+			  CONTENT_WHERE_CLAUSE, getContentWhereArgs(sourceId, contentId), null);
 	}
 
 	private int updateContentRow(Context context, long sourceId, long contentId,
 	  ContentValues values)
 	{
 		return context.getContentResolver().update(Five.Music.Songs.CONTENT_URI, values,
-			getContentWhereClause(sourceId, contentId), null);
+			CONTENT_WHERE_CLAUSE, getContentWhereArgs(sourceId, contentId));
 	}
 
 	private boolean deleteSufficientSpace(Context context, File sdcard, long size)
 	{
 		ContentResolver cr = null;
 		Cursor c = null;
+		long huntStart = 0;
 
 OUTER:
 		while (true)
@@ -95,7 +120,12 @@ OUTER:
 			long necessary = POLICY_LEAVE_FREE - (freeBytes + size);
 
 			if (necessary <= 0)
+			{
+				if (cr != null)
+					mStats.recordEvictionLatency(SystemClock.uptimeMillis() - huntStart);
+
 				return true;
+			}
 
 			Log.i(TAG, "Hunting for cache entries to delete (need " + necessary + " more bytes)...");
 
@@ -103,6 +133,7 @@ OUTER:
 			 * being enough space we don't have to perform a query. */
 			if (cr == null)
 			{
+				huntStart = SystemClock.uptimeMillis();
 				cr = context.getContentResolver();
 				c = cr.query(Five.Music.Songs.CONTENT_URI,
 				  new String[] { Five.Music.Songs._ID,
@@ -121,6 +152,21 @@ OUTER:
 
 				File f = new File(c.getString(1));
 
+				/* Songs likely to be played soon are only trimmed back to
+				 * their head, which must stay resident. */
+				long headSize = mHeadCache.getProtectedHeadSize(c.getLong(0));
+				if (headSize > 0)
+				{
+					long cachedSize = f.length();
+					if (cachedSize > headSize && truncate(f, headSize) == true)
+					{
+						necessary -= cachedSize - headSize;
+						mStats.recordEviction(cachedSize - headSize);
+					}
+
+					continue;
+				}
+
 				if (f.exists() == true)
 				{
 					/* The file's size might differ from the databases as we
@@ -128,7 +174,10 @@ OUTER:
 					long cachedSize = f.length();
 
 					if (f.delete() == true)
+					{
 						necessary -= cachedSize;
+						mStats.recordEviction(cachedSize);
+					}
 				}
 
 				/* Eliminate this entry from the cache. */
@@ -143,11 +192,46 @@ OUTER:
 		}
 
 		if (c != null)
+		{
 			c.close();
+			mStats.recordEvictionLatency(SystemClock.uptimeMillis() - huntStart);
+		}
 
 		return false;
 	}
 
+	private static boolean truncate(File f, long length)
+	{
+		try {
+			RandomAccessFile file = new RandomAccessFile(f, "rw");
+			try {
+				file.setLength(length);
+			} finally {
+				file.close();
+			}
+			return true;
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to truncate " + f, e);
+			return false;
+		}
+	}
+
+	public HeadCache getHeadCache()
+	{
+		return mHeadCache;
+	}
+
+	public CacheStats getStats()
+	{
+		return mStats;
+	}
+
+	private CacheAllocationException allocationFailure(CacheAllocationException e)
+	{
+		mStats.recordAllocationFailure(e);
+		return e;
+	}
+
 	private String getExtensionFromMimeType(String mime)
 	{
 		if (mime.equals("audio/mpeg") == true)
@@ -162,6 +246,70 @@ OUTER:
 		throw new IllegalArgumentException("Unknown mime type " + mime);
 	}
 
+	/**
+	 * Access the block store, opening it on first use.
+	 *
+	 * @return The block store if enabled by the user; otherwise, null, in
+	 *         which case songs are cached as individual files via
+	 *         {@link #requestStorage}.
+	 */
+	public synchronized BlockCache getBlockCache(Context context)
+		throws CacheAllocationException
+	{
+		boolean enabled = PreferenceManager.getDefaultSharedPreferences(context)
+				.getBoolean(KEY_BLOCK_STORE, false);
+
+		File dir = new File(Constants.sCacheDir, "blocks");
+
+		if (enabled == false)
+		{
+			/* Turned off; give back the space held by the store files. */
+			if (mBlockStoreDeleted == false)
+			{
+				if (mBlockCache != null)
+				{
+					mBlockCache.close();
+					mBlockCache = null;
+				}
+
+				try {
+					FileUtils.deleteFileOrDirectory(dir);
+					mBlockStoreDeleted = true;
+				} catch (IOException e) {
+					Log.e(TAG, "Unable to delete block store", e);
+				}
+			}
+
+			return null;
+		}
+
+		mBlockStoreDeleted = false;
+
+		if (mBlockCache == null)
+		{
+			String state = Environment.getExternalStorageState();
+
+			if (state.equals(Environment.MEDIA_MOUNTED) == false)
+				throw allocationFailure(new NoStorageCardException());
+
+			File sdcard = Environment.getExternalStorageDirectory();
+			StatFs fs = new StatFs(sdcard.getAbsolutePath());
+			long freeBytes = (long)fs.getAvailableBlocks() * fs.getBlockSize();
+
+			try {
+				mBlockCache = BlockCache.open(dir, BLOCK_STORE_MAX_FILES,
+						freeBytes - POLICY_LEAVE_FREE);
+				mBlockCache.setHeadCache(mHeadCache);
+				mBlockCache.setStats(mStats);
+			} catch (IOException e) {
+				Log.e(TAG, "Unable to open block store", e);
+				throw allocationFailure(new OutOfSpaceException());
+			}
+		}
+
+		return mBlockCache;
+	}
+
 	/**
 	 * Attempt to carve out sufficient storage from the storage card.
 	 *
@@ -178,15 +326,15 @@ OUTER:
 		String state = Environment.getExternalStorageState();
 
 		if (state.equals(Environment.MEDIA_MOUNTED) == false)
-			throw new NoStorageCardException();
+			throw allocationFailure(new NoStorageCardException());
 
 		File sdcard = Environment.getExternalStorageDirectory();
 
 		if (sdcard.exists() == false)
-			throw new NoStorageCardException();
+			throw allocationFailure(new NoStorageCardException());
 
 		if (deleteSufficientSpace(context, sdcard, size) == false)
-			throw new OutOfSpaceException();
+			throw allocationFailure(new OutOfSpaceException());
 
 		String basePath = sdcard.getAbsolutePath() + "/five/cache/" + sourceId;
 		File basePathFile = new File(basePath);
@@ -216,6 +364,20 @@ OUTER:
 	 */
 	public String requestStorage(Context context, long sourceId, long contentId)
 	  throws CacheAllocationException
+	{
+		return requestStorage(context, sourceId, contentId, -1);
+	}
+
+	/**
+	 * Request storage for only the first <code>length</code> bytes of a
+	 * content item, as for a head fetch (see {@link HeadCache}).
+	 *
+	 * @param length
+	 *   Number of bytes to reserve, or -1 for the whole item.
+	 */
+	public String requestStorage(Context context, long sourceId, long contentId,
+	  long length)
+	  throws CacheAllocationException
 	{
 		Cursor c = getContentCursor(context, sourceId, contentId);
 
@@ -226,6 +388,9 @@ OUTER:
 			long size = c.getLong(c.getColumnIndexOrThrow(Five.Music.Songs.SIZE));
 			String mime = c.getString(c.getColumnIndexOrThrow(Five.Music.Songs.MIME_TYPE));
 
+			if (length >= 0)
+				size = Math.min(length, size);
+
 			String path = makeStorage(context, sourceId, contentId, mime, size);
 
 			ContentValues cv = new ContentValues();
@@ -269,6 +434,14 @@ OUTER:
 	 */
 	public void wipeAll() throws IOException
 	{
+		synchronized(this) {
+			if (mBlockCache != null)
+			{
+				mBlockCache.close();
+				mBlockCache = null;
+			}
+		}
+
 		File fiveStorage = new File(Environment.getExternalStorageDirectory(), "five");
 		if (fiveStorage.exists())
 			FileUtils.deleteDirectory(fiveStorage);
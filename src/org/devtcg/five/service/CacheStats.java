@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.service;
+
+import java.io.PrintWriter;
+
+import org.devtcg.five.service.CacheManager.CacheAllocationException;
+import org.devtcg.five.service.CacheManager.NoStorageCardException;
+import org.devtcg.five.service.CacheManager.OutOfSpaceException;
+
+/**
+ * Counters describing how effective the cache is, gathered since the
+ * process started. Readable with:
+ *
+ * <pre>
+ * adb shell dumpsys activity service org.devtcg.five/.service.PlaylistService
+ * </pre>
+ */
+public class CacheStats
+{
+	/* Upper bounds (inclusive) of the eviction latency histogram buckets, in
+	 * milliseconds. A final bucket collects everything slower. */
+	private static final long[] LATENCY_BUCKETS = { 1, 10, 50, 100, 500, 1000, 5000 };
+
+	/**
+	 * What a download was started for. Bytes are counted against whoever
+	 * started the download, even if playback later picks it up.
+	 */
+	public enum Origin
+	{
+		/** Playback of a song which was not (fully) cached. */
+		PLAYBACK,
+
+		/** The song due to play next. */
+		PREFETCH,
+
+		/** A song predicted to be played soon. */
+		WARM,
+
+		/** Just the head of a song (see {@link HeadCache}). */
+		HEAD
+	}
+
+	private long mFullHits;
+	private long mInFlightHits;
+	private long mPartialHits;
+	private long mMisses;
+
+	private long mBytesFromCache;
+	private final long[] mBytesDownloaded = new long[Origin.values().length];
+
+	private long mEvictions;
+	private long mBytesEvicted;
+	private final long[] mEvictionLatency = new long[LATENCY_BUCKETS.length + 1];
+
+	private long mOutOfSpaceFailures;
+	private long mNoStorageCardFailures;
+
+	/**
+	 * Playback started with the song entirely in cache.
+	 */
+	public synchronized void recordFullHit(long size)
+	{
+		mFullHits++;
+		mBytesFromCache += size;
+	}
+
+	/**
+	 * Playback started while the song was still being fetched ahead of time
+	 * (by a download of any origin other than {@link Origin#PLAYBACK}), with
+	 * <code>cachedBytes</code> already stored.
+	 */
+	public synchronized void recordInFlightHit(long cachedBytes)
+	{
+		mInFlightHits++;
+		mBytesFromCache += cachedBytes;
+	}
+
+	/**
+	 * Playback started with the first <code>cachedBytes</code> of the song
+	 * in cache; the rest must be downloaded.
+	 */
+	public synchronized void recordPartialHit(long cachedBytes)
+	{
+		mPartialHits++;
+		mBytesFromCache += cachedBytes;
+	}
+
+	public synchronized void recordMiss()
+	{
+		mMisses++;
+	}
+
+	public synchronized void recordNetworkBytes(Origin origin, long bytes)
+	{
+		mBytesDownloaded[origin.ordinal()] += bytes;
+	}
+
+	public synchronized void recordEviction(long bytes)
+	{
+		mEvictions++;
+		mBytesEvicted += bytes;
+	}
+
+	/**
+	 * Time taken by a single pass to reclaim cache space, regardless of how
+	 * many entries were evicted.
+	 */
+	public synchronized void recordEvictionLatency(long millis)
+	{
+		int i;
+		for (i = 0; i < LATENCY_BUCKETS.length; i++)
+		{
+			if (millis <= LATENCY_BUCKETS[i])
+				break;
+		}
+
+		mEvictionLatency[i]++;
+	}
+
+	public synchronized void recordAllocationFailure(CacheAllocationException e)
+	{
+		if (e instanceof OutOfSpaceException)
+			mOutOfSpaceFailures++;
+		else if (e instanceof NoStorageCardException)
+			mNoStorageCardFailures++;
+	}
+
+	public synchronized void reset()
+	{
+		mFullHits = mInFlightHits = mPartialHits = mMisses = 0;
+		mBytesFromCache = 0;
+		mEvictions = mBytesEvicted = 0;
+		mOutOfSpaceFailures = mNoStorageCardFailures = 0;
+
+		for (int i = 0; i < mEvictionLatency.length; i++)
+			mEvictionLatency[i] = 0;
+
+		for (int i = 0; i < mBytesDownloaded.length; i++)
+			mBytesDownloaded[i] = 0;
+	}
+
+	private static String percent(long part, long total)
+	{
+		if (total == 0)
+			return "-";
+
+		return (part * 1000 / total) / 10f + "%";
+	}
+
+	public synchronized void dump(PrintWriter pw)
+	{
+		long lookups = mFullHits + mInFlightHits + mPartialHits + mMisses;
+
+		pw.println("Cache statistics:");
+		pw.println("  full hits: " + mFullHits + " (" + percent(mFullHits, lookups) + ")");
+		pw.println("  in-flight hits: " + mInFlightHits + " (" + percent(mInFlightHits, lookups) + ")");
+		pw.println("  partial hits: " + mPartialHits + " (" + percent(mPartialHits, lookups) + ")");
+		pw.println("  misses: " + mMisses + " (" + percent(mMisses, lookups) + ")");
+
+		long fromNetwork = mBytesDownloaded[Origin.PLAYBACK.ordinal()];
+		long served = mBytesFromCache + fromNetwork;
+		pw.println("  bytes from cache: " + mBytesFromCache + " (" + percent(mBytesFromCache, served) + ")");
+		pw.println("  bytes from network: " + fromNetwork + " (" + percent(fromNetwork, served) + ")");
+
+		pw.println("  bytes downloaded ahead:");
+		for (Origin origin: Origin.values())
+		{
+			if (origin != Origin.PLAYBACK)
+				pw.println("    " + origin.name().toLowerCase() + ": " + mBytesDownloaded[origin.ordinal()]);
+		}
+
+		pw.println("  evictions: " + mEvictions + ", bytes evicted: " + mBytesEvicted);
+		pw.println("  eviction latency:");
+		for (int i = 0; i < mEvictionLatency.length; i++)
+		{
+			String label = (i < LATENCY_BUCKETS.length) ?
+				"<= " + LATENCY_BUCKETS[i] + "ms" :
+				"> " + LATENCY_BUCKETS[LATENCY_BUCKETS.length - 1] + "ms";
+			pw.println("    " + label + ": " + mEvictionLatency[i]);
+		}
+
+		pw.println("  allocation failures: out of space " + mOutOfSpaceFailures +
+				", no storage card " + mNoStorageCardFailures);
+	}
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.service;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+import org.devtcg.five.provider.Five;
+import org.devtcg.five.provider.util.Songs;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * Tracks the songs likely to be played soon (the upcoming queue, the
+ * current album, and the rows visible in a song list) whose first few
+ * seconds should always be resident in the cache. Cache eviction leaves
+ * these heads in place so that playback of any of them can begin instantly,
+ * while the remainder is fetched with a <code>Range</code> request.
+ */
+public class HeadCache
+{
+	/** Seconds of audio to keep resident for each protected song. */
+	public static final int HEAD_SECONDS = 15;
+
+	/* Extra room for container headers and tags at the start of the file. */
+	private static final int HEAD_SLACK = 32 * 1024;
+
+	public static final int GROUP_QUEUE = 0;
+	public static final int GROUP_ALBUM = 1;
+	public static final int GROUP_VISIBLE = 2;
+	private static final int NUM_GROUPS = 3;
+
+	/** Bound on the number of songs protected by any one group. */
+	public static final int MAX_GROUP_SIZE = 30;
+
+	private static final String[] sProjection = {
+		Five.Music.Songs._ID, Five.Music.Songs.BITRATE,
+		Five.Music.Songs.LENGTH, Five.Music.Songs.SIZE,
+	};
+
+	/* Per group mapping of song id to head size in bytes, in priority
+	 * order. */
+	@SuppressWarnings("unchecked")
+	private final LinkedHashMap<Long, Long>[] mGroups = new LinkedHashMap[NUM_GROUPS];
+
+	private long mAlbumId = -1;
+
+	public HeadCache()
+	{
+		for (int i = 0; i < NUM_GROUPS; i++)
+			mGroups[i] = new LinkedHashMap<Long, Long>();
+	}
+
+	/**
+	 * Compute the number of bytes needed to hold the first
+	 * {@link #HEAD_SECONDS} of a song.
+	 *
+	 * @param bitrate
+	 *            Average bitrate in kbps, or 0 if unknown.
+	 * @param length
+	 *            Running time in seconds.
+	 */
+	public static long getHeadSize(int bitrate, long length, long size)
+	{
+		long head;
+
+		if (bitrate > 0)
+			head = (long)bitrate * 1000 / 8 * HEAD_SECONDS;
+		else if (length > 0)
+			head = size * HEAD_SECONDS / length;
+		else
+			head = size;
+
+		return Math.min(head + HEAD_SLACK, size);
+	}
+
+	/**
+	 * Replace the songs protected by the given group.
+	 */
+	public void setGroup(Context context, int group, long[] songIds)
+	{
+		int n = Math.min(songIds.length, MAX_GROUP_SIZE);
+
+		LinkedHashMap<Long, Long> heads = new LinkedHashMap<Long, Long>(n);
+		if (n > 0)
+		{
+			/* Bounded by MAX_GROUP_SIZE, well under SQLite's limit on
+			 * bound arguments. */
+			StringBuilder where = new StringBuilder(Five.Music.Songs._ID + " IN (");
+			String[] whereArgs = new String[n];
+			for (int i = 0; i < n; i++)
+			{
+				if (i > 0)
+					where.append(',');
+				where.append('?');
+				whereArgs[i] = String.valueOf(songIds[i]);
+			}
+			where.append(')');
+
+			HashMap<Long, Long> sizes = new HashMap<Long, Long>(n);
+			Cursor c = context.getContentResolver().query(Five.Music.Songs.CONTENT_URI,
+					sProjection, where.toString(), whereArgs, null);
+			try {
+				while (c.moveToNext() == true)
+				{
+					sizes.put(c.getLong(0),
+							getHeadSize(c.getInt(1), c.getLong(2), c.getLong(3)));
+				}
+			} finally {
+				c.close();
+			}
+
+			/* Preserve the caller's priority ordering. */
+			for (int i = 0; i < n; i++)
+			{
+				Long size = sizes.get(songIds[i]);
+				if (size != null)
+					heads.put(songIds[i], size);
+			}
+		}
+
+		synchronized(this) {
+			mGroups[group] = heads;
+		}
+	}
+
+	/**
+	 * Protect the heads of the songs on the same album as the given song.
+	 * Does nothing if the album was already selected by a previous call.
+	 */
+	public void setAlbumOf(Context context, long songId)
+	{
+		long albumId = -1;
+
+		Cursor c = context.getContentResolver().query(Songs.makeUri(songId),
+				new String[] { Five.Music.Songs.ALBUM_ID }, null, null, null);
+		try {
+			if (c.moveToFirst() == true && c.isNull(0) == false)
+				albumId = c.getLong(0);
+		} finally {
+			c.close();
+		}
+
+		synchronized(this) {
+			if (albumId == mAlbumId)
+				return;
+
+			mAlbumId = albumId;
+		}
+
+		if (albumId < 0)
+		{
+			setGroup(context, GROUP_ALBUM, new long[0]);
+			return;
+		}
+
+		Uri albumSongsUri = Five.Music.Albums.CONTENT_URI.buildUpon()
+			.appendPath(String.valueOf(albumId))
+			.appendPath("songs").build();
+
+		c = context.getContentResolver().query(albumSongsUri,
+				new String[] { Five.Music.Songs._ID }, null, null, null);
+		long[] songIds;
+		try {
+			songIds = new long[Math.min(c.getCount(), MAX_GROUP_SIZE)];
+			for (int i = 0; i < songIds.length && c.moveToNext() == true; i++)
+				songIds[i] = c.getLong(0);
+		} finally {
+			c.close();
+		}
+
+		setGroup(context, GROUP_ALBUM, songIds);
+	}
+
+	/**
+	 * @return Number of leading bytes of this song which must remain
+	 *         resident, or 0 if the song is not protected.
+	 */
+	public synchronized long getProtectedHeadSize(long songId)
+	{
+		for (LinkedHashMap<Long, Long> heads: mGroups)
+		{
+			Long size = heads.get(songId);
+			if (size != null)
+				return size;
+		}
+
+		return 0;
+	}
+
+	/**
+	 * @return Snapshot of all protected songs and their head sizes, in
+	 *         priority order (queue, then album, then visible list rows).
+	 */
+	public synchronized LinkedHashMap<Long, Long> getProtectedHeads()
+	{
+		LinkedHashMap<Long, Long> all = new LinkedHashMap<Long, Long>();
+
+		for (LinkedHashMap<Long, Long> heads: mGroups)
+		{
+			for (Long songId: heads.keySet())
+			{
+				if (all.containsKey(songId) == false)
+					all.put(songId, heads.get(songId));
+			}
+		}
+
+		return all;
+	}
+}
@@ -15,7 +15,6 @@
 package org.devtcg.five.service;
 
 import android.os.RemoteCallbackList;
-import android.os.RemoteException;
 
 public class IPlaylistBufferListenerCallbackList extends
   RemoteCallbackList<IPlaylistBufferListener>
@@ -24,18 +23,4 @@ public class IPlaylistBufferListenerCallbackList extends
 	{
 		super();
 	}
-
-	public 	void broadcastOnBufferingUpdate(long songId, int bufferPercent)
-	{
-		int N = beginBroadcast();
-
-		for (int i = 0; i < N; i++)
-		{
-			try {
-				getBroadcastItem(i).onBufferingUpdate(songId, bufferPercent);
-			} catch (RemoteException e) {}
-		}
-
-		finishBroadcast();
-	}
 }
@@ -15,7 +15,6 @@
 package org.devtcg.five.service;
 
 import android.os.RemoteCallbackList;
-import android.os.RemoteException;
 
 public class IPlaylistChangeListenerCallbackList
   extends RemoteCallbackList<IPlaylistChangeListener>
@@ -24,75 +23,4 @@ public class IPlaylistChangeListenerCallbackList
 	{
 		super();
 	}
-
-	public void broadcastOnClear()
-	{
-		int n = beginBroadcast();
-
-		for (int i = 0; i < n; i++)
-		{
-			try {
-				getBroadcastItem(i).onClear();
-			} catch (RemoteException e) {}
-		}
-
-		finishBroadcast();
-	}
-
-	public void broadcastOnLoadPlaylistRef(long playlistId)
-	{
-		int n = beginBroadcast();
-
-		for (int i = 0; i < n; i++)
-		{
-			try {
-				getBroadcastItem(i).onLoadPlaylistRef(playlistId);
-			} catch (RemoteException e) {}
-		}
-
-		finishBroadcast();
-	}
-
-
-	public void broadcastOnMove(long songId, int oldpos, int newpos)
-	{
-		int n = beginBroadcast();
-
-		for (int i = 0; i < n; i++)
-		{
-			try {
-				getBroadcastItem(i).onMove(songId, oldpos, newpos);
-			} catch (RemoteException e) {}
-		}
-
-		finishBroadcast();
-	}
-
-	public void broadcastOnInsert(long songId, int pos)
-	{
-		int n = beginBroadcast();
-
-		for (int i = 0; i < n; i++)
-		{
-			try {
-				getBroadcastItem(i).onInsert(songId, pos);
-			} catch (RemoteException e) {}
-		}
-
-		finishBroadcast();
-	}
-
-	public void broadcastOnRemove(int pos)
-	{
-		int n = beginBroadcast();
-
-		for (int i = 0; i < n; i++)
-		{
-			try {
-				getBroadcastItem(i).onRemove(pos);
-			} catch (RemoteException e) {}
-		}
-
-		finishBroadcast();
-	}
 }
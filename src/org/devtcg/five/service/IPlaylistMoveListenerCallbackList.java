@@ -15,7 +15,6 @@
 package org.devtcg.five.service;
 
 import android.os.RemoteCallbackList;
-import android.os.RemoteException;
 
 public class IPlaylistMoveListenerCallbackList extends
   RemoteCallbackList<IPlaylistMoveListener>
@@ -24,102 +23,4 @@ public class IPlaylistMoveListenerCallbackList extends
 	{
 		super();
 	}
-
-	public void broadcastOnJump(int pos)
-	{
-		int n = beginBroadcast();
-
-		for (int i = 0; i < n; i++)
-		{
-			try {
-				getBroadcastItem(i).onJump(pos);
-			} catch (RemoteException e) {}
-		}
-
-		finishBroadcast();
-	}
-
-	public void broadcastOnAdvance()
-	{
-		int n = beginBroadcast();
-
-		for (int i = 0; i < n; i++)
-		{
-			try {
-				getBroadcastItem(i).onAdvance();
-			} catch (RemoteException e) {}
-		}
-
-		finishBroadcast();
-	}
-
-	public void broadcastOnSeek(long pos)
-	{
-		int n = beginBroadcast();
-
-		for (int i = 0; i < n; i++)
-		{
-			try {
-				getBroadcastItem(i).onSeek(pos);
-			} catch (RemoteException e) {}
-		}
-
-		finishBroadcast();
-	}
-
-	public void broadcastOnPlay()
-	{
-		int n = beginBroadcast();
-
-		for (int i = 0; i < n; i++)
-		{
-			try {
-				getBroadcastItem(i).onPlay();
-			} catch (RemoteException e) {}
-		}
-
-		finishBroadcast();
-	}
-
-	public void broadcastOnPause()
-	{
-		int n = beginBroadcast();
-
-		for (int i = 0; i < n; i++)
-		{
-			try {
-				getBroadcastItem(i).onPause();
-			} catch (RemoteException e) {}
-		}
-
-		finishBroadcast();
-	}
-
-	public void broadcastOnUnpause()
-	{
-		int n = beginBroadcast();
-
-		for (int i = 0; i < n; i++)
-		{
-			try {
-				getBroadcastItem(i).onUnpause();
-			} catch (RemoteException e) {}
-		}
-
-		finishBroadcast();
-	}
-
-	public void broadcastOnStop()
-	{
-		int n = beginBroadcast();
-
-		for (int i = 0; i < n; i++)
-		{
-			try {
-				getBroadcastItem(i).onStop();
-			} catch (RemoteException e) {}
-		}
-
-		finishBroadcast();
-	}
 }
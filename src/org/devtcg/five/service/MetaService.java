@@ -41,6 +41,7 @@ import android.os.IBinder;
 import android.os.PowerManager;
 import android.os.Process;
 import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Log;
 
 public class MetaService extends Service
@@ -288,12 +289,23 @@ public class MetaService extends Service
 			private final Uri mSourceUri;
 			private final ContentValues mTmpValues = new ContentValues();
 
+			/* The same status is reported for every page downloaded, but
+			 * needs writing (and observers notifying) only once. */
+			private boolean mHasStatus;
+			private String mStatus;
+
 			public SourceSyncObserver(long sourceId) {
 				mSourceUri = Sources.makeUri(sourceId);
 			}
 
 			public void onStatusChanged(String statusMessage)
 			{
+				if (mHasStatus == true && TextUtils.equals(mStatus, statusMessage) == true)
+					return;
+
+				mHasStatus = true;
+				mStatus = statusMessage;
+
 				ContentValues values = mTmpValues;
 				values.clear();
 				values.put(Five.Sources.STATUS, statusMessage);
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Records song-to-song transitions as the playlist advances, forming a first
+ * order Markov model used by {@link PlayPredictor}. The model is bounded both
+ * in the number of songs tracked (least recently played are forgotten first)
+ * and in the number of successors remembered for each song.
+ */
+public class PlayHistory
+{
+	private static final String TAG = "PlayHistory";
+
+	private static final String HISTORY_FILE = "play_history";
+	private static final String HISTORY_FILE_TMP = HISTORY_FILE + ".tmp";
+	private static final int HISTORY_FILE_FORMAT = 1;
+
+	private static final int MAX_SONGS = 2000;
+	private static final int MAX_SUCCESSORS = 8;
+
+	private final Context mContext;
+
+	private final LinkedHashMap<Long, Successors> mTransitions =
+		new LinkedHashMap<Long, Successors>(64, 0.75f, true)
+	{
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Successors> eldest)
+		{
+			return size() > MAX_SONGS;
+		}
+	};
+
+	private boolean mDirty = false;
+
+	public PlayHistory(Context context)
+	{
+		mContext = context;
+	}
+
+	/**
+	 * Note that <code>toId</code> was played immediately after
+	 * <code>fromId</code>.
+	 */
+	public synchronized void recordTransition(long fromId, long toId)
+	{
+		if (fromId < 0 || toId < 0 || fromId == toId)
+			return;
+
+		Successors successors = mTransitions.get(fromId);
+		if (successors == null)
+		{
+			successors = new Successors();
+			mTransitions.put(fromId, successors);
+		}
+
+		successors.increment(toId);
+		mDirty = true;
+	}
+
+	/**
+	 * Access the learned successors of a song.
+	 *
+	 * @param ids
+	 *            Filled with successor song ids, must be at least
+	 *            {@link #getMaxSuccessors()} in length.
+	 * @param probabilities
+	 *            Filled with the observed probability of each successor.
+	 * @return Number of successors written.
+	 */
+	public synchronized int getSuccessors(long songId, long[] ids, float[] probabilities)
+	{
+		Successors successors = mTransitions.get(songId);
+		if (successors == null || successors.total == 0)
+			return 0;
+
+		for (int i = 0; i < successors.count; i++)
+		{
+			ids[i] = successors.ids[i];
+			probabilities[i] = (float)successors.hits[i] / successors.total;
+		}
+
+		return successors.count;
+	}
+
+	public static int getMaxSuccessors()
+	{
+		return MAX_SUCCESSORS;
+	}
+
+	public synchronized void save()
+		throws IOException
+	{
+		if (mDirty == false)
+			return;
+
+		FileOutputStream outf = mContext.openFileOutput(HISTORY_FILE_TMP,
+				Context.MODE_PRIVATE);
+		DataOutputStream out = null;
+
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(outf, 4096));
+
+			out.writeInt(HISTORY_FILE_FORMAT);
+			out.writeInt(mTransitions.size());
+
+			/* Iteration order is least to most recently used, which is
+			 * preserved when we read it back in. */
+			for (Map.Entry<Long, Successors> entry: mTransitions.entrySet())
+			{
+				Successors successors = entry.getValue();
+
+				out.writeLong(entry.getKey());
+				out.writeInt(successors.count);
+
+				for (int i = 0; i < successors.count; i++)
+				{
+					out.writeLong(successors.ids[i]);
+					out.writeInt(successors.hits[i]);
+				}
+			}
+		} finally {
+			if (out != null)
+				out.close();
+			else
+				outf.close();
+		}
+
+		File tmp = mContext.getFileStreamPath(HISTORY_FILE_TMP);
+		tmp.renameTo(mContext.getFileStreamPath(HISTORY_FILE));
+
+		mDirty = false;
+	}
+
+	public void saveQuietly()
+	{
+		try {
+			save();
+		} catch (IOException e) {
+			Log.e(TAG, "Couldn't save play history!", e);
+		}
+	}
+
+	public synchronized boolean load()
+		throws IOException
+	{
+		FileInputStream inf;
+
+		try {
+			inf = mContext.openFileInput(HISTORY_FILE);
+		} catch (FileNotFoundException e) {
+			return false;
+		}
+
+		DataInputStream in = null;
+
+		try {
+			in = new DataInputStream(new BufferedInputStream(inf, 4096));
+
+			if (in.readInt() != HISTORY_FILE_FORMAT)
+				return false;
+
+			try {
+				int n = in.readInt();
+				for (int i = 0; i < n; i++)
+				{
+					long fromId = in.readLong();
+					int count = Math.min(in.readInt(), MAX_SUCCESSORS);
+
+					Successors successors = new Successors();
+					for (int j = 0; j < count; j++)
+						successors.put(in.readLong(), in.readInt());
+
+					mTransitions.put(fromId, successors);
+				}
+			} catch (IOException e) {
+				mTransitions.clear();
+				throw e;
+			}
+
+			return true;
+		} finally {
+			if (in != null)
+				in.close();
+			else
+				inf.close();
+		}
+	}
+
+	public void loadQuietly()
+	{
+		try {
+			load();
+		} catch (IOException e) {
+			Log.e(TAG, "Couldn't load play history!", e);
+		}
+	}
+
+	/**
+	 * Small fixed capacity table of observed successors. When full, the least
+	 * observed successor is replaced.
+	 */
+	private static class Successors
+	{
+		final long[] ids = new long[MAX_SUCCESSORS];
+		final int[] hits = new int[MAX_SUCCESSORS];
+		int count;
+		int total;
+
+		public void increment(long songId)
+		{
+			for (int i = 0; i < count; i++)
+			{
+				if (ids[i] == songId)
+				{
+					hits[i]++;
+					total++;
+					return;
+				}
+			}
+
+			if (count < MAX_SUCCESSORS)
+				put(songId, 1);
+			else
+			{
+				int victim = 0;
+				for (int i = 1; i < count; i++)
+				{
+					if (hits[i] < hits[victim])
+						victim = i;
+				}
+
+				total -= hits[victim];
+				ids[victim] = songId;
+				hits[victim] = 1;
+				total++;
+			}
+		}
+
+		public void put(long songId, int hitCount)
+		{
+			ids[count] = songId;
+			hits[count] = hitCount;
+			count++;
+			total += hitCount;
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.service;
+
+import org.devtcg.five.provider.Five;
+import org.devtcg.five.provider.util.Songs;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * Guesses which songs are likely to be played after the current one so that
+ * they can be warmed in the cache ahead of time. Candidates are drawn from
+ * the listening history (see {@link PlayHistory}), the album the current
+ * song belongs to, and the play queue beyond the literal next entry, which
+ * is already prefetched by {@link PlaylistService}.
+ */
+public class PlayPredictor
+{
+	public static final int MAX_PREDICTIONS = 3;
+
+	private static final float WEIGHT_HISTORY = 3.0f;
+	private static final float WEIGHT_ALBUM = 1.0f;
+	private static final float WEIGHT_QUEUE = 1.0f;
+
+	private static final int MAX_CANDIDATES =
+		PlayHistory.getMaxSuccessors() + 1 + PlaylistService.PREDICT_QUEUE_LOOKAHEAD;
+
+	private final Context mContext;
+	private final PlayHistory mHistory;
+
+	private final long[] mCandidateIds = new long[MAX_CANDIDATES];
+	private final float[] mCandidateScores = new float[MAX_CANDIDATES];
+	private int mCandidateCount;
+
+	private final long[] mSuccessorIds = new long[PlayHistory.getMaxSuccessors()];
+	private final float[] mSuccessorProbs = new float[PlayHistory.getMaxSuccessors()];
+
+	/* Last album lookup, as the current song is predicted from again on
+	 * every jump and queue edit. */
+	private long mAlbumSongId = -1;
+	private long mAlbumNextId = -1;
+
+	public PlayPredictor(Context context, PlayHistory history)
+	{
+		mContext = context;
+		mHistory = history;
+	}
+
+	/**
+	 * Rank the songs most likely to follow <code>currentId</code>.
+	 *
+	 * @param nextId
+	 *            Next song in the play queue, or -1. Excluded from the result
+	 *            as it is already prefetched.
+	 * @param upcoming
+	 *            Queue entries following <code>nextId</code>, nearest first.
+	 * @return Up to {@link #MAX_PREDICTIONS} song ids, most likely first.
+	 */
+	public synchronized long[] predict(long currentId, long nextId, long[] upcoming)
+	{
+		mCandidateCount = 0;
+
+		int n = mHistory.getSuccessors(currentId, mSuccessorIds, mSuccessorProbs);
+		for (int i = 0; i < n; i++)
+			addCandidate(mSuccessorIds[i], WEIGHT_HISTORY * mSuccessorProbs[i]);
+
+		long albumNextId = getNextOnAlbum(currentId);
+		if (albumNextId >= 0)
+			addCandidate(albumNextId, WEIGHT_ALBUM);
+
+		for (int i = 0; i < upcoming.length; i++)
+			addCandidate(upcoming[i], WEIGHT_QUEUE / (i + 1));
+
+		int count = 0;
+		long[] predictions = new long[Math.min(MAX_PREDICTIONS, mCandidateCount)];
+
+		/* Selection sort is fine here, we have only a handful of candidates. */
+		while (count < predictions.length)
+		{
+			int best = -1;
+			for (int i = 0; i < mCandidateCount; i++)
+			{
+				long id = mCandidateIds[i];
+				if (id == currentId || id == nextId || mCandidateScores[i] <= 0)
+					continue;
+
+				if (best == -1 || mCandidateScores[i] > mCandidateScores[best])
+					best = i;
+			}
+
+			if (best == -1)
+				break;
+
+			predictions[count++] = mCandidateIds[best];
+			mCandidateScores[best] = 0;
+		}
+
+		if (count < predictions.length)
+		{
+			long[] trimmed = new long[count];
+			System.arraycopy(predictions, 0, trimmed, 0, count);
+			return trimmed;
+		}
+
+		return predictions;
+	}
+
+	private void addCandidate(long songId, float score)
+	{
+		for (int i = 0; i < mCandidateCount; i++)
+		{
+			if (mCandidateIds[i] == songId)
+			{
+				mCandidateScores[i] += score;
+				return;
+			}
+		}
+
+		if (mCandidateCount < MAX_CANDIDATES)
+		{
+			mCandidateIds[mCandidateCount] = songId;
+			mCandidateScores[mCandidateCount] = score;
+			mCandidateCount++;
+		}
+	}
+
+	/**
+	 * Find the song following <code>songId</code> in album order. The
+	 * result for the most recent song is cached.
+	 *
+	 * @return The next song id, or -1 if this is the last track or the album
+	 *         is not known.
+	 */
+	private long getNextOnAlbum(long songId)
+	{
+		if (songId == mAlbumSongId)
+			return mAlbumNextId;
+
+		long albumId = -1;
+
+		Cursor c = mContext.getContentResolver().query(Songs.makeUri(songId),
+				new String[] { Five.Music.Songs.ALBUM_ID }, null, null, null);
+		if (c == null)
+			return -1;
+
+		try {
+			if (c.moveToFirst() == true && c.isNull(0) == false)
+				albumId = c.getLong(0);
+		} finally {
+			c.close();
+		}
+
+		long nextId = -1;
+
+		if (albumId >= 0)
+		{
+			Uri albumSongsUri = Five.Music.Albums.CONTENT_URI.buildUpon()
+				.appendPath(String.valueOf(albumId))
+				.appendPath("songs").build();
+
+			c = mContext.getContentResolver().query(albumSongsUri,
+					new String[] { Five.Music.Songs._ID }, null, null, null);
+			if (c == null)
+				return -1;
+
+			try {
+				while (c.moveToNext() == true)
+				{
+					if (c.getLong(0) == songId)
+					{
+						if (c.moveToNext() == true)
+							nextId = c.getLong(0);
+
+						break;
+					}
+				}
+			} finally {
+				c.close();
+			}
+		}
+
+		mAlbumSongId = songId;
+		mAlbumNextId = nextId;
+
+		return nextId;
+	}
+}
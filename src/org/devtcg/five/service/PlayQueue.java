@@ -0,0 +1,531 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Play queue of song ids stored in a gap buffer of primitive longs. Edits
+ * near the previous edit (appending a large selection, or inserting after the
+ * current song) only move the gap a short distance, and queues of hundreds
+ * of thousands of songs cost 8 bytes per entry.
+ * <p>
+ * An index from song id to the buffer slot of its last occurrence answers
+ * {@link #lastIndexOf(long)} without scanning, and is kept current by every
+ * edit. Slots only change for the entries the gap moves past, which are
+ * copied anyway, so the index costs a lookup per entry copied. Removing
+ * the last occurrence of a song which is queued more than once scans back
+ * for the one before it; no other edit scans.
+ * <p>
+ * Not thread-safe; {@link PlaylistService} guards access with its binder
+ * lock.
+ */
+public class PlayQueue
+{
+	private static final int MIN_CAPACITY = 64;
+
+	private long[] mBuffer;
+	private int mGapStart;
+	private int mGapEnd;
+
+	/* Buffer slot of each song's last occurrence. */
+	private final LongIntMap mIndex = new LongIntMap();
+
+	/* Number of occurrences beyond the first, for songs queued more than
+	 * once. */
+	private final LongIntMap mDuplicates = new LongIntMap();
+
+	public PlayQueue()
+	{
+		this(MIN_CAPACITY);
+	}
+
+	public PlayQueue(int capacity)
+	{
+		mBuffer = new long[Math.max(capacity, MIN_CAPACITY)];
+		mGapStart = 0;
+		mGapEnd = mBuffer.length;
+	}
+
+	public int size()
+	{
+		return mBuffer.length - (mGapEnd - mGapStart);
+	}
+
+	public boolean isEmpty()
+	{
+		return size() == 0;
+	}
+
+	public long get(int pos)
+	{
+		checkIndex(pos, size());
+
+		if (pos < mGapStart)
+			return mBuffer[pos];
+		else
+			return mBuffer[pos + (mGapEnd - mGapStart)];
+	}
+
+	/**
+	 * Copy a range of the queue into <code>dst</code>.
+	 *
+	 * @return Number of entries copied, bounded by the queue's size.
+	 */
+	public int get(int from, long[] dst, int dstOffset, int count)
+	{
+		int n = Math.min(count, size() - from);
+		if (n <= 0)
+			return 0;
+
+		checkIndex(from, size());
+
+		int before = Math.min(n, Math.max(0, mGapStart - from));
+		if (before > 0)
+			System.arraycopy(mBuffer, from, dst, dstOffset, before);
+
+		if (n > before)
+		{
+			int src = from + before + (mGapEnd - mGapStart);
+			System.arraycopy(mBuffer, src, dst, dstOffset + before, n - before);
+		}
+
+		return n;
+	}
+
+	/**
+	 * @return A copy of the queue entries <code>from</code> (inclusive) to
+	 *         <code>to</code> (exclusive), bounded by the queue's size.
+	 */
+	public long[] toArray(int from, int to)
+	{
+		to = Math.min(to, size());
+		if (from >= to)
+			return new long[0];
+
+		long[] songIds = new long[to - from];
+		get(from, songIds, 0, songIds.length);
+		return songIds;
+	}
+
+	/**
+	 * Boxed copy of the queue, for legacy callers of
+	 * {@link IPlaylistService#getPlaylist()}.
+	 */
+	public List<Long> toList(int from, int to)
+	{
+		long[] songIds = toArray(from, to);
+		List<Long> list = new ArrayList<Long>(songIds.length);
+
+		for (long songId: songIds)
+			list.add(songId);
+
+		return list;
+	}
+
+	public void add(long songId)
+	{
+		add(size(), songId);
+	}
+
+	public void add(int pos, long songId)
+	{
+		if (pos != size())
+			checkIndex(pos, size());
+
+		moveGap(pos);
+		ensureGap(1);
+		mBuffer[mGapStart] = songId;
+		indexInsert(songId, mGapStart++);
+	}
+
+	/**
+	 * Insert <code>count</code> entries of <code>songIds</code> starting at
+	 * <code>offset</code>, such that the first ends up at <code>pos</code>.
+	 */
+	public void addAll(int pos, long[] songIds, int offset, int count)
+	{
+		int size = size();
+
+		if (pos != size)
+			checkIndex(pos, size);
+
+		if (count <= 0)
+			return;
+
+		moveGap(pos);
+		ensureGap(count);
+		System.arraycopy(songIds, offset, mBuffer, mGapStart, count);
+
+		for (int i = 0; i < count; i++)
+			indexInsert(songIds[offset + i], mGapStart++);
+	}
+
+	public long remove(int pos)
+	{
+		checkIndex(pos, size());
+
+		moveGap(pos);
+		long songId = mBuffer[mGapEnd];
+		indexRemove(songId, mGapEnd++);
+
+		return songId;
+	}
+
+	/**
+	 * Remove entries <code>from</code> (inclusive) to <code>to</code>
+	 * (exclusive).
+	 */
+	public void removeRange(int from, int to)
+	{
+		int size = size();
+
+		if (from < 0 || to > size || from > to)
+			throw new IndexOutOfBoundsException("Range " + from + "-" + to + ", size " + size);
+
+		if (from == to)
+			return;
+
+		moveGap(from);
+
+		for (int i = from; i < to; i++)
+		{
+			indexRemove(mBuffer[mGapEnd], mGapEnd);
+			mGapEnd++;
+		}
+	}
+
+	/**
+	 * Move the entry at <code>from</code> so that it ends up at position
+	 * <code>to</code>.
+	 *
+	 * @return The song id moved.
+	 */
+	public long move(int from, int to)
+	{
+		checkIndex(to, size());
+
+		long songId = remove(from);
+		add(to, songId);
+
+		return songId;
+	}
+
+	/**
+	 * Move <code>count</code> entries starting at <code>from</code> so that
+	 * the first ends up at position <code>to</code>.
+	 */
+	public void moveRange(int from, int count, int to)
+	{
+		int size = size();
+
+		if (from < 0 || count < 0 || from + count > size || to < 0 || to + count > size)
+			throw new IndexOutOfBoundsException("Move " + from + "+" + count + " to " + to + ", size " + size);
+
+		if (count == 0 || from == to)
+			return;
+
+		long[] songIds = toArray(from, from + count);
+		removeRange(from, from + count);
+		addAll(to, songIds, 0, count);
+	}
+
+	public void clear()
+	{
+		mGapStart = 0;
+		mGapEnd = mBuffer.length;
+
+		/* Release the memory held by a very large queue. */
+		if (mBuffer.length > MIN_CAPACITY * 16)
+		{
+			mBuffer = new long[MIN_CAPACITY];
+			mGapEnd = mBuffer.length;
+		}
+
+		mIndex.clear();
+		mDuplicates.clear();
+	}
+
+	/**
+	 * @return Last position of <code>songId</code> in the queue, or -1.
+	 */
+	public int lastIndexOf(long songId)
+	{
+		int slot = mIndex.get(songId, -1);
+
+		if (slot < mGapStart)
+			return slot;
+		else
+			return slot - (mGapEnd - mGapStart);
+	}
+
+	public boolean contains(long songId)
+	{
+		return lastIndexOf(songId) >= 0;
+	}
+
+	/*
+	 * Buffer slots follow the queue's order, skipping the gap, so slots
+	 * compare as positions do.
+	 */
+
+	private void indexInsert(long songId, int slot)
+	{
+		int last = mIndex.get(songId, -1);
+
+		if (last == -1)
+			mIndex.put(songId, slot);
+		else
+		{
+			mDuplicates.put(songId, mDuplicates.get(songId, 0) + 1);
+
+			if (last < slot)
+				mIndex.put(songId, slot);
+		}
+	}
+
+	/**
+	 * Called with the entry at <code>slot</code> just after the gap, as it
+	 * is removed.
+	 */
+	private void indexRemove(long songId, int slot)
+	{
+		int duplicates = mDuplicates.get(songId, 0);
+
+		if (duplicates == 0)
+		{
+			mIndex.remove(songId);
+			return;
+		}
+
+		if (duplicates == 1)
+			mDuplicates.remove(songId);
+		else
+			mDuplicates.put(songId, duplicates - 1);
+
+		if (mIndex.get(songId, -1) != slot)
+			return;
+
+		/* The last occurrence is going; every other precedes the gap. */
+		for (int i = mGapStart - 1; i >= 0; i--)
+		{
+			if (mBuffer[i] == songId)
+			{
+				mIndex.put(songId, i);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Update the index for <code>count</code> entries which have moved to
+	 * <code>start</code> from <code>shift</code> slots before. Entries are
+	 * visited in the order of the copy, so that an entry's new slot is never
+	 * mistaken for the old slot of another occurrence of the same song.
+	 */
+	private void reindex(int start, int count, int shift)
+	{
+		if (shift > 0)
+		{
+			for (int i = start + count - 1; i >= start; i--)
+				reindexSlot(i, shift);
+		}
+		else
+		{
+			for (int i = start; i < start + count; i++)
+				reindexSlot(i, shift);
+		}
+	}
+
+	private void reindexSlot(int slot, int shift)
+	{
+		long songId = mBuffer[slot];
+
+		if (mIndex.get(songId, -1) == slot - shift)
+			mIndex.put(songId, slot);
+	}
+
+	private void moveGap(int pos)
+	{
+		if (pos == mGapStart)
+			return;
+
+		int gapLength = mGapEnd - mGapStart;
+
+		if (pos < mGapStart)
+		{
+			int n = mGapStart - pos;
+			System.arraycopy(mBuffer, pos, mBuffer, mGapEnd - n, n);
+			reindex(mGapEnd - n, n, gapLength);
+		}
+		else
+		{
+			int n = pos - mGapStart;
+			System.arraycopy(mBuffer, mGapEnd, mBuffer, mGapStart, n);
+			reindex(mGapStart, n, -gapLength);
+		}
+
+		mGapStart = pos;
+		mGapEnd = pos + gapLength;
+	}
+
+	private void ensureGap(int needed)
+	{
+		if (mGapEnd - mGapStart >= needed)
+			return;
+
+		int size = size();
+		int capacity = Math.max(mBuffer.length * 2, size + needed);
+		long[] buffer = new long[capacity];
+
+		int tail = mBuffer.length - mGapEnd;
+		int shift = capacity - mBuffer.length;
+		System.arraycopy(mBuffer, 0, buffer, 0, mGapStart);
+		System.arraycopy(mBuffer, mGapEnd, buffer, capacity - tail, tail);
+
+		mBuffer = buffer;
+		mGapEnd = capacity - tail;
+		reindex(mGapEnd, tail, shift);
+	}
+
+	private static void checkIndex(int pos, int size)
+	{
+		if (pos < 0 || pos >= size)
+			throw new IndexOutOfBoundsException("Position " + pos + ", size " + size);
+	}
+
+	/**
+	 * Open addressing hash map of long keys to int values, avoiding the
+	 * boxing a {@link java.util.HashMap} would require.
+	 */
+	private static class LongIntMap
+	{
+		private static final long EMPTY = Long.MIN_VALUE;
+
+		private long[] mKeys;
+		private int[] mValues;
+		private int mSize;
+
+		public LongIntMap()
+		{
+			allocate(16);
+		}
+
+		private void allocate(int capacity)
+		{
+			mKeys = new long[capacity];
+			mValues = new int[capacity];
+			Arrays.fill(mKeys, EMPTY);
+			mSize = 0;
+		}
+
+		private static int hash(long key)
+		{
+			int h = (int)(key ^ (key >>> 32));
+			h ^= (h >>> 16);
+			h *= 0x85ebca6b;
+			h ^= (h >>> 13);
+			return h;
+		}
+
+		private int slot(long key)
+		{
+			int mask = mKeys.length - 1;
+			int i = hash(key) & mask;
+
+			while (mKeys[i] != EMPTY && mKeys[i] != key)
+				i = (i + 1) & mask;
+
+			return i;
+		}
+
+		public int get(long key, int defaultValue)
+		{
+			int i = slot(key);
+			return (mKeys[i] == EMPTY) ? defaultValue : mValues[i];
+		}
+
+		public void put(long key, int value)
+		{
+			int i = slot(key);
+
+			if (mKeys[i] == EMPTY)
+			{
+				mKeys[i] = key;
+				mSize++;
+			}
+
+			mValues[i] = value;
+
+			/* Keep the load factor under 1/2. */
+			if (mSize * 2 > mKeys.length)
+				grow();
+		}
+
+		public void remove(long key)
+		{
+			int i = slot(key);
+			if (mKeys[i] == EMPTY)
+				return;
+
+			mKeys[i] = EMPTY;
+			mSize--;
+
+			/* Move back any following entries which probed past the freed
+			 * slot, so that lookups don't stop short of them. */
+			int mask = mKeys.length - 1;
+			for (int j = (i + 1) & mask; mKeys[j] != EMPTY; j = (j + 1) & mask)
+			{
+				int home = hash(mKeys[j]) & mask;
+
+				/* Leave entries whose home lies cyclically in (i, j]. */
+				if ((i < j) ? (home > i && home <= j) : (home > i || home <= j))
+					continue;
+
+				mKeys[i] = mKeys[j];
+				mValues[i] = mValues[j];
+				mKeys[j] = EMPTY;
+				i = j;
+			}
+		}
+
+		private void grow()
+		{
+			long[] keys = mKeys;
+			int[] values = mValues;
+
+			allocate(keys.length * 2);
+
+			for (int i = 0; i < keys.length; i++)
+			{
+				if (keys[i] != EMPTY)
+					put(keys[i], values[i]);
+			}
+		}
+
+		public void clear()
+		{
+			if (mKeys.length > 1024)
+				allocate(16);
+			else
+			{
+				Arrays.fill(mKeys, EMPTY);
+				mSize = 0;
+			}
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.service;
+
+import android.os.SystemClock;
+
+/**
+ * Immutable snapshot of {@link PlaylistService}'s playback state. A new
+ * snapshot is published whenever the state changes, so that read-only
+ * binder calls can answer without taking the service's lock and waiting
+ * behind slow operations such as preparing a song.
+ * <p>
+ * The playback offset is captured along with the time it was sampled, and
+ * extrapolated while audio is being output.
+ */
+public final class PlaybackState
+{
+	public static final PlaybackState STOPPED =
+	  new PlaybackState(-1, -1, false, false, false, 0, -1, 0, -1);
+
+	/** Playlist position, or -1 if unpositioned. */
+	public final int position;
+
+	/** Song at {@link #position}, or -1. */
+	public final long songId;
+
+	public final boolean playing;
+	public final boolean paused;
+	public final boolean prepared;
+
+	public final int playlistLength;
+
+	/** Song duration in milliseconds, or -1 if not yet prepared. */
+	public final long duration;
+
+	private final long mOffset;
+	private final long mOffsetTime;
+
+	/**
+	 * @param offset
+	 *            Playback offset in milliseconds.
+	 * @param offsetTime
+	 *            {@link SystemClock#uptimeMillis()} at which
+	 *            <code>offset</code> was sampled if audio is being output;
+	 *            otherwise, -1.
+	 */
+	public PlaybackState(int position, long songId, boolean playing,
+	  boolean paused, boolean prepared, int playlistLength, long duration,
+	  long offset, long offsetTime)
+	{
+		this.position = position;
+		this.songId = songId;
+		this.playing = playing;
+		this.paused = paused;
+		this.prepared = prepared;
+		this.playlistLength = playlistLength;
+		this.duration = duration;
+
+		mOffset = offset;
+		mOffsetTime = offsetTime;
+	}
+
+	public boolean isOutputting()
+	{
+		return mOffsetTime >= 0;
+	}
+
+	/**
+	 * @return Current playback offset in milliseconds, or -1 if neither
+	 *         playing nor paused.
+	 */
+	public long tell()
+	{
+		if (playing == false && paused == false)
+			return -1;
+
+		if (mOffsetTime < 0)
+			return mOffset;
+
+		long offset = mOffset + (SystemClock.uptimeMillis() - mOffsetTime);
+
+		if (duration >= 0 && offset > duration)
+			offset = duration;
+
+		return offset;
+	}
+}
@@ -0,0 +1,590 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IInterface;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+/**
+ * Delivers {@link PlaylistService} events to remote listeners from a single
+ * dedicated thread, so that neither the download threads nor binder calls
+ * block on listener transactions.
+ * <p>
+ * Download progress and buffering updates are coalesced per song, latest
+ * value wins, and delivered at most every {@link #PROGRESS_INTERVAL}
+ * milliseconds. Playlist changes are held briefly so that a burst of edits
+ * is delivered in one pass over the listeners. All other events are
+ * delivered promptly.
+ * <p>
+ * Every event is delivered in the order it was posted. A coalesced update
+ * holds the place of the first update for its song since the last
+ * delivery, and a later download event for the song starts a new one, so
+ * that progress never arrives after the event ending its download.
+ * <p>
+ * Playback position is pushed to progress listeners, each at its own
+ * requested interval, for as long as audio is being output.
+ */
+public class PlaylistEventDispatcher extends Handler
+{
+	private static final int MSG_FLUSH = 1;
+	private static final int MSG_PLAYBACK_PROGRESS = 2;
+
+	/* Shortest interval a progress listener may request. */
+	private static final int MIN_PROGRESS_INTERVAL = 100;
+
+	/* Minimum time between coalesced progress and buffering updates. */
+	private static final long PROGRESS_INTERVAL = 250;
+
+	/* How long playlist changes are held to batch them with later ones. */
+	private static final long CHANGE_DELAY = 50;
+
+	private static final int KIND_CHANGE = 0;
+	private static final int KIND_MOVE = 1;
+	private static final int KIND_DOWNLOAD = 2;
+	private static final int KIND_BUFFER = 3;
+
+	private final IPlaylistChangeListenerCallbackList mChangeListeners;
+	private final IPlaylistMoveListenerCallbackList mMoveListeners;
+	private final IPlaylistDownloadListenerCallbackList mDownloadListeners;
+	private final IPlaylistBufferListenerCallbackList mBufferListeners;
+
+	private final IPlaylistProgressListenerCallbackList mProgressListeners =
+	  new IPlaylistProgressListenerCallbackList();
+	private final ProgressSource mProgressSource;
+	private final PlaybackProgress mPlaybackProgress = new PlaybackProgress();
+	private volatile boolean mForceProgress;
+
+	/* All of the following are guarded by mEvents. */
+	private final List<Event> mEvents = new ArrayList<Event>();
+	private final Map<Long, ProgressEvent> mProgress = new HashMap<Long, ProgressEvent>();
+	private final Map<Long, ProgressEvent> mBuffering = new HashMap<Long, ProgressEvent>();
+	private long mLastProgressFlush;
+
+	private static abstract class Event
+	{
+		public final int kind;
+
+		public Event(int kind)
+		{
+			this.kind = kind;
+		}
+
+		public abstract void deliver(IInterface listener) throws RemoteException;
+	}
+
+	/**
+	 * Download progress or buffering update for a song, whose percentage is
+	 * replaced by later updates until it is delivered. Guarded by mEvents.
+	 */
+	private static class ProgressEvent extends Event
+	{
+		public final long songId;
+		public int percent;
+
+		public ProgressEvent(int kind, long songId, int percent)
+		{
+			super(kind);
+			this.songId = songId;
+			this.percent = percent;
+		}
+
+		public void deliver(IInterface l) throws RemoteException
+		{
+			if (kind == KIND_DOWNLOAD)
+				((IPlaylistDownloadListener)l).onDownloadProgressUpdate(songId, percent);
+			else
+				((IPlaylistBufferListener)l).onBufferingUpdate(songId, percent);
+		}
+	}
+
+	/**
+	 * Snapshot of the current song's playback, filled in by the
+	 * {@link ProgressSource}.
+	 */
+	public static class PlaybackProgress
+	{
+		public long songId;
+		public long position;
+		public long duration;
+		public int bufferPercent;
+		public boolean outputting;
+	}
+
+	public interface ProgressSource
+	{
+		/**
+		 * @return False if no song is current, in which case nothing is
+		 *         reported.
+		 */
+		public boolean getPlaybackProgress(PlaybackProgress progress);
+	}
+
+	private static class ProgressSubscription
+	{
+		public final long interval;
+		public long lastDelivered;
+
+		public ProgressSubscription(long interval)
+		{
+			this.interval = interval;
+		}
+	}
+
+	public PlaylistEventDispatcher(IPlaylistChangeListenerCallbackList changeListeners,
+	  IPlaylistMoveListenerCallbackList moveListeners,
+	  IPlaylistDownloadListenerCallbackList downloadListeners,
+	  IPlaylistBufferListenerCallbackList bufferListeners,
+	  ProgressSource progressSource)
+	{
+		super(startThread());
+
+		mChangeListeners = changeListeners;
+		mMoveListeners = moveListeners;
+		mDownloadListeners = downloadListeners;
+		mBufferListeners = bufferListeners;
+		mProgressSource = progressSource;
+	}
+
+	private static Looper startThread()
+	{
+		HandlerThread thread = new HandlerThread("PlaylistEvents",
+				Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+
+		return thread.getLooper();
+	}
+
+	/**
+	 * Stop the dispatch thread. Undelivered events are dropped.
+	 */
+	public void quit()
+	{
+		getLooper().quit();
+		mProgressListeners.kill();
+	}
+
+	private void post(Event event)
+	{
+		post(event, -1);
+	}
+
+	/**
+	 * @param songId
+	 *            Song whose download the event concerns, or -1. Progress
+	 *            posted for it afterwards is delivered after this event.
+	 */
+	private void post(Event event, long songId)
+	{
+		synchronized(mEvents) {
+			if (songId != -1)
+				mProgress.remove(songId);
+
+			mEvents.add(event);
+		}
+
+		if (event.kind == KIND_CHANGE)
+		{
+			if (hasMessages(MSG_FLUSH) == false)
+				sendEmptyMessageDelayed(MSG_FLUSH, CHANGE_DELAY);
+		}
+		else
+		{
+			removeMessages(MSG_FLUSH);
+			sendEmptyMessage(MSG_FLUSH);
+		}
+	}
+
+	private void postProgress(Map<Long, ProgressEvent> pending, int kind, long songId,
+	  int percent)
+	{
+		long delay;
+
+		synchronized(mEvents) {
+			ProgressEvent event = pending.get(songId);
+
+			if (event != null)
+				event.percent = percent;
+			else
+			{
+				event = new ProgressEvent(kind, songId, percent);
+				pending.put(songId, event);
+				mEvents.add(event);
+			}
+
+			delay = mLastProgressFlush + PROGRESS_INTERVAL - SystemClock.uptimeMillis();
+		}
+
+		if (hasMessages(MSG_FLUSH) == false)
+			sendEmptyMessageDelayed(MSG_FLUSH, Math.max(delay, 0));
+	}
+
+	@Override
+	public void handleMessage(Message msg)
+	{
+		switch (msg.what)
+		{
+		case MSG_FLUSH:
+			flush();
+			break;
+		case MSG_PLAYBACK_PROGRESS:
+			deliverPlaybackProgress();
+			break;
+		}
+	}
+
+	private void flush()
+	{
+		Event[] events;
+
+		synchronized(mEvents) {
+			events = mEvents.toArray(new Event[mEvents.size()]);
+			mEvents.clear();
+
+			if (mProgress.isEmpty() == false || mBuffering.isEmpty() == false)
+			{
+				mProgress.clear();
+				mBuffering.clear();
+				mLastProgressFlush = SystemClock.uptimeMillis();
+			}
+		}
+
+		/* Deliver each run of events of the same kind in one pass. */
+		int start = 0;
+		while (start < events.length)
+		{
+			int kind = events[start].kind;
+			int end = start + 1;
+
+			while (end < events.length && events[end].kind == kind)
+				end++;
+
+			switch (kind)
+			{
+			case KIND_CHANGE:
+				deliver(mChangeListeners, events, start, end);
+				break;
+			case KIND_MOVE:
+				deliver(mMoveListeners, events, start, end);
+				break;
+			case KIND_DOWNLOAD:
+				deliver(mDownloadListeners, events, start, end);
+				break;
+			case KIND_BUFFER:
+				deliver(mBufferListeners, events, start, end);
+				break;
+			}
+
+			start = end;
+		}
+	}
+
+	private static <E extends IInterface> void deliver(RemoteCallbackList<E> listeners,
+	  Event[] events, int start, int end)
+	{
+		int n = listeners.beginBroadcast();
+
+		for (int i = 0; i < n; i++)
+		{
+			E l = listeners.getBroadcastItem(i);
+
+			try {
+				for (int j = start; j < end; j++)
+					events[j].deliver(l);
+			} catch (RemoteException e) {}
+		}
+
+		listeners.finishBroadcast();
+	}
+
+	public void registerProgressListener(IPlaylistProgressListener l, int interval)
+	{
+		mProgressListeners.register(l,
+		  new ProgressSubscription(Math.max(interval, MIN_PROGRESS_INTERVAL)));
+		postPlaybackProgress();
+	}
+
+	public void unregisterProgressListener(IPlaylistProgressListener l)
+	{
+		mProgressListeners.unregister(l);
+	}
+
+	/**
+	 * Push the playback position to every progress listener now, regardless
+	 * of their interval, and resume periodic updates if audio is being
+	 * output. Called whenever playback state changes.
+	 */
+	public void postPlaybackProgress()
+	{
+		mForceProgress = true;
+		removeMessages(MSG_PLAYBACK_PROGRESS);
+		sendEmptyMessage(MSG_PLAYBACK_PROGRESS);
+	}
+
+	private void deliverPlaybackProgress()
+	{
+		boolean force = mForceProgress;
+		mForceProgress = false;
+
+		int n = mProgressListeners.beginBroadcast();
+		if (n == 0)
+		{
+			mProgressListeners.finishBroadcast();
+			return;
+		}
+
+		PlaybackProgress p = mPlaybackProgress;
+		boolean current = mProgressSource.getPlaybackProgress(p);
+
+		long now = SystemClock.uptimeMillis();
+		long next = Long.MAX_VALUE;
+
+		for (int i = 0; i < n; i++)
+		{
+			ProgressSubscription sub =
+			  (ProgressSubscription)mProgressListeners.getBroadcastCookie(i);
+
+			if (force == true || now >= sub.lastDelivered + sub.interval)
+			{
+				if (current == true)
+				{
+					try {
+						mProgressListeners.getBroadcastItem(i).onPlaybackProgress(p.songId,
+						  p.position, p.duration, p.bufferPercent);
+					} catch (RemoteException e) {}
+				}
+
+				sub.lastDelivered = now;
+			}
+
+			next = Math.min(next, sub.lastDelivered + sub.interval);
+		}
+
+		mProgressListeners.finishBroadcast();
+
+		if (current == true && p.outputting == true)
+		{
+			sendEmptyMessageDelayed(MSG_PLAYBACK_PROGRESS,
+			  Math.max(next - SystemClock.uptimeMillis(), 0));
+		}
+	}
+
+	/*-***********************************************************************/
+
+	public void postClear()
+	{
+		post(new Event(KIND_CHANGE) {
+			public void deliver(IInterface l) throws RemoteException {
+				((IPlaylistChangeListener)l).onClear();
+			}
+		});
+	}
+
+	public void postInsert(final long songId, final int pos)
+	{
+		post(new Event(KIND_CHANGE) {
+			public void deliver(IInterface l) throws RemoteException {
+				((IPlaylistChangeListener)l).onInsert(songId, pos);
+			}
+		});
+	}
+
+	public void postRemove(final int pos)
+	{
+		post(new Event(KIND_CHANGE) {
+			public void deliver(IInterface l) throws RemoteException {
+				((IPlaylistChangeListener)l).onRemove(pos);
+			}
+		});
+	}
+
+	public void postMove(final long songId, final int oldpos, final int newpos)
+	{
+		post(new Event(KIND_CHANGE) {
+			public void deliver(IInterface l) throws RemoteException {
+				((IPlaylistChangeListener)l).onMove(songId, oldpos, newpos);
+			}
+		});
+	}
+
+	public void postInsertRange(final int pos, final int count)
+	{
+		post(new Event(KIND_CHANGE) {
+			public void deliver(IInterface l) throws RemoteException {
+				((IPlaylistChangeListener)l).onInsertRange(pos, count);
+			}
+		});
+	}
+
+	public void postRemoveRange(final int from, final int count)
+	{
+		post(new Event(KIND_CHANGE) {
+			public void deliver(IInterface l) throws RemoteException {
+				((IPlaylistChangeListener)l).onRemoveRange(from, count);
+			}
+		});
+	}
+
+	public void postMoveRange(final int from, final int count, final int to)
+	{
+		post(new Event(KIND_CHANGE) {
+			public void deliver(IInterface l) throws RemoteException {
+				((IPlaylistChangeListener)l).onMoveRange(from, count, to);
+			}
+		});
+	}
+
+	public void postReplace(final int length, final int position, final boolean playing)
+	{
+		post(new Event(KIND_CHANGE) {
+			public void deliver(IInterface l) throws RemoteException {
+				((IPlaylistChangeListener)l).onReplace(length, position, playing);
+			}
+		});
+
+		postPlaybackProgress();
+	}
+
+	/*-***********************************************************************/
+
+	public void postJump(final int pos)
+	{
+		post(new Event(KIND_MOVE) {
+			public void deliver(IInterface l) throws RemoteException {
+				((IPlaylistMoveListener)l).onJump(pos);
+			}
+		});
+
+		postPlaybackProgress();
+	}
+
+	public void postSeek(final long pos)
+	{
+		post(new Event(KIND_MOVE) {
+			public void deliver(IInterface l) throws RemoteException {
+				((IPlaylistMoveListener)l).onSeek(pos);
+			}
+		});
+
+		postPlaybackProgress();
+	}
+
+	public void postPlay()
+	{
+		post(new Event(KIND_MOVE) {
+			public void deliver(IInterface l) throws RemoteException {
+				((IPlaylistMoveListener)l).onPlay();
+			}
+		});
+
+		postPlaybackProgress();
+	}
+
+	public void postPause()
+	{
+		post(new Event(KIND_MOVE) {
+			public void deliver(IInterface l) throws RemoteException {
+				((IPlaylistMoveListener)l).onPause();
+			}
+		});
+
+		postPlaybackProgress();
+	}
+
+	public void postUnpause()
+	{
+		post(new Event(KIND_MOVE) {
+			public void deliver(IInterface l) throws RemoteException {
+				((IPlaylistMoveListener)l).onUnpause();
+			}
+		});
+
+		postPlaybackProgress();
+	}
+
+	public void postStop()
+	{
+		post(new Event(KIND_MOVE) {
+			public void deliver(IInterface l) throws RemoteException {
+				((IPlaylistMoveListener)l).onStop();
+			}
+		});
+
+		postPlaybackProgress();
+	}
+
+	/*-***********************************************************************/
+
+	public void postDownloadBegin(final long songId)
+	{
+		post(new Event(KIND_DOWNLOAD) {
+			public void deliver(IInterface l) throws RemoteException {
+				((IPlaylistDownloadListener)l).onDownloadBegin(songId);
+			}
+		}, songId);
+	}
+
+	public void postDownloadProgress(long songId, int percent)
+	{
+		postProgress(mProgress, KIND_DOWNLOAD, songId, percent);
+	}
+
+	public void postDownloadError(final long songId, final String err)
+	{
+		post(new Event(KIND_DOWNLOAD) {
+			public void deliver(IInterface l) throws RemoteException {
+				((IPlaylistDownloadListener)l).onDownloadError(songId, err);
+			}
+		}, songId);
+	}
+
+	public void postDownloadFinish(final long songId)
+	{
+		post(new Event(KIND_DOWNLOAD) {
+			public void deliver(IInterface l) throws RemoteException {
+				((IPlaylistDownloadListener)l).onDownloadFinish(songId);
+			}
+		}, songId);
+	}
+
+	public void postDownloadCancel(final long songId)
+	{
+		post(new Event(KIND_DOWNLOAD) {
+			public void deliver(IInterface l) throws RemoteException {
+				((IPlaylistDownloadListener)l).onDownloadCancel(songId);
+			}
+		}, songId);
+	}
+
+	public void postBufferingUpdate(long songId, int bufferPercent)
+	{
+		postProgress(mBuffering, KIND_BUFFER, songId, bufferPercent);
+
+		/* Output starts once the buffer fills. */
+		if (bufferPercent == 100)
+			postPlaybackProgress();
+	}
+}
@@ -0,0 +1,894 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Persists the play queue and player state as a snapshot plus an append-only
+ * journal of small records (insert, remove, move, clear, position and player
+ * state, with range forms of the first three for bulk edits), so that an
+ * edit costs a few bytes of I/O rather than a rewrite of the whole queue.
+ * <p>
+ * The {@link ShuffleOrder} is kept the same way. Removes and moves are
+ * applied to it as they are to the queue, and the random draws (a new order,
+ * or the placement of inserted songs) are recorded by their seeds.
+ * <p>
+ * Once the journal has grown large relative to the queue, it is compacted:
+ * the queue is copied, a new journal generation is started, and the copy is
+ * written as the next snapshot on a background thread. Each snapshot records
+ * its generation, and recovery replays only journals of that generation or
+ * later. A crash at any point therefore leaves either the old snapshot with
+ * both journals, or the new snapshot with the new journal. Each record
+ * carries a checksum, and replay stops at the first torn or corrupt record.
+ */
+public class PlaylistJournal
+{
+	private static final String TAG = "PlaylistJournal";
+
+	private static final String SNAPSHOT_FILE = "playlist_state";
+	private static final String SNAPSHOT_FILE_TMP = SNAPSHOT_FILE + ".tmp";
+	private static final int SNAPSHOT_FORMAT = 5;
+
+	/* Earlier format without the shuffle order, still readable. */
+	private static final int SNAPSHOT_FORMAT_UNSHUFFLED = 4;
+
+	private static final String JOURNAL_PREFIX = "playlist_journal.";
+	private static final int JOURNAL_FORMAT = 1;
+
+	private static final byte OP_INSERT = 1;
+	private static final byte OP_REMOVE = 2;
+	private static final byte OP_MOVE = 3;
+	private static final byte OP_CLEAR = 4;
+	private static final byte OP_POSITION = 5;
+	private static final byte OP_STATE = 6;
+	private static final byte OP_INSERT_RANGE = 7;
+	private static final byte OP_REMOVE_RANGE = 8;
+	private static final byte OP_MOVE_RANGE = 9;
+	private static final byte OP_SHUFFLE = 10;
+	private static final byte OP_UNSHUFFLE = 11;
+	private static final byte OP_SHUFFLE_INSERT = 12;
+
+	/* Sanity bound on the songs in a single insert record. */
+	private static final int MAX_INSERT_RANGE = 1 << 20;
+
+	/* Compact once the journal holds this many records, or one record for
+	 * every COMPACT_RATIO queue entries, whichever is larger. */
+	private static final int COMPACT_MIN_RECORDS = 512;
+	private static final int COMPACT_RATIO = 8;
+
+	/**
+	 * Player state as of the last record.
+	 */
+	public static class State
+	{
+		public int position = -1;
+		public boolean playing;
+		public boolean paused;
+
+		/** Playback offset in milliseconds, if paused. */
+		public int offset;
+
+		/** Whether the shuffle order is in use. */
+		public boolean shuffled;
+	}
+
+	private final Context mContext;
+
+	private final State mState = new State();
+
+	private long mGeneration;
+	private FileOutputStream mJournalFile;
+	private DataOutputStream mJournal;
+	private int mRecords;
+
+	private Thread mCompactor;
+
+	/* Set if a record failed to write, in which case the next
+	 * compaction must not be skipped. */
+	private boolean mBroken;
+
+	private final ByteArrayOutputStream mRecordBytes = new ByteArrayOutputStream(32);
+	private final DataOutputStream mRecord = new DataOutputStream(mRecordBytes);
+	private final CRC32 mCrc = new CRC32();
+
+	private boolean mReplayComplete;
+
+	public PlaylistJournal(Context context)
+	{
+		mContext = context;
+	}
+
+	private String getJournalName(long generation)
+	{
+		return JOURNAL_PREFIX + generation;
+	}
+
+	/**
+	 * Journal generations present on disk, in ascending order.
+	 */
+	private List<Long> getJournalGenerations()
+	{
+		List<Long> generations = new ArrayList<Long>();
+
+		String[] files = mContext.fileList();
+		if (files == null)
+			return generations;
+
+		for (String name: files)
+		{
+			if (name.startsWith(JOURNAL_PREFIX) == false)
+				continue;
+
+			try {
+				generations.add(Long.parseLong(name.substring(JOURNAL_PREFIX.length())));
+			} catch (NumberFormatException e) {}
+		}
+
+		Collections.sort(generations);
+		return generations;
+	}
+
+	/**
+	 * Rebuild the queue, shuffle order and player state from disk, and open
+	 * the journal for subsequent records. Must be called before any records
+	 * are logged.
+	 *
+	 * @return True if any saved state was found.
+	 */
+	public synchronized boolean recover(PlayQueue queue, ShuffleOrder shuffle,
+		State state)
+	{
+		boolean found = false;
+		boolean trustJournals = true;
+		long generation = 0;
+
+		queue.clear();
+		shuffle.clear();
+
+		try {
+			generation = readSnapshot(queue, shuffle);
+			found = true;
+		} catch (FileNotFoundException e) {
+		} catch (IOException e) {
+			Log.e(TAG, "Couldn't read playlist snapshot, discarding saved state", e);
+			trustJournals = false;
+			queue.clear();
+			shuffle.clear();
+			mState.position = -1;
+			mState.playing = mState.paused = false;
+			mState.offset = 0;
+			mState.shuffled = false;
+		}
+
+		List<Long> journals = getJournalGenerations();
+		long newest = generation;
+		int replayed = 0;
+
+		for (long journal: journals)
+		{
+			newest = Math.max(newest, journal);
+
+			if (trustJournals == false || journal < generation)
+				continue;
+
+			int n = replay(journal, queue, shuffle);
+
+			if (n > 0)
+			{
+				replayed += n;
+				found = true;
+			}
+
+			/* Anything in a later journal would be applied to the wrong
+			 * queue. */
+			if (mReplayComplete == false)
+				trustJournals = false;
+		}
+
+		if (mState.position >= queue.size())
+			mState.position = -1;
+
+		/* Possible if we were killed between an insert and its seed. */
+		if (mState.shuffled == true && shuffle.size() != queue.size())
+		{
+			Log.w(TAG, "Recovered shuffle order doesn't match the queue, discarding");
+			shuffle.clear();
+			mState.shuffled = false;
+		}
+
+		boolean folded = true;
+
+		if (replayed > 0)
+		{
+			/* Fold what we replayed into a new snapshot now, rather than
+			 * carry the old journals forward. */
+			try {
+				writeSnapshot(newest + 1, queue.toArray(0, queue.size()),
+					getShuffleOrder(shuffle), mState);
+				generation = newest + 1;
+			} catch (IOException e) {
+				Log.e(TAG, "Couldn't write playlist snapshot", e);
+				mBroken = true;
+				folded = false;
+			}
+		}
+
+		if (folded == true)
+		{
+			for (long journal: getJournalGenerations())
+			{
+				if (journal != generation)
+					mContext.deleteFile(getJournalName(journal));
+			}
+
+			mGeneration = generation;
+		}
+		else
+		{
+			/* The old snapshot and its journals are still what we recovered
+			 * from; keep them, and continue in a journal after them. The
+			 * next compaction is forced, as the journals may not replay
+			 * past a torn record. */
+			mGeneration = newest + 1;
+		}
+
+		try {
+			openJournal();
+		} catch (IOException e) {
+			Log.e(TAG, "Couldn't open playlist journal", e);
+			mBroken = true;
+		}
+
+		state.position = mState.position;
+		state.playing = mState.playing;
+		state.paused = mState.paused;
+		state.offset = mState.offset;
+		state.shuffled = mState.shuffled;
+
+		return found;
+	}
+
+	private int[] getShuffleOrder(ShuffleOrder shuffle)
+	{
+		return (mState.shuffled == true) ? shuffle.toArray() : null;
+	}
+
+	private long readSnapshot(PlayQueue queue, ShuffleOrder shuffle) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				mContext.openFileInput(SNAPSHOT_FILE), 8192));
+
+		try {
+			int format = in.readInt();
+			if (format != SNAPSHOT_FORMAT && format != SNAPSHOT_FORMAT_UNSHUFFLED)
+				throw new IOException("Unknown snapshot format");
+
+			long generation = in.readLong();
+
+			mState.position = in.readInt();
+			mState.playing = in.readBoolean();
+			mState.paused = in.readBoolean();
+			mState.offset = in.readInt();
+
+			int length = in.readInt();
+			for (int i = 0; i < length; i++)
+				queue.add(in.readLong());
+
+			mState.shuffled = false;
+
+			if (format == SNAPSHOT_FORMAT && in.readBoolean() == true)
+			{
+				int[] order = new int[in.readInt()];
+				for (int i = 0; i < order.length; i++)
+					order[i] = in.readInt();
+
+				/* The queue is still good without it. */
+				if (order.length == length && shuffle.set(order) == true)
+					mState.shuffled = true;
+				else
+				{
+					Log.w(TAG, "Bad shuffle order in snapshot, discarding");
+					shuffle.clear();
+				}
+			}
+
+			return generation;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Apply a journal to the queue. Stops at the first incomplete or corrupt
+	 * record, which is expected at the end of the journal if we were killed
+	 * mid-write.
+	 *
+	 * @return Number of records applied, or -1 if the journal's header is
+	 *         unreadable. Sets {@link #mReplayComplete} if the whole journal
+	 *         was applied.
+	 */
+	private int replay(long generation, PlayQueue queue, ShuffleOrder shuffle)
+	{
+		File file = mContext.getFileStreamPath(getJournalName(generation));
+		int records = -1;
+
+		mReplayComplete = false;
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file), 8192));
+
+			try {
+				if (in.readInt() != JOURNAL_FORMAT || in.readLong() != generation)
+					throw new IOException("Bad journal header");
+
+				records = 0;
+				byte[] payload = new byte[64];
+
+				for (;;)
+				{
+					int op = in.read();
+					if (op < 0)
+					{
+						mReplayComplete = true;
+						break;
+					}
+
+					int length = getPayloadLength((byte)op);
+					if (length < 0)
+						throw new IOException("Unknown journal op " + op);
+
+					in.readFully(payload, 0, length);
+
+					/* Followed by the inserted song ids. */
+					if (op == OP_INSERT_RANGE)
+					{
+						int count = getInt(payload, 4);
+						if (count < 0 || count > MAX_INSERT_RANGE)
+							throw new IOException("Bad journal insert count " + count);
+
+						if (payload.length < length + count * 8)
+						{
+							byte[] grown = new byte[length + count * 8];
+							System.arraycopy(payload, 0, grown, 0, length);
+							payload = grown;
+						}
+
+						in.readFully(payload, length, count * 8);
+						length += count * 8;
+					}
+
+					int crc = in.readInt();
+
+					mCrc.reset();
+					mCrc.update(op);
+					mCrc.update(payload, 0, length);
+					if ((int)mCrc.getValue() != crc)
+						throw new IOException("Journal record checksum mismatch");
+
+					apply((byte)op, payload, queue, shuffle);
+					records++;
+				}
+			} finally {
+				in.close();
+			}
+		} catch (EOFException e) {
+			Log.w(TAG, "Journal " + generation + " ends with a torn record");
+		} catch (IOException e) {
+			Log.w(TAG, "Journal " + generation + " is damaged: " + e.toString());
+		}
+
+		return records;
+	}
+
+	private static int getPayloadLength(byte op)
+	{
+		switch (op)
+		{
+		case OP_INSERT: return 12;
+		case OP_REMOVE: return 4;
+		case OP_MOVE: return 8;
+		case OP_CLEAR: return 0;
+		case OP_POSITION: return 4;
+		case OP_STATE: return 6;
+		case OP_INSERT_RANGE: return 8;
+		case OP_REMOVE_RANGE: return 8;
+		case OP_MOVE_RANGE: return 12;
+		case OP_SHUFFLE: return 12;
+		case OP_UNSHUFFLE: return 0;
+		case OP_SHUFFLE_INSERT: return 20;
+		default: return -1;
+		}
+	}
+
+	private static int getInt(byte[] b, int off)
+	{
+		return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) |
+			((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+	}
+
+	private static long getLong(byte[] b, int off)
+	{
+		return ((long)getInt(b, off) << 32) | (getInt(b, off + 4) & 0xffffffffL);
+	}
+
+	/* Queue edits are applied to the shuffle order while it is in use,
+	 * except for inserts, which are followed by an OP_SHUFFLE_INSERT. */
+	private void apply(byte op, byte[] payload, PlayQueue queue, ShuffleOrder shuffle)
+		throws IOException
+	{
+		boolean shuffled = mState.shuffled;
+
+		try {
+			switch (op)
+			{
+			case OP_INSERT:
+				queue.add(getInt(payload, 0), getLong(payload, 4));
+				break;
+			case OP_REMOVE:
+				queue.remove(getInt(payload, 0));
+				if (shuffled == true)
+					shuffle.onRemove(getInt(payload, 0));
+				break;
+			case OP_MOVE:
+				queue.move(getInt(payload, 0), getInt(payload, 4));
+				if (shuffled == true)
+					shuffle.onMove(getInt(payload, 0), getInt(payload, 4));
+				break;
+			case OP_INSERT_RANGE:
+				int count = getInt(payload, 4);
+				long[] songIds = new long[count];
+				for (int i = 0; i < count; i++)
+					songIds[i] = getLong(payload, 8 + i * 8);
+				queue.addAll(getInt(payload, 0), songIds, 0, count);
+				break;
+			case OP_REMOVE_RANGE:
+				int from = getInt(payload, 0);
+				queue.removeRange(from, from + getInt(payload, 4));
+				if (shuffled == true)
+					shuffle.onRemoveRange(from, getInt(payload, 4));
+				break;
+			case OP_MOVE_RANGE:
+				queue.moveRange(getInt(payload, 0), getInt(payload, 4), getInt(payload, 8));
+				if (shuffled == true)
+					shuffle.onMoveRange(getInt(payload, 0), getInt(payload, 4), getInt(payload, 8));
+				break;
+			case OP_CLEAR:
+				queue.clear();
+				shuffle.clear();
+				break;
+			case OP_SHUFFLE:
+				shuffle.shuffle(queue.size(), getInt(payload, 0), getLong(payload, 4));
+				mState.shuffled = true;
+				break;
+			case OP_UNSHUFFLE:
+				shuffle.clear();
+				mState.shuffled = false;
+				break;
+			case OP_SHUFFLE_INSERT:
+				int pos = getInt(payload, 0);
+				int added = getInt(payload, 4);
+				if (shuffled == false || shuffle.size() + added != queue.size() ||
+				    pos < 0 || pos > shuffle.size())
+					throw new IOException("Shuffle insert doesn't match the queue");
+				shuffle.onInsertRange(pos, added, getInt(payload, 8), getLong(payload, 12));
+				break;
+			case OP_POSITION:
+				mState.position = getInt(payload, 0);
+				break;
+			case OP_STATE:
+				mState.playing = payload[0] != 0;
+				mState.paused = payload[1] != 0;
+				mState.offset = getInt(payload, 2);
+				break;
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("Journal record out of bounds: " + e.getMessage());
+		}
+	}
+
+	private void openJournal() throws IOException
+	{
+		mJournalFile = mContext.openFileOutput(getJournalName(mGeneration),
+				Context.MODE_PRIVATE);
+		mJournal = new DataOutputStream(new BufferedOutputStream(mJournalFile, 512));
+
+		mJournal.writeInt(JOURNAL_FORMAT);
+		mJournal.writeLong(mGeneration);
+		mJournal.flush();
+		mRecords = 0;
+	}
+
+	private void closeJournal()
+	{
+		if (mJournal != null)
+		{
+			try {
+				mJournal.close();
+			} catch (IOException e) {}
+
+			mJournal = null;
+			mJournalFile = null;
+		}
+	}
+
+	private void append(byte op)
+	{
+		append(op, 1);
+	}
+
+	/**
+	 * @param weight
+	 *            Number of records this one counts as towards compaction,
+	 *            so that bulk records are folded into a snapshot as
+	 *            promptly as the equivalent single records would be.
+	 */
+	private void append(byte op, int weight)
+	{
+		if (mJournal == null)
+		{
+			mBroken = true;
+			return;
+		}
+
+		byte[] payload = mRecordBytes.toByteArray();
+
+		mCrc.reset();
+		mCrc.update(op);
+		mCrc.update(payload, 0, payload.length);
+
+		try {
+			mJournal.writeByte(op);
+			mJournal.write(payload);
+			mJournal.writeInt((int)mCrc.getValue());
+			mJournal.flush();
+			mRecords += weight;
+		} catch (IOException e) {
+			Log.e(TAG, "Couldn't append to playlist journal", e);
+			mBroken = true;
+		}
+	}
+
+	public synchronized void logInsert(int pos, long songId)
+	{
+		try {
+			mRecordBytes.reset();
+			mRecord.writeInt(pos);
+			mRecord.writeLong(songId);
+		} catch (IOException e) {}
+
+		append(OP_INSERT);
+	}
+
+	public synchronized void logInsertRange(int pos, long[] songIds, int offset, int count)
+	{
+		try {
+			mRecordBytes.reset();
+			mRecord.writeInt(pos);
+			mRecord.writeInt(count);
+			for (int i = 0; i < count; i++)
+				mRecord.writeLong(songIds[offset + i]);
+		} catch (IOException e) {}
+
+		append(OP_INSERT_RANGE, Math.max(1, count));
+	}
+
+	public synchronized void logRemove(int pos)
+	{
+		try {
+			mRecordBytes.reset();
+			mRecord.writeInt(pos);
+		} catch (IOException e) {}
+
+		append(OP_REMOVE);
+	}
+
+	/**
+	 * @param to
+	 *            Final position of the moved entry, as in
+	 *            {@link PlayQueue#move(int, int)}.
+	 */
+	public synchronized void logMove(int from, int to)
+	{
+		try {
+			mRecordBytes.reset();
+			mRecord.writeInt(from);
+			mRecord.writeInt(to);
+		} catch (IOException e) {}
+
+		append(OP_MOVE);
+	}
+
+	public synchronized void logRemoveRange(int from, int count)
+	{
+		try {
+			mRecordBytes.reset();
+			mRecord.writeInt(from);
+			mRecord.writeInt(count);
+		} catch (IOException e) {}
+
+		append(OP_REMOVE_RANGE);
+	}
+
+	/**
+	 * @param to
+	 *            Final position of the first moved entry, as in
+	 *            {@link PlayQueue#moveRange(int, int, int)}.
+	 */
+	public synchronized void logMoveRange(int from, int count, int to)
+	{
+		try {
+			mRecordBytes.reset();
+			mRecord.writeInt(from);
+			mRecord.writeInt(count);
+			mRecord.writeInt(to);
+		} catch (IOException e) {}
+
+		append(OP_MOVE_RANGE);
+	}
+
+	public synchronized void logClear()
+	{
+		mRecordBytes.reset();
+		append(OP_CLEAR);
+	}
+
+	/**
+	 * Record a new shuffle order drawn by
+	 * {@link ShuffleOrder#shuffle(int, int, long)}, which puts it in use.
+	 */
+	public synchronized void logShuffle(int first, long seed)
+	{
+		mState.shuffled = true;
+
+		try {
+			mRecordBytes.reset();
+			mRecord.writeInt(first);
+			mRecord.writeLong(seed);
+		} catch (IOException e) {}
+
+		append(OP_SHUFFLE);
+	}
+
+	/**
+	 * Record that the shuffle order is no longer in use.
+	 */
+	public synchronized void logUnshuffle()
+	{
+		if (mState.shuffled == false)
+			return;
+
+		mState.shuffled = false;
+
+		mRecordBytes.reset();
+		append(OP_UNSHUFFLE);
+	}
+
+	/**
+	 * Record the arguments to
+	 * {@link ShuffleOrder#onInsertRange(int, int, int, long)}, following
+	 * the insert record for the same songs.
+	 */
+	public synchronized void logShuffleInsert(int pos, int count, int current, long seed)
+	{
+		try {
+			mRecordBytes.reset();
+			mRecord.writeInt(pos);
+			mRecord.writeInt(count);
+			mRecord.writeInt(current);
+			mRecord.writeLong(seed);
+		} catch (IOException e) {}
+
+		append(OP_SHUFFLE_INSERT);
+	}
+
+	/**
+	 * Record the playlist position. No-op if it hasn't changed.
+	 */
+	public synchronized void logPosition(int position)
+	{
+		if (mState.position == position)
+			return;
+
+		mState.position = position;
+
+		try {
+			mRecordBytes.reset();
+			mRecord.writeInt(position);
+		} catch (IOException e) {}
+
+		append(OP_POSITION);
+	}
+
+	/**
+	 * Record the player state. No-op if it hasn't changed.
+	 */
+	public synchronized void logState(boolean playing, boolean paused, int offset)
+	{
+		if (mState.playing == playing && mState.paused == paused &&
+		    mState.offset == offset)
+			return;
+
+		mState.playing = playing;
+		mState.paused = paused;
+		mState.offset = offset;
+
+		try {
+			mRecordBytes.reset();
+			mRecord.writeBoolean(playing);
+			mRecord.writeBoolean(paused);
+			mRecord.writeInt(offset);
+		} catch (IOException e) {}
+
+		append(OP_STATE);
+	}
+
+	/**
+	 * Force logged records to the storage device.
+	 */
+	public synchronized void sync()
+	{
+		if (mJournalFile == null)
+			return;
+
+		try {
+			mJournalFile.getFD().sync();
+		} catch (IOException e) {
+			Log.w(TAG, "Couldn't sync playlist journal", e);
+		}
+	}
+
+	/**
+	 * Start a background compaction if the journal has grown large enough
+	 * to be worth it. The caller must hold whatever lock guards
+	 * <code>queue</code> and <code>shuffle</code>, which are copied before
+	 * returning.
+	 */
+	public synchronized void compactIfNeeded(PlayQueue queue, ShuffleOrder shuffle)
+	{
+		if (mCompactor != null)
+			return;
+
+		int threshold = Math.max(COMPACT_MIN_RECORDS, queue.size() / COMPACT_RATIO);
+		if (mBroken == false && mRecords < threshold)
+			return;
+
+		final long[] songIds = queue.toArray(0, queue.size());
+		final int[] order = getShuffleOrder(shuffle);
+		final State state = new State();
+		state.position = mState.position;
+		state.playing = mState.playing;
+		state.paused = mState.paused;
+		state.offset = mState.offset;
+		state.shuffled = mState.shuffled;
+
+		/* Records from here on belong to the next snapshot. */
+		closeJournal();
+		final long generation = ++mGeneration;
+		mBroken = false;
+
+		try {
+			openJournal();
+		} catch (IOException e) {
+			Log.e(TAG, "Couldn't open playlist journal", e);
+			mBroken = true;
+		}
+
+		mCompactor = new Thread("PlaylistJournal compaction") {
+			public void run() {
+				try {
+					writeSnapshot(generation, songIds, order, state);
+				} catch (IOException e) {
+					Log.e(TAG, "Couldn't write playlist snapshot", e);
+
+					synchronized(PlaylistJournal.this) {
+						mBroken = true;
+					}
+				} finally {
+					synchronized(PlaylistJournal.this) {
+						mCompactor = null;
+						PlaylistJournal.this.notifyAll();
+					}
+				}
+			}
+		};
+		mCompactor.setPriority(Thread.MIN_PRIORITY);
+		mCompactor.start();
+	}
+
+	/**
+	 * @param order
+	 *            Shuffle order, or null if it is not in use.
+	 */
+	private void writeSnapshot(long generation, long[] songIds, int[] order,
+		State state) throws IOException
+	{
+		FileOutputStream outf = mContext.openFileOutput(SNAPSHOT_FILE_TMP,
+				Context.MODE_PRIVATE);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outf, 8192));
+
+		try {
+			out.writeInt(SNAPSHOT_FORMAT);
+			out.writeLong(generation);
+			out.writeInt(state.position);
+			out.writeBoolean(state.playing);
+			out.writeBoolean(state.paused);
+			out.writeInt(state.offset);
+
+			out.writeInt(songIds.length);
+			for (long songId: songIds)
+				out.writeLong(songId);
+
+			out.writeBoolean(order != null);
+			if (order != null)
+			{
+				out.writeInt(order.length);
+				for (int pos: order)
+					out.writeInt(pos);
+			}
+
+			out.flush();
+			outf.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		File tmp = mContext.getFileStreamPath(SNAPSHOT_FILE_TMP);
+		if (tmp.renameTo(mContext.getFileStreamPath(SNAPSHOT_FILE)) == false)
+			throw new IOException("Couldn't rename " + tmp);
+
+		/* Earlier journals are now folded into the snapshot. */
+		for (long journal: getJournalGenerations())
+		{
+			if (journal < generation)
+				mContext.deleteFile(getJournalName(journal));
+		}
+	}
+
+	/**
+	 * Wait for any compaction in progress and close the journal.
+	 */
+	public synchronized void close()
+	{
+		while (mCompactor != null)
+		{
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+
+		closeJournal();
+	}
+}
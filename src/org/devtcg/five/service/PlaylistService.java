@@ -14,16 +14,10 @@
 
 package org.devtcg.five.service;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.FileDescriptor;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.PrintWriter;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -39,8 +33,11 @@ import org.devtcg.five.provider.util.SourceItem;
 import org.devtcg.five.provider.util.Sources;
 import org.devtcg.five.receiver.MediaButton;
 import org.devtcg.five.service.CacheManager.CacheAllocationException;
+import org.devtcg.five.service.CacheStats.Origin;
 import org.devtcg.five.util.AuthHelper;
 import org.devtcg.five.util.streaming.DownloadManager;
+import org.devtcg.five.util.streaming.DownloadSink;
+import org.devtcg.five.util.streaming.FileDownloadSink;
 import org.devtcg.five.util.streaming.StreamMediaPlayer;
 import org.devtcg.five.util.streaming.TailStream;
 
@@ -50,6 +47,7 @@ import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
@@ -61,6 +59,8 @@ import android.os.IBinder;
 import android.os.Message;
 import android.os.PowerManager;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
 import android.util.Log;
@@ -68,13 +68,43 @@ import android.view.KeyEvent;
 
 public class PlaylistService extends Service implements
   MediaPlayer.OnBufferingUpdateListener, MediaPlayer.OnErrorListener,
-  MediaPlayer.OnCompletionListener, MediaPlayer.OnPreparedListener
+  MediaPlayer.OnCompletionListener, MediaPlayer.OnPreparedListener,
+  MediaPlayer.OnSeekCompleteListener
 {
 	public static final String TAG = "PlaylistService";
 
-	private static final String STATE_FILE = "playlist_state";
-	private static final String STATE_FILE_TMP = STATE_FILE + ".tmp";
-	private static final int STATE_FILE_FORMAT = 3;
+	/**
+	 * Repeat modes for {@link IPlaylistService#setRepeat}.
+	 */
+	public static final class RepeatMode
+	{
+		/** Stop after the last song. */
+		public static final int NONE = 0;
+
+		/** Start over from the first song after the last. */
+		public static final int ALL = 1;
+
+		/** Play the current song again when it completes. */
+		public static final int SONG = 2;
+	}
+
+	private static final String PREF_RANDOM = "playlist_random";
+	private static final String PREF_REPEAT = "playlist_repeat";
+
+	/**
+	 * Number of queue entries beyond the next track that are considered as
+	 * candidates for predictive cache warming.
+	 */
+	static final int PREDICT_QUEUE_LOOKAHEAD = 2;
+
+	/* Bound on the entries returned by a single getPlaylistRange call, to
+	 * keep binder transactions small. */
+	private static final int MAX_PLAYLIST_RANGE = 4096;
+
+	/* How often the playback snapshot is resampled from the player while
+	 * playing, so that its extrapolated offset doesn't drift, for instance
+	 * across a buffer underrun. */
+	private static final long RESAMPLE_INTERVAL = 1000;
 
 	/* Lock synchronizing resource access from binder threads.  This is more
 	 * of a hint than a rule as we know that only one thread will be making
@@ -85,16 +115,60 @@ public class PlaylistService extends Service implements
 
 	CacheManager mCacheMgr = null;
 
+	PlayHistory mHistory;
+	PlayPredictor mPredictor;
+
+	/**
+	 * Last song handed to {@link #playInternal}, used to record transitions
+	 * in the play history.
+	 */
+	long mLastPlayedSongId = -1;
+
 	StreamMediaPlayer mPlayer = null;
 
-	final List<Long> mPlaylist =
-	  Collections.synchronizedList(new ArrayList<Long>(50));
+	/**
+	 * Second player, prepared ahead with the song due to play next so that
+	 * it can be swapped in without a gap (see {@link #nextPlayerCheck}).
+	 * Guarded by mBinderLock, as are mNextSongId, mNextSource and
+	 * mNextPrepared.
+	 */
+	StreamMediaPlayer mNextPlayer = null;
+	long mNextSongId = -1;
+	SongSource mNextSource = null;
+	boolean mNextPrepared = false;
+
+	/* Guarded by mBinderLock. */
+	final PlayQueue mPlaylist = new PlayQueue();
+
+	/**
+	 * Persists edits to {@link #mPlaylist} and the player state as they
+	 * happen. Records must be logged while holding mBinderLock so that they
+	 * are ordered as the edits were.
+	 */
+	PlaylistJournal mJournal;
+
+	/* Play order used in random mode.  Guarded by mBinderLock. */
+	ShuffleOrder mShuffle;
+
+	boolean mRandom = false;
+	int mRepeat = RepeatMode.NONE;
 
 	volatile int mPosition = -1;
 	volatile boolean mPlaying = false;
 	volatile boolean mPaused = false;
 	volatile boolean mPrepared = false;
 
+	/**
+	 * Offset in milliseconds to seek to as soon as the player is prepared,
+	 * used to resume a paused song recovered after the service was killed.
+	 * Guarded by mBinderLock.
+	 */
+	int mResumeOffset = 0;
+
+	/* Published after every change to the above (and to the playlist's
+	 * length) for lock-free readers; see publishState(). */
+	volatile PlaybackState mState = PlaybackState.STOPPED;
+
 	/**
 	 * Tracks whether there are activities currently bound to the service so
 	 * that we can determine when it would be safe to call stopSelf().
@@ -106,6 +180,8 @@ public class PlaylistService extends Service implements
 	IPlaylistDownloadListenerCallbackList mDownloadListeners;
 	IPlaylistBufferListenerCallbackList mBufferListeners;
 
+	PlaylistEventDispatcher mDispatcher;
+
 	PowerManager.WakeLock mWakeLock;
 
 	volatile boolean mResumeAfterCall = false;
@@ -137,17 +213,24 @@ public class PlaylistService extends Service implements
 		mDownloadListeners = new IPlaylistDownloadListenerCallbackList();
 		mBufferListeners = new IPlaylistBufferListenerCallbackList();
 
+		mDispatcher = new PlaylistEventDispatcher(mChangeListeners,
+		  mMoveListeners, mDownloadListeners, mBufferListeners,
+		  mProgressSource);
+
 		mManager = new SongDownloadManager(this);
 
 		mCacheMgr = CacheManager.getInstance();
 
-		/* When the service dies we attempt to serialize playlist state to
-		 * disk.  Check for, and recover from, this state file. */
-		try {
-			recoverState();
-		} catch (IOException e) {
-			Log.e(TAG, "Couldn't recover state!", e);
-		}
+		mHistory = new PlayHistory(this);
+		mHistory.loadQuietly();
+		mPredictor = new PlayPredictor(this, mHistory);
+
+		/* Playlist state is journaled to disk as it changes.  Check for,
+		 * and recover from, the saved state. */
+		mJournal = new PlaylistJournal(this);
+		mShuffle = new ShuffleOrder();
+		if (recoverState() == true)
+			mHandler.post(mPrepareRecovered);
 
 		/* Detect when the headphone jack is suddenly unplugged. */
 		registerReceiver(mNoisyReceiver,
@@ -167,7 +250,9 @@ public class PlaylistService extends Service implements
 
 		mManager.shutdown();
 
-		saveStateQuietly();
+		saveState();
+		mJournal.close();
+		mHistory.saveQuietly();
 
 		unregisterReceiver(mNoisyReceiver);
 		unregisterReceiver(mConnectivityReceiver);
@@ -178,6 +263,8 @@ public class PlaylistService extends Service implements
 
 		/* XXX: Synchronization may not be necessary here as onDestroy() is
 		 * likely to have been called after any binder threads were nuked. */
+		mDispatcher.quit();
+
 		synchronized(mBinderLock) {
 			mChangeListeners.kill();
 			mMoveListeners.kill();
@@ -187,8 +274,15 @@ public class PlaylistService extends Service implements
 			mPlayer.reset();
 			mPlayer.release();
 			mPlayer = null;
+
+			if (mNextPlayer != null)
+			{
+				mNextPlayer.release();
+				mNextPlayer = null;
+			}
 		}
 
+		mHandler.removeCallbacks(mResample);
 		mWakeLock.release();
 
 		super.onDestroy();
@@ -224,104 +318,209 @@ public class PlaylistService extends Service implements
 		}
 	}
 
+	/**
+	 * Record the current position and player state, and make sure all
+	 * journaled state has reached the storage device.
+	 */
 	public void saveState()
-	  throws IOException
 	{
-		FileOutputStream outf = openFileOutput(STATE_FILE_TMP, MODE_PRIVATE);
-		DataOutputStream out = null;
+		synchronized(mBinderLock) {
+			journalState();
+			mJournal.compactIfNeeded(mPlaylist, mShuffle);
+		}
 
-		try {
-			int bufferSize = Math.min(18 + (mPlaylist.size() * 8), 2048);
-			out = new DataOutputStream(new BufferedOutputStream(outf, bufferSize));
+		mJournal.sync();
+	}
 
-			out.writeInt(STATE_FILE_FORMAT);
-			out.writeInt(mPosition);
-			out.writeBoolean(mPlaying);
-			out.writeBoolean(mPaused);
+	public boolean recoverState()
+	{
+		PlaylistJournal.State state = new PlaylistJournal.State();
 
-			if (mPaused == true)
-				out.writeInt(mPlayer.getCurrentPosition());
-			else
-				out.writeInt(0);
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
 
-			out.writeInt(mPlaylist.size());
-			for (Long songId: mPlaylist)
-				out.writeLong(songId);
-		} finally {
-			if (out != null)
-				out.close();
-			else
-				outf.close();
+		synchronized(mBinderLock) {
+			mRepeat = prefs.getInt(PREF_REPEAT, RepeatMode.NONE);
+			mRandom = prefs.getBoolean(PREF_RANDOM, false);
+
+			boolean found = mJournal.recover(mPlaylist, mShuffle, state);
+
+			/* Saved separately by earlier versions; now in the journal. */
+			deleteFile("shuffle_order");
+
+			if (mRandom == true && state.shuffled == false)
+				reshuffle(state.position);
+			else if (mRandom == false && state.shuffled == true)
+			{
+				mShuffle.clear();
+				mJournal.logUnshuffle();
+			}
+
+			if (found == false)
+			{
+				publishState();
+				return false;
+			}
+
+			mPosition = state.position;
+			mPlaying = state.playing;
+			mPaused = state.paused;
+			mPrepared = false;
+
+			/* The player is prepared separately (see mPrepareRecovered), and
+			 * seeks to where we left off before any audio is output. */
+			if (mPlaying == true && mPaused == true && mPosition >= 0)
+				mResumeOffset = state.offset;
+
+			publishState();
 		}
 
-		File tmp = getFileStreamPath(STATE_FILE_TMP);
-		tmp.renameTo(getFileStreamPath(STATE_FILE));
+		return true;
 	}
 
-	public void saveStateQuietly()
+	/**
+	 * Prepares a paused song recovered by {@link #recoverState} so that
+	 * unpausing is instant. If the song isn't fully cached, this also gets
+	 * its download under way.
+	 */
+	private final Runnable mPrepareRecovered = new Runnable()
 	{
-		try {
-			saveState();
-		} catch (IOException e) {
-			Log.e(TAG, "Couldn't save state!", e);
+		public void run()
+		{
+			synchronized(mBinderLock) {
+				if (mPlaying == true && mPaused == true && mPrepared == false &&
+				    mPosition >= 0)
+				{
+					playInternal(mPlaylist.get(mPosition));
+				}
+			}
 		}
+	};
+
+	private void savePlayModes()
+	{
+		PreferenceManager.getDefaultSharedPreferences(this).edit()
+			.putBoolean(PREF_RANDOM, mRandom)
+			.putInt(PREF_REPEAT, mRepeat)
+			.commit();
 	}
 
-	public boolean recoverState()
-	  throws IOException
+	/**
+	 * Songs to be played from the given queue position onward (inclusive),
+	 * taking random mode into account. Must be called with mBinderLock held.
+	 */
+	private long[] getUpcomingSongs(int pos, int count)
 	{
-		FileInputStream inf;
+		if (mRandom == false)
+			return mPlaylist.toArray(pos, pos + count);
 
-		try {
-			inf = openFileInput(STATE_FILE);
-		} catch (FileNotFoundException e) {
-			return false;
-		}
+		int[] positions = new int[count];
+		int n = mShuffle.upcoming(pos, positions);
 
-		DataInputStream in = null;
+		long[] songIds = new long[n];
+		for (int i = 0; i < n; i++)
+			songIds[i] = mPlaylist.get(positions[i]);
 
-		try {
-			in = new DataInputStream(new BufferedInputStream(inf, 2048));
+		return songIds;
+	}
 
-			int version = in.readInt();
-			if (version != STATE_FILE_FORMAT)
-				return false;
+	/**
+	 * Journal the playlist position and player state. Must be called with
+	 * mBinderLock held.
+	 */
+	private void journalState()
+	{
+		int offset = 0;
 
-			int pos = in.readInt();
-			boolean playing = in.readBoolean();
-			boolean paused = in.readBoolean();
-			int playpos = in.readInt();
+		if (mPaused == true)
+		{
+			if (mPrepared == true)
+				offset = mPlayer.getCurrentPosition();
+			else
+				offset = mResumeOffset;
+		}
 
-			int playlist_length = in.readInt();
+		mJournal.logPosition(mPosition);
+		mJournal.logState(mPlaying, mPaused, offset);
+	}
 
-			try {
-				for (int i = 0; i < playlist_length; i++)
-					mPlaylist.add(in.readLong());
-			} catch (IOException e) {
-				mPlaylist.clear();
-				throw e;
-			}
+	/**
+	 * Follow up an edit to the playlist logged to the journal. Must be called
+	 * with mBinderLock held.
+	 */
+	private void journalEdit()
+	{
+		mJournal.logPosition(mPosition);
+		mJournal.compactIfNeeded(mPlaylist, mShuffle);
+		publishState();
+	}
 
-			mPosition = pos;
-			mPlaying = playing;
+	/**
+	 * Draw and journal a new shuffle order. Must be called with mBinderLock
+	 * held.
+	 */
+	private void reshuffle(int first)
+	{
+		long seed = mShuffle.newSeed();
+		mShuffle.shuffle(mPlaylist.size(), first, seed);
+		mJournal.logShuffle(first, seed);
+	}
 
-			/* XXX: We don't support this yet.  We would need to reload
-			 * the MediaPlayer to its original state and seek to playpos,
-			 * which will be tricky to guarantee.  For now, we force
-			 * mPrepared false to ensure that a call to unpause will restart
-			 * from the beginning in either case. */
-			mPaused = paused;
-			mPrepared = false;
+	/**
+	 * Place songs just inserted into the queue in the shuffle order, and
+	 * journal how. Must be called with mBinderLock held, after the insert
+	 * and the adjustment of mPosition.
+	 */
+	private void shuffleInserted(int pos, int count)
+	{
+		long seed = mShuffle.newSeed();
+		mShuffle.onInsertRange(pos, count, mPosition, seed);
+		mJournal.logShuffleInsert(pos, count, mPosition, seed);
+	}
 
-			return true;
-		} finally {
-			if (in != null)
-				in.close();
-			else
-				inf.close();
+	/**
+	 * Publish a snapshot of the playback state to lock-free readers. Must be
+	 * called with mBinderLock held after changing any of the state it
+	 * captures.
+	 */
+	private void publishState()
+	{
+		long songId = -1;
+		if (mPosition >= 0 && mPosition < mPlaylist.size())
+			songId = mPlaylist.get(mPosition);
+
+		long duration = -1;
+		long offset = 0;
+		long offsetTime = -1;
+
+		if (mPrepared == true && mPlayer != null)
+		{
+			duration = mPlayer.getDuration();
+			offset = mPlayer.getCurrentPosition();
+
+			if (mPlaying == true && mPaused == false && mPlayer.isPlaying() == true)
+				offsetTime = SystemClock.uptimeMillis();
 		}
+		else if (mPaused == true)
+			offset = mResumeOffset;
+
+		mState = new PlaybackState(mPosition, songId, mPlaying, mPaused,
+		  mPrepared, mPlaylist.size(), duration, offset, offsetTime);
+
+		mHandler.removeCallbacks(mResample);
+		if (offsetTime >= 0)
+			mHandler.postDelayed(mResample, RESAMPLE_INTERVAL);
 	}
 
+	private final Runnable mResample = new Runnable()
+	{
+		public void run()
+		{
+			synchronized(mBinderLock) {
+				publishState();
+			}
+		}
+	};
+
 	private final BroadcastReceiver mNoisyReceiver = new BroadcastReceiver()
 	{
 		public void onReceive(Context context, Intent intent)
@@ -402,7 +601,8 @@ public class PlaylistService extends Service implements
 				Log.i(TAG, "Service stop scheduled " + (DEFERRAL_DELAY / 1000 / 60) + " minutes from now.");
 
 			sendMessageDelayed(obtainMessage(DEFERRED_STOP), DEFERRAL_DELAY);
-			saveStateQuietly();
+			saveState();
+			mHistory.saveQuietly();
 		}
 
 		public void cancelStopSelf()
@@ -421,6 +621,19 @@ public class PlaylistService extends Service implements
 		return mBinder;
 	}
 
+	/**
+	 * Dumps cache statistics. Pass "reset" to clear them afterwards.
+	 */
+	@Override
+	protected void dump(FileDescriptor fd, PrintWriter pw, String[] args)
+	{
+		CacheStats stats = mCacheMgr.getStats();
+		stats.dump(pw);
+
+		if (args != null && args.length > 0 && args[0].equals("reset") == true)
+			stats.reset();
+	}
+
 	@Override
 	public void onRebind(Intent intent)
 	{
@@ -473,6 +686,27 @@ public class PlaylistService extends Service implements
 		}
 	}
 
+	private final PlaylistEventDispatcher.ProgressSource mProgressSource =
+	  new PlaylistEventDispatcher.ProgressSource()
+	{
+		public boolean getPlaybackProgress(PlaylistEventDispatcher.PlaybackProgress p)
+		{
+			PlaybackState state = mState;
+			if (state.playing == false || state.songId == -1)
+				return false;
+
+			p.songId = state.songId;
+			p.position = state.tell();
+			p.duration = state.duration;
+			p.outputting = state.isOutputting();
+
+			DownloadManager.Download download = mManager.lookupDownload(p.songId);
+			p.bufferPercent = (download == null) ? 100 : download.getProgress();
+
+			return true;
+		}
+	};
+
 	private BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver()
 	{
 		@Override
@@ -515,22 +749,135 @@ public class PlaylistService extends Service implements
 	 *   occurred.
 	 */
 	private boolean playInternal(long songId)
+	{
+		return playInternal(songId, null);
+	}
+
+	/**
+	 * @param source
+	 *   Content of <code>songId</code> already found by
+	 *   {@link #openSongSource} without holding mBinderLock, or null to
+	 *   find it here.
+	 */
+	private boolean playInternal(long songId, SongSource source)
 	{
 		mHandler.cancelStopSelf();
 
+		if (mLastPlayedSongId != songId)
+		{
+			mHistory.recordTransition(mLastPlayedSongId, songId);
+			mLastPlayedSongId = songId;
+		}
+
+		if (mNextPlayer != null && mNextSongId == songId && mResumeOffset == 0)
+		{
+			swapInNextPlayer();
+			return true;
+		}
+
 		mPrepared = false;
-		mPlayer.reset();
-//		mPlayer.setOnBufferingUpdateListener(this);
-		mPlayer.setOnCompletionListener(this);
-		mPlayer.setOnErrorListener(this);
-		mPlayer.setOnPreparedListener(this);
+		resetPlayer(mPlayer);
+
+		if (source == null || source.songId != songId)
+			source = openSongSource(songId, Origin.PLAYBACK);
+
+		if (source != null)
+		{
+			recordCacheStats(source);
+			setSongDataSource(mPlayer, source);
+		}
+
+		/* Preparing a paused song shouldn't post the now playing
+		 * notification; unpause takes care of that itself. */
+		if (mPaused == false)
+			notifySong(songId);
+
+		mDispatcher.postBufferingUpdate(songId, 0);
+		mPlayer.prepareAsync();
+
+		publishState();
+
+		return true;
+	}
+
+	private void resetPlayer(StreamMediaPlayer player)
+	{
+		player.reset();
+//		player.setOnBufferingUpdateListener(this);
+		player.setOnCompletionListener(this);
+		player.setOnErrorListener(this);
+		player.setOnPreparedListener(this);
+		player.setOnSeekCompleteListener(this);
+	}
+
+	/**
+	 * A song's content, resolved ahead of pointing a player at it so that
+	 * the provider queries and download setup behind it can be done
+	 * without holding mBinderLock.
+	 */
+	private static class SongSource
+	{
+		public final long songId;
+		public final long size;
+
+		/* Download the content is tailing, and what it was started for. */
+		public final DownloadManager.Download download;
+		public final Origin origin;
+
+		private final String mPath;
+		private final StreamMediaPlayer.RandomAccessStream mStream;
 
+		public SongSource(long songId, long size, DownloadManager.Download download,
+				Origin origin, String path, StreamMediaPlayer.RandomAccessStream stream)
+		{
+			this.songId = songId;
+			this.size = size;
+			this.download = download;
+			this.origin = origin;
+			mPath = path;
+			mStream = stream;
+		}
+
+		public void setDataSource(StreamMediaPlayer player)
+		  throws IOException
+		{
+			if (mStream != null)
+				player.setDataSource(mStream);
+			else
+				player.setDataSource(mPath);
+		}
+	}
+
+	/**
+	 * Find a song's content, either in cache or tailing its download (which
+	 * is started if necessary).
+	 *
+	 * @param origin
+	 *   What the download is for, if one has to be started.
+	 * @return
+	 *   The song's content, or null if it could not be found.
+	 */
+	private SongSource openSongSource(final long songId, Origin origin)
+	{
 		SongItem song = SongItem.getInstance(Songs.getSong(this, songId));
 		try {
-			DownloadManager.Download download = acquireDownload(song);
+			DownloadManager.Download download = acquireDownload(song, origin);
+			BlockCache blockCache = mCacheMgr.getBlockCache(this);
 
-			if (download == null)
-				mPlayer.setDataSource(song.getCachePath());
+			Origin downloadOrigin = null;
+			if (download != null)
+				downloadOrigin = mManager.getOrigin(download);
+
+			String path = null;
+			StreamMediaPlayer.RandomAccessStream stream = null;
+
+			if (blockCache != null)
+			{
+				stream = new BlockCacheStream(blockCache, songId,
+						song.getMimeType(), song.getSize());
+			}
+			else if (download == null)
+				path = song.getCachePath();
 			else
 			{
 				/*
@@ -539,9 +886,58 @@ public class PlaylistService extends Service implements
 				 * the synced meta data), we'll end up waiting for the download
 				 * to complete forever.
 				 */
-				mPlayer.setDataSource(new TailStream(download.getDestination().getAbsolutePath(),
-						song.getMimeType(), download.getExpectedContentLength()));
+				final String tailPath = download.getDestination().getAbsolutePath();
+				stream = new TailStream(tailPath, song.getMimeType(),
+						download.getExpectedContentLength(), new TailStream.SinkLookup() {
+					public DownloadSink getSink() {
+						return getSongDownloadSink(songId, tailPath);
+					}
+				});
 			}
+
+			return new SongSource(songId, song.getSize(), download, downloadOrigin,
+					path, stream);
+		} catch (Exception e) {
+			Log.e(Constants.TAG, "Unable to find content for songId=" + songId, e);
+			return null;
+		} finally {
+			song.close();
+		}
+	}
+
+	/**
+	 * Record how much of a song was cached as it starts playing. A song
+	 * still downloading for a reason other than playback (prefetch, cache
+	 * warming) counts as an in-flight hit.
+	 */
+	private void recordCacheStats(SongSource source)
+	{
+		CacheStats stats = mCacheMgr.getStats();
+		DownloadManager.Download download = source.download;
+
+		if (download == null)
+			stats.recordFullHit(source.size);
+		else if (source.origin != Origin.PLAYBACK)
+			stats.recordInFlightHit(download.getSink().getAvailableLength());
+		else if (download.getStartOffset() > 0)
+			stats.recordPartialHit(download.getStartOffset());
+		else
+			stats.recordMiss();
+	}
+
+	/**
+	 * Point a player at a song's content, as found by
+	 * {@link #openSongSource}.
+	 *
+	 * @return
+	 *   False if the player could not be set up, in which case it has been
+	 *   reset.
+	 */
+	private boolean setSongDataSource(StreamMediaPlayer player, SongSource source)
+	{
+		try {
+			source.setDataSource(player);
+			return true;
 		} catch (Exception e) {
 			/*
 			 * This code looks suspicious to me. If this ever happens, I believe
@@ -549,17 +945,153 @@ public class PlaylistService extends Service implements
 			 * it think its still playing but nothing is happening.
 			 */
 			Log.e(Constants.TAG, "Unable to start playback", e);
-			mPlayer.reset();
-		} finally {
-			song.close();
+			player.reset();
+			return false;
+		}
+	}
+
+	/**
+	 * @return Sink of the download currently writing the song's content to
+	 *         <code>path</code>, or null if there is none.
+	 */
+	private DownloadSink getSongDownloadSink(long songId, String path)
+	{
+		DownloadManager.Download download = mManager.lookupDownload(songId);
+		if (download == null || download.isPartial() == true)
+			return null;
+
+		if (download.getDestination().getAbsolutePath().equals(path) == false)
+			return null;
+
+		return download.getSink();
+	}
+
+	/**
+	 * Make the player prepared by {@link #nextPlayerCheck} current, starting
+	 * it straight away if it is ready. The outgoing player is reset only
+	 * after the new one has started, and is kept for the following song.
+	 * Must be called with mBinderLock held.
+	 */
+	private void swapInNextPlayer()
+	{
+		StreamMediaPlayer finished = mPlayer;
+		long songId = mNextSongId;
+
+		recordCacheStats(mNextSource);
+
+		mPlayer = mNextPlayer;
+		mPrepared = mNextPrepared;
+
+		mNextPlayer = finished;
+		mNextSongId = -1;
+		mNextSource = null;
+		mNextPrepared = false;
+
+		if (mPrepared == true && mPaused == false)
+			mPlayer.start();
+
+		Log.i(TAG, "Swapped in next player for songId=" + songId +
+		  (mPrepared == true ? "" : " (still preparing)"));
+
+		finished.reset();
+
+		if (mPaused == false)
+			notifySong(songId);
+
+		mDispatcher.postBufferingUpdate(songId, (mPrepared == true) ? 100 : 0);
+
+		publishState();
+	}
+
+	/**
+	 * @return True if the next player holds the song at <code>pos</code>.
+	 *         Must be called with mBinderLock held.
+	 */
+	private boolean isNextPlayerFor(int pos)
+	{
+		if (mNextPlayer == null || mNextSongId == -1)
+			return false;
+
+		if (pos < 0 || pos >= mPlaylist.size())
+			return false;
+
+		return mPlaylist.get(pos) == mNextSongId;
+	}
+
+	/**
+	 * Keep the next player preparing whichever song is due to play after
+	 * the current one, discarding it if that changes. Preparing waits until
+	 * the current song is no longer downloading so that the two don't
+	 * compete for bandwidth. Must be called with mBinderLock held.
+	 *
+	 * @return Song to prepare with {@link #prepareNextPlayer} once the lock
+	 *         is released, or -1 if there is none.
+	 */
+	private long nextPlayerCheck(long currentId, long nextId)
+	{
+		if (mPlaying == false || mRepeat == RepeatMode.SONG)
+			nextId = -1;
+
+		if (nextId == mNextSongId)
+			return -1;
+
+		if (mNextSongId != -1)
+		{
+			Log.i(TAG, "Discarding next player for songId=" + mNextSongId);
+			mNextPlayer.reset();
+			mNextSongId = -1;
+			mNextSource = null;
+			mNextPrepared = false;
 		}
 
-		notifySong(songId);
+		if (nextId == -1)
+			return -1;
 
-		mBufferListeners.broadcastOnBufferingUpdate(songId, 0);
-		mPlayer.prepareAsync();
+		if (mManager.lookupDownload(currentId) != null)
+			return -1;
 
-		return true;
+		return nextId;
+	}
+
+	/**
+	 * Prepare the next player with <code>nextId</code>, as requested by
+	 * {@link #nextPlayerCheck}. If the song isn't cached, this starts its
+	 * download and the player tails it. Must be called without mBinderLock
+	 * held; the song is dropped if it is no longer due next by the time its
+	 * content has been found.
+	 */
+	private void prepareNextPlayer(long nextId)
+	  throws RemoteException
+	{
+		SongSource source = openSongSource(nextId, Origin.PREFETCH);
+		if (source == null)
+			return;
+
+		synchronized(mBinderLock) {
+			if (mPlaying == false || mRepeat == RepeatMode.SONG || mNextSongId != -1)
+				return;
+
+			int next = mBinder.peekNext();
+			if (next < 0 || mPlaylist.get(next) != nextId)
+				return;
+
+			if (mNextPlayer == null)
+			{
+				mNextPlayer = new StreamMediaPlayer();
+				mNextPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+			}
+
+			resetPlayer(mNextPlayer);
+
+			if (setSongDataSource(mNextPlayer, source) == false)
+				return;
+
+			Log.i(TAG, "Preparing next player for songId=" + nextId);
+
+			mNextSongId = nextId;
+			mNextSource = source;
+			mNextPlayer.prepareAsync();
+		}
 	}
 
 	/**
@@ -574,8 +1106,22 @@ public class PlaylistService extends Service implements
 	 *             writing.
 	 * @throws CacheAllocationException
 	 */
-	private DownloadManager.Download acquireDownload(SongItem song)
+	private DownloadManager.Download acquireDownload(SongItem song, Origin origin)
 			throws IOException, CacheAllocationException
+	{
+		return acquireDownload(song, origin, -1);
+	}
+
+	/**
+	 * @param origin
+	 *            What the download is for, if one has to be started. An
+	 *            existing download keeps its original origin.
+	 * @param stopAt
+	 *            Number of leading bytes to retrieve, or -1 to retrieve the
+	 *            whole song.
+	 */
+	private DownloadManager.Download acquireDownload(SongItem song, Origin origin,
+			long stopAt) throws IOException, CacheAllocationException
 	{
 		SourceItem source = SourceItem.getInstance(this, Sources.makeUri(song.getSourceId()));
 
@@ -586,15 +1132,46 @@ public class PlaylistService extends Service implements
 			String cachePath = song.getCachePath();
 
 			Log.v(TAG, "Preparing to download [url=" + url + "; size=" + size +
-					"; cachePath=" + cachePath + "]");
+					"; cachePath=" + cachePath + "; stopAt=" + stopAt + "]");
+
+			long wanted = (stopAt > 0) ? Math.min(stopAt, size) : size;
+
+			/*
+			 * A head-only download is of no use if we now want the whole
+			 * song.  Stop it and resume from wherever it got to.
+			 */
+			DownloadManager.Download existing = mManager.lookupDownload(songId);
+			if (existing != null && existing.isPartial() == true && stopAt <= 0)
+			{
+				mManager.stopDownload(songId);
+				existing = null;
+			}
 
 			long resumeFrom = 0;
 
-			if (cachePath != null)
+			BlockCache blockCache = mCacheMgr.getBlockCache(this);
+
+			if (blockCache != null)
+			{
+				resumeFrom = blockCache.getContiguousLength(songId);
+
+				if (resumeFrom >= wanted)
+				{
+					Log.i(TAG, "Block cache hit, download of songId=" + songId + " already complete!");
+					return null;
+				}
+
+				if (existing != null)
+					return existing;
+
+				if (resumeFrom > 0)
+					Log.i(TAG, "Partial block cache hit, resuming songId=" + songId + " at " + resumeFrom);
+			}
+			else if (cachePath != null)
 			{
-				resumeFrom = (new File(cachePath)).length();
+				resumeFrom = FileDownloadSink.getResumableLength(new File(cachePath));
 
-				if (resumeFrom == size)
+				if (resumeFrom >= wanted)
 				{
 					Log.i(TAG, "Cache hit, download of " + cachePath + " already complete!");
 					return null;
@@ -611,17 +1188,17 @@ public class PlaylistService extends Service implements
 					 * yield null, but we'll foolishly try a resumed download
 					 * for a very small section of the file.
 					 */
-					DownloadManager.Download download = mManager.lookupDownload(songId);
-					if (download != null)
-						return download;
+					if (existing != null)
+						return existing;
 				}
 			}
 			else
 			{
-				if (mManager.lookupDownload(songId) != null)
+				if (existing != null)
 					throw new IllegalStateException("Download started, but did not register with the cache.");
 
-				cachePath = mCacheMgr.requestStorage(this, song.getSourceId(), song.getSyncId());
+				cachePath = mCacheMgr.requestStorage(this, song.getSourceId(), song.getSyncId(),
+						wanted);
 			}
 
 			/*
@@ -633,7 +1210,14 @@ public class PlaylistService extends Service implements
 			mManager.updateCredentials(source);
 
 			try {
-				return mManager.startDownload(songId, url, cachePath, size, resumeFrom);
+				DownloadSink sink;
+				if (blockCache != null)
+					sink = blockCache.newSink(songId);
+				else
+					sink = new FileDownloadSink(cachePath, wanted);
+
+				return mManager.startDownload(songId, origin, url, sink, size,
+						resumeFrom, (stopAt > 0) ? wanted : -1);
 			} catch (IOException e) {
 				mManager.stopDownload(songId);
 				throw e;
@@ -646,60 +1230,197 @@ public class PlaylistService extends Service implements
 
 	/**
 	 * Check at key stages to make sure that the song to be played next
-	 * is preemptively downloading.
+	 * is preemptively downloading.  Once it is in cache, the remaining idle
+	 * time is spent warming the cache with predicted songs and the heads of
+	 * songs likely to be played soon. Must be called without mBinderLock
+	 * held; use {@link #schedulePrefetchCheck} from inside it.
 	 */
 	private void prefetchCheck()
 	  throws RemoteException
 	{
-		long currentId;
+		boolean playing;
+		long currentId = -1;
 		long nextId = -1;
+		long[] queueHeads = null;
+		long prepareId;
 
 		synchronized(mBinderLock) {
-			if (mPlaying == false)
-				return;
+			playing = mPlaying;
+
+			if (playing == true)
+			{
+				currentId = getPlayingSong();
+				assert currentId >= 0;
 
-			currentId = getPlayingSong();
-			assert currentId >= 0;
+				int next = mBinder.peekNext();
+				if (next >= 0)
+				{
+					nextId = mPlaylist.get(next);
+					assert nextId >= 0;
 
-			int next = mBinder.peekNext();
-			if (next < 0)
-				return;
+					queueHeads = getUpcomingSongs(next, HeadCache.MAX_GROUP_SIZE);
+				}
+				else
+					queueHeads = new long[0];
+			}
 
-			nextId = mPlaylist.get(next);
-			assert nextId >= 0;
+			prepareId = nextPlayerCheck(currentId, nextId);
 		}
 
+		if (prepareId != -1)
+			prepareNextPlayer(prepareId);
+
+		if (playing == false)
+		{
+			headFetchCheck();
+			return;
+		}
+
+		HeadCache heads = mCacheMgr.getHeadCache();
+		heads.setGroup(this, HeadCache.GROUP_QUEUE, queueHeads);
+		heads.setAlbumOf(this, currentId);
+
 		if (mManager.lookupDownload(currentId) != null)
 		{
 			Log.i(TAG, "Prefetch miss due to active download.");
 			return;
 		}
 
-		if (mManager.lookupDownload(nextId) != null)
+		if (nextId >= 0)
 		{
-			Log.i(TAG, "Prefetch already in progress.");
-			return;
+			if (mManager.lookupDownload(nextId) != null)
+			{
+				Log.i(TAG, "Prefetch already in progress.");
+				return;
+			}
+
+			SongItem song = SongItem.getInstance(Songs.getSong(this, nextId));
+			try {
+				DownloadManager.Download download = acquireDownload(song, Origin.PREFETCH);
+				if (download == null)
+					Log.i(TAG, "Prefetch not necessary, next track (nextId=" + nextId + ") already in cache");
+				else
+				{
+					Log.i(TAG, "Prefetch started on next track (nextId=" + nextId + ")");
+					return;
+				}
+			} catch (Exception e) {
+				Log.e(TAG, "acquireDownload failed", e);
+				return;
+			} finally {
+				song.close();
+			}
 		}
 
-		SongItem song = SongItem.getInstance(Songs.getSong(this, nextId));
-		try {
-			DownloadManager.Download download = acquireDownload(song);
-			if (download == null)
-				Log.i(TAG, "Prefetch not necessary, next track (nextId=" + nextId + ") already in cache");
-			else
-				Log.i(TAG, "Prefetch started on next track (nextId=" + nextId + ")");
-		} catch (Exception e) {
-			Log.e(TAG, "acquireDownload failed", e);
-		} finally {
-			song.close();
+		int n = Math.max(0, Math.min(PREDICT_QUEUE_LOOKAHEAD, queueHeads.length - 1));
+		long[] upcoming = new long[n];
+		System.arraycopy(queueHeads, 1, upcoming, 0, n);
+
+		if (warmCacheCheck(currentId, nextId, upcoming) == false)
+			headFetchCheck();
+	}
+
+	/**
+	 * Speculatively download the most likely song to be played after the
+	 * current one which is not yet cached.  Only one download is active at
+	 * a time, so this is invoked again from
+	 * {@link SongDownloadManager#onFinished} to work down the predictions.
+	 *
+	 * @return True if a download is in progress as a result of this call.
+	 */
+	private boolean warmCacheCheck(long currentId, long nextId, long[] upcoming)
+	{
+		if (mManager.isFastNetwork() == false)
+			return false;
+
+		long[] predictions = mPredictor.predict(currentId, nextId, upcoming);
+
+		for (long songId: predictions)
+		{
+			if (mManager.lookupDownload(songId) != null)
+				return true;
+
+			SongItem song = SongItem.getInstance(Songs.getSong(this, songId));
+			if (song == null)
+				continue;
+
+			try {
+				if (acquireDownload(song, Origin.WARM) != null)
+				{
+					Log.i(TAG, "Cache warming started on predicted track (songId=" + songId + ")");
+					return true;
+				}
+			} catch (Exception e) {
+				Log.e(TAG, "acquireDownload failed", e);
+				return false;
+			} finally {
+				song.close();
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Make sure that the heads of songs likely to be played soon (see
+	 * {@link HeadCache}) are resident, fetching one at a time while no
+	 * other download is active.
+	 */
+	private void headFetchCheck()
+	{
+		if (mManager.isNetworkAvailable() == false)
+			return;
+
+		if (mManager.getDownloadsCopy().isEmpty() == false)
+			return;
+
+		Map<Long, Long> heads = mCacheMgr.getHeadCache().getProtectedHeads();
+
+		for (Map.Entry<Long, Long> head: heads.entrySet())
+		{
+			long songId = head.getKey();
+
+			SongItem song = SongItem.getInstance(Songs.getSong(this, songId));
+			if (song == null)
+				continue;
+
+			try {
+				if (acquireDownload(song, Origin.HEAD, head.getValue()) != null)
+				{
+					Log.i(TAG, "Head fetch started (songId=" + songId + ")");
+					return;
+				}
+			} catch (Exception e) {
+				Log.e(TAG, "acquireDownload failed", e);
+				return;
+			} finally {
+				song.close();
+			}
 		}
 	}
 
+	/**
+	 * Posts {@link #prefetchCheck} to run on the main thread.
+	 */
+	private void schedulePrefetchCheck()
+	{
+		mHandler.post(new Runnable() {
+			public void run() {
+				try {
+					prefetchCheck();
+				} catch (RemoteException e) {}
+			}
+		});
+	}
+
 	private class SongDownloadManager extends DownloadManager
 	{
 		private final Map<String, Long> mUrlToSongMap =
 		  Collections.synchronizedMap(new HashMap<String, Long>());
 
+		private final Map<String, Origin> mUrlToOriginMap =
+		  Collections.synchronizedMap(new HashMap<String, Origin>());
+
 		public SongDownloadManager(Context ctx)
 		{
 			super(ctx);
@@ -715,10 +1436,10 @@ public class PlaylistService extends Service implements
 		{
 			Log.i(TAG, "url=" + url + ", state=" + state + ", message=" + message);
 
-			if (state == STATE_CONNECTED)
+			if (state == STATE_CONNECTED && isHeadDownload(url) == false)
 			{
 				long songId = mUrlToSongMap.get(url);
-				mDownloadListeners.broadcastOnDownloadBegin(songId);
+				mDispatcher.postDownloadBegin(songId);
 			}
 		}
 
@@ -744,15 +1465,28 @@ public class PlaylistService extends Service implements
 			return true;
 		}
 
+		/**
+		 * Head fetches (see {@link HeadCache}) are an implementation detail of
+		 * the cache and are not reported to download listeners.
+		 */
+		private boolean isHeadDownload(String url)
+		{
+			Download d = lookupDownload(url);
+			return d != null && d.isPartial() == true;
+		}
+
 		@Override
 		public void onFinished(String url)
 		{
-			long songId = mUrlToSongMap.get(url);
-			mDownloadListeners.broadcastOnDownloadFinish(songId);
+			final Download d = lookupDownload(url);
 
-			commitStorage(songId);
+			if (d.isPartial() == false)
+			{
+				long songId = mUrlToSongMap.get(url);
+				mDispatcher.postDownloadFinish(songId);
 
-			final Download d = lookupDownload(url);
+				commitStorage(songId);
+			}
 
 			mHandler.post(new Runnable() {
 				public void run() {
@@ -769,8 +1503,11 @@ public class PlaylistService extends Service implements
 		@Override
 		public void onAborted(String url)
 		{
+			if (isHeadDownload(url) == true)
+				return;
+
 			long songId = mUrlToSongMap.get(url);
-			mDownloadListeners.broadcastOnDownloadCancel(songId);
+			mDispatcher.postDownloadCancel(songId);
 
 			//super.onAborted(url);
 		}
@@ -778,15 +1515,21 @@ public class PlaylistService extends Service implements
 		@Override
 		public void onError(String url, int state, final String err)
 		{
+			if (isHeadDownload(url) == true)
+				return;
+
 			long songId = mUrlToSongMap.get(url);
-			mDownloadListeners.broadcastOnDownloadError(songId, err);
+			mDispatcher.postDownloadError(songId, err);
 		}
 
 		@Override
 		public void onProgressUpdate(String url, int percent)
 		{
+			if (isHeadDownload(url) == true)
+				return;
+
 			long songId = mUrlToSongMap.get(url);
-			mDownloadListeners.broadcastOnDownloadProgressUpdate(songId, percent);
+			mDispatcher.postDownloadProgress(songId, percent);
 		}
 
 		long getSongIdFromUrl(String url)
@@ -810,18 +1553,28 @@ public class PlaylistService extends Service implements
 			return null;
 		}
 
-		public Download startDownload(long songId, String url, String path,
-		  long expectedContentLength, long resumeFrom)
+		public Download startDownload(long songId, Origin origin, String url,
+		  DownloadSink sink, long expectedContentLength, long resumeFrom, long stopAt)
 		  throws IOException
 		{
-			Download d = super.startDownload(url, path, expectedContentLength, resumeFrom);
+			Download d = super.startDownload(url, sink, expectedContentLength,
+					resumeFrom, stopAt);
 
 			if (d != null)
+			{
 				mUrlToSongMap.put(url, songId);
+				mUrlToOriginMap.put(url, origin);
+			}
 
 			return d;
 		}
 
+		public Origin getOrigin(Download d)
+		{
+			Origin origin = mUrlToOriginMap.get(d.getUrl());
+			return (origin != null) ? origin : Origin.PLAYBACK;
+		}
+
 		public void stopDownload(long songId)
 		{
 			super.stopDownload(lookupDownload(songId));
@@ -830,8 +1583,13 @@ public class PlaylistService extends Service implements
 		@Override
 		public void removeDownload(String url)
 		{
+			Download d = lookupDownload(url);
+			if (d != null)
+				mCacheMgr.getStats().recordNetworkBytes(getOrigin(d), d.getBytesTransferred());
+
 			super.removeDownload(url);
 			mUrlToSongMap.remove(url);
+			mUrlToOriginMap.remove(url);
 		}
 	};
 
@@ -842,7 +1600,7 @@ public class PlaylistService extends Service implements
 //		long songId = getPlayingSong();
 //		assert songId >= 0;
 //
-//		mBufferListeners.broadcastOnBufferingUpdate(songId, percent);
+//		mDispatcher.postBufferingUpdate(songId, percent);
 	}
 
 	private void tidyThenAdvance()
@@ -855,18 +1613,37 @@ public class PlaylistService extends Service implements
 			playing = mPlaying;
 			paused = mPaused;
 
-			if (mPlayer.isPlaying())
-				mPlayer.stop();
+			/* If the next song is ready to go, leave this player be until
+			 * the next has started (see swapInNextPlayer). */
+			boolean swapping = false;
+			if (playing == true && paused == false && mRepeat != RepeatMode.SONG)
+			{
+				try {
+					swapping = isNextPlayerFor(mBinder.peekNext());
+				} catch (RemoteException e) {}
+			}
 
-			mPlayer.reset();
+			if (swapping == false)
+			{
+				if (mPlayer.isPlaying())
+					mPlayer.stop();
+
+				mPlayer.reset();
+			}
 
 			mPrepared = false;
+			publishState();
 		}
 
 		/* If we were previously playing, advance to the next track. */
 		try {
 			if (playing == true && paused == false)
-				mBinder.next();
+			{
+				if (mRepeat == RepeatMode.SONG && mPosition >= 0)
+					mBinder.jump(mPosition);
+				else
+					mBinder.next();
+			}
 		} catch (RemoteException e) {}
 	}
 
@@ -874,7 +1651,22 @@ public class PlaylistService extends Service implements
 	{
 		Log.d(TAG, "Media playback error, what=" + what + ", extra=" + extra);
 
-		assert mp == mPlayer;
+		synchronized(mBinderLock) {
+			if (mp != mPlayer)
+			{
+				/* The next player failed to prepare; the song will be
+				 * prepared the usual way when its turn comes. */
+				if (mp == mNextPlayer)
+				{
+					mNextPlayer.reset();
+					mNextSongId = -1;
+					mNextSource = null;
+					mNextPrepared = false;
+				}
+
+				return true;
+			}
+		}
 
 		long songId = getPlayingSong();
 
@@ -895,7 +1687,7 @@ public class PlaylistService extends Service implements
 				case DownloadManager.STATE_FILE_ERROR:
 				case DownloadManager.STATE_PAUSED_LOCAL_FAILURE:
 				case DownloadManager.STATE_PAUSED_REMOTE_FAILURE:
-					mDownloadListeners.broadcastOnDownloadError(songId,
+					mDispatcher.postDownloadError(songId,
 					  dl.getStateMessage());
 					break;
 				}
@@ -909,19 +1701,52 @@ public class PlaylistService extends Service implements
 		return true;
 	}
 
-	public void onCompletion(MediaPlayer mp)
-	{
-		Log.i(TAG, "Should be finished.");
-		tidyThenAdvance();
+	public void onCompletion(MediaPlayer mp)
+	{
+		if (mp != mPlayer)
+			return;
+
+		Log.i(TAG, "Should be finished.");
+		tidyThenAdvance();
+	}
+
+	public void onSeekComplete(MediaPlayer mp)
+	{
+		synchronized(mBinderLock) {
+			if (mp != mPlayer)
+				return;
+
+			publishState();
+		}
+
+		mDispatcher.postPlaybackProgress();
 	}
 
 	public void onPrepared(MediaPlayer mp)
 	{
-		assert mp == mPlayer;
+		synchronized(mBinderLock) {
+			if (mp != mPlayer)
+			{
+				if (mp == mNextPlayer && mNextSongId != -1)
+				{
+					Log.i(TAG, "Next player ready for songId=" + mNextSongId);
+					mNextPrepared = true;
+				}
+
+				return;
+			}
+		}
 
 		assert mPlaying == true;
 
 		synchronized(mBinderLock) {
+			if (mResumeOffset > 0)
+			{
+				Log.i(TAG, "Resuming at " + mResumeOffset + "ms");
+				mPlayer.seekTo(mResumeOffset);
+				mResumeOffset = 0;
+			}
+
 			if (mPaused == true)
 				Log.i(TAG, "Ready to play, but paused.");
 			else
@@ -931,11 +1756,12 @@ public class PlaylistService extends Service implements
 			}
 
 			mPrepared = true;
+			publishState();
 		}
 
 		long songId = getPlayingSong();
 		assert songId >= 0;
-		mBufferListeners.broadcastOnBufferingUpdate(songId, 100);
+		mDispatcher.postBufferingUpdate(songId, 100);
 	}
 
 	private final IPlaylistService.Stub mBinder = new IPlaylistService.Stub()
@@ -990,7 +1816,10 @@ public class PlaylistService extends Service implements
 					}
 				}
 
-				prev = mPosition - 1;
+				if (mRandom == true)
+					prev = (mPosition >= 0) ? mShuffle.previous(mPosition) : -1;
+				else
+					prev = mPosition - 1;
 
 				if (prev < 0)
 				{
@@ -1002,7 +1831,7 @@ public class PlaylistService extends Service implements
 						return -1;
 					}
 
-					prev = n - 1;
+					prev = (mRandom == true) ? mShuffle.last() : n - 1;
 				}
 			}
 
@@ -1013,30 +1842,54 @@ public class PlaylistService extends Service implements
 		public void jump(int pos)
 		  throws RemoteException
 		{
-			if (pos < -1 || pos >= mPlaylist.size())
-				return;
-
 			synchronized(mBinderLock) {
+				if (pos < -1 || pos >= mPlaylist.size())
+					return;
+
+				if (pos != mPosition)
+					mResumeOffset = 0;
+
 				mPosition = pos;
+				mJournal.logPosition(pos);
+				publishState();
 			}
 
 			if (pos >= 0)
 			{
-				mMoveListeners.broadcastOnJump(pos);
+				mDispatcher.postJump(pos);
 
 				if (mPlaying == true && mPaused == false)
 				{
+					long songId;
+					boolean swap;
+
+					synchronized(mBinderLock) {
+						if (mPosition != pos)
+							return;
+
+						songId = mPlaylist.get(pos);
+						swap = (isNextPlayerFor(pos) == true && mResumeOffset == 0);
+					}
+
+					/* Find the content without holding the lock, as it may
+					 * need to query the provider and start a download. */
+					SongSource source = null;
+					if (swap == false)
+						source = openSongSource(songId, Origin.PLAYBACK);
+
 					synchronized(mBinderLock) {
+						/* Another jump or a stop got in first. */
+						if (mPosition != pos || mPlaying == false || mPaused == true)
+							return;
+
 						mPlayer.stop();
-						playInternal(mPlaylist.get(pos));
+						playInternal(mPlaylist.get(pos), source);
 					}
 				}
 				else
 					play();
 
-				synchronized(mBinderLock) {
-					prefetchCheck();
-				}
+				schedulePrefetchCheck();
 			}
 		}
 
@@ -1050,12 +1903,15 @@ public class PlaylistService extends Service implements
 					return;
 
 				if (mPosition == -1)
-					jump(0);
+					jump((mRandom == true) ? mShuffle.first() : 0);
 
 				songId = mPlaylist.get(mPosition);
 
 				mPlaying = true;
 				mPaused = false;
+				mResumeOffset = 0;
+				journalState();
+				publishState();
 
 				/* TODO: How should we handle this?  Gracefully destroying
 				 * the service may be a good idea. */
@@ -1063,7 +1919,7 @@ public class PlaylistService extends Service implements
 				assert ret == true;
 			}
 
-			mMoveListeners.broadcastOnPlay();
+			mDispatcher.postPlay();
 		}
 
 		public void pause()
@@ -1079,9 +1935,11 @@ public class PlaylistService extends Service implements
 					mPlayer.pause();
 
 				mPaused = true;
+				journalState();
+				publishState();
 			}
 
-			mMoveListeners.broadcastOnPause();
+			mDispatcher.postPause();
 		}
 
 		public void unpause()
@@ -1106,9 +1964,11 @@ public class PlaylistService extends Service implements
 				}
 
 				mPaused = false;
+				journalState();
+				publishState();
 			}
 
-			mMoveListeners.broadcastOnUnpause();
+			mDispatcher.postUnpause();
 		}
 
 		public void stop()
@@ -1123,14 +1983,27 @@ public class PlaylistService extends Service implements
 			notifySong(-1);
 
 			synchronized(mBinderLock) {
-				mPlayer.stop();
-				mPlayer.reset();
-				mPrepared = false;
-				mPaused = false;
-				mPlaying = false;
+				stopInternal();
+				journalState();
+				publishState();
 			}
 
-			mMoveListeners.broadcastOnStop();
+			mDispatcher.postStop();
+		}
+
+		/**
+		 * Halt playback without notifying listeners. Must be called with
+		 * mBinderLock held.
+		 */
+		private void stopInternal()
+		{
+			mPlayer.stop();
+			mPlayer.reset();
+			mPrepared = false;
+			mPaused = false;
+			mPlaying = false;
+			nextPlayerCheck(-1, -1);
+			mResumeOffset = 0;
 		}
 
 		public void seek(long pos)
@@ -1138,85 +2011,70 @@ public class PlaylistService extends Service implements
 		{
 			synchronized(mBinderLock) {
 				mPlayer.seekTo((int)pos);
+				publishState();
 			}
 
-			mMoveListeners.broadcastOnSeek(pos);
+			mDispatcher.postSeek(pos);
 		}
 
 		/*-********************************************************************/
 
+		/*
+		 * The read-only calls below answer from the published PlaybackState
+		 * and never take mBinderLock.
+		 */
+
 		public int getPosition()
 		  throws RemoteException
 		{
-			return mPosition;
+			return mState.position;
 		}
 
 		public long tell()
 		  throws RemoteException
 		{
-			if (isPlaying() == false && isPaused() == false)
-				return -1;
-
-			int pos;
-
-			synchronized(mBinderLock) {
-				pos = mPlayer.getCurrentPosition();
-			}
-
-			return (long)pos;
+			return mState.tell();
 		}
 
 		public long getSongDuration()
 		  throws RemoteException
 		{
-			int dur;
-
-			synchronized(mBinderLock) {
-				dur = mPlayer.getDuration();
-			}
-
-			return (long)dur;
+			return mState.duration;
 		}
 
 		public boolean isPlaying()
 		  throws RemoteException
 		{
-			return mPlaying;
+			return mState.playing;
 		}
 
 		public boolean isStopped()
 		  throws RemoteException
 		{
-			return mPlaying == false;
+			return mState.playing == false;
 		}
 
 		public boolean isPaused()
 		  throws RemoteException
 		{
-			return mPaused;
+			return mState.paused;
 		}
 
 		public boolean isDownloading()
 		  throws RemoteException
 		{
-			int n = getPosition();
+			long songId = mState.songId;
 
-			if (n == -1)
+			if (songId == -1)
 				return false;
 
-			return mManager.lookupDownload(mPlaylist.get(n)) != null;
+			return mManager.lookupDownload(songId) != null;
 		}
 
 		public boolean isOutputting()
 		  throws RemoteException
 		{
-			boolean playing;
-
-			synchronized(mBinderLock) {
-				playing = mPlayer.isPlaying();
-			}
-
-			return playing;
+			return mState.isOutputting();
 		}
 
 		/*-********************************************************************/
@@ -1224,7 +2082,9 @@ public class PlaylistService extends Service implements
 		public List getPlaylist()
 		  throws RemoteException
 		{
-			return mPlaylist;
+			synchronized(mBinderLock) {
+				return mPlaylist.toList(0, mPlaylist.size());
+			}
 		}
 
 		public List getPlaylistWindow(int from, int to)
@@ -1246,16 +2106,28 @@ public class PlaylistService extends Service implements
 				if (to > n)
 					to = n;
 
-				/* XXX: We assume that Android's serialization will
-				 * copy our list so as not to leak references. */
-				return mPlaylist.subList(from, to);
+				return mPlaylist.toList(from, to);
+			}
+		}
+
+		public long[] getPlaylistRange(int from, int to)
+		  throws RemoteException
+		{
+			if (from < 0 || from >= to)
+				return new long[0];
+
+			if (to - from > MAX_PLAYLIST_RANGE)
+				to = from + MAX_PLAYLIST_RANGE;
+
+			synchronized(mBinderLock) {
+				return mPlaylist.toArray(from, to);
 			}
 		}
 
 		public int getPlaylistLength()
 		  throws RemoteException
 		{
-			return mPlaylist.size();
+			return mState.playlistLength;
 		}
 
 		public long getSongAt(int pos)
@@ -1264,6 +2136,10 @@ public class PlaylistService extends Service implements
 			if (pos < 0)
 				return -1;
 
+			PlaybackState state = mState;
+			if (pos == state.position)
+				return state.songId;
+
 			synchronized(mBinderLock) {
 				if (pos >= mPlaylist.size())
 					return -1;
@@ -1275,22 +2151,40 @@ public class PlaylistService extends Service implements
 		public int getPositionOf(long songId)
 		  throws RemoteException
 		{
-			return mPlaylist.lastIndexOf(songId);
+			synchronized(mBinderLock) {
+				return mPlaylist.lastIndexOf(songId);
+			}
 		}
 
 		public int peekNext()
 		  throws RemoteException
 		{
-			int next;
-
 			synchronized(mBinderLock) {
-				next = mPosition + 1;
+				int n = mPlaylist.size();
 
-				if (next >= mPlaylist.size())
+				if (n == 0)
 					return -1;
-			}
 
-			return next;
+				if (mRandom == true)
+				{
+					if (mPosition < 0)
+						return mShuffle.first();
+
+					int next = mShuffle.next(mPosition);
+					if (next < 0 && mRepeat == RepeatMode.ALL)
+						next = mShuffle.first();
+
+					return next;
+				}
+				else
+				{
+					int next = mPosition + 1;
+					if (next >= n)
+						next = (mRepeat == RepeatMode.ALL) ? 0 : -1;
+
+					return next;
+				}
+			}
 		}
 
 		/*-********************************************************************/
@@ -1298,29 +2192,66 @@ public class PlaylistService extends Service implements
 		public void shuffle()
 		  throws RemoteException
 		{
+			synchronized(mBinderLock) {
+				reshuffle(mPosition);
+				mRandom = true;
+				savePlayModes();
+				schedulePrefetchCheck();
+			}
 		}
 
 		public void setRepeat(int repeatMode)
 		  throws RemoteException
 		{
+			switch (repeatMode)
+			{
+			case RepeatMode.NONE:
+			case RepeatMode.ALL:
+			case RepeatMode.SONG:
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown repeat mode " + repeatMode);
+			}
+
+			synchronized(mBinderLock) {
+				mRepeat = repeatMode;
+				savePlayModes();
+				schedulePrefetchCheck();
+			}
 		}
 
 		public int getRepeat()
 		  throws RemoteException
 		{
-			return -1;
+			return mRepeat;
 		}
 
 		public void setRandom(boolean random)
 		  throws RemoteException
 		{
-			assert random == false;
+			synchronized(mBinderLock) {
+				if (mRandom == random)
+					return;
+
+				mRandom = random;
+
+				if (random == true)
+					reshuffle(mPosition);
+				else
+				{
+					mShuffle.clear();
+					mJournal.logUnshuffle();
+				}
+
+				savePlayModes();
+				schedulePrefetchCheck();
+			}
 		}
 
 		public boolean getRandom()
 		  throws RemoteException
 		{
-			return false;
+			return mRandom;
 		}
 
 		/*-********************************************************************/
@@ -1362,9 +2293,12 @@ public class PlaylistService extends Service implements
 
 			synchronized(mBinderLock) {
 				mPlaylist.clear();
+				mShuffle.clear();
+				mJournal.logClear();
+				journalEdit();
 			}
 
-			mChangeListeners.broadcastOnClear();
+			mDispatcher.postClear();
 		}
 
 		public void insert(long songId, int pos)
@@ -1379,11 +2313,18 @@ public class PlaylistService extends Service implements
 						mPosition++;
 				}
 
+				mJournal.logInsert(pos, songId);
+
+				if (mRandom == true)
+					shuffleInserted(pos, 1);
+
+				journalEdit();
+
 				if (peekNext() == pos)
-					prefetchCheck();
+					schedulePrefetchCheck();
 			}
 
-			mChangeListeners.broadcastOnInsert(songId, pos);
+			mDispatcher.postInsert(songId, pos);
 
 			synchronized(mBinderLock) {
 				if (isPlaying() == false && isPaused() == false)
@@ -1414,7 +2355,7 @@ public class PlaylistService extends Service implements
 		public void append(long songId)
 		  throws RemoteException
 		{
-			insert(songId, mPlaylist.size());
+			insert(songId, getPlaylistLength());
 		}
 
 		public long remove(int pos)
@@ -1423,21 +2364,275 @@ public class PlaylistService extends Service implements
 			long songId;
 
 			synchronized(mBinderLock) {
-				if (mPosition == pos && isPlaying() == true)
-					stop();
+				if (pos < 0 || pos >= mPlaylist.size())
+					return -1;
+
+				long nextSong = getSongAt(peekNext());
+
+				removePosition(pos, 1);
 
 				songId = mPlaylist.remove(pos);
+				mJournal.logRemove(pos);
+
+				if (mRandom == true)
+					mShuffle.onRemove(pos);
+
+				journalEdit();
+
+				if (getSongAt(peekNext()) != nextSong)
+					schedulePrefetchCheck();
 			}
 
-			mChangeListeners.broadcastOnRemove(pos);
+			mDispatcher.postRemove(pos);
 			return songId;
 		}
 
 		public long move(int oldpos, int newpos)
 		  throws RemoteException
 		{
-			Log.d(TAG, "UNIMPLEMENTED: move(int,int)");
-			return -1;
+			long songId;
+			int pos;
+
+			synchronized(mBinderLock) {
+				int n = mPlaylist.size();
+
+				if (oldpos < 0 || oldpos >= n || newpos < 0 || newpos > n)
+					return -1;
+
+				/* newpos refers to the list prior to removal. */
+				pos = (newpos > oldpos) ? newpos - 1 : newpos;
+
+				if (pos == oldpos)
+					return pos;
+
+				songId = mPlaylist.move(oldpos, pos);
+				mJournal.logMove(oldpos, pos);
+
+				if (mRandom == true)
+					mShuffle.onMove(oldpos, pos);
+
+				if (mPosition == oldpos)
+					mPosition = pos;
+				else if (oldpos < mPosition && pos >= mPosition)
+					mPosition--;
+				else if (oldpos > mPosition && pos <= mPosition)
+					mPosition++;
+
+				journalEdit();
+
+				if (peekNext() == pos)
+					schedulePrefetchCheck();
+			}
+
+			mDispatcher.postMove(songId, oldpos, pos);
+			return pos;
+		}
+
+		public void insertAll(long[] songIds, int pos)
+		  throws RemoteException
+		{
+			if (songIds == null || songIds.length == 0)
+				return;
+
+			int count = songIds.length;
+
+			synchronized(mBinderLock) {
+				if (pos < 0 || pos > mPlaylist.size())
+					return;
+
+				mPlaylist.addAll(pos, songIds, 0, count);
+
+				if (mPosition >= 0)
+				{
+					if (pos <= mPosition)
+						mPosition += count;
+				}
+
+				mJournal.logInsertRange(pos, songIds, 0, count);
+
+				if (mRandom == true)
+					shuffleInserted(pos, count);
+
+				journalEdit();
+
+				int next = peekNext();
+				if (next >= pos && next < pos + count)
+					schedulePrefetchCheck();
+			}
+
+			mDispatcher.postInsertRange(pos, count);
+
+			synchronized(mBinderLock) {
+				if (isPlaying() == false && isPaused() == false)
+				{
+					mPosition = pos;
+					play();
+				}
+			}
+		}
+
+		public void appendAll(long[] songIds)
+		  throws RemoteException
+		{
+			insertAll(songIds, getPlaylistLength());
+		}
+
+		public int replaceWithQuery(String uri)
+		  throws RemoteException
+		{
+			Cursor c = getContentResolver().query(Uri.parse(uri),
+			  new String[] { Five.Music.Songs._ID }, null, null, null);
+
+			if (c == null)
+				return -1;
+
+			long[] songIds;
+
+			try {
+				songIds = new long[c.getCount()];
+
+				for (int i = 0; c.moveToNext() == true; i++)
+					songIds[i] = c.getLong(0);
+			} finally {
+				c.close();
+			}
+
+			if (mActive == false)
+				mHandler.deferredStopSelf();
+
+			if (isPlaying() == true || isPaused() == true)
+				notifySong(-1);
+
+			/* Stopped and unpositioned as part of the replace, which
+			 * listeners learn of from onReplace alone. */
+			synchronized(mBinderLock) {
+				if (mPlaying == true || mPaused == true)
+					stopInternal();
+
+				mPosition = -1;
+				mResumeOffset = 0;
+				journalState();
+
+				mPlaylist.clear();
+				mPlaylist.addAll(0, songIds, 0, songIds.length);
+
+				mJournal.logClear();
+				mJournal.logInsertRange(0, songIds, 0, songIds.length);
+
+				if (mRandom == true)
+					reshuffle(-1);
+				else
+					mShuffle.clear();
+
+				journalEdit();
+
+				schedulePrefetchCheck();
+			}
+
+			mDispatcher.postReplace(songIds.length, -1, false);
+			return songIds.length;
+		}
+
+		public int removeRange(int from, int to)
+		  throws RemoteException
+		{
+			int count = to - from;
+
+			synchronized(mBinderLock) {
+				if (from < 0 || to > mPlaylist.size() || count < 0)
+					return -1;
+
+				if (count == 0)
+					return 0;
+
+				long nextSong = getSongAt(peekNext());
+
+				removePosition(from, count);
+
+				mPlaylist.removeRange(from, to);
+				mJournal.logRemoveRange(from, count);
+
+				if (mRandom == true)
+					mShuffle.onRemoveRange(from, count);
+
+				journalEdit();
+
+				if (getSongAt(peekNext()) != nextSong)
+					schedulePrefetchCheck();
+			}
+
+			mDispatcher.postRemoveRange(from, count);
+			return count;
+		}
+
+		/**
+		 * Adjust the current position for <code>count</code> songs about to
+		 * be removed at <code>from</code>, stopping playback and leaving the
+		 * playlist unpositioned if the current song is among them.
+		 */
+		private void removePosition(int from, int count)
+		  throws RemoteException
+		{
+			if (mPosition >= from && mPosition < from + count)
+			{
+				stop();
+				mPosition = -1;
+				mResumeOffset = 0;
+			}
+			else if (mPosition >= from + count)
+				mPosition -= count;
+		}
+
+		public int moveRange(int from, int count, int newpos)
+		  throws RemoteException
+		{
+			int pos;
+
+			synchronized(mBinderLock) {
+				int n = mPlaylist.size();
+
+				if (from < 0 || count <= 0 || from + count > n ||
+				    newpos < 0 || newpos > n)
+					return -1;
+
+				/* newpos refers to the list prior to removal. */
+				if (newpos > from + count)
+					pos = newpos - count;
+				else if (newpos > from)
+					pos = from;
+				else
+					pos = newpos;
+
+				if (pos == from)
+					return pos;
+
+				long nextSong = getSongAt(peekNext());
+
+				mPlaylist.moveRange(from, count, pos);
+				mJournal.logMoveRange(from, count, pos);
+
+				if (mRandom == true)
+					mShuffle.onMoveRange(from, count, pos);
+
+				if (mPosition >= from && mPosition < from + count)
+					mPosition = pos + (mPosition - from);
+				else if (mPosition >= 0)
+				{
+					if (mPosition >= from + count)
+						mPosition -= count;
+
+					if (mPosition >= pos)
+						mPosition += count;
+				}
+
+				journalEdit();
+
+				if (getSongAt(peekNext()) != nextSong)
+					schedulePrefetchCheck();
+			}
+
+			mDispatcher.postMoveRange(from, count, pos);
+			return pos;
 		}
 
 		/*-********************************************************************/
@@ -1483,5 +2678,29 @@ public class PlaylistService extends Service implements
 		{
 			mBufferListeners.unregister(l);
 		}
+
+		public void registerOnProgressListener(IPlaylistProgressListener l,
+		  int interval)
+		  throws RemoteException
+		{
+			mDispatcher.registerProgressListener(l, interval);
+		}
+
+		public void unregisterOnProgressListener(IPlaylistProgressListener l)
+		  throws RemoteException
+		{
+			mDispatcher.unregisterProgressListener(l);
+		}
+
+		/*-********************************************************************/
+
+		public void setVisibleSongs(long[] songIds)
+		  throws RemoteException
+		{
+			mCacheMgr.getHeadCache().setGroup(PlaylistService.this,
+			  HeadCache.GROUP_VISIBLE, songIds);
+
+			schedulePrefetchCheck();
+		}
 	};
 }
@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.service;
+
+import java.util.Random;
+
+/**
+ * Random play order over the play queue, kept as a permutation of queue
+ * positions alongside its inverse so that the song before or after any
+ * position is found in constant time. The queue itself is never reordered.
+ * <p>
+ * Edits to the queue are applied to the permutation as they happen: a song
+ * inserted immediately after the current one is played next (as with
+ * "play next"), any other insertion lands at a random point in the remaining
+ * order, and songs already played keep their place. Each edit only renumbers
+ * the steps and positions it actually moves; appending a single song is
+ * constant time.
+ * <p>
+ * Every random choice is drawn from a seed given by the caller, so that
+ * {@link PlaylistJournal} can reproduce the order by recording the seeds
+ * alongside the edits.
+ * <p>
+ * Not thread-safe; {@link PlaylistService} guards access with its binder
+ * lock.
+ */
+public class ShuffleOrder
+{
+	private final Random mSeeds = new Random();
+	private final Random mRandom = new Random();
+
+	/* Queue position played at each step of the order. */
+	private int[] mOrder = new int[0];
+
+	/* Inverse of mOrder: step at which each queue position is played. */
+	private int[] mRank = new int[0];
+
+	private int mSize;
+
+	public int size()
+	{
+		return mSize;
+	}
+
+	/**
+	 * @return A fresh seed for {@link #shuffle} or {@link #onInsertRange}.
+	 */
+	public long newSeed()
+	{
+		return mSeeds.nextLong();
+	}
+
+	/**
+	 * Draw a new order for a queue of the given length, using Fisher-Yates.
+	 *
+	 * @param first
+	 *            Queue position to play first (typically the current song),
+	 *            or -1.
+	 */
+	public void shuffle(int size, int first, long seed)
+	{
+		mRandom.setSeed(seed);
+		ensureCapacity(size);
+		mSize = size;
+
+		for (int i = 0; i < size; i++)
+			mOrder[i] = i;
+
+		for (int i = size - 1; i > 0; i--)
+		{
+			int j = mRandom.nextInt(i + 1);
+			int tmp = mOrder[i];
+			mOrder[i] = mOrder[j];
+			mOrder[j] = tmp;
+		}
+
+		rebuildRanks(0, size);
+
+		if (first >= 0 && first < size)
+			swap(0, mRank[first]);
+	}
+
+	/**
+	 * @return Queue position played first.
+	 */
+	public int first()
+	{
+		return (mSize > 0) ? mOrder[0] : -1;
+	}
+
+	/**
+	 * @return Queue position played last.
+	 */
+	public int last()
+	{
+		return (mSize > 0) ? mOrder[mSize - 1] : -1;
+	}
+
+	/**
+	 * @return Queue position played after <code>pos</code>, or -1 if
+	 *         <code>pos</code> is played last.
+	 */
+	public int next(int pos)
+	{
+		int rank = mRank[pos] + 1;
+		return (rank < mSize) ? mOrder[rank] : -1;
+	}
+
+	/**
+	 * @return Queue position played before <code>pos</code>, or -1 if
+	 *         <code>pos</code> is played first.
+	 */
+	public int previous(int pos)
+	{
+		int rank = mRank[pos] - 1;
+		return (rank >= 0) ? mOrder[rank] : -1;
+	}
+
+	/**
+	 * Copy the queue positions played from <code>pos</code> onward (in play
+	 * order, inclusive) into <code>dst</code>.
+	 *
+	 * @return Number of positions copied.
+	 */
+	public int upcoming(int pos, int[] dst)
+	{
+		int rank = mRank[pos];
+		int n = Math.min(dst.length, mSize - rank);
+		System.arraycopy(mOrder, rank, dst, 0, n);
+		return n;
+	}
+
+	/**
+	 * Account for a song inserted into the queue at <code>pos</code>.
+	 *
+	 * @param current
+	 *            Queue position of the current song after the insert, or -1.
+	 */
+	public void onInsert(int pos, int current, long seed)
+	{
+		onInsertRange(pos, 1, current, seed);
+	}
+
+	/**
+	 * Account for <code>count</code> songs inserted into the queue starting
+	 * at <code>pos</code>. Songs inserted immediately after the current one
+	 * are played next, in random order among themselves. Otherwise a single
+	 * song swaps into a random step after the current song, sending the
+	 * song it displaces to the end; several songs are interleaved at random
+	 * with the rest of the order after the current song, which keeps its
+	 * relative order.
+	 *
+	 * @param current
+	 *            Queue position of the current song after the insert, or -1.
+	 */
+	public void onInsertRange(int pos, int count, int current, long seed)
+	{
+		if (count <= 0)
+			return;
+
+		mRandom.setSeed(seed);
+		ensureCapacity(mSize + count);
+
+		int start;
+		boolean playNext = false;
+
+		if (current < 0)
+			start = 0;
+		else
+		{
+			int oldCurrent = (current >= pos + count) ? current - count : current;
+			start = mRank[oldCurrent] + 1;
+			playNext = (pos == current + 1);
+		}
+
+		/* Shift the queue positions at or after the insert. Their steps
+		 * before start are unchanged, so their ranks just move along. */
+		for (int p = pos; p < mSize; p++)
+			mOrder[mRank[p]] += count;
+
+		System.arraycopy(mRank, pos, mRank, pos + count, mSize - pos);
+
+		/* As a step of Fisher-Yates, touching only two ranks. */
+		if (count == 1 && playNext == false)
+		{
+			int step = start + mRandom.nextInt(mSize - start + 1);
+
+			mOrder[mSize] = pos;
+			mRank[pos] = mSize;
+			mSize++;
+
+			swap(step, mSize - 1);
+			return;
+		}
+
+		int[] added = new int[count];
+		for (int i = 0; i < count; i++)
+			added[i] = pos + i;
+
+		for (int i = count - 1; i > 0; i--)
+		{
+			int j = mRandom.nextInt(i + 1);
+			int tmp = added[i];
+			added[i] = added[j];
+			added[j] = tmp;
+		}
+
+		int tail = mSize - start;
+
+		if (playNext == true)
+		{
+			System.arraycopy(mOrder, start, mOrder, start + count, tail);
+			System.arraycopy(added, 0, mOrder, start, count);
+		}
+		else
+		{
+			int[] rest = new int[tail];
+			System.arraycopy(mOrder, start, rest, 0, tail);
+
+			/* Uniformly random interleaving of the two sequences. */
+			int i = 0, j = 0;
+			for (int step = start; step < start + tail + count; step++)
+			{
+				int remaining = (tail - i) + (count - j);
+
+				if (mRandom.nextInt(remaining) < count - j)
+					mOrder[step] = added[j++];
+				else
+					mOrder[step] = rest[i++];
+			}
+		}
+
+		mSize += count;
+
+		rebuildRanks(start, mSize);
+	}
+
+	/**
+	 * Account for the song at <code>pos</code> being removed from the queue.
+	 */
+	public void onRemove(int pos)
+	{
+		onRemoveRange(pos, 1);
+	}
+
+	/**
+	 * Account for <code>count</code> songs starting at <code>from</code>
+	 * being removed from the queue.
+	 */
+	public void onRemoveRange(int from, int count)
+	{
+		int to = from + count;
+
+		/* Steps before the first removed one stay where they are. */
+		int first = mSize;
+		for (int p = from; p < to; p++)
+		{
+			int rank = mRank[p];
+			if (rank < first)
+				first = rank;
+
+			mOrder[rank] = -1;
+		}
+
+		for (int p = to; p < mSize; p++)
+			mOrder[mRank[p]] -= count;
+
+		int n = first;
+		for (int i = first; i < mSize; i++)
+		{
+			if (mOrder[i] >= 0)
+				mOrder[n++] = mOrder[i];
+		}
+
+		System.arraycopy(mRank, to, mRank, from, mSize - to);
+		mSize = n;
+
+		rebuildRanks(first, mSize);
+	}
+
+	/**
+	 * Account for the song at <code>from</code> being moved to
+	 * <code>to</code>, as in {@link PlayQueue#move(int, int)}. The song
+	 * keeps its place in the play order.
+	 */
+	public void onMove(int from, int to)
+	{
+		onMoveRange(from, 1, to);
+	}
+
+	/**
+	 * Account for <code>count</code> songs starting at <code>from</code>
+	 * being moved so that the first is at <code>to</code>, as in
+	 * {@link PlayQueue#moveRange(int, int, int)}. The songs keep their place
+	 * in the play order.
+	 */
+	public void onMoveRange(int from, int count, int to)
+	{
+		/* Only positions between the source and destination change, and
+		 * none of the steps do. */
+		int lo = Math.min(from, to);
+		int hi = Math.max(from, to) + count;
+
+		int[] ranks = new int[hi - lo];
+		System.arraycopy(mRank, lo, ranks, 0, ranks.length);
+
+		for (int p = lo; p < hi; p++)
+		{
+			int moved;
+
+			if (p >= from && p < from + count)
+				moved = to + (p - from);
+			else
+			{
+				moved = p;
+
+				if (moved >= from + count)
+					moved -= count;
+
+				if (moved >= to)
+					moved += count;
+			}
+
+			int rank = ranks[p - lo];
+			mOrder[rank] = moved;
+			mRank[moved] = rank;
+		}
+	}
+
+	public void clear()
+	{
+		mSize = 0;
+
+		if (mOrder.length > 1024)
+		{
+			mOrder = new int[0];
+			mRank = new int[0];
+		}
+	}
+
+	private void swap(int a, int b)
+	{
+		int tmp = mOrder[a];
+		mOrder[a] = mOrder[b];
+		mOrder[b] = tmp;
+
+		mRank[mOrder[a]] = a;
+		mRank[mOrder[b]] = b;
+	}
+
+	private void rebuildRanks(int from, int to)
+	{
+		for (int i = from; i < to; i++)
+			mRank[mOrder[i]] = i;
+	}
+
+	private void ensureCapacity(int size)
+	{
+		if (mOrder.length >= size)
+			return;
+
+		int capacity = Math.max(size, mOrder.length * 3 / 2 + 16);
+
+		int[] order = new int[capacity];
+		System.arraycopy(mOrder, 0, order, 0, mSize);
+		mOrder = order;
+
+		mRank = new int[capacity];
+		rebuildRanks(0, mSize);
+	}
+
+	/**
+	 * @return Copy of the queue positions in play order.
+	 */
+	public int[] toArray()
+	{
+		int[] order = new int[mSize];
+		System.arraycopy(mOrder, 0, order, 0, mSize);
+		return order;
+	}
+
+	/**
+	 * Replace the order with one previously returned by {@link #toArray}.
+	 *
+	 * @return False if <code>order</code> is not a permutation of queue
+	 *         positions, in which case the order is cleared.
+	 */
+	public boolean set(int[] order)
+	{
+		int size = order.length;
+
+		mSize = 0;
+		ensureCapacity(size);
+
+		boolean[] seen = new boolean[size];
+		for (int i = 0; i < size; i++)
+		{
+			int pos = order[i];
+
+			if (pos < 0 || pos >= size || seen[pos] == true)
+				return false;
+
+			seen[pos] = true;
+			mOrder[i] = pos;
+		}
+
+		mSize = size;
+		rebuildRanks(0, size);
+
+		return true;
+	}
+}
@@ -15,7 +15,6 @@
 package org.devtcg.five.util.streaming;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -141,7 +140,25 @@ public abstract class DownloadManager
 	public Download startDownload(String url, String path, long expectedContentLength,
 			long resumeFrom) throws IOException
 	{
-		Download d = newDownload(url, path, expectedContentLength, resumeFrom);
+		return startDownload(url, new FileDownloadSink(path), expectedContentLength,
+				resumeFrom);
+	}
+
+	public Download startDownload(String url, DownloadSink sink, long expectedContentLength,
+			long resumeFrom) throws IOException
+	{
+		return startDownload(url, sink, expectedContentLength, resumeFrom, -1);
+	}
+
+	/**
+	 * @param stopAt
+	 *            Offset at which to stop the download, or -1 to retrieve the
+	 *            content in full. Used to fetch only the beginning of a file.
+	 */
+	public Download startDownload(String url, DownloadSink sink, long expectedContentLength,
+			long resumeFrom, long stopAt) throws IOException
+	{
+		Download d = newDownload(url, sink, expectedContentLength, resumeFrom, stopAt);
 		mDownloads.put(url, d);
 		d.start();
 		return d;
@@ -188,10 +205,10 @@ public abstract class DownloadManager
 		}
 	}
 
-	protected Download newDownload(String url, String path, long expectedContentLength,
-			long resumeFrom) throws IOException
+	protected Download newDownload(String url, DownloadSink sink, long expectedContentLength,
+			long resumeFrom, long stopAt) throws IOException
 	{
-		return new Download(this, url, path, expectedContentLength, resumeFrom);
+		return new Download(this, url, sink, expectedContentLength, resumeFrom, stopAt);
 	}
 
 	protected void removeDownload(String url)
@@ -215,42 +232,54 @@ public abstract class DownloadManager
 		return info.isConnected();
 	}
 
+	/**
+	 * Determines whether we are on a network fast and cheap enough to
+	 * download speculatively (currently, only Wi-Fi qualifies).
+	 */
+	public boolean isFastNetwork()
+	{
+		NetworkInfo info = mConnMan.getActiveNetworkInfo();
+		if (info == null || info.isConnected() == false)
+			return false;
+
+		return info.getType() == ConnectivityManager.TYPE_WIFI;
+	}
+
 	public abstract void onProgressUpdate(String url, int percent);
 	public abstract void onStateChange(String url, int state, String message);
 
 	/**
 	 * Handle fatal download failure.  The default response is to delete
-	 * the destination file.
+	 * the downloaded content.
 	 */
 	public void onError(String url, int state, String err)
 	{
 		Download dl = mDownloads.get(url);
-		dl.getDestination().delete();
+		dl.getSink().delete();
 	}
 
 	/**
 	 * Triggered after a download was aborted.  Default response is
-	 * to delete the destination file.
+	 * to delete the downloaded content.
 	 */
 	public void onAborted(String url)
 	{
 		Download dl = mDownloads.get(url);
-		dl.getDestination().delete();
+		dl.getSink().delete();
 	}
 
 	public abstract void onFinished(String url);
 
 	public static class Download extends CancelableThread
 	{
-		private static final int BUFFER_SIZE = 2048;
+		private static final int BUFFER_SIZE = 8192;
 
 		private static final AtomicInteger mCount = new AtomicInteger(1);
 
 		private final DownloadManager mManager;
 		private final String mUrl;
-		private final File mDest;
 
-		private final FileOutputStream mOut;
+		private final DownloadSink mSink;
 		private HttpGet mMethod;
 
 		private final Object mPauseLock = new Object();
@@ -261,12 +290,14 @@ public abstract class DownloadManager
 		private int mAttempts = 0;
 
 		private long mResumeFrom;
+		private final long mStartOffset;
 
 		private final Object mResponseLock = new Object();
 		private volatile boolean mPostResponse;
 		private long mBytes = 0;
 		private long mLength = -1;
 		private final long mExpectedLength;
+		private final long mStopAt;
 
 		private int mLastProgress = 0;
 
@@ -285,19 +316,21 @@ public abstract class DownloadManager
 		 *            has been provided by the server in response to this
 		 *            download.
 		 */
-		private Download(DownloadManager mgr, String url, String path,
-				long expectedContentLength, long resumeFrom) throws IOException
+		private Download(DownloadManager mgr, String url, DownloadSink sink,
+				long expectedContentLength, long resumeFrom, long stopAt) throws IOException
 		{
 			super("Download #" + mCount.getAndIncrement() + ": " + url);
 
 			mManager = mgr;
 			mUrl = url;
-			mDest = new File(path);
+			mSink = sink;
 
 			mExpectedLength = expectedContentLength;
 			mResumeFrom = resumeFrom;
+			mStartOffset = resumeFrom;
+			mStopAt = stopAt;
 			mBytes = resumeFrom;
-			mOut = new FileOutputStream(path, (resumeFrom > 0));
+			mSink.open(resumeFrom, expectedContentLength);
 		}
 
 		public String getUrl()
@@ -305,9 +338,18 @@ public abstract class DownloadManager
 			return mUrl;
 		}
 
+		/**
+		 * @return The file the download is written to, or null if the sink
+		 *         does not store content as a single file.
+		 */
 		public File getDestination()
 		{
-			return mDest;
+			return mSink.getFile();
+		}
+
+		public DownloadSink getSink()
+		{
+			return mSink;
 		}
 
 		public int getDownloadState()
@@ -385,6 +427,44 @@ public abstract class DownloadManager
 			return mLength;
 		}
 
+		/**
+		 * @return Offset the download was initially resumed from, that is
+		 *         the amount of content already present in the sink.
+		 */
+		public long getStartOffset()
+		{
+			return mStartOffset;
+		}
+
+		/**
+		 * @return Bytes retrieved from the network so far.
+		 */
+		public long getBytesTransferred()
+		{
+			return mBytes - mStartOffset;
+		}
+
+		/**
+		 * @return True if this download retrieves only the beginning of the
+		 *         content (see {@link DownloadManager#startDownload(String,
+		 *         DownloadSink, long, long, long)}).
+		 */
+		public boolean isPartial()
+		{
+			return mStopAt > 0;
+		}
+
+		/**
+		 * Offset at which the download is considered finished.
+		 */
+		private long getEndOffset()
+		{
+			if (mStopAt > 0 && (mLength < 0 || mStopAt < mLength))
+				return mStopAt;
+
+			return mLength;
+		}
+
 		/**
 		 * Efficiently wait on the download thread to get a
 		 * response from the remote peer.  Intended to be called from
@@ -432,7 +512,9 @@ public abstract class DownloadManager
 		{
 			HttpGet method = new HttpGet(mUrl);
 
-			if (mResumeFrom > 0)
+			if (mStopAt > 0)
+				method.addHeader("Range", "bytes=" + mResumeFrom + "-" + (mStopAt - 1));
+			else if (mResumeFrom > 0)
 				method.addHeader("Range", "bytes=" + mResumeFrom + "-");
 
 			setState(STATE_CONNECTING);
@@ -466,21 +548,29 @@ public abstract class DownloadManager
 					StatusLine status = resp.getStatusLine();
 					int statusCode = status.getStatusCode();
 
-					if (mResumeFrom == 0)
+					/* A server ignoring our range on a head request is harmless,
+					 * we'll just stop reading early. */
+					boolean partialContent;
+
+					if (mResumeFrom == 0 && (mStopAt <= 0 || statusCode == HttpStatus.SC_OK))
 					{
 						if (statusCode != HttpStatus.SC_OK)
 							throw new IOException("HTTP GET failed: " + status);
+
+						partialContent = false;
 					}
 					else
 					{
 						if (statusCode != HttpStatus.SC_PARTIAL_CONTENT)
 							throw new IOException("HTTP GET failed: " + status);
+
+						partialContent = true;
 					}
 
 					if ((ent = resp.getEntity()) == null)
 						throw new IOException("No entity?");
 
-					if (mResumeFrom == 0)
+					if (partialContent == false)
 						mLength = ent.getContentLength();
 					else
 					{
@@ -498,7 +588,12 @@ public abstract class DownloadManager
 						long lastBytePos = Long.parseLong(matcher.group(2));
 						long length = Long.parseLong(matcher.group(3));
 
-						if (lastBytePos + 1 != length)
+						if (mStopAt > 0)
+						{
+							if (lastBytePos + 1 != Math.min(mStopAt, length))
+								throw new IOException("Range request inconsistently answered");
+						}
+						else if (lastBytePos + 1 != length)
 							throw new IOException("Range request inconsistently answered");
 
 						if (firstBytePos != mResumeFrom)
@@ -527,13 +622,20 @@ public abstract class DownloadManager
 				byte[] b = new byte[BUFFER_SIZE];
 				int n;
 
-				while ((n = in.read(b)) >= 0)
+				long end = getEndOffset();
+				if (end < 0)
+					end = Long.MAX_VALUE;
+
+				while (mBytes < end && (n = in.read(b)) >= 0)
 				{
 					if (hasCanceled())
 						break;
 
+					if (mBytes + n > end)
+						n = (int)(end - mBytes);
+
 					try {
-						mOut.write(b, 0, n);
+						mSink.write(b, 0, n);
 					} catch (IOException e) {
 						throw new LocalIOException(e);
 					}
@@ -541,7 +643,7 @@ public abstract class DownloadManager
 					mBytes += n;
 
 					int progress = (int)
-					  (((float)mBytes / (float)mLength) * 100f);
+					  (((float)mBytes / (float)end) * 100f);
 
 					if (progress > mLastProgress)
 					{
@@ -550,7 +652,13 @@ public abstract class DownloadManager
 					}
 				}
 
-				if (mBytes < mLength)
+				try {
+					mSink.flush();
+				} catch (IOException e) {
+					throw new LocalIOException(e);
+				}
+
+				if (end != Long.MAX_VALUE && mBytes < end)
 					throw new HttpException("Server didn't send as much as it said it would.");
 			} catch (HttpException e) {
 				setState(STATE_HTTP_ERROR, e.toString());
@@ -591,6 +699,11 @@ DOWNLOAD_RETRY_LOOP:
 					Log.d(DownloadManager.TAG,
 						"Download of " + mUrl + " failed: " + e.toString());
 
+					/* Let readers have whatever we got before the failure. */
+					try {
+						mSink.flush();
+					} catch (IOException flushError) {}
+
 					switch (mState)
 					{
 					case STATE_PAUSED_REMOTE_FAILURE:
@@ -655,7 +768,7 @@ DOWNLOAD_RETRY_LOOP:
 			}
 
 			try {
-				mOut.close();
+				mSink.close();
 			} catch (IOException e) {
 				Log.e(DownloadManager.TAG, "TODO: HANDLE ME", e);
 			}
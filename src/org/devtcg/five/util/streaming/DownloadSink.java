@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.util.streaming;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Destination for the content retrieved by a {@link DownloadManager.Download}.
+ * Writes are always sequential, starting from the offset given to
+ * {@link #open}.
+ */
+public interface DownloadSink
+{
+	/**
+	 * Prepare the sink to receive content.
+	 *
+	 * @param resumeFrom
+	 *            Offset of the first byte to be written. Content before this
+	 *            offset was retrieved by a previous download and must be
+	 *            preserved.
+	 * @param expectedLength
+	 *            Expected total content length, or 0 if not known.
+	 */
+	public void open(long resumeFrom, long expectedLength) throws IOException;
+
+	public void write(byte[] b, int off, int len) throws IOException;
+
+	/**
+	 * Make all content written so far available to readers. Sinks may
+	 * otherwise buffer writes internally.
+	 */
+	public void flush() throws IOException;
+
+	public void close() throws IOException;
+
+	/**
+	 * Discard all content written to this sink, including content from
+	 * previous downloads.
+	 */
+	public void delete();
+
+	/**
+	 * @return The file backing this sink, or null if the content is not
+	 *         stored as a single file.
+	 */
+	public File getFile();
+
+	/**
+	 * @return Number of bytes, counting from the beginning of the content,
+	 *         which have been stored and may be read back.
+	 */
+	public long getAvailableLength();
+}
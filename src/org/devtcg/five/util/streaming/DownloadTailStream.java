@@ -36,7 +36,7 @@ public class DownloadTailStream extends TailStream
 		 * XXX: Hardcoded audio/mpeg as mime type here. This is only used by
 		 * StreamMediaPlayerTest, which will be removed shortly.
 		 */
-		super(dl.getDestination().getAbsolutePath(), "audio/mpeg");
+		super(dl.getDestination().getAbsolutePath(), "audio/mpeg", dl.getSink());
 		mDownload = dl;
 	}
 
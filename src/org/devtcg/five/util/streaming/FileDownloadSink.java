@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.util.streaming;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.util.Log;
+
+/**
+ * Sink which writes downloaded content to a file on disk.
+ * <p>
+ * The file is grown to its expected size up front so that the SD card's
+ * FAT can allocate it in one go rather than a cluster at a time, and writes
+ * are gathered into large buffers which are drained on a size or time
+ * cadence. Because the file's size no longer reflects how much has been
+ * downloaded, readers must use {@link #getAvailableLength()} instead, and a
+ * marker file is kept next to the content while it is incomplete (see
+ * {@link #getResumableLength(File)}).
+ */
+public class FileDownloadSink implements DownloadSink
+{
+	public static final String TAG = "FileDownloadSink";
+
+	/* Multiple of every FAT cluster size in practical use. */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/* Drain a partially filled buffer after this long so that readers
+	 * tailing the download are not starved on slow connections. */
+	private static final long FLUSH_INTERVAL = 1000;
+
+	private static final String PARTIAL_SUFFIX = ".part";
+
+	private final File mFile;
+	private final long mMaxPreallocate;
+
+	private RandomAccessFile mRaf;
+	private FileChannel mChannel;
+	private ByteBuffer mBuffer;
+
+	/* Offset at which the buffer will be drained. */
+	private long mPosition;
+
+	/* Bytes actually written to the file, from the beginning. */
+	private volatile long mAvailable;
+
+	private long mLastFlushTime;
+
+	public FileDownloadSink(String path)
+	{
+		this(path, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param maxPreallocate
+	 *            Upper bound on the preallocated file size, for downloads
+	 *            which will stop short of the full content.
+	 */
+	public FileDownloadSink(String path, long maxPreallocate)
+	{
+		mFile = new File(path);
+		mMaxPreallocate = maxPreallocate;
+	}
+
+	private static File getPartialMarker(File file)
+	{
+		return new File(file.getPath() + PARTIAL_SUFFIX);
+	}
+
+	/**
+	 * Determine how much of a previous download can be safely resumed. A
+	 * file left preallocated by an interrupted download (for instance if the
+	 * process was killed) has an unknown amount of valid content and must be
+	 * downloaded again from the beginning.
+	 */
+	public static long getResumableLength(File file)
+	{
+		if (getPartialMarker(file).exists() == true)
+			return 0;
+
+		return file.length();
+	}
+
+	public void open(long resumeFrom, long expectedLength) throws IOException
+	{
+		File marker = getPartialMarker(mFile);
+
+		mRaf = new RandomAccessFile(mFile, "rw");
+		mChannel = mRaf.getChannel();
+
+		/* Discard any content beyond the resume point. */
+		mRaf.setLength(resumeFrom);
+
+		long preallocate = Math.min(expectedLength, mMaxPreallocate);
+		if (preallocate > resumeFrom)
+		{
+			try {
+				marker.createNewFile();
+				mRaf.setLength(preallocate);
+			} catch (IOException e) {
+				/* Probably short on space; fall back to growing the file
+				 * as we go. */
+				Log.w(TAG, "Unable to preallocate " + mFile + ": " + e.toString());
+				mRaf.setLength(resumeFrom);
+				marker.delete();
+			}
+		}
+		else
+			marker.delete();
+
+		mPosition = resumeFrom;
+		mAvailable = resumeFrom;
+		mLastFlushTime = System.currentTimeMillis();
+
+		mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		alignBuffer();
+	}
+
+	/* Size the next fill so that it ends on a buffer boundary in the file. */
+	private void alignBuffer()
+	{
+		mBuffer.clear();
+		mBuffer.limit(BUFFER_SIZE - (int)(mPosition % BUFFER_SIZE));
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		while (len > 0)
+		{
+			int n = Math.min(len, mBuffer.remaining());
+			mBuffer.put(b, off, n);
+			off += n;
+			len -= n;
+
+			if (mBuffer.hasRemaining() == false)
+				drain();
+		}
+
+		if (System.currentTimeMillis() - mLastFlushTime >= FLUSH_INTERVAL)
+			flush();
+	}
+
+	private void drain() throws IOException
+	{
+		mBuffer.flip();
+
+		while (mBuffer.hasRemaining() == true)
+			mPosition += mChannel.write(mBuffer, mPosition);
+
+		mAvailable = mPosition;
+		alignBuffer();
+	}
+
+	public void flush() throws IOException
+	{
+		if (mBuffer.position() > 0)
+			drain();
+
+		mLastFlushTime = System.currentTimeMillis();
+	}
+
+	public void close() throws IOException
+	{
+		try {
+			flush();
+
+			/* Trim the preallocated tail if the download ended early. */
+			if (mRaf.length() > mPosition)
+				mRaf.setLength(mPosition);
+
+			getPartialMarker(mFile).delete();
+		} finally {
+			mRaf.close();
+		}
+	}
+
+	public void delete()
+	{
+		mFile.delete();
+		getPartialMarker(mFile).delete();
+	}
+
+	public File getFile()
+	{
+		return mFile;
+	}
+
+	public long getAvailableLength()
+	{
+		return mAvailable;
+	}
+}
@@ -15,6 +15,7 @@
 package org.devtcg.five.util.streaming;
 
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
@@ -25,7 +26,9 @@ import org.devtcg.five.util.streaming.StreamMediaPlayer.RandomAccessStream;
 import android.util.Log;
 
 /**
- * Simple access stream to "tail" a changing file on disk.
+ * Simple access stream to "tail" a changing file on disk. If the file is
+ * being written by a {@link DownloadSink}, the sink is consulted for how much
+ * content is available, as the file may have been preallocated.
  */
 public class TailStream extends RandomAccessStream
 {
@@ -34,19 +37,59 @@ public class TailStream extends RandomAccessStream
 	protected final String mPath;
 	protected final String mMimeType;
 	protected long mLength = -1;
+	private final SinkLookup mLookup;
+
+	/* Sink which was current when mChannel was opened. */
+	private DownloadSink mOpenSink;
 	private FileChannel mChannel;
 
 	private long mRemaining = 0;
 
-	protected TailStream(String path, String mimeType)
+	/**
+	 * Finds the sink currently writing to the stream's path. This changes
+	 * if the download is cancelled, which deletes the file, and then started
+	 * again.
+	 */
+	public interface SinkLookup
+	{
+		/**
+		 * @return The current sink, or null if the file is not being
+		 *         written, either because it is complete or because its
+		 *         download was cancelled.
+		 */
+		public DownloadSink getSink();
+	}
+
+	protected TailStream(String path, String mimeType, final DownloadSink sink)
+	{
+		this(path, mimeType, new SinkLookup() {
+			public DownloadSink getSink() {
+				return sink;
+			}
+		});
+	}
+
+	private TailStream(String path, String mimeType, SinkLookup lookup)
 	{
 		mPath = path;
 		mMimeType = mimeType;
+		mLookup = lookup;
 	}
 
 	public TailStream(String path, String mimeType, long length)
 	{
-		this(path, mimeType);
+		this(path, mimeType, length, (SinkLookup)null);
+	}
+
+	/**
+	 * @param lookup
+	 *            Consulted on every read for the sink writing to
+	 *            <code>path</code>, or null if the file's size reflects the
+	 *            amount of content available.
+	 */
+	public TailStream(String path, String mimeType, long length, SinkLookup lookup)
+	{
+		this(path, mimeType, lookup);
 
 		if (length <= 0)
 			throw new IllegalArgumentException("Length must be positive");
@@ -56,7 +99,7 @@ public class TailStream extends RandomAccessStream
 
 	public RandomAccessStream newInstance()
 	{
-		return new TailStream(mPath, mMimeType, mLength);
+		return new TailStream(mPath, mMimeType, mLength, mLookup);
 	}
 
 	protected void setLength(long length)
@@ -71,7 +114,8 @@ public class TailStream extends RandomAccessStream
 		/* XXX: We need to call abort as well, but there is no way for
 		 * us to get the Thread handle that we're running under. */
 		try {
-			mChannel.close();
+			if (mChannel != null)
+				mChannel.close();
 		} catch (IOException e) {
 			Log.e(TAG, "Error during abort", e);
 		}
@@ -86,20 +130,28 @@ public class TailStream extends RandomAccessStream
 	@Override
 	public void open() throws IOException
 	{
+		if (mLookup != null)
+			mOpenSink = mLookup.getSink();
+
 		mChannel = (new RandomAccessFile(mPath, "r")).getChannel();
 	}
 
 	@Override
 	public void close() throws IOException
 	{
-		mChannel.close();
+		if (mChannel != null)
+			mChannel.close();
+
 		mChannel = null;
+		mOpenSink = null;
 	}
 
 	@Override
 	public void seek(long pos) throws IOException
 	{
-		mChannel.position(pos);
+		if (mChannel != null)
+			mChannel.position(pos);
+
 		mRemaining = mLength - pos;
 	}
 
@@ -119,6 +171,44 @@ public class TailStream extends RandomAccessStream
 		throw new RuntimeException("Don't invoke this method.");
 	}
 
+	private long getAvailableLength() throws IOException
+	{
+		if (mLookup == null)
+			return mChannel.size();
+
+		DownloadSink sink = mLookup.getSink();
+		if (sink != mOpenSink || mChannel == null)
+			reopen(sink);
+
+		if (mChannel == null)
+			return 0;
+		else if (sink != null)
+			return sink.getAvailableLength();
+		else
+			return FileDownloadSink.getResumableLength(new File(mPath));
+	}
+
+	/*
+	 * The download we were tailing has finished, or was cancelled (deleting
+	 * the file we have open) and possibly started again. Pick up the current
+	 * file at the same position, or wait for one to appear.
+	 */
+	private void reopen(DownloadSink sink) throws IOException
+	{
+		if (mChannel != null)
+			mChannel.close();
+
+		mChannel = null;
+		mOpenSink = sink;
+
+		File file = new File(mPath);
+		if (file.exists() == false)
+			return;
+
+		mChannel = (new RandomAccessFile(file, "r")).getChannel();
+		mChannel.position(mLength - mRemaining);
+	}
+
 	private void waitForData() throws IOException
 	{
 		long pos = mLength - mRemaining;
@@ -128,7 +218,7 @@ public class TailStream extends RandomAccessStream
 
 		Thread self = Thread.currentThread();
 
-		while (pos >= mChannel.size() && self.isInterrupted() == false)
+		while (pos >= getAvailableLength() && self.isInterrupted() == false)
 		{
 			try {
 				Thread.sleep(1000);
@@ -154,6 +244,21 @@ public class TailStream extends RandomAccessStream
 		if (len > mRemaining)
 			len = (int)mRemaining;
 
+		if (mLookup != null)
+		{
+			/* Don't read into the preallocated region not yet written. */
+			long available = getAvailableLength() - (mLength - mRemaining);
+
+			if (available <= 0)
+			{
+				waitForData();
+				return 0;
+			}
+
+			if (len > available)
+				len = (int)available;
+		}
+
 		ByteBuffer buf = ByteBuffer.wrap(b, offs, len);
 
 		int n = mChannel.read(buf);
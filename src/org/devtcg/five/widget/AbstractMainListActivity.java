@@ -90,18 +90,26 @@ public abstract class AbstractMainListActivity extends ListActivity implements O
 	protected class QueryProvider extends SimpleQueryProvider
 	{
 		private final Uri mBaseUri;
-
-		public QueryProvider(String columnName, Uri baseUri)
+		private final Uri mSectionsUri;
+
+		/**
+		 * @param baseUri
+		 *            List URI accepting the Five.Paging parameters.
+		 * @param sectionsUri
+		 *            Section counts of the same list.
+		 */
+		public QueryProvider(String columnName, Uri baseUri, Uri sectionsUri)
 		{
 			super(columnName);
 			mBaseUri = baseUri;
+			mSectionsUri = sectionsUri;
 		}
 
 		@Override
 		public Cursor getFilterCursor(String selection, String[] args)
 		{
-			return getContentResolver().query(mBaseUri, null,
-					selection, args, getColumnName() + " COLLATE UNICODE ASC");
+			return new PagingCursor(getContentResolver(), mBaseUri,
+					mSectionsUri, selection, args);
 		}
 	};
 
@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.widget;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.devtcg.five.provider.Five;
+
+import android.content.ContentResolver;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.widget.SectionIndexer;
+
+/**
+ * Cursor over an artist, album or song list which reads the list from the
+ * provider one page at a time as it is scrolled, using the
+ * {@link Five.Paging} parameters. The row count and fast scroll sections
+ * come from the list's "sections" URI, so opening a list costs the same
+ * however large it is.
+ * <p>
+ * Pages following one already read continue from its last row. Jumps
+ * elsewhere (such as by fast scrolling) start from the beginning of the
+ * target's section, skipping at most that section's rows.
+ */
+public class PagingCursor extends AbstractCursor implements SectionIndexer
+{
+	private static final int PAGE_SIZE = 64;
+
+	/* Pages kept open, enough to cover a screen that straddles two pages
+	 * while scrolling in either direction. */
+	private static final int MAX_PAGES = 4;
+
+	private final ContentResolver mResolver;
+	private final Uri mBaseUri;
+	private final Uri mSectionsUri;
+	private final String mSelection;
+	private final String[] mSelectionArgs;
+
+	private final LinkedHashMap<Integer, Page> mPages =
+		new LinkedHashMap<Integer, Page>(MAX_PAGES, 0.75f, true)
+	{
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Page> eldest)
+		{
+			if (size() > MAX_PAGES)
+			{
+				eldest.getValue().close();
+				return true;
+			}
+
+			return false;
+		}
+	};
+
+	private String[] mColumnNames;
+	private int mCount;
+
+	private String[] mSections;
+
+	/* First list position of each section. */
+	private int[] mPositions;
+
+	/* Page cursor positioned at the current row, or null if the list has
+	 * shrunk since the sections were counted. */
+	private Cursor mCurrent;
+
+	private static class Page
+	{
+		/* Null if the provider returned nothing, which reads as the end of
+		 * the list. */
+		public final Cursor cursor;
+
+		/* Key of the page's last row, from which the next page continues. */
+		public String lastSection;
+		public String lastSortKey;
+		public long lastId;
+
+		public Page(Cursor cursor)
+		{
+			this.cursor = cursor;
+
+			if (cursor != null && cursor.moveToLast() == true)
+			{
+				lastSection = cursor.getString(
+				  cursor.getColumnIndexOrThrow(Five.Music.Artists.SECTION));
+				lastSortKey = cursor.getString(
+				  cursor.getColumnIndexOrThrow(Five.Music.Artists.SORT_KEY));
+				lastId = cursor.getLong(
+				  cursor.getColumnIndexOrThrow(Five.Music.Artists._ID));
+			}
+		}
+
+		public boolean isFull()
+		{
+			return cursor != null && cursor.getCount() == PAGE_SIZE;
+		}
+
+		public void close()
+		{
+			if (cursor != null)
+				cursor.close();
+		}
+	}
+
+	/**
+	 * @param baseUri
+	 *            List URI accepting the {@link Five.Paging} parameters.
+	 * @param sectionsUri
+	 *            Section counts of the same list.
+	 * @param selection
+	 *            Selection applied to both the list and its counts.
+	 */
+	public PagingCursor(ContentResolver resolver, Uri baseUri, Uri sectionsUri,
+			String selection, String[] selectionArgs)
+	{
+		mResolver = resolver;
+		mBaseUri = baseUri;
+		mSectionsUri = sectionsUri;
+		mSelection = selection;
+		mSelectionArgs = selectionArgs;
+
+		load();
+
+		setNotificationUri(resolver, baseUri);
+	}
+
+	private void load()
+	{
+		loadSections();
+
+		/* Always read the first page, if only for the column names. */
+		Page first = queryPage(null, 0);
+		mPages.put(0, first);
+
+		if (first.cursor != null)
+			mColumnNames = first.cursor.getColumnNames();
+		else
+		{
+			mCount = 0;
+			if (mColumnNames == null)
+				mColumnNames = new String[0];
+		}
+	}
+
+	private void loadSections()
+	{
+		Cursor c = mResolver.query(mSectionsUri,
+				null, mSelection, mSelectionArgs, null);
+
+		mCount = 0;
+
+		if (c == null)
+		{
+			mSections = new String[0];
+			mPositions = new int[0];
+			return;
+		}
+
+		try {
+			int n = c.getCount();
+			String[] sections = new String[n];
+			int[] positions = new int[n];
+
+			int sectionColumn = c.getColumnIndexOrThrow(Five.Sections.SECTION);
+			int countColumn = c.getColumnIndexOrThrow(Five.Sections._COUNT);
+
+			for (int i = 0; c.moveToNext() == true; i++)
+			{
+				sections[i] = c.getString(sectionColumn);
+				positions[i] = mCount;
+				mCount += c.getInt(countColumn);
+			}
+
+			mSections = sections;
+			mPositions = positions;
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * @param after
+	 *            Page whose last row the new page continues from, or null to
+	 *            start from the section containing <code>position</code>.
+	 */
+	private Page queryPage(Page after, int position)
+	{
+		Uri.Builder builder = mBaseUri.buildUpon();
+		builder.appendQueryParameter(Five.Paging.LIMIT, String.valueOf(PAGE_SIZE));
+
+		if (after != null)
+		{
+			builder.appendQueryParameter(Five.Paging.AFTER_SECTION, after.lastSection);
+			builder.appendQueryParameter(Five.Paging.AFTER_SORT_KEY, after.lastSortKey);
+			builder.appendQueryParameter(Five.Paging.AFTER_ID, String.valueOf(after.lastId));
+		}
+		else if (position > 0)
+		{
+			int section = getSectionForPosition(position);
+			builder.appendQueryParameter(Five.Paging.AFTER_SECTION, mSections[section]);
+			builder.appendQueryParameter(Five.Paging.OFFSET,
+			  String.valueOf(position - mPositions[section]));
+		}
+
+		Cursor cursor = mResolver.query(builder.build(), null,
+				mSelection, mSelectionArgs, null);
+
+		return new Page(cursor);
+	}
+
+	private Page getPage(int index)
+	{
+		Page page = mPages.get(index);
+
+		if (page == null)
+		{
+			Page previous = mPages.get(index - 1);
+
+			if (previous != null && previous.isFull() == true)
+				page = queryPage(previous, index * PAGE_SIZE);
+			else
+				page = queryPage(null, index * PAGE_SIZE);
+
+			mPages.put(index, page);
+		}
+
+		return page;
+	}
+
+	private void closePages()
+	{
+		Iterator<Page> i = mPages.values().iterator();
+		while (i.hasNext() == true)
+		{
+			i.next().close();
+			i.remove();
+		}
+
+		mCurrent = null;
+	}
+
+	@Override
+	public boolean onMove(int oldPosition, int newPosition)
+	{
+		Cursor cursor = getPage(newPosition / PAGE_SIZE).cursor;
+
+		if (cursor != null && cursor.moveToPosition(newPosition % PAGE_SIZE) == true)
+			mCurrent = cursor;
+		else
+			mCurrent = null;
+
+		return true;
+	}
+
+	@Override
+	public boolean requery()
+	{
+		closePages();
+		load();
+
+		return super.requery();
+	}
+
+	@Override
+	public void deactivate()
+	{
+		closePages();
+		super.deactivate();
+	}
+
+	@Override
+	public void close()
+	{
+		closePages();
+		super.close();
+	}
+
+	@Override
+	public int getCount()
+	{
+		return mCount;
+	}
+
+	@Override
+	public String[] getColumnNames()
+	{
+		return mColumnNames;
+	}
+
+	@Override
+	public String getString(int column)
+	{
+		return (mCurrent != null) ? mCurrent.getString(column) : null;
+	}
+
+	@Override
+	public short getShort(int column)
+	{
+		return (mCurrent != null) ? mCurrent.getShort(column) : 0;
+	}
+
+	@Override
+	public int getInt(int column)
+	{
+		return (mCurrent != null) ? mCurrent.getInt(column) : 0;
+	}
+
+	@Override
+	public long getLong(int column)
+	{
+		return (mCurrent != null) ? mCurrent.getLong(column) : 0;
+	}
+
+	@Override
+	public float getFloat(int column)
+	{
+		return (mCurrent != null) ? mCurrent.getFloat(column) : 0;
+	}
+
+	@Override
+	public double getDouble(int column)
+	{
+		return (mCurrent != null) ? mCurrent.getDouble(column) : 0;
+	}
+
+	@Override
+	public byte[] getBlob(int column)
+	{
+		return (mCurrent != null) ? mCurrent.getBlob(column) : null;
+	}
+
+	@Override
+	public boolean isNull(int column)
+	{
+		return (mCurrent != null) ? mCurrent.isNull(column) : true;
+	}
+
+	public Object[] getSections()
+	{
+		return mSections;
+	}
+
+	public int getPositionForSection(int section)
+	{
+		if (section < 0 || mPositions.length == 0)
+			return 0;
+
+		if (section >= mPositions.length)
+			return getCount();
+
+		return mPositions[section];
+	}
+
+	public int getSectionForPosition(int position)
+	{
+		int index = Arrays.binarySearch(mPositions, position);
+
+		/* Not a section's first position: use the section before. */
+		if (index < 0)
+			index = -index - 2;
+
+		return Math.max(index, 0);
+	}
+}
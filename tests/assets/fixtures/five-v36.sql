@@ -0,0 +1,46 @@
+-- Library database as created by schema version 36, with a small synced
+-- library: one source, two artists, two albums (one shared by both
+-- artists), four songs (two of them cached) and a playlist.
+
+CREATE TABLE sources (_id INTEGER PRIMARY KEY AUTOINCREMENT, host TEXT UNIQUE NOT NULL, port INTEGER NOT NULL, password TEXT NOT NULL, revision INTEGER, status TEXT );
+
+CREATE TABLE music_artists (_id INTEGER PRIMARY KEY AUTOINCREMENT, _sync_id INTEGER, _sync_time BIGINT, mbid INTEGER, name TEXT COLLATE UNICODE NOT NULL, name_prefix TEXT, photo TEXT, genre TEXT, discovery_date DATETIME, num_albums INTEGER, num_songs INTEGER );
+CREATE TABLE music_artists_deleted (_id INTEGER PRIMARY KEY, _sync_id INTEGER, _sync_time BIGINT);
+
+CREATE TABLE music_albums (_id INTEGER PRIMARY KEY AUTOINCREMENT, _sync_id INTEGER, _sync_time BIGINT, mbid INTEGER, name TEXT COLLATE UNICODE NOT NULL, name_prefix TEXT, artist_id INTEGER, artwork TEXT, artwork_big TEXT, release_date DATETIME, discovery_date DATETIME, num_songs INTEGER );
+CREATE TABLE music_albums_deleted (_id INTEGER PRIMARY KEY, _sync_id INTEGER, _sync_time BIGINT);
+
+CREATE TABLE music_songs (_id INTEGER PRIMARY KEY AUTOINCREMENT, _sync_id INTEGER, _sync_time BIGINT, source_id INTEGER, mime_type TEXT NOT NULL, size INTEGER NOT NULL, cached_timestamp INTEGER, cached_path TEXT, mbid INTEGER, title TEXT COLLATE UNICODE NOT NULL, artist_id INTEGER NOT NULL, album_id INTEGER, length INTEGER NOT NULL, bitrate INTEGER, track_num INTEGER, genre TEXT, set_num INTEGER, discovery_date DATETIME, last_played DATETIME );
+CREATE TABLE music_songs_deleted (_id INTEGER PRIMARY KEY, _sync_id INTEGER, _sync_time BIGINT);
+
+CREATE TABLE music_playlists (_id INTEGER PRIMARY KEY AUTOINCREMENT, _sync_id INTEGER, _sync_time BIGINT, name TEXT COLLATE UNICODE NOT NULL, created_date DATETIME, num_songs INTEGER );
+CREATE TABLE music_playlists_deleted (_id INTEGER PRIMARY KEY, _sync_id INTEGER, _sync_time BIGINT);
+
+CREATE TABLE music_playlist_songs (_id INTEGER PRIMARY KEY AUTOINCREMENT, _sync_id INTEGER, _sync_time BIGINT, playlist_id INTEGER NOT NULL, song_id INTEGER NOT NULL, position INTEGER NOT NULL );
+CREATE TABLE music_playlist_songs_deleted (_id INTEGER PRIMARY KEY, _sync_id INTEGER, _sync_time BIGINT);
+
+CREATE UNIQUE INDEX music_artists__sync_id ON music_artists (_sync_id);
+CREATE INDEX music_albums_artist_id ON music_albums (artist_id);
+CREATE UNIQUE INDEX music_albums__sync_id ON music_albums (_sync_id);
+CREATE INDEX music_songs_artist_id ON music_songs (artist_id);
+CREATE INDEX music_songs_album_id ON music_songs (album_id);
+CREATE INDEX music_songs_cached_timestamp ON music_songs (cached_timestamp);
+CREATE UNIQUE INDEX music_songs__sync_id ON music_songs (_sync_id);
+CREATE INDEX music_playlist_songs_playlist_id ON music_playlist_songs (playlist_id);
+
+INSERT INTO sources VALUES (1, 'music.example.com', 5545, 'secret', 1262304000, NULL);
+
+INSERT INTO music_artists VALUES (1, 101, 1262304000, NULL, 'Beatles', 'The ', NULL, NULL, NULL, 1, 3);
+INSERT INTO music_artists VALUES (2, 102, 1262304000, NULL, '!!!', NULL, NULL, NULL, NULL, 0, 1);
+
+INSERT INTO music_albums VALUES (1, 201, 1262304000, NULL, 'Abbey Road', NULL, 1, NULL, NULL, NULL, NULL, 3);
+INSERT INTO music_albums VALUES (2, 202, 1262304000, NULL, 'Compilation', NULL, NULL, NULL, NULL, NULL, NULL, 2);
+
+INSERT INTO music_songs VALUES (1, 301, 1262304000, 1, 'audio/mpeg', 4000000, 1262390400, '/sdcard/five/cache/301.mp3', NULL, 'Come Together', 1, 1, 259, 192, 1, NULL, NULL, NULL, NULL);
+INSERT INTO music_songs VALUES (2, 302, 1262304000, 1, 'audio/mpeg', 3000000, 1262390401, '/sdcard/five/cache/302.mp3', NULL, 'Something', 1, 1, 182, 192, 2, NULL, NULL, NULL, NULL);
+INSERT INTO music_songs VALUES (3, 303, 1262304000, 1, 'audio/mpeg', 3500000, NULL, NULL, NULL, 'Octopus''s Garden', 1, 2, 171, 192, 1, NULL, NULL, NULL, NULL);
+INSERT INTO music_songs VALUES (4, 304, 1262304000, 1, 'audio/mpeg', 5000000, NULL, NULL, NULL, '"Heart" Of Hearts', 2, 2, 312, 256, 2, NULL, NULL, NULL, NULL);
+
+INSERT INTO music_playlists VALUES (1, 401, 1262304000, 'Favourites', NULL, 2);
+INSERT INTO music_playlist_songs VALUES (1, 501, 1262304000, 1, 4, 0);
+INSERT INTO music_playlist_songs VALUES (2, 502, 1262304000, 1, 1, 1);
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.provider;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashSet;
+import java.util.Set;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.InstrumentationTestCase;
+
+public class DatabaseSchemaTest extends InstrumentationTestCase
+{
+	private static final String FIXTURE_V36 = "fixtures/five-v36.sql";
+
+	private static final String UPGRADED_DB = "schema-test-upgraded.db";
+	private static final String CREATED_DB = "schema-test-created.db";
+
+	private SQLiteDatabase mUpgraded;
+	private SQLiteDatabase mCreated;
+
+	@Override
+	protected void setUp()
+	  throws Exception
+	{
+		super.setUp();
+
+		Context context = getInstrumentation().getTargetContext();
+		context.deleteDatabase(UPGRADED_DB);
+		context.deleteDatabase(CREATED_DB);
+
+		mUpgraded = context.openOrCreateDatabase(UPGRADED_DB, 0, null);
+		loadFixture(mUpgraded, FIXTURE_V36);
+		mUpgraded.setVersion(36);
+
+		mCreated = context.openOrCreateDatabase(CREATED_DB, 0, null);
+		DatabaseSchema.create(mCreated, false);
+		mCreated.setVersion(DatabaseSchema.VERSION);
+	}
+
+	@Override
+	protected void tearDown()
+	  throws Exception
+	{
+		mUpgraded.close();
+		mCreated.close();
+
+		Context context = getInstrumentation().getTargetContext();
+		context.deleteDatabase(UPGRADED_DB);
+		context.deleteDatabase(CREATED_DB);
+
+		super.tearDown();
+	}
+
+	private void loadFixture(SQLiteDatabase db, String name)
+	  throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+		  getInstrumentation().getContext().getAssets().open(name)));
+
+		try {
+			StringBuilder statement = new StringBuilder();
+			String line;
+
+			while ((line = reader.readLine()) != null)
+			{
+				if (line.startsWith("--") == true)
+					continue;
+
+				statement.append(line).append('\n');
+
+				if (line.endsWith(";") == true)
+				{
+					db.execSQL(statement.toString());
+					statement.setLength(0);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private boolean upgrade(SQLiteDatabase db, int oldVersion)
+	{
+		db.beginTransaction();
+		try {
+			boolean upgraded = DatabaseSchema.upgrade(db, oldVersion,
+			  DatabaseSchema.VERSION);
+			db.setTransactionSuccessful();
+			return upgraded;
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	private static Set<String> getSchema(SQLiteDatabase db)
+	{
+		Set<String> schema = new HashSet<String>();
+
+		Cursor tables = db.rawQuery("SELECT type, name FROM sqlite_master " +
+		  "WHERE name NOT LIKE 'sqlite_%' AND name != 'android_metadata'", null);
+
+		try {
+			while (tables.moveToNext() == true)
+			{
+				String type = tables.getString(0);
+				String name = tables.getString(1);
+
+				schema.add(type + ' ' + name);
+
+				if (type.equals("table") == false)
+					continue;
+
+				Cursor columns = db.rawQuery("PRAGMA table_info(" + name + ")", null);
+				try {
+					while (columns.moveToNext() == true)
+					{
+						schema.add("column " + name + '.' +
+						  columns.getString(columns.getColumnIndexOrThrow("name")) + ' ' +
+						  columns.getString(columns.getColumnIndexOrThrow("type")));
+					}
+				} finally {
+					columns.close();
+				}
+			}
+		} finally {
+			tables.close();
+		}
+
+		return schema;
+	}
+
+	private static String getString(SQLiteDatabase db, String sql)
+	{
+		return DatabaseUtils.stringForQuery(db, sql, null);
+	}
+
+	private static long getLong(SQLiteDatabase db, String sql)
+	{
+		return DatabaseUtils.longForQuery(db, sql, null);
+	}
+
+	public void testUpgradeMatchesCreate()
+	{
+		assertTrue(upgrade(mUpgraded, 36));
+		assertEquals(getSchema(mCreated), getSchema(mUpgraded));
+	}
+
+	public void testUpgradeKeepsLibrary()
+	{
+		assertTrue(upgrade(mUpgraded, 36));
+
+		assertEquals(2, getLong(mUpgraded, "SELECT COUNT(*) FROM music_artists"));
+		assertEquals(2, getLong(mUpgraded, "SELECT COUNT(*) FROM music_albums"));
+		assertEquals(4, getLong(mUpgraded, "SELECT COUNT(*) FROM music_songs"));
+		assertEquals(2, getLong(mUpgraded, "SELECT COUNT(*) FROM music_playlist_songs"));
+
+		/* Cached songs and the sync watermark must survive, or we'd be
+		 * downloading and syncing everything again. */
+		assertEquals("/sdcard/five/cache/301.mp3",
+		  getString(mUpgraded, "SELECT cached_path FROM music_songs WHERE _id = 1"));
+		assertEquals(2, getLong(mUpgraded,
+		  "SELECT COUNT(*) FROM music_songs WHERE cached_timestamp IS NOT NULL"));
+		assertEquals(1262304000, getLong(mUpgraded,
+		  "SELECT revision FROM sources WHERE _id = 1"));
+	}
+
+	public void testUpgradeBackfills()
+	{
+		assertTrue(upgrade(mUpgraded, 36));
+
+		assertEquals("BEATLES",
+		  getString(mUpgraded, "SELECT sort_key FROM music_artists WHERE _id = 1"));
+		assertEquals("B",
+		  getString(mUpgraded, "SELECT section FROM music_artists WHERE _id = 1"));
+		assertEquals("#",
+		  getString(mUpgraded, "SELECT section FROM music_artists WHERE _id = 2"));
+		assertEquals("HEART\" OF HEARTS",
+		  getString(mUpgraded, "SELECT sort_key FROM music_songs WHERE _id = 4"));
+		assertEquals(0, getLong(mUpgraded,
+		  "SELECT COUNT(*) FROM music_songs WHERE sort_key IS NULL OR section IS NULL"));
+
+		assertEquals(2, getLong(mUpgraded, "SELECT num_songs FROM music_artist_albums " +
+		  "WHERE artist_id = 1 AND album_id = 1"));
+		assertEquals(1, getLong(mUpgraded, "SELECT num_songs FROM music_artist_albums " +
+		  "WHERE artist_id = 2 AND album_id = 2"));
+
+		assertEquals(1, getLong(mUpgraded,
+		  "SELECT COUNT(*) FROM music_search WHERE name MATCH 'octopus*'"));
+		assertEquals(1, getLong(mUpgraded,
+		  "SELECT COUNT(*) FROM music_search WHERE name MATCH 'the beatles'"));
+	}
+
+	public void testUpgradeFromEachVersion()
+	{
+		/* Intermediate versions are reached by the same migrations, so
+		 * upgrading from any of them must arrive at the same schema. */
+		for (int version = DatabaseSchema.MIN_UPGRADE_VERSION + 1;
+		     version < DatabaseSchema.VERSION; version++)
+		{
+			Context context = getInstrumentation().getTargetContext();
+			String name = "schema-test-" + version + ".db";
+			context.deleteDatabase(name);
+
+			SQLiteDatabase db = context.openOrCreateDatabase(name, 0, null);
+			try {
+				loadFixture(db, FIXTURE_V36);
+
+				db.beginTransaction();
+				try {
+					DatabaseSchema.upgrade(db, 36, version);
+					db.setTransactionSuccessful();
+				} finally {
+					db.endTransaction();
+				}
+
+				assertTrue(upgrade(db, version));
+				assertEquals("from version " + version,
+				  getSchema(mCreated), getSchema(db));
+			} catch (IOException e) {
+				fail(e.toString());
+			} finally {
+				db.close();
+				context.deleteDatabase(name);
+			}
+		}
+	}
+
+	public void testTooOldIsRefused()
+	{
+		Set<String> before = getSchema(mUpgraded);
+
+		assertFalse(upgrade(mUpgraded, DatabaseSchema.MIN_UPGRADE_VERSION - 1));
+		assertEquals(before, getSchema(mUpgraded));
+	}
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.provider;
+
+import java.util.concurrent.CountDownLatch;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+/**
+ * Checks each profile in {@link DatabaseTuning} and benchmarks it against
+ * SQLite's defaults on the same workload. Timings are logged under
+ * {@link #TAG}, as they vary too much between devices to assert on.
+ */
+public class DatabaseTuningTest extends InstrumentationTestCase
+{
+	private static final String TAG = "DatabaseTuningTest";
+
+	private static final String DEFAULT_DB = "tuning-test-default.db";
+	private static final String TUNED_DB = "tuning-test-tuned.db";
+
+	private static final int BENCHMARK_SONGS = 2000;
+
+	/* Songs inserted in each transaction, as for each page downloaded. */
+	private static final int BATCH_SIZE = 100;
+
+	/* How long the writer holds its transaction open in testLibraryProfile. */
+	private static final long WRITER_HOLD = 1000;
+
+	private SQLiteDatabase mDefault;
+	private SQLiteDatabase mTuned;
+
+	@Override
+	protected void tearDown()
+	  throws Exception
+	{
+		if (mDefault != null)
+			mDefault.close();
+		if (mTuned != null)
+			mTuned.close();
+
+		Context context = getInstrumentation().getTargetContext();
+		context.deleteDatabase(DEFAULT_DB);
+		context.deleteDatabase(TUNED_DB);
+
+		super.tearDown();
+	}
+
+	private SQLiteDatabase openDatabase(String name, boolean temporary)
+	{
+		Context context = getInstrumentation().getTargetContext();
+		context.deleteDatabase(name);
+
+		SQLiteDatabase db = context.openOrCreateDatabase(name, 0, null);
+		DatabaseSchema.create(db, temporary);
+
+		return db;
+	}
+
+	private static void insertSongs(SQLiteDatabase db, int count)
+	{
+		SQLiteStatement insert = db.compileStatement("INSERT INTO " +
+		  Five.Music.Songs.SQL.TABLE + " (" +
+		  Five.Music.Songs._SYNC_ID + ", " + Five.Music.Songs.MIME_TYPE + ", " +
+		  Five.Music.Songs.SIZE + ", " + Five.Music.Songs.TITLE + ", " +
+		  Five.Music.Songs.ARTIST_ID + ", " + Five.Music.Songs.ALBUM_ID + ", " +
+		  Five.Music.Songs.LENGTH + ", " + Five.Music.Songs.SORT_KEY + ", " +
+		  Five.Music.Songs.SECTION + ") VALUES (?, 'audio/mpeg', 4000000, ?, ?, ?, 240, ?, ?)");
+
+		try {
+			for (int i = 0; i < count; i += BATCH_SIZE)
+			{
+				db.beginTransaction();
+				try {
+					for (int j = i; j < Math.min(i + BATCH_SIZE, count); j++)
+					{
+						String title = "Song " + j;
+						insert.bindLong(1, j);
+						insert.bindString(2, title);
+						insert.bindLong(3, j % 50);
+						insert.bindLong(4, j % 200);
+						insert.bindString(5, title.toUpperCase());
+						insert.bindString(6, title.substring(0, 1));
+						insert.execute();
+					}
+					db.setTransactionSuccessful();
+				} finally {
+					db.endTransaction();
+				}
+			}
+		} finally {
+			insert.close();
+		}
+	}
+
+	/* Look up and update every song by sync id, as a merge does. */
+	private static void mergeSongs(SQLiteDatabase db, int count)
+	{
+		SQLiteStatement lookup = db.compileStatement("SELECT _id FROM " +
+		  Five.Music.Songs.SQL.TABLE + " WHERE " + Five.Music.Songs._SYNC_ID + " = ?");
+		SQLiteStatement update = db.compileStatement("UPDATE " +
+		  Five.Music.Songs.SQL.TABLE + " SET " + Five.Music.Songs.BITRATE + " = ? " +
+		  "WHERE _id = ?");
+
+		db.beginTransaction();
+		try {
+			for (int i = count - 1; i >= 0; i--)
+			{
+				lookup.bindLong(1, i);
+				update.bindLong(1, 192);
+				update.bindLong(2, lookup.simpleQueryForLong());
+				update.execute();
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			lookup.close();
+			update.close();
+		}
+	}
+
+	private static long time(Runnable workload)
+	{
+		long start = SystemClock.uptimeMillis();
+		workload.run();
+		return SystemClock.uptimeMillis() - start;
+	}
+
+	private static void logComparison(String profile, long defaultTime, long tunedTime)
+	{
+		Log.i(TAG, profile + ": default " + defaultTime + " ms, tuned " +
+		  tunedTime + " ms");
+	}
+
+	public void testSyncProfile()
+	{
+		mDefault = openDatabase(DEFAULT_DB, true);
+		mTuned = openDatabase(TUNED_DB, true);
+		DatabaseTuning.applySyncProfile(mTuned);
+
+		assertEquals(0, DatabaseTuning.getPragma(mTuned, "synchronous"));
+		assertEquals(2, DatabaseTuning.getPragma(mTuned, "temp_store"));
+
+		long defaultTime = time(new Runnable() {
+			public void run() {
+				insertSongs(mDefault, BENCHMARK_SONGS);
+			}
+		});
+
+		long tunedTime = time(new Runnable() {
+			public void run() {
+				insertSongs(mTuned, BENCHMARK_SONGS);
+			}
+		});
+
+		logComparison("sync", defaultTime, tunedTime);
+
+		assertEquals(BENCHMARK_SONGS, DatabaseUtils.queryNumEntries(mTuned,
+		  Five.Music.Songs.SQL.TABLE));
+	}
+
+	public void testMergeProfile()
+	{
+		mDefault = openDatabase(DEFAULT_DB, false);
+		mTuned = openDatabase(TUNED_DB, false);
+		insertSongs(mDefault, BENCHMARK_SONGS);
+		insertSongs(mTuned, BENCHMARK_SONGS);
+
+		long defaultTime = time(new Runnable() {
+			public void run() {
+				mergeSongs(mDefault, BENCHMARK_SONGS);
+			}
+		});
+
+		final long cacheSize = DatabaseTuning.beginMerge(mTuned);
+		assertTrue(DatabaseTuning.getPragma(mTuned, "cache_size") >=
+		  DatabaseTuning.MERGE_CACHE_SIZE);
+
+		long tunedTime = time(new Runnable() {
+			public void run() {
+				mergeSongs(mTuned, BENCHMARK_SONGS);
+			}
+		});
+
+		long analyzeTime = time(new Runnable() {
+			public void run() {
+				DatabaseTuning.endMerge(mTuned, cacheSize, BENCHMARK_SONGS);
+			}
+		});
+
+		logComparison("merge", defaultTime, tunedTime);
+		Log.i(TAG, "merge: analyze " + analyzeTime + " ms");
+
+		assertEquals(cacheSize, DatabaseTuning.getPragma(mTuned, "cache_size"));
+		assertTrue(DatabaseUtils.queryNumEntries(mTuned, "sqlite_stat1") > 0);
+	}
+
+	public void testSmallMergeSkipsAnalyze()
+	{
+		mTuned = openDatabase(TUNED_DB, false);
+		insertSongs(mTuned, BATCH_SIZE);
+
+		long cacheSize = DatabaseTuning.beginMerge(mTuned);
+		DatabaseTuning.endMerge(mTuned, cacheSize, DatabaseTuning.ANALYZE_THRESHOLD - 1);
+
+		assertEquals(0, DatabaseUtils.longForQuery(mTuned,
+		  "SELECT COUNT(*) FROM sqlite_master WHERE name = 'sqlite_stat1'", null));
+	}
+
+	/**
+	 * Time a read of the library, as made by the UI, while another thread
+	 * holds a write transaction open, as a merge does.
+	 */
+	private long timeReadDuringWrite(final SQLiteDatabase db)
+	  throws InterruptedException
+	{
+		final CountDownLatch writing = new CountDownLatch(1);
+
+		Thread writer = new Thread("DatabaseTuningTest writer") {
+			public void run()
+			{
+				db.beginTransaction();
+				try {
+					mergeSongs(db, BATCH_SIZE);
+					writing.countDown();
+					SystemClock.sleep(WRITER_HOLD);
+					db.setTransactionSuccessful();
+				} finally {
+					db.endTransaction();
+				}
+			}
+		};
+
+		writer.start();
+		writing.await();
+
+		long readTime = time(new Runnable() {
+			public void run() {
+				DatabaseUtils.queryNumEntries(db, Five.Music.Songs.SQL.TABLE);
+			}
+		});
+
+		writer.join();
+
+		return readTime;
+	}
+
+	public void testLibraryProfile()
+	  throws InterruptedException
+	{
+		mDefault = openDatabase(DEFAULT_DB, false);
+		mTuned = openDatabase(TUNED_DB, false);
+		insertSongs(mDefault, BENCHMARK_SONGS);
+		insertSongs(mTuned, BENCHMARK_SONGS);
+
+		boolean wal = DatabaseTuning.applyLibraryProfile(mTuned);
+		Log.i(TAG, "library: journal mode " + DatabaseTuning.getJournalMode(mTuned));
+
+		long defaultTime = timeReadDuringWrite(mDefault);
+		long tunedTime = timeReadDuringWrite(mTuned);
+
+		logComparison("library read during write", defaultTime, tunedTime);
+
+		/* Without write-ahead logging the read waits out the writer. */
+		if (wal == true)
+			assertTrue(tunedTime < WRITER_HOLD / 2);
+	}
+}
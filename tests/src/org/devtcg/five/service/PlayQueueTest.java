@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks {@link PlayQueue} against an {@link ArrayList} holding the same
+ * entries, with edits placed on either side of the gap.
+ */
+public class PlayQueueTest extends TestCase
+{
+	private PlayQueue mQueue;
+	private List<Long> mExpected;
+
+	@Override
+	protected void setUp()
+	  throws Exception
+	{
+		super.setUp();
+
+		mQueue = new PlayQueue();
+		mExpected = new ArrayList<Long>();
+	}
+
+	private void append(int count)
+	{
+		for (int i = 0; i < count; i++)
+		{
+			long songId = 1000 + mExpected.size();
+			mQueue.add(songId);
+			mExpected.add(songId);
+		}
+	}
+
+	private void assertQueue()
+	{
+		assertEquals(mExpected.size(), mQueue.size());
+
+		for (int i = 0; i < mExpected.size(); i++)
+			assertEquals("Position " + i, (long)mExpected.get(i), mQueue.get(i));
+
+		for (int i = 0; i < mExpected.size(); i++)
+			assertEquals(mExpected.lastIndexOf(mExpected.get(i)), mQueue.lastIndexOf(mExpected.get(i)));
+	}
+
+	public void testAppend()
+	{
+		append(10);
+		assertQueue();
+		assertEquals(-1, mQueue.lastIndexOf(1));
+	}
+
+	public void testInsertAcrossGap()
+	{
+		append(10);
+
+		/* Gap at the end; move it back, then forward past its old start. */
+		mQueue.add(3, 1);
+		mExpected.add(3, 1L);
+		assertQueue();
+
+		mQueue.add(9, 2);
+		mExpected.add(9, 2L);
+		assertQueue();
+
+		mQueue.add(0, 3);
+		mExpected.add(0, 3L);
+		assertQueue();
+
+		mQueue.add(mQueue.size(), 4);
+		mExpected.add(4L);
+		assertQueue();
+	}
+
+	public void testAddAllAcrossGap()
+	{
+		append(10);
+
+		long[] songIds = { 1, 2, 3, 4, 5 };
+
+		mQueue.addAll(2, songIds, 1, 3);
+		mExpected.addAll(2, toList(songIds, 1, 3));
+		assertQueue();
+
+		mQueue.addAll(11, songIds, 0, 5);
+		mExpected.addAll(11, toList(songIds, 0, 5));
+		assertQueue();
+
+		mQueue.addAll(mQueue.size(), songIds, 0, 2);
+		mExpected.addAll(toList(songIds, 0, 2));
+		assertQueue();
+	}
+
+	public void testRemoveAcrossGap()
+	{
+		append(20);
+
+		assertEquals((long)mExpected.remove(5), mQueue.remove(5));
+		assertQueue();
+
+		/* Either side of the gap left by the last removal. */
+		assertEquals((long)mExpected.remove(4), mQueue.remove(4));
+		assertQueue();
+
+		assertEquals((long)mExpected.remove(12), mQueue.remove(12));
+		assertQueue();
+
+		mQueue.removeRange(2, 8);
+		mExpected.subList(2, 8).clear();
+		assertQueue();
+
+		mQueue.removeRange(mQueue.size() - 2, mQueue.size());
+		mExpected.subList(mExpected.size() - 2, mExpected.size()).clear();
+		assertQueue();
+	}
+
+	public void testMoveAcrossGap()
+	{
+		append(20);
+
+		assertEquals((long)mExpected.get(2), mQueue.move(2, 15));
+		mExpected.add(15, mExpected.remove(2));
+		assertQueue();
+
+		assertEquals((long)mExpected.get(17), mQueue.move(17, 1));
+		mExpected.add(1, mExpected.remove(17));
+		assertQueue();
+
+		mQueue.moveRange(3, 4, 12);
+		moveRange(3, 4, 12);
+		assertQueue();
+
+		mQueue.moveRange(14, 5, 0);
+		moveRange(14, 5, 0);
+		assertQueue();
+	}
+
+	public void testGrowth()
+	{
+		append(10);
+
+		/* Well beyond the initial capacity, inserting in the middle so that
+		 * the gap is away from the end each time the buffer grows. */
+		for (int i = 0; i < 1000; i++)
+		{
+			int pos = mExpected.size() / 2;
+			mQueue.add(pos, i);
+			mExpected.add(pos, (long)i);
+		}
+
+		assertQueue();
+
+		long[] songIds = new long[5000];
+		for (int i = 0; i < songIds.length; i++)
+			songIds[i] = -i;
+
+		mQueue.addAll(7, songIds, 0, songIds.length);
+		mExpected.addAll(7, toList(songIds, 0, songIds.length));
+		assertQueue();
+	}
+
+	public void testRangeReads()
+	{
+		append(30);
+
+		/* Put the gap in the middle of the ranges read below. */
+		mQueue.add(15, 1);
+		mExpected.add(15, 1L);
+
+		assertRange(0, mExpected.size());
+		assertRange(10, 20);
+		assertRange(15, 16);
+		assertRange(16, 30);
+		assertRange(0, 15);
+
+		/* Bounded by the queue's size. */
+		long[] dst = new long[100];
+		assertEquals(6, mQueue.get(25, dst, 10, 100));
+		for (int i = 0; i < 6; i++)
+			assertEquals((long)mExpected.get(25 + i), dst[10 + i]);
+
+		assertEquals(0, mQueue.get(mQueue.size(), dst, 0, 10));
+		assertEquals(0, mQueue.toArray(20, 10).length);
+		assertEquals(mExpected.subList(20, mExpected.size()),
+			mQueue.toList(20, mExpected.size() + 10));
+	}
+
+	public void testClear()
+	{
+		append(5000);
+		mQueue.clear();
+		mExpected.clear();
+		assertQueue();
+
+		append(10);
+		assertQueue();
+	}
+
+	public void testOutOfBounds()
+	{
+		append(5);
+
+		try {
+			mQueue.get(5);
+			fail();
+		} catch (IndexOutOfBoundsException e) {}
+
+		try {
+			mQueue.add(6, 1);
+			fail();
+		} catch (IndexOutOfBoundsException e) {}
+
+		try {
+			mQueue.removeRange(3, 6);
+			fail();
+		} catch (IndexOutOfBoundsException e) {}
+
+		try {
+			mQueue.moveRange(2, 3, 3);
+			fail();
+		} catch (IndexOutOfBoundsException e) {}
+
+		assertQueue();
+	}
+
+	public void testDuplicates()
+	{
+		long[] songIds = { 1, 2, 1, 3, 1, 2 };
+		mQueue.addAll(0, songIds, 0, songIds.length);
+		mExpected.addAll(toList(songIds, 0, songIds.length));
+		assertQueue();
+
+		/* The last occurrence of each, then the one that takes its place. */
+		assertEquals((long)mExpected.remove(5), mQueue.remove(5));
+		assertEquals(1, mQueue.lastIndexOf(2));
+		assertEquals((long)mExpected.remove(4), mQueue.remove(4));
+		assertEquals(2, mQueue.lastIndexOf(1));
+		assertQueue();
+
+		/* Move an earlier occurrence past the last. */
+		assertEquals((long)mExpected.get(0), mQueue.move(0, 3));
+		mExpected.add(3, mExpected.remove(0));
+		assertEquals(3, mQueue.lastIndexOf(1));
+		assertQueue();
+
+		mQueue.removeRange(0, mQueue.size());
+		mExpected.clear();
+		assertEquals(-1, mQueue.lastIndexOf(1));
+		assertEquals(-1, mQueue.lastIndexOf(2));
+		assertQueue();
+	}
+
+	public void testRandomEdits()
+	{
+		randomEdits(new Random(1), 50);
+	}
+
+	/* Mostly distinct songs, so that the index holds many entries and
+	 * removes them as often as it updates them. */
+	public void testRandomEditsManySongs()
+	{
+		randomEdits(new Random(2), 100000);
+	}
+
+	private void randomEdits(Random random, int songs)
+	{
+		append(100);
+
+		for (int i = 0; i < 2000; i++)
+		{
+			int size = mExpected.size();
+
+			switch (random.nextInt(4))
+			{
+				case 0:
+					int pos = random.nextInt(size + 1);
+					long songId = random.nextInt(songs);
+					mQueue.add(pos, songId);
+					mExpected.add(pos, songId);
+					break;
+				case 1:
+					if (size > 0)
+					{
+						int at = random.nextInt(size);
+						assertEquals((long)mExpected.remove(at), mQueue.remove(at));
+					}
+					break;
+				case 2:
+					if (size > 0)
+					{
+						int from = random.nextInt(size);
+						int to = random.nextInt(size);
+						mQueue.move(from, to);
+						mExpected.add(to, mExpected.remove(from));
+					}
+					break;
+				case 3:
+					int count = random.nextInt(Math.min(size, 10) + 1);
+					int from = random.nextInt(size - count + 1);
+					int to = random.nextInt(size - count + 1);
+					mQueue.moveRange(from, count, to);
+					moveRange(from, count, to);
+					break;
+			}
+
+			if (i % 100 == 0)
+				assertQueue();
+		}
+
+		assertQueue();
+	}
+
+	private void assertRange(int from, int to)
+	{
+		long[] songIds = mQueue.toArray(from, to);
+		assertEquals(to - from, songIds.length);
+
+		for (int i = 0; i < songIds.length; i++)
+			assertEquals((long)mExpected.get(from + i), songIds[i]);
+	}
+
+	private void moveRange(int from, int count, int to)
+	{
+		List<Long> range = new ArrayList<Long>(mExpected.subList(from, from + count));
+		mExpected.subList(from, from + count).clear();
+		mExpected.addAll(to, range);
+	}
+
+	private static List<Long> toList(long[] songIds, int offset, int count)
+	{
+		List<Long> list = new ArrayList<Long>(count);
+
+		for (int i = offset; i < offset + count; i++)
+			list.add(songIds[i]);
+
+		return list;
+	}
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.service;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import android.test.RenamingDelegatingContext;
+
+/**
+ * Writes a queue through {@link PlaylistJournal}, recovers it with a new
+ * instance as the service would after being killed, and checks that the
+ * recovered queue and state match what was written.
+ */
+public class PlaylistJournalTest extends InstrumentationTestCase
+{
+	private static final String PREFIX = "test.";
+
+	/* Journal written by the first session on an empty directory. */
+	private static final String FIRST_JOURNAL = "playlist_journal.0";
+
+	/* Written before being renamed over the snapshot. */
+	private static final String SNAPSHOT_TMP = "playlist_state.tmp";
+
+	private Context mContext;
+
+	private PlaylistJournal mJournal;
+	private PlayQueue mQueue;
+	private ShuffleOrder mShuffle;
+	private PlaylistJournal.State mState;
+
+	@Override
+	protected void setUp()
+	  throws Exception
+	{
+		super.setUp();
+
+		mContext = new RenamingDelegatingContext(getInstrumentation().getTargetContext(),
+		  PREFIX);
+		deleteFiles();
+
+		mQueue = new PlayQueue();
+		mShuffle = new ShuffleOrder();
+		mState = new PlaylistJournal.State();
+		mJournal = new PlaylistJournal(mContext);
+		assertFalse(mJournal.recover(new PlayQueue(), new ShuffleOrder(),
+		  new PlaylistJournal.State()));
+	}
+
+	@Override
+	protected void tearDown()
+	  throws Exception
+	{
+		if (mJournal != null)
+			mJournal.close();
+
+		deleteFiles();
+		super.tearDown();
+	}
+
+	private void deleteFiles()
+	{
+		File[] files = getInstrumentation().getTargetContext().getFilesDir().listFiles();
+		if (files == null)
+			return;
+
+		for (File file: files)
+		{
+			if (file.getName().startsWith(PREFIX) == true)
+				file.delete();
+		}
+	}
+
+	private void insert(int pos, long songId)
+	{
+		mQueue.add(pos, songId);
+		mJournal.logInsert(pos, songId);
+	}
+
+	private void append(int count)
+	{
+		for (int i = 0; i < count; i++)
+			insert(mQueue.size(), 100 + mQueue.size());
+	}
+
+	/* As PlaylistService does in random mode. */
+	private void shuffledInsert(int pos, long songId)
+	{
+		insert(pos, songId);
+
+		if (mState.position >= pos)
+			position(mState.position + 1);
+
+		long seed = mShuffle.newSeed();
+		mShuffle.onInsert(pos, mState.position, seed);
+		mJournal.logShuffleInsert(pos, 1, mState.position, seed);
+	}
+
+	private void shuffle()
+	{
+		long seed = mShuffle.newSeed();
+		mShuffle.shuffle(mQueue.size(), mState.position, seed);
+		mJournal.logShuffle(mState.position, seed);
+		mState.shuffled = true;
+	}
+
+	private void position(int position)
+	{
+		mState.position = position;
+		mJournal.logPosition(position);
+	}
+
+	private void state(boolean playing, boolean paused, int offset)
+	{
+		mState.playing = playing;
+		mState.paused = paused;
+		mState.offset = offset;
+		mJournal.logState(playing, paused, offset);
+	}
+
+	/**
+	 * Close the journal and recover from disk, checking the result against
+	 * what was written.
+	 */
+	private void assertRecovers()
+	{
+		mJournal.close();
+
+		PlayQueue queue = new PlayQueue();
+		ShuffleOrder shuffle = new ShuffleOrder();
+		PlaylistJournal.State state = new PlaylistJournal.State();
+
+		mJournal = new PlaylistJournal(mContext);
+		assertTrue(mJournal.recover(queue, shuffle, state));
+
+		assertQueue(mQueue, queue);
+		assertEquals(mState.position, state.position);
+		assertEquals(mState.playing, state.playing);
+		assertEquals(mState.paused, state.paused);
+		assertEquals(mState.offset, state.offset);
+		assertEquals(mState.shuffled, state.shuffled);
+
+		if (mState.shuffled == true)
+			assertTrue(Arrays.equals(mShuffle.toArray(), shuffle.toArray()));
+	}
+
+	private static void assertQueue(PlayQueue expected, PlayQueue actual)
+	{
+		assertEquals(expected.size(), actual.size());
+
+		for (int i = 0; i < expected.size(); i++)
+			assertEquals("Position " + i, expected.get(i), actual.get(i));
+	}
+
+	public void testRecover()
+	{
+		append(20);
+		insert(3, 1);
+
+		mQueue.remove(7);
+		mJournal.logRemove(7);
+
+		mQueue.move(2, 15);
+		mJournal.logMove(2, 15);
+
+		long[] songIds = { 1, 2, 3, 4 };
+		mQueue.addAll(5, songIds, 1, 3);
+		mJournal.logInsertRange(5, songIds, 1, 3);
+
+		mQueue.removeRange(10, 14);
+		mJournal.logRemoveRange(10, 4);
+
+		mQueue.moveRange(0, 3, 12);
+		mJournal.logMoveRange(0, 3, 12);
+
+		position(4);
+		state(true, true, 12345);
+
+		assertRecovers();
+
+		/* And again from the snapshot the first recovery wrote. */
+		insert(0, 2);
+		position(5);
+		assertRecovers();
+	}
+
+	public void testRecoverAfterClear()
+	{
+		append(10);
+		mQueue.clear();
+		mJournal.logClear();
+		append(3);
+
+		assertRecovers();
+	}
+
+	public void testTornTail()
+	  throws IOException
+	{
+		append(10);
+		position(3);
+		mJournal.close();
+
+		/* The op and half the payload of an insert. */
+		FileOutputStream out = new FileOutputStream(mContext.getFileStreamPath(FIRST_JOURNAL),
+		  true);
+		try {
+			out.write(new byte[] { 1, 0, 0, 0, 0, 0, 0 });
+		} finally {
+			out.close();
+		}
+
+		assertRecovers();
+	}
+
+	public void testTruncatedTail()
+	  throws IOException
+	{
+		append(10);
+		mJournal.close();
+
+		/* Lose the checksum of the last insert. */
+		RandomAccessFile file = new RandomAccessFile(mContext.getFileStreamPath(FIRST_JOURNAL),
+		  "rw");
+		try {
+			file.setLength(file.length() - 2);
+		} finally {
+			file.close();
+		}
+
+		mQueue.remove(mQueue.size() - 1);
+		assertRecovers();
+	}
+
+	public void testCorruptTail()
+	  throws IOException
+	{
+		append(10);
+		mJournal.close();
+
+		/* Flip a bit in the song id of the last insert. */
+		RandomAccessFile file = new RandomAccessFile(mContext.getFileStreamPath(FIRST_JOURNAL),
+		  "rw");
+		try {
+			long pos = file.length() - 5;
+			file.seek(pos);
+			int b = file.read();
+			file.seek(pos);
+			file.write(b ^ 1);
+		} finally {
+			file.close();
+		}
+
+		mQueue.remove(mQueue.size() - 1);
+		assertRecovers();
+	}
+
+	public void testRecoverAfterCompaction()
+	{
+		/* Enough records to compact, on either side of the compaction. */
+		append(600);
+		position(300);
+		mJournal.compactIfNeeded(mQueue, mShuffle);
+
+		for (int i = 0; i < 50; i++)
+		{
+			mQueue.move(i, 599 - i);
+			mJournal.logMove(i, 599 - i);
+		}
+
+		state(true, false, 0);
+
+		/* The snapshot has replaced the first journal. */
+		mJournal.close();
+		assertFalse(mContext.getFileStreamPath(FIRST_JOURNAL).exists());
+
+		assertRecovers();
+	}
+
+	public void testSnapshotWriteFails()
+	{
+		append(10);
+		position(3);
+		mJournal.close();
+
+		/* A directory in its place stops the snapshot from being written. */
+		File tmp = mContext.getFileStreamPath(SNAPSHOT_TMP);
+		assertTrue(tmp.mkdir());
+
+		assertRecovers();
+
+		insert(0, 1);
+		position(4);
+		assertRecovers();
+
+		/* The edits made after the failure survive the next snapshot. */
+		insert(5, 2);
+		assertTrue(tmp.delete());
+		assertRecovers();
+		assertRecovers();
+	}
+
+	public void testRecoverShuffle()
+	{
+		append(20);
+		position(5);
+		shuffle();
+
+		shuffledInsert(6, 1);
+		shuffledInsert(0, 2);
+
+		mQueue.remove(10);
+		mJournal.logRemove(10);
+		mShuffle.onRemove(10);
+
+		mQueue.moveRange(2, 3, 12);
+		mJournal.logMoveRange(2, 3, 12);
+		mShuffle.onMoveRange(2, 3, 12);
+
+		assertRecovers();
+
+		/* And again after compaction, with the order in the snapshot. */
+		int pos = mQueue.size();
+		append(600);
+		mShuffle.onInsertRange(pos, 600, mState.position, 1);
+		mJournal.logShuffleInsert(pos, 600, mState.position, 1);
+		mJournal.compactIfNeeded(mQueue, mShuffle);
+
+		mQueue.removeRange(0, 10);
+		mJournal.logRemoveRange(0, 10);
+		mShuffle.onRemoveRange(0, 10);
+		position(3);
+
+		assertRecovers();
+
+		mShuffle.clear();
+		mJournal.logUnshuffle();
+		mState.shuffled = false;
+
+		assertRecovers();
+	}
+
+	public void testShuffleInsertLost()
+	{
+		append(10);
+		shuffle();
+
+		/* Killed before the seed was logged. */
+		insert(3, 1);
+
+		mState.shuffled = false;
+		assertRecovers();
+	}
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2010 Josh Guilfoyle <jasta@devtcg.org>
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation; either version 2, or (at your option) any
+ * later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package org.devtcg.five.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Applies queue edits to a {@link ShuffleOrder} and to a list of song ids in
+ * parallel, and checks after each that the order is still a permutation of
+ * the queue and that the songs are played in the order the edit promises.
+ */
+public class ShuffleOrderTest extends TestCase
+{
+	private ShuffleOrder mShuffle;
+	private List<Long> mQueue;
+	private Random mRandom;
+
+	@Override
+	protected void setUp()
+	  throws Exception
+	{
+		super.setUp();
+
+		mShuffle = new ShuffleOrder();
+		mQueue = new ArrayList<Long>();
+		mRandom = new Random(1);
+
+		for (long i = 0; i < 50; i++)
+			mQueue.add(i);
+
+		mShuffle.shuffle(mQueue.size(), -1, 1);
+	}
+
+	/**
+	 * @return Song ids in play order, checking along the way that the
+	 *         order visits every queue position exactly once and that
+	 *         {@link ShuffleOrder#previous} inverts {@link ShuffleOrder#next}.
+	 */
+	private List<Long> playOrder()
+	{
+		int size = mQueue.size();
+		assertEquals(size, mShuffle.size());
+
+		List<Long> songIds = new ArrayList<Long>(size);
+		boolean[] seen = new boolean[size];
+
+		int prev = -1;
+		for (int pos = mShuffle.first(); pos != -1; pos = mShuffle.next(pos))
+		{
+			assertFalse("Position " + pos + " played twice", seen[pos]);
+			seen[pos] = true;
+
+			assertEquals(prev, mShuffle.previous(pos));
+			prev = pos;
+
+			songIds.add(mQueue.get(pos));
+		}
+
+		assertEquals(size, songIds.size());
+		assertEquals(prev, mShuffle.last());
+
+		return songIds;
+	}
+
+	public void testShuffleFirst()
+	{
+		mShuffle.shuffle(mQueue.size(), 17, 2);
+		assertEquals(17, mShuffle.first());
+		playOrder();
+	}
+
+	public void testSeedsRepeat()
+	{
+		ShuffleOrder other = new ShuffleOrder();
+		other.shuffle(mQueue.size(), -1, 1);
+		assertTrue(Arrays.equals(mShuffle.toArray(), other.toArray()));
+
+		mShuffle.onInsertRange(10, 5, 20, 3);
+		other.onInsertRange(10, 5, 20, 3);
+		assertTrue(Arrays.equals(mShuffle.toArray(), other.toArray()));
+	}
+
+	public void testInsert()
+	{
+		for (int i = 0; i < 50; i++)
+		{
+			List<Long> before = playOrder();
+
+			int current = mRandom.nextInt(mQueue.size());
+			long currentId = mQueue.get(current);
+			int currentStep = before.indexOf(currentId);
+
+			int pos = mRandom.nextInt(mQueue.size() + 1);
+			int count = 1 + mRandom.nextInt(3);
+
+			List<Long> added = new ArrayList<Long>();
+			for (int j = 0; j < count; j++)
+				added.add(1000L + i * 10 + j);
+
+			mQueue.addAll(pos, added);
+			mShuffle.onInsertRange(pos, count, mQueue.indexOf(currentId),
+			  mRandom.nextLong());
+
+			List<Long> after = playOrder();
+
+			/* Songs up to the current one keep their place. */
+			assertEquals(before.subList(0, currentStep + 1),
+			  after.subList(0, currentStep + 1));
+
+			boolean playNext = (pos == mQueue.indexOf(currentId) + 1);
+
+			/* The rest keep their relative order, except that a single song
+			 * may displace one to the end. */
+			List<Long> rest = new ArrayList<Long>(after);
+			rest.removeAll(added);
+			if (count == 1 && playNext == false)
+				assertDisplaced(before, rest);
+			else
+				assertEquals(before, rest);
+
+			/* Inserted right after the current song means play next. */
+			if (playNext == true)
+			{
+				List<Long> next = after.subList(currentStep + 1, currentStep + 1 + count);
+				assertTrue(next.containsAll(added));
+			}
+		}
+	}
+
+	/**
+	 * Check that <code>actual</code> is <code>expected</code>, or
+	 * <code>expected</code> with one song moved to the end.
+	 */
+	private static void assertDisplaced(List<Long> expected, List<Long> actual)
+	{
+		assertEquals(expected.size(), actual.size());
+
+		int i = 0;
+		while (i < expected.size() && expected.get(i).equals(actual.get(i)))
+			i++;
+
+		if (i == expected.size())
+			return;
+
+		List<Long> moved = new ArrayList<Long>(expected);
+		moved.add(moved.remove(i));
+		assertEquals(moved, actual);
+	}
+
+	public void testAppendOne()
+	{
+		for (int i = 0; i < 200; i++)
+		{
+			int current = mRandom.nextInt(mQueue.size());
+			List<Long> before = playOrder();
+			int currentStep = before.indexOf(mQueue.get(current));
+
+			long songId = 1000L + i;
+			mQueue.add(songId);
+			mShuffle.onInsert(mQueue.size() - 1, current, mRandom.nextLong());
+
+			List<Long> after = playOrder();
+			assertTrue(after.indexOf(songId) > currentStep);
+			assertEquals(before.subList(0, currentStep + 1),
+			  after.subList(0, currentStep + 1));
+
+			List<Long> rest = new ArrayList<Long>(after);
+			rest.remove(songId);
+			assertDisplaced(before, rest);
+		}
+	}
+
+	public void testInsertEmpty()
+	{
+		mQueue.clear();
+		mShuffle.clear();
+
+		mQueue.add(1L);
+		mQueue.add(2L);
+		mShuffle.onInsertRange(0, 2, -1, 4);
+		playOrder();
+	}
+
+	public void testRemove()
+	{
+		while (mQueue.size() > 5)
+		{
+			List<Long> before = playOrder();
+
+			int from = mRandom.nextInt(mQueue.size() - 3);
+			int count = 1 + mRandom.nextInt(3);
+
+			List<Long> removed = new ArrayList<Long>(mQueue.subList(from, from + count));
+			mQueue.subList(from, from + count).clear();
+
+			if (count == 1)
+				mShuffle.onRemove(from);
+			else
+				mShuffle.onRemoveRange(from, count);
+
+			before.removeAll(removed);
+			assertEquals(before, playOrder());
+		}
+
+		mShuffle.onRemoveRange(0, mQueue.size());
+		mQueue.clear();
+		assertEquals(-1, mShuffle.first());
+	}
+
+	public void testMove()
+	{
+		for (int i = 0; i < 100; i++)
+		{
+			List<Long> before = playOrder();
+
+			int size = mQueue.size();
+			int count = 1 + mRandom.nextInt(5);
+			int from = mRandom.nextInt(size - count + 1);
+			int to = mRandom.nextInt(size - count + 1);
+
+			List<Long> moved = new ArrayList<Long>(mQueue.subList(from, from + count));
+			mQueue.subList(from, from + count).clear();
+			mQueue.addAll(to, moved);
+
+			if (count == 1)
+				mShuffle.onMove(from, to);
+			else
+				mShuffle.onMoveRange(from, count, to);
+
+			/* Moving songs in the queue doesn't change when they play. */
+			assertEquals(before, playOrder());
+		}
+	}
+
+	public void testUpcoming()
+	{
+		int pos = mShuffle.next(mShuffle.first());
+
+		int[] upcoming = new int[10];
+		assertEquals(10, mShuffle.upcoming(pos, upcoming));
+
+		for (int i = 0; i < upcoming.length; i++)
+		{
+			assertEquals(pos, upcoming[i]);
+			pos = mShuffle.next(pos);
+		}
+	}
+
+	public void testSet()
+	{
+		int[] order = mShuffle.toArray();
+
+		ShuffleOrder other = new ShuffleOrder();
+		assertTrue(other.set(order));
+		assertTrue(Arrays.equals(order, other.toArray()));
+
+		order[1] = order[0];
+		assertFalse(other.set(order));
+		assertEquals(0, other.size());
+	}
+}